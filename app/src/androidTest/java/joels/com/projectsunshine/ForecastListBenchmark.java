@@ -0,0 +1,232 @@
+package joels.com.projectsunshine;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+import joels.com.projectsunshine.utilities.SunshineWeatherUtils;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Flings the forecast list in MainActivity and measures the time each bind takes and the frames
+ * dropped while it scrolls, logged under this class's tag. It is run twice: once with
+ * ForecastAdapter as it is, binding rows that were formatted off the main thread, and once with
+ * an adapter that formats each row as it binds it, as ForecastAdapter used to.
+ * <p>
+ * The list is filled with ROWS generated rows rather than the app's weather, so that there is
+ * enough of it to scroll.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ForecastListBenchmark {
+
+    private static final String TAG = ForecastListBenchmark.class.getSimpleName();
+
+    private static final int ROWS = 2000;
+    private static final int FLINGS = 3;
+
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private Instrumentation mInstrumentation;
+    private MainActivity mActivity;
+    private RecyclerView mRecyclerView;
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        Intent intent = new Intent(InstrumentationRegistry.getTargetContext(), MainActivity.class)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        mActivity = (MainActivity) mInstrumentation.startActivitySync(intent);
+        mRecyclerView = mActivity.findViewById(R.id.recyclerview_forecast);
+
+        /* Let the activity's own load finish, so that it doesn't scroll the list back mid-fling */
+        mInstrumentation.waitForIdleSync();
+    }
+
+    @After
+    public void tearDown() {
+        mActivity.finish();
+    }
+
+    @Test
+    public void bindingPreformattedRowsIsCheaperThanFormattingThem() throws InterruptedException {
+        TimedAdapter preformatted = new TimedAdapter(mActivity);
+        preformatted.swapRows(new ForecastListLoader.Result(createRows(), null, null));
+        Measurement current = fling("preformatted rows", preformatted);
+
+        Measurement formatting = fling("formatting in bind", new FormattingAdapter(mActivity));
+
+        assertTrue(current.mBindNanosP50 < formatting.mBindNanosP50);
+    }
+
+    private Measurement fling(String name, final TimedAdapter adapter)
+            throws InterruptedException {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mRecyclerView.setVisibility(View.VISIBLE);
+                mRecyclerView.setAdapter(adapter);
+            }
+        });
+        mInstrumentation.waitForIdleSync();
+        adapter.mBindNanos.clear();
+
+        final FrameCounter frames = new FrameCounter(
+                mActivity.getWindowManager().getDefaultDisplay().getRefreshRate());
+        mInstrumentation.runOnMainSync(frames);
+
+        for (int i = 0; i < FLINGS; i++) {
+            final CountDownLatch idle = new CountDownLatch(1);
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                        @Override
+                        public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                            if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                                recyclerView.removeOnScrollListener(this);
+                                idle.countDown();
+                            }
+                        }
+                    });
+                    mRecyclerView.fling(0, mRecyclerView.getMaxFlingVelocity());
+                }
+            });
+            assertTrue(idle.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        frames.mCounting = false;
+
+        Measurement measurement = new Measurement();
+        long[] bindNanos = adapter.getBindNanos();
+        Arrays.sort(bindNanos);
+        measurement.mBindNanosP50 = bindNanos[bindNanos.length / 2];
+        Log.i(TAG, name + ": " + bindNanos.length + " binds,"
+                + " p50 " + TimeUnit.NANOSECONDS.toMicros(measurement.mBindNanosP50) + "us,"
+                + " p99 " + TimeUnit.NANOSECONDS.toMicros(bindNanos[bindNanos.length * 99 / 100])
+                + "us; " + frames.mFrames + " frames, " + frames.mDroppedFrames + " dropped");
+        return measurement;
+    }
+
+    private static List<ForecastAdapter.ForecastRow> createRows() {
+        List<ForecastAdapter.ForecastRow> rows = new ArrayList<>(ROWS);
+        for (int day = 0; day < ROWS; day++) {
+            long date = FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS;
+            rows.add(new ForecastAdapter.ForecastRow(date,
+                    "Day " + day + " - Clear - 21°C / 12°C"));
+        }
+        return rows;
+    }
+
+    private static class Measurement {
+        private long mBindNanosP50;
+    }
+
+    /* ForecastAdapter as it is, with each bind timed */
+    private static class TimedAdapter extends ForecastAdapter {
+
+        private final List<Long> mBindNanos = new ArrayList<>();
+
+        TimedAdapter(Context context) {
+            super(context, null);
+        }
+
+        @Override
+        public void onBindViewHolder(ForecastAdapterViewHolder viewHolder, int position) {
+            long startNanos = System.nanoTime();
+            bind(viewHolder, position);
+            mBindNanos.add(System.nanoTime() - startNanos);
+        }
+
+        void bind(ForecastAdapterViewHolder viewHolder, int position) {
+            super.onBindViewHolder(viewHolder, position);
+        }
+
+        /* Only read once the scrolling is over, on the test thread */
+        long[] getBindNanos() {
+            long[] bindNanos = new long[mBindNanos.size()];
+            for (int i = 0; i < bindNanos.length; i++) {
+                bindNanos[i] = mBindNanos.get(i);
+            }
+            return bindNanos;
+        }
+    }
+
+    /* Formats each row's date, description and temperatures as it binds it */
+    private static class FormattingAdapter extends TimedAdapter {
+
+        private final Context mContext;
+
+        FormattingAdapter(Context context) {
+            super(context);
+            mContext = context;
+        }
+
+        @Override
+        public int getItemCount() {
+            return ROWS;
+        }
+
+        @Override
+        void bind(ForecastAdapterViewHolder viewHolder, int position) {
+            long date = FIRST_DATE + position * SunshineDateUtils.DAY_IN_MILLIS;
+            String dateString = SunshineDateUtils.getFriendlyDateString(mContext, date, false);
+            String description = SunshineWeatherUtils.getStringForWeatherCondition(mContext, 800);
+            String highAndLow = SunshineWeatherUtils.formatHighLows(mContext, 21, 12);
+            viewHolder.weatherSummary.setText(
+                    dateString + " - " + description + " - " + highAndLow);
+        }
+    }
+
+    /* Counts frames, and the frames dropped between them, until mCounting is cleared */
+    private static class FrameCounter implements Runnable, Choreographer.FrameCallback {
+
+        private final long mFrameIntervalNanos;
+
+        private volatile boolean mCounting = true;
+        private long mLastFrameNanos;
+        private volatile int mFrames;
+        private volatile int mDroppedFrames;
+
+        FrameCounter(float refreshRate) {
+            mFrameIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / refreshRate);
+        }
+
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mCounting) return;
+            if (mLastFrameNanos != 0) {
+                long frames = Math.round((double) (frameTimeNanos - mLastFrameNanos)
+                        / mFrameIntervalNanos);
+                if (frames > 1) mDroppedFrames += frames - 1;
+            }
+            mLastFrameNanos = frameTimeNanos;
+            mFrames++;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+}
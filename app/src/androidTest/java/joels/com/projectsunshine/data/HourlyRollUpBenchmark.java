@@ -0,0 +1,204 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import joels.com.projectsunshine.MainActivity;
+import joels.com.projectsunshine.data.WeatherContract.HourlyEntry;
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Ingests over a million hourly points for one location through the provider, each chunk rolled
+ * up into the days it falls on, and measures what that costs and what it doesn't. Logged under
+ * this class's tag:
+ * <ul>
+ * <li>the ingest rate, in points per second;</li>
+ * <li>the time to insert and roll up 14 more days of points once the table is full;</li>
+ * <li>the forecast list query's p50 and p99 latency, before the points and after them.</li>
+ * </ul>
+ * The points all fall before the days the list shows, so that the list returns the same rows
+ * both times and only the size of the tables around it changes. The queries go straight to the
+ * database rather than through the provider, so that its query result cache doesn't answer them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HourlyRollUpBenchmark {
+
+    private static final String TAG = HourlyRollUpBenchmark.class.getSimpleName();
+
+    private static final String TEST_DATABASE_NAME = "hourly_roll_up_benchmark.db";
+
+    /* The first day the forecast list shows; every hourly point comes before it */
+    private static final long FIRST_DATE = 60000 * SunshineDateUtils.DAY_IN_MILLIS;
+    private static final int FORECAST_DAYS = 14;
+
+    /* 46000 days of hourly points: 1,104,000 of them */
+    private static final int POINT_DAYS = 46000;
+    private static final int POINTS_PER_DAY = 24;
+
+    /* Days of points per bulkInsert call, so that a million points never sit in memory */
+    private static final int CHUNK_DAYS = 400;
+
+    private static final int ROLL_UP_RUNS = 20;
+    private static final int ROLL_UP_DAYS = 14;
+
+    private static final int WARM_UP_QUERIES = 50;
+    private static final int MEASURED_QUERIES = 1000;
+
+    private IsolatedWeatherProvider mProvider;
+    private SQLiteDatabase mDatabase;
+    private long mLocationId;
+
+    @Before
+    public void setUp() {
+        mProvider = IsolatedWeatherProvider.create(InstrumentationRegistry.getTargetContext(),
+                TEST_DATABASE_NAME);
+        mDatabase = mProvider.getDatabase();
+        mLocationId = mProvider.getLocationId("94043");
+        mProvider.bulkInsert(LocationEntry.buildWeatherUri(mLocationId), createForecast());
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void hourlyPointsLeaveTheForecastListAlone() {
+        measureForecastList("without hourly points");
+
+        long firstPointDay = FIRST_DATE - POINT_DAYS * SunshineDateUtils.DAY_IN_MILLIS;
+        int pointsInserted = 0;
+        long startNanos = System.nanoTime();
+        for (int day = 0; day < POINT_DAYS; day += CHUNK_DAYS) {
+            int days = Math.min(CHUNK_DAYS, POINT_DAYS - day);
+            pointsInserted += mProvider.bulkInsert(LocationEntry.buildHourlyUri(mLocationId),
+                    createPoints(firstPointDay + day * SunshineDateUtils.DAY_IN_MILLIS, days));
+        }
+        long ingestNanos = System.nanoTime() - startNanos;
+        Log.i(TAG, "ingest: " + pointsInserted + " points in "
+                + TimeUnit.NANOSECONDS.toMillis(ingestNanos) + "ms, "
+                + pointsInserted * 1000000000L / Math.max(1, ingestNanos) + " points/s");
+        assertEquals(POINT_DAYS * POINTS_PER_DAY, pointsInserted);
+
+        measureRollUp(firstPointDay);
+
+        /* The list still shows only its own days, however many rolled up days came before them */
+        assertEquals(FORECAST_DAYS, measureForecastList("with hourly points"));
+    }
+
+    /* Inserts 14 days of points at a time, each into days before any so far, and times them */
+    private void measureRollUp(long firstPointDay) {
+        long[] nanos = new long[ROLL_UP_RUNS];
+        for (int run = 0; run < ROLL_UP_RUNS; run++) {
+            long day = firstPointDay
+                    - (run + 1) * ROLL_UP_DAYS * SunshineDateUtils.DAY_IN_MILLIS;
+            ContentValues[] points = createPoints(day, ROLL_UP_DAYS);
+            long startNanos = System.nanoTime();
+            mProvider.bulkInsert(LocationEntry.buildHourlyUri(mLocationId), points);
+            nanos[run] = System.nanoTime() - startNanos;
+        }
+
+        Arrays.sort(nanos);
+        Log.i(TAG, "roll up of " + ROLL_UP_DAYS + " days: p50 "
+                + TimeUnit.NANOSECONDS.toMicros(nanos[nanos.length / 2]) + "us, max "
+                + TimeUnit.NANOSECONDS.toMicros(nanos[nanos.length - 1]) + "us");
+    }
+
+    /**
+     * Runs the forecast list query and logs its latencies.
+     *
+     * @return The number of rows the list showed
+     */
+    private int measureForecastList(String name) {
+        for (int i = 0; i < WARM_UP_QUERIES; i++) {
+            queryForecastList();
+        }
+
+        long[] latencies = new long[MEASURED_QUERIES];
+        int rows = 0;
+        for (int i = 0; i < MEASURED_QUERIES; i++) {
+            long startNanos = System.nanoTime();
+            rows = queryForecastList();
+            latencies[i] = System.nanoTime() - startNanos;
+        }
+
+        Arrays.sort(latencies);
+        Log.i(TAG, "forecast list " + name + ": " + rows + " rows,"
+                + " p50 " + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2]) + "us,"
+                + " p99 " + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length * 99 / 100])
+                + "us");
+        return rows;
+    }
+
+    /* What the forecast list loads: one location's days, from a date onwards, by date */
+    private int queryForecastList() {
+        Cursor cursor = mDatabase.query(WeatherEntry.TABLE_NAME,
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(mLocationId), Long.toString(FIRST_DATE)},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                rows++;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* The daily forecast from the API, for the days the list shows */
+    private static ContentValues[] createForecast() {
+        ContentValues[] days = new ContentValues[FORECAST_DAYS];
+        for (int day = 0; day < FORECAST_DAYS; day++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE,
+                    FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + day);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+            values.put(WeatherEntry.COLUMN_PRESSURE, 1013.25);
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+            values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+            days[day] = values;
+        }
+        return days;
+    }
+
+    /* A point for every hour of the days from firstDay on, warmest at midday */
+    private static ContentValues[] createPoints(long firstDay, int days) {
+        ContentValues[] points = new ContentValues[days * POINTS_PER_DAY];
+        for (int i = 0; i < points.length; i++) {
+            int hour = i % POINTS_PER_DAY;
+            ContentValues point = new ContentValues();
+            point.put(HourlyEntry.COLUMN_TIME, firstDay + i * SunshineDateUtils.HOUR_IN_MILLIS);
+            point.put(HourlyEntry.COLUMN_WEATHER_ID, hour < 6 ? 800 : 801 + i % 3);
+            point.put(HourlyEntry.COLUMN_TEMP, 20.0 - Math.abs(12 - hour));
+            point.put(HourlyEntry.COLUMN_HUMIDITY, 40.0 + hour);
+            point.put(HourlyEntry.COLUMN_PRESSURE, 1013.0);
+            point.put(HourlyEntry.COLUMN_WIND_SPEED, 2.0 + hour % 5);
+            point.put(HourlyEntry.COLUMN_DEGREES, hour * 15.0);
+            points[i] = point;
+        }
+        return points;
+    }
+}
@@ -0,0 +1,135 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import joels.com.projectsunshine.data.WeatherContract.HourlyEntry;
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that inserting hourly points fills in the weather of the days that have none, and
+ * leaves the days that already have weather alone.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HourlyRollUpTest {
+
+    private static final String TEST_DATABASE_NAME = "hourly_roll_up_test.db";
+
+    private static final long DAY_1 = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+    private static final long DAY_2 = DAY_1 + SunshineDateUtils.DAY_IN_MILLIS;
+
+    private IsolatedWeatherProvider mProvider;
+    private long mLocationId;
+
+    @Before
+    public void setUp() {
+        mProvider = IsolatedWeatherProvider.create(InstrumentationRegistry.getTargetContext(),
+                TEST_DATABASE_NAME);
+        mLocationId = mProvider.getLocationId("94043");
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void daysWithoutWeatherAreRolledUp() {
+        mProvider.bulkInsert(LocationEntry.buildHourlyUri(mLocationId), createPoints(DAY_1));
+
+        Cursor cursor = queryWeather(DAY_1);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(0.0, getDouble(cursor, WeatherEntry.COLUMN_MIN_TEMP), 0.0);
+            assertEquals(21.0, getDouble(cursor, WeatherEntry.COLUMN_MAX_TEMP), 0.0);
+            assertEquals(800, cursor.getInt(cursor.getColumnIndexOrThrow(
+                    WeatherEntry.COLUMN_WEATHER_ID)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* The daily forecast came from the API, so points for the same day mustn't replace it */
+    @Test
+    public void daysWithWeatherAreLeftAlone() {
+        ContentValues daily = new ContentValues();
+        daily.put(WeatherEntry.COLUMN_DATE, DAY_1);
+        daily.put(WeatherEntry.COLUMN_WEATHER_ID, 500);
+        daily.put(WeatherEntry.COLUMN_MIN_TEMP, -3.0);
+        daily.put(WeatherEntry.COLUMN_MAX_TEMP, 30.0);
+        daily.put(WeatherEntry.COLUMN_HUMIDITY, 90.0);
+        daily.put(WeatherEntry.COLUMN_PRESSURE, 1000.0);
+        daily.put(WeatherEntry.COLUMN_WIND_SPEED, 8.0);
+        daily.put(WeatherEntry.COLUMN_DEGREES, 45.0);
+        mProvider.bulkInsert(LocationEntry.buildWeatherUri(mLocationId),
+                new ContentValues[]{daily});
+
+        List<ContentValues> points = new ArrayList<>();
+        for (ContentValues point : createPoints(DAY_1)) points.add(point);
+        for (ContentValues point : createPoints(DAY_2)) points.add(point);
+        int pointsInserted = mProvider.bulkInsert(LocationEntry.buildHourlyUri(mLocationId),
+                points.toArray(new ContentValues[points.size()]));
+
+        assertEquals(points.size(), pointsInserted);
+
+        Cursor cursor = queryWeather(DAY_1);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(-3.0, getDouble(cursor, WeatherEntry.COLUMN_MIN_TEMP), 0.0);
+            assertEquals(30.0, getDouble(cursor, WeatherEntry.COLUMN_MAX_TEMP), 0.0);
+            assertEquals(500, cursor.getInt(cursor.getColumnIndexOrThrow(
+                    WeatherEntry.COLUMN_WEATHER_ID)));
+        } finally {
+            cursor.close();
+        }
+
+        cursor = queryWeather(DAY_2);
+        try {
+            assertTrue("The day without weather should still be rolled up", cursor.moveToFirst());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* Eight 3-hourly points, with the temperature rising by three degrees each time */
+    private static ContentValues[] createPoints(long day) {
+        ContentValues[] points = new ContentValues[8];
+        for (int i = 0; i < points.length; i++) {
+            ContentValues point = new ContentValues();
+            point.put(HourlyEntry.COLUMN_TIME, day + i * 3 * SunshineDateUtils.HOUR_IN_MILLIS);
+            point.put(HourlyEntry.COLUMN_WEATHER_ID, 800);
+            point.put(HourlyEntry.COLUMN_TEMP, i * 3.0);
+            point.put(HourlyEntry.COLUMN_HUMIDITY, 50.0);
+            point.put(HourlyEntry.COLUMN_PRESSURE, 1013.0);
+            point.put(HourlyEntry.COLUMN_WIND_SPEED, 3.0);
+            point.put(HourlyEntry.COLUMN_DEGREES, 180.0);
+            points[i] = point;
+        }
+        return points;
+    }
+
+    private Cursor queryWeather(long date) {
+        Uri uri = LocationEntry.buildWeatherUriWithDate(mLocationId, date);
+        return mProvider.query(uri, null, null, null, null);
+    }
+
+    private static double getDouble(Cursor cursor, String column) {
+        return cursor.getDouble(cursor.getColumnIndexOrThrow(column));
+    }
+}
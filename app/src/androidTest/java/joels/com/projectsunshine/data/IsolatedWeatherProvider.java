@@ -0,0 +1,54 @@
+package joels.com.projectsunshine.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A WeatherProvider with a database of its own, so that tests can write to it without touching
+ * the app's weather. Call {@link #close()} when done to delete the database. Tests outside this
+ * package reach it through a MockContentResolver.
+ */
+public class IsolatedWeatherProvider extends WeatherProvider {
+
+    private final String mDatabaseName;
+    private WeatherDbHelper mDbHelper;
+
+    private IsolatedWeatherProvider(String databaseName) {
+        mDatabaseName = databaseName;
+    }
+
+    /**
+     * Creates a provider on an empty database of the given name.
+     */
+    public static IsolatedWeatherProvider create(Context context, String databaseName) {
+        context.deleteDatabase(databaseName);
+        IsolatedWeatherProvider provider = new IsolatedWeatherProvider(databaseName);
+        provider.attachInfo(context, null);
+        return provider;
+    }
+
+    @Override
+    WeatherDbHelper createOpenHelper(Context context) {
+        mDbHelper = new WeatherDbHelper(context, mDatabaseName);
+        return mDbHelper;
+    }
+
+    /**
+     * The provider's database, for setting up and checking rows directly.
+     */
+    public SQLiteDatabase getDatabase() {
+        return mDbHelper.getWritableDatabase();
+    }
+
+    /**
+     * Returns the _ID of a location, adding it if it is new.
+     */
+    public long getLocationId(String locationSetting) {
+        return getLocationIdForSetting(getDatabase(), locationSetting, true);
+    }
+
+    public void close() {
+        mDbHelper.close();
+        getContext().deleteDatabase(mDatabaseName);
+    }
+}
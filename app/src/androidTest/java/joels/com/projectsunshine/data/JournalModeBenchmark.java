@@ -0,0 +1,190 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import joels.com.projectsunshine.MainActivity;
+import joels.com.projectsunshine.data.WeatherContract.SyncMetadataEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how long the forecast list query takes while a sync is writing, with the database in
+ * write-ahead logging mode (as WeatherDbHelper opens it) and in rollback journal mode. One thread
+ * writes sync-shaped transactions back to back while several threads run the list query, and the
+ * readers' 99th percentile latency is logged under this class's tag for each mode.
+ * <p>
+ * With a rollback journal SQLiteDatabase keeps a single connection, so every reader waits for the
+ * writer's transaction to finish. With WAL the readers have connections of their own and read the
+ * last committed snapshot.
+ * <p>
+ * The queries go straight to the database rather than through the provider, so that its query
+ * result cache doesn't answer them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class JournalModeBenchmark {
+
+    private static final String TAG = JournalModeBenchmark.class.getSimpleName();
+
+    private static final String TEST_DATABASE_NAME = "journal_mode_benchmark.db";
+
+    private static final String LOCATION = "94043";
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+    private static final int FORECAST_DAYS = 14;
+
+    private static final int READER_THREADS = 3;
+    private static final int WARM_UP_QUERIES = 50;
+    private static final int QUERIES_PER_READER = 500;
+
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private IsolatedWeatherProvider mProvider;
+    private SQLiteDatabase mDatabase;
+    private long mLocationId;
+
+    @Before
+    public void setUp() {
+        mProvider = IsolatedWeatherProvider.create(InstrumentationRegistry.getTargetContext(),
+                TEST_DATABASE_NAME);
+        mDatabase = mProvider.getDatabase();
+        mLocationId = mProvider.getLocationId(LOCATION);
+        writeSync(0);
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void writeAheadLoggingKeepsReadersOffTheWritersLock() throws Exception {
+        long walP99Nanos = measureReaderP99Nanos("WAL");
+
+        mDatabase.disableWriteAheadLogging();
+        long rollbackP99Nanos = measureReaderP99Nanos("rollback journal");
+
+        assertTrue("WAL p99 " + walP99Nanos + "ns, rollback journal p99 " + rollbackP99Nanos + "ns",
+                walP99Nanos < rollbackP99Nanos);
+    }
+
+    /**
+     * Runs the readers against a busy writer.
+     *
+     * @param mode The journal mode being measured, for the log
+     * @return The 99th percentile of every reader's query latencies, in nanoseconds
+     */
+    private long measureReaderP99Nanos(String mode) throws InterruptedException {
+        for (int i = 0; i < WARM_UP_QUERIES; i++) {
+            queryForecastList();
+        }
+
+        final AtomicBoolean reading = new AtomicBoolean(true);
+        final AtomicInteger writes = new AtomicInteger();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (reading.get()) {
+                    writeSync(writes.incrementAndGet());
+                }
+            }
+        }, "Writer");
+
+        final long[] latencies = new long[READER_THREADS * QUERIES_PER_READER];
+        final CountDownLatch readersDone = new CountDownLatch(READER_THREADS);
+        Thread[] readers = new Thread[READER_THREADS];
+        for (int r = 0; r < READER_THREADS; r++) {
+            final int offset = r * QUERIES_PER_READER;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < QUERIES_PER_READER; i++) {
+                        long startNanos = System.nanoTime();
+                        queryForecastList();
+                        latencies[offset + i] = System.nanoTime() - startNanos;
+                    }
+                    readersDone.countDown();
+                }
+            }, "Reader " + r);
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        assertTrue(readersDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        reading.set(false);
+        writer.join();
+
+        Arrays.sort(latencies);
+        long p50Nanos = latencies[latencies.length / 2];
+        long p99Nanos = latencies[latencies.length * 99 / 100];
+        Log.i(TAG, mode + ": " + READER_THREADS + " readers, " + writes.get() + " writes,"
+                + " reader p50 " + TimeUnit.NANOSECONDS.toMicros(p50Nanos) + "us,"
+                + " p99 " + TimeUnit.NANOSECONDS.toMicros(p99Nanos) + "us,"
+                + " max " + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1]) + "us");
+        return p99Nanos;
+    }
+
+    /* What the forecast list loads: one location's days, from a date onwards, by date */
+    private void queryForecastList() {
+        Cursor cursor = mDatabase.query(WeatherEntry.TABLE_NAME,
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(mLocationId), Long.toString(FIRST_DATE)},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* What a sync writes in its transaction: the location's days and its sync metadata */
+    private void writeSync(int sync) {
+        mDatabase.beginTransaction();
+        try {
+            for (int day = 0; day < FORECAST_DAYS; day++) {
+                ContentValues values = new ContentValues();
+                values.put(WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+                values.put(WeatherEntry.COLUMN_DATE,
+                        FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS);
+                values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + sync % 5);
+                values.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0 + sync % 7);
+                values.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + day);
+                values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+                values.put(WeatherEntry.COLUMN_PRESSURE, 1013.25);
+                values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+                values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+                mDatabase.insertOrThrow(WeatherEntry.TABLE_NAME, null, values);
+            }
+
+            ContentValues metadata = new ContentValues();
+            metadata.put(SyncMetadataEntry.COLUMN_LOCATION, LOCATION);
+            metadata.put(SyncMetadataEntry.COLUMN_LAST_FETCH, System.currentTimeMillis());
+            mDatabase.insertOrThrow(SyncMetadataEntry.TABLE_NAME, null, metadata);
+
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+}
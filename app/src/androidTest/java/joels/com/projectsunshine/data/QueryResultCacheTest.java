@@ -0,0 +1,195 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that repeated weather queries are answered from the query result cache, and that
+ * writing a location's weather drops only that location's cached results.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueryResultCacheTest {
+
+    private static final String TEST_DATABASE_NAME = "weather_query_cache_test.db";
+
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    private IsolatedWeatherProvider mProvider;
+    private long mLocationId;
+    private long mOtherLocationId;
+
+    @Before
+    public void setUp() {
+        mProvider = IsolatedWeatherProvider.create(InstrumentationRegistry.getTargetContext(),
+                TEST_DATABASE_NAME);
+        mLocationId = mProvider.getLocationId("94043");
+        mOtherLocationId = mProvider.getLocationId("London");
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void repeatedQueriesAreHits() {
+        writeWeather(mLocationId, 10.0);
+        long hits = getStat(WeatherContract.RESULT_CACHE_HITS);
+
+        assertEquals(10.0, queryMaxTemp(mLocationId), 0.0);
+        assertEquals(10.0, queryMaxTemp(mLocationId), 0.0);
+
+        assertEquals(hits + 1, getStat(WeatherContract.RESULT_CACHE_HITS));
+    }
+
+    @Test
+    public void writingALocationsWeatherDropsItsResults() {
+        writeWeather(mLocationId, 10.0);
+        assertEquals(10.0, queryMaxTemp(mLocationId), 0.0);
+
+        writeWeather(mLocationId, 15.0);
+
+        assertEquals(15.0, queryMaxTemp(mLocationId), 0.0);
+    }
+
+    @Test
+    public void writingAnotherLocationsWeatherKeepsTheResults() {
+        writeWeather(mLocationId, 10.0);
+        queryMaxTemp(mLocationId);
+
+        writeWeather(mOtherLocationId, 20.0);
+        long hits = getStat(WeatherContract.RESULT_CACHE_HITS);
+        queryMaxTemp(mLocationId);
+
+        assertEquals(hits + 1, getStat(WeatherContract.RESULT_CACHE_HITS));
+    }
+
+    /* Each caller gets a cursor of its own, so closing one can't break another */
+    @Test
+    public void cachedResultsAreFreshCursors() {
+        QueryResultCache cache = new QueryResultCache();
+        QueryResultCache.Key key = createKey(1);
+        cache.put(key, createCursor(3), cache.getGeneration()).close();
+
+        Cursor first = cache.get(key);
+        Cursor second = cache.get(key);
+        first.moveToLast();
+        first.close();
+
+        assertTrue(second.moveToFirst());
+        assertEquals(0, second.getLong(0));
+        assertEquals(3, second.getCount());
+        second.close();
+    }
+
+    /* A query that ran across an invalidation may have read the old rows */
+    @Test
+    public void resultsFromBeforeAnInvalidationAreNotStored() {
+        QueryResultCache cache = new QueryResultCache();
+        QueryResultCache.Key key = createKey(1);
+        long generation = cache.getGeneration();
+
+        cache.invalidateLocation(1);
+        Cursor cursor = cache.put(key, createCursor(3), generation);
+
+        assertEquals(3, cursor.getCount());
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void largeResultsAreNotStored() {
+        QueryResultCache cache = new QueryResultCache();
+        QueryResultCache.Key key = createKey(1);
+
+        cache.put(key, createCursor(1000), cache.getGeneration()).close();
+
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void leastRecentlyUsedResultsAreEvicted() {
+        QueryResultCache cache = new QueryResultCache();
+        for (int i = 0; i < 17; i++) {
+            cache.put(createKey(i), createCursor(1), cache.getGeneration()).close();
+            /* Using the first result keeps it, so the second is the one evicted */
+            if (i == 1) assertNotNull(cache.get(createKey(0)));
+        }
+
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(createKey(0)));
+        assertNull(cache.get(createKey(1)));
+    }
+
+    @Test
+    public void invalidatingALocationKeepsTheOthers() {
+        QueryResultCache cache = new QueryResultCache();
+        cache.put(createKey(1), createCursor(1), cache.getGeneration()).close();
+        cache.put(createKey(2), createCursor(1), cache.getGeneration()).close();
+
+        cache.invalidateLocation(1);
+
+        assertNull(cache.get(createKey(1)));
+        assertNotNull(cache.get(createKey(2)));
+    }
+
+    private void writeWeather(long locationId, double maxTemp) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_DATE, FIRST_DATE);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, 1.0);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+        values.put(WeatherEntry.COLUMN_PRESSURE, 1013.0);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+        values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+        mProvider.bulkInsert(LocationEntry.buildWeatherUri(locationId),
+                new ContentValues[]{values});
+    }
+
+    private double queryMaxTemp(long locationId) {
+        Cursor cursor = mProvider.query(LocationEntry.buildWeatherUri(locationId),
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getDouble(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long getStat(String key) {
+        Bundle stats = mProvider.call(WeatherContract.METHOD_GET_QUERY_CACHE_STATS, null, null);
+        return stats.getLong(key);
+    }
+
+    private static QueryResultCache.Key createKey(long locationId) {
+        return new QueryResultCache.Key(LocationEntry.buildWeatherUri(locationId), locationId,
+                null, null, null, null);
+    }
+
+    private static Cursor createCursor(int rowCount) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{"row"}, rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            cursor.addRow(new Object[]{(long) i});
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,205 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the aggregate URIs against ten days of weather whose maximum rises by a degree a day.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherAggregateTest {
+
+    private static final String TEST_DATABASE_NAME = "weather_aggregate_test.db";
+
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+    private static final int DAYS = 10;
+
+    private IsolatedWeatherProvider mProvider;
+    private long mLocationId;
+    private Uri mWeatherUri;
+
+    @Before
+    public void setUp() {
+        mProvider = IsolatedWeatherProvider.create(InstrumentationRegistry.getTargetContext(),
+                TEST_DATABASE_NAME);
+        mLocationId = mProvider.getLocationId("94043");
+        mWeatherUri = LocationEntry.buildWeatherUri(mLocationId);
+
+        ContentValues[] days = new ContentValues[DAYS];
+        for (int day = 0; day < DAYS; day++) {
+            days[day] = createWeather(dateOfDay(day), 10.0 + day);
+        }
+        mProvider.bulkInsert(mWeatherUri, days);
+
+        /* Another location's weather, which none of the aggregates should see */
+        long otherLocationId = mProvider.getLocationId("London");
+        mProvider.bulkInsert(LocationEntry.buildWeatherUri(otherLocationId),
+                new ContentValues[]{createWeather(dateOfDay(3), 99.0)});
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void maxReturnsTheValueAndItsDay() {
+        Cursor cursor = queryAggregate(WeatherEntry.FN_MAX, 2, 6);
+        try {
+            assertEquals(15.0, getValue(cursor), 0.0);
+            assertEquals(4, getCount(cursor));
+            assertEquals(dateOfDay(5),
+                    cursor.getLong(cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_DATE)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void minReturnsTheValueAndItsDay() {
+        Cursor cursor = queryAggregate(WeatherEntry.FN_MIN, 2, 6);
+        try {
+            assertEquals(12.0, getValue(cursor), 0.0);
+            assertEquals(dateOfDay(2),
+                    cursor.getLong(cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_DATE)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void avgAndSumCoverTheRange() {
+        Cursor cursor = queryAggregate(WeatherEntry.FN_AVG, 0, DAYS);
+        try {
+            assertEquals(14.5, getValue(cursor), 1e-9);
+            assertEquals(DAYS, getCount(cursor));
+        } finally {
+            cursor.close();
+        }
+
+        cursor = queryAggregate(WeatherEntry.FN_SUM, 0, 2);
+        try {
+            assertEquals(21.0, getValue(cursor), 1e-9);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void countCountsTheDaysInTheRange() {
+        Cursor cursor = queryAggregate(WeatherEntry.FN_COUNT, 3, 100);
+        try {
+            assertEquals(DAYS - 3, (long) getValue(cursor));
+            assertEquals(DAYS - 3, getCount(cursor));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void emptyRangesHaveNoValue() {
+        Cursor cursor = queryAggregate(WeatherEntry.FN_MAX, DAYS, DAYS + 5);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.isNull(cursor.getColumnIndexOrThrow(
+                    WeatherEntry.AGGREGATE_COLUMN_VALUE)));
+            assertEquals(0, getCount(cursor));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* Leaving out from and to opens the range on that side */
+    @Test
+    public void rangesCanBeOpen() {
+        Uri uri = mWeatherUri.buildUpon()
+                .appendPath(WeatherContract.PATH_AGGREGATE)
+                .appendQueryParameter(WeatherEntry.QUERY_PARAMETER_FN, WeatherEntry.FN_COUNT)
+                .build();
+
+        Cursor cursor = mProvider.query(uri, null, null, null, null);
+        try {
+            assertEquals(DAYS, getCount(cursor));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* Aggregates are cached like other weather queries, so a write has to drop them */
+    @Test
+    public void writesAreSeenByLaterAggregates() {
+        queryAggregate(WeatherEntry.FN_MAX, 0, DAYS).close();
+
+        mProvider.bulkInsert(mWeatherUri,
+                new ContentValues[]{createWeather(dateOfDay(0), 40.0)});
+
+        Cursor cursor = queryAggregate(WeatherEntry.FN_MAX, 0, DAYS);
+        try {
+            assertEquals(40.0, getValue(cursor), 0.0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFunctionsAreRefused() {
+        queryAggregate("median", 0, DAYS);
+    }
+
+    /* The column is written into the SQL, so only the weather's own columns may be named */
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownColumnsAreRefused() {
+        mProvider.query(WeatherEntry.appendAggregate(mWeatherUri, WeatherEntry.FN_MAX,
+                "max) FROM location --", dateOfDay(0), dateOfDay(DAYS)), null, null, null, null);
+    }
+
+    private Cursor queryAggregate(String fn, int fromDay, int toDay) {
+        Uri uri = WeatherEntry.appendAggregate(mWeatherUri, fn, WeatherEntry.COLUMN_MAX_TEMP,
+                dateOfDay(fromDay), dateOfDay(toDay));
+        return mProvider.query(uri, null, null, null, null);
+    }
+
+    private static double getValue(Cursor cursor) {
+        assertTrue(cursor.moveToFirst());
+        return cursor.getDouble(cursor.getColumnIndexOrThrow(
+                WeatherEntry.AGGREGATE_COLUMN_VALUE));
+    }
+
+    private static long getCount(Cursor cursor) {
+        assertTrue(cursor.moveToFirst());
+        return cursor.getLong(cursor.getColumnIndexOrThrow(
+                WeatherEntry.AGGREGATE_COLUMN_COUNT));
+    }
+
+    private static long dateOfDay(int day) {
+        return FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS;
+    }
+
+    private static ContentValues createWeather(long date, double maxTemp) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, 1.0);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+        values.put(WeatherEntry.COLUMN_PRESSURE, 1013.0);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+        values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+        return values;
+    }
+}
@@ -0,0 +1,160 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that applyBatch runs a prune and refresh as one transaction: every operation is applied
+ * if they all succeed, and none of them are if one fails.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherBatchTest {
+
+    private static final String TEST_DATABASE_NAME = "weather_batch_test.db";
+
+    private static final long DAY_1 = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+    private static final long DAY_2 = DAY_1 + SunshineDateUtils.DAY_IN_MILLIS;
+    private static final long DAY_3 = DAY_2 + SunshineDateUtils.DAY_IN_MILLIS;
+    private static final long DAY_4 = DAY_3 + SunshineDateUtils.DAY_IN_MILLIS;
+
+    private IsolatedWeatherProvider mProvider;
+    private long mLocationId;
+    private Uri mWeatherUri;
+
+    @Before
+    public void setUp() {
+        mProvider = IsolatedWeatherProvider.create(InstrumentationRegistry.getTargetContext(),
+                TEST_DATABASE_NAME);
+        mLocationId = mProvider.getLocationId("94043");
+        mWeatherUri = LocationEntry.buildWeatherUri(mLocationId);
+
+        mProvider.bulkInsert(mWeatherUri, new ContentValues[]{
+                createWeather(DAY_1), createWeather(DAY_2), createWeather(DAY_3)
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void pruneAndRefreshAreAppliedTogether() throws OperationApplicationException {
+        ContentValues humidity = new ContentValues();
+        humidity.put(WeatherEntry.COLUMN_HUMIDITY, 90.0);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newDelete(mWeatherUri)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(DAY_2)})
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(
+                LocationEntry.buildWeatherUriWithDate(mLocationId, DAY_3))
+                .withValues(humidity)
+                .withYieldAllowed(true)
+                .build());
+        operations.add(ContentProviderOperation.newInsert(mWeatherUri)
+                .withValues(createWeather(DAY_4))
+                .withYieldAllowed(true)
+                .build());
+
+        ContentProviderResult[] results = mProvider.applyBatch(operations);
+
+        assertEquals(3, results.length);
+        assertEquals(Integer.valueOf(1), results[0].count);
+        assertEquals(Integer.valueOf(1), results[1].count);
+        assertEquals(LocationEntry.buildWeatherUriWithDate(mLocationId, DAY_4), results[2].uri);
+
+        assertEquals(0, countWeather(DAY_1));
+        assertEquals(1, countWeather(DAY_2));
+        assertEquals(1, countWeather(DAY_4));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mProvider.getDatabase(),
+                WeatherEntry.TABLE_NAME,
+                WeatherEntry.COLUMN_DATE + " = ? AND " + WeatherEntry.COLUMN_HUMIDITY + " = 90",
+                new String[]{Long.toString(DAY_3)}));
+    }
+
+    /* The delete runs first, so if the batch weren't one transaction, DAY_1 would be gone */
+    @Test
+    public void aFailedOperationRollsBackTheBatch() {
+        ContentValues notNormalized = createWeather(DAY_4 + 1);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newDelete(mWeatherUri)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(DAY_2)})
+                .build());
+        operations.add(ContentProviderOperation.newInsert(mWeatherUri)
+                .withValues(notNormalized)
+                .build());
+
+        try {
+            mProvider.applyBatch(operations);
+            fail("Expected the date that isn't normalized to be refused");
+        } catch (IllegalArgumentException expected) {
+        } catch (OperationApplicationException e) {
+            throw new AssertionError(e);
+        }
+
+        assertEquals(1, countWeather(DAY_1));
+    }
+
+    @Test
+    public void aFailedAssertionRollsBackTheBatch() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newDelete(mWeatherUri)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(DAY_2)})
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(mWeatherUri)
+                .withExpectedCount(3)
+                .build());
+
+        try {
+            mProvider.applyBatch(operations);
+            fail("Expected the assertion to fail, as only two days are left");
+        } catch (OperationApplicationException expected) {
+        }
+
+        assertEquals(1, countWeather(DAY_1));
+    }
+
+    private static ContentValues createWeather(long date) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, 1.0);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 10.0);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+        values.put(WeatherEntry.COLUMN_PRESSURE, 1013.0);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+        values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+        return values;
+    }
+
+    private long countWeather(long date) {
+        return DatabaseUtils.queryNumEntries(mProvider.getDatabase(), WeatherEntry.TABLE_NAME,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mLocationId), Long.toString(date)});
+    }
+}
@@ -0,0 +1,203 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import joels.com.projectsunshine.MainActivity;
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.SyncMetadataEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the writes of a sync with an observer of the location's weather registered, the way the
+ * forecast list's loader is. Every time it is notified the observer reloads the list through the
+ * provider, so the reloads it counts and the queries the provider counts show what a sync costs
+ * the UI, with and without a notification batch around the writes.
+ * <p>
+ * Notifications are delivered asynchronously, so each count is taken once the expected reloads
+ * have arrived and then nothing more has for QUIET_MILLIS.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherChangeNotifierTest {
+
+    private static final String TEST_DATABASE_NAME = "weather_change_notifier_test.db";
+
+    private static final String LOCATION = "94043";
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+    private static final int FORECAST_DAYS = 14;
+
+    /* The writes in writeSync that each notify the location's weather on their own */
+    private static final int WEATHER_WRITES = 3;
+
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+    private static final long QUIET_MILLIS = 500;
+
+    private IsolatedWeatherProvider mProvider;
+    private long mLocationId;
+    private HandlerThread mObserverThread;
+    private ReloadingObserver mObserver;
+
+    @Before
+    public void setUp() {
+        mProvider = IsolatedWeatherProvider.create(InstrumentationRegistry.getTargetContext(),
+                TEST_DATABASE_NAME);
+        mLocationId = mProvider.getLocationId(LOCATION);
+
+        mObserverThread = new HandlerThread("Observer");
+        mObserverThread.start();
+        mObserver = new ReloadingObserver(new Handler(mObserverThread.getLooper()));
+        InstrumentationRegistry.getTargetContext().getContentResolver().registerContentObserver(
+                LocationEntry.buildWeatherUri(mLocationId), true, mObserver);
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationRegistry.getTargetContext().getContentResolver()
+                .unregisterContentObserver(mObserver);
+        mObserverThread.quit();
+        mProvider.close();
+    }
+
+    @Test
+    public void aBatchedSyncReloadsOnce() {
+        long queries = getQueryCount();
+
+        mProvider.call(WeatherContract.METHOD_BEGIN_NOTIFICATION_BATCH, null, null);
+        try {
+            writeSync();
+        } finally {
+            mProvider.call(WeatherContract.METHOD_END_NOTIFICATION_BATCH, null, null);
+        }
+
+        assertEquals(1, awaitReloads(1));
+        assertEquals(1, getQueryCount() - queries);
+    }
+
+    /* What the batch saves: without it, each write reloads the list */
+    @Test
+    public void anUnbatchedSyncReloadsOncePerWrite() {
+        long queries = getQueryCount();
+
+        writeSync();
+
+        assertEquals(WEATHER_WRITES, awaitReloads(WEATHER_WRITES));
+        assertEquals(WEATHER_WRITES, getQueryCount() - queries);
+    }
+
+    /* Batches nest, and only the outermost one sends */
+    @Test
+    public void nestedBatchesSendWhenTheOutermostEnds() {
+        mProvider.call(WeatherContract.METHOD_BEGIN_NOTIFICATION_BATCH, null, null);
+        mProvider.call(WeatherContract.METHOD_BEGIN_NOTIFICATION_BATCH, null, null);
+        writeSync();
+        mProvider.call(WeatherContract.METHOD_END_NOTIFICATION_BATCH, null, null);
+
+        assertEquals(0, awaitReloads(0));
+
+        mProvider.call(WeatherContract.METHOD_END_NOTIFICATION_BATCH, null, null);
+
+        assertEquals(1, awaitReloads(1));
+    }
+
+    /*
+     * A sync's writes: the forecast in two inserts, a correction to one day, and the location's
+     * sync metadata, which the observer doesn't watch
+     */
+    private void writeSync() {
+        Uri weatherUri = LocationEntry.buildWeatherUri(mLocationId);
+        int half = FORECAST_DAYS / 2;
+        mProvider.bulkInsert(weatherUri, createWeather(0, half));
+        mProvider.bulkInsert(weatherUri, createWeather(half, FORECAST_DAYS));
+
+        ContentValues humidity = new ContentValues();
+        humidity.put(WeatherEntry.COLUMN_HUMIDITY, 90.0);
+        mProvider.update(LocationEntry.buildWeatherUriWithDate(mLocationId, FIRST_DATE),
+                humidity, null, null);
+
+        ContentValues metadata = new ContentValues();
+        metadata.put(SyncMetadataEntry.COLUMN_LOCATION, LOCATION);
+        metadata.put(SyncMetadataEntry.COLUMN_LAST_FETCH, System.currentTimeMillis());
+        mProvider.bulkInsert(SyncMetadataEntry.CONTENT_URI, new ContentValues[]{metadata});
+    }
+
+    private static ContentValues[] createWeather(int fromDay, int toDay) {
+        ContentValues[] days = new ContentValues[toDay - fromDay];
+        for (int day = fromDay; day < toDay; day++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE, FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + day);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+            values.put(WeatherEntry.COLUMN_PRESSURE, 1013.25);
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+            values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+            days[day - fromDay] = values;
+        }
+        return days;
+    }
+
+    /**
+     * Waits for the observer to have reloaded at least the expected number of times, and then
+     * for it to go quiet.
+     *
+     * @return The number of reloads
+     */
+    private int awaitReloads(int expected) {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (mObserver.mReloads.get() < expected && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+
+        int reloads;
+        do {
+            reloads = mObserver.mReloads.get();
+            SystemClock.sleep(QUIET_MILLIS);
+        } while (reloads != mObserver.mReloads.get());
+        return reloads;
+    }
+
+    /* Every query the provider answered, from its query result cache or not */
+    private long getQueryCount() {
+        Bundle stats = mProvider.call(WeatherContract.METHOD_GET_QUERY_CACHE_STATS, null, null);
+        return stats.getLong(WeatherContract.RESULT_CACHE_HITS)
+                + stats.getLong(WeatherContract.RESULT_CACHE_MISSES);
+    }
+
+    /* Reloads the forecast list, as its CursorLoader would, whenever it is notified */
+    private class ReloadingObserver extends ContentObserver {
+
+        private final AtomicInteger mReloads = new AtomicInteger();
+
+        ReloadingObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            Cursor cursor = mProvider.query(LocationEntry.buildWeatherUri(mLocationId),
+                    MainActivity.MAIN_FORECAST_PROJECTION, null, null,
+                    WeatherEntry.COLUMN_DATE + " ASC");
+            if (cursor != null) cursor.close();
+            mReloads.incrementAndGet();
+        }
+    }
+}
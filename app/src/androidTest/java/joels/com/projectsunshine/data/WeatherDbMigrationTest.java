@@ -0,0 +1,256 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Upgrades databases seeded at every past version and checks that they end up with the same
+ * schema as a new database, with their weather carried forward.
+ * <p>
+ * Each database is seeded at version 3 and brought to the version under test by the migration
+ * steps up to it, as the app itself would have done, and then opened by WeatherDbHelper.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherDbMigrationTest {
+
+    private static final String TEST_DATABASE_NAME = "weather_migration_test.db";
+    private static final String FRESH_DATABASE_NAME = "weather_migration_fresh.db";
+
+    /* More than one of WeatherDbMigrations' copy batches */
+    private static final int SEEDED_DAYS = 1200;
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradesFromVersion3() {
+        checkUpgradeFrom(3);
+    }
+
+    @Test
+    public void upgradesFromVersion4() {
+        checkUpgradeFrom(4);
+    }
+
+    @Test
+    public void upgradesFromVersion5() {
+        checkUpgradeFrom(5);
+    }
+
+    @Test
+    public void upgradesFromVersion6() {
+        checkUpgradeFrom(6);
+    }
+
+    @Test
+    public void upgradesFromVersion7() {
+        checkUpgradeFrom(7);
+    }
+
+    @Test
+    public void upgradesFromVersion8() {
+        checkUpgradeFrom(8);
+    }
+
+    @Test
+    public void upgradesFromVersion9() {
+        checkUpgradeFrom(9);
+    }
+
+    /* Versions before 3 have no migrations, so they start again from an empty database */
+    @Test
+    public void recreatesVersionsBeforeTheOldestMigratable() {
+        int version = WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION - 1;
+        seedDatabase(version);
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        try {
+            SQLiteDatabase db = helper.getReadableDatabase();
+
+            assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "weather"));
+            assertEquals(describeFreshSchema(), describeSchema(db));
+        } finally {
+            helper.close();
+        }
+    }
+
+    private void checkUpgradeFrom(int version) {
+        seedDatabase(version);
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        try {
+            SQLiteDatabase db = helper.getReadableDatabase();
+
+            assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+            assertEquals(describeFreshSchema(), describeSchema(db));
+
+            /* Version 3's weather was all for the preferred location, and is now keyed to it */
+            long locationId = DatabaseUtils.longForQuery(db,
+                    "SELECT _id FROM location WHERE location_setting = ?",
+                    new String[]{SunshinePreferences.getPreferredWeatherLocation(mContext)});
+            assertEquals(SEEDED_DAYS, DatabaseUtils.queryNumEntries(db, "weather",
+                    "location_id = ?", new String[]{Long.toString(locationId)}));
+
+            Cursor cursor = db.query("weather", new String[]{"weather_id", "min", "max"},
+                    "date = ?", new String[]{Long.toString(dateOfDay(SEEDED_DAYS - 1))},
+                    null, null, null);
+            try {
+                assertEquals(1, cursor.getCount());
+                cursor.moveToFirst();
+                assertEquals(weatherIdOfDay(SEEDED_DAYS - 1), cursor.getInt(0));
+                assertEquals(minOfDay(SEEDED_DAYS - 1), cursor.getDouble(1), 0.0);
+                assertEquals(minOfDay(SEEDED_DAYS - 1) + 10, cursor.getDouble(2), 0.0);
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Writes a database at the given version: the version 3 schema and weather, brought up to
+     * the version by the migration steps. Versions before 3 are given the version 3 schema.
+     */
+    private void seedDatabase(int version) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(TEST_DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            db.beginTransaction();
+            try {
+                db.execSQL("CREATE TABLE weather ("
+                        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + "date INTEGER NOT NULL, "
+                        + "weather_id INTEGER NOT NULL, "
+                        + "min REAL NOT NULL, "
+                        + "max REAL NOT NULL, "
+                        + "humidity REAL NOT NULL, "
+                        + "pressure REAL NOT NULL, "
+                        + "wind REAL NOT NULL, "
+                        + "degrees REAL NOT NULL,"
+                        + " UNIQUE (date) ON CONFLICT REPLACE);");
+
+                for (int day = 0; day < SEEDED_DAYS; day++) {
+                    ContentValues values = new ContentValues();
+                    values.put("date", dateOfDay(day));
+                    values.put("weather_id", weatherIdOfDay(day));
+                    values.put("min", minOfDay(day));
+                    values.put("max", minOfDay(day) + 10);
+                    values.put("humidity", 50.0);
+                    values.put("pressure", 1013.0);
+                    values.put("wind", 3.0);
+                    values.put("degrees", 180.0);
+                    db.insertOrThrow("weather", null, values);
+                }
+
+                if (version > WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION) {
+                    WeatherDbMigrations.migrate(mContext, db,
+                            WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION, version);
+                }
+                db.setVersion(version);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static long dateOfDay(int day) {
+        return FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS;
+    }
+
+    private static int weatherIdOfDay(int day) {
+        return 800 + day % 5;
+    }
+
+    private static double minOfDay(int day) {
+        return day % 30 - 5;
+    }
+
+    private String describeFreshSchema() {
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, FRESH_DATABASE_NAME);
+        try {
+            return describeSchema(helper.getReadableDatabase());
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Describes every table by its columns and every index by its table and columns, leaving out
+     * how the SQL that created them was spelled.
+     */
+    private static String describeSchema(SQLiteDatabase db) {
+        Map<String, String> schema = new TreeMap<>();
+
+        Cursor objects = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master"
+                + " WHERE name NOT IN ('android_metadata', 'sqlite_sequence')", null);
+        try {
+            while (objects.moveToNext()) {
+                String type = objects.getString(0);
+                String name = objects.getString(1);
+                if (type.equals("table")) {
+                    schema.put("table " + name, describePragma(db,
+                            "PRAGMA table_info(" + name + ")", "name", "type", "notnull", "pk"));
+                } else if (type.equals("index")) {
+                    schema.put("index " + name, objects.getString(2) + " " + describePragma(db,
+                            "PRAGMA index_info(" + name + ")", "seqno", "name"));
+                }
+            }
+        } finally {
+            objects.close();
+        }
+        return schema.toString();
+    }
+
+    private static String describePragma(SQLiteDatabase db, String pragma, String... columns) {
+        StringBuilder description = new StringBuilder();
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            while (cursor.moveToNext()) {
+                description.append('(');
+                for (String column : columns) {
+                    description.append(cursor.getString(cursor.getColumnIndexOrThrow(column)))
+                            .append(' ');
+                }
+                description.append(')');
+            }
+        } finally {
+            cursor.close();
+        }
+        return description.toString();
+    }
+}
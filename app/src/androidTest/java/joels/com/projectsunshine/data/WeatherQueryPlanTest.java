@@ -0,0 +1,100 @@
+package joels.com.projectsunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import joels.com.projectsunshine.MainActivity;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks, with EXPLAIN QUERY PLAN, that the provider's weather queries are answered through
+ * their indexes rather than by scanning or sorting the weather table.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherQueryPlanTest {
+
+    private static final String TEST_DATABASE_NAME = "weather_query_plan_test.db";
+
+    private Context mContext;
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        mDatabase = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    /*
+     * The forecast list: one location, today onwards, sorted by date. Every column it reads is in
+     * the list index, so the table itself shouldn't be touched, and the index is already in date
+     * order, so nothing should be sorted.
+     */
+    @Test
+    public void forecastListIsAnsweredFromTheCoveringIndex() {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME,
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherEntry.getSqlSelectForTodayOnwards(),
+                null, null, WeatherEntry.COLUMN_DATE + " ASC", null);
+
+        String plan = explain(sql, "1", "0");
+
+        assertTrue("Expected the list index to cover the query, but the plan was: " + plan,
+                plan.contains("USING COVERING INDEX " + WeatherDbHelper.INDEX_WEATHER_LIST));
+        assertFalse("Expected no sort, but the plan was: " + plan,
+                plan.contains("TEMP B-TREE"));
+    }
+
+    /* The detail screen: one location on one date, found through the (location, date) key */
+    @Test
+    public void weatherForOneDateIsSearchedByKey() {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                null, null, null, null);
+
+        String plan = explain(sql, "1", "0");
+
+        assertTrue("Expected an index search, but the plan was: " + plan,
+                plan.contains("SEARCH") && plan.contains("INDEX"));
+        assertFalse("Expected no table scan, but the plan was: " + plan,
+                plan.contains("SCAN"));
+    }
+
+    /*
+     * Returns every step of the plan SQLite chose for the SQL, one per line.
+     */
+    private String explain(String sql, String... selectionArgs) {
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            StringBuilder plan = new StringBuilder();
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailIndex)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exports a million weather rows in each format and imports the file into an empty database,
+ * logging under this class's tag the rows per second, the size of the file and the peak heap
+ * each call reports.
+ * <p>
+ * The rows are streamed, so the heap in use stays far below the size of the file however many
+ * rows there are; that, and the binary file being the smaller of the two, is all this checks.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherTransferBenchmark {
+
+    private static final String TAG = WeatherTransferBenchmark.class.getSimpleName();
+
+    private static final String SOURCE_DATABASE_NAME = "weather_transfer_source_benchmark.db";
+    private static final String TARGET_DATABASE_NAME = "weather_transfer_target_benchmark.db";
+
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final int ROWS = 1000000;
+
+    /* Rows per transaction while seeding the source */
+    private static final int SEED_BATCH_ROWS = 10000;
+
+    private Context mContext;
+    private IsolatedWeatherProvider mSource;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mSource = IsolatedWeatherProvider.create(mContext, SOURCE_DATABASE_NAME);
+        mFile = new File(mContext.getCacheDir(), "weather_transfer_benchmark.export");
+        seed(mSource.getLocationId("94043"));
+    }
+
+    @After
+    public void tearDown() {
+        mSource.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void transfersStreamInBothFormats() {
+        long binaryBytes = measure(WeatherContract.TRANSFER_FORMAT_BINARY);
+        long csvBytes = measure(WeatherContract.TRANSFER_FORMAT_CSV);
+
+        assertTrue(binaryBytes < csvBytes);
+    }
+
+    /**
+     * Exports the source in the format and imports the file into a database of its own.
+     *
+     * @return The size of the exported file, in bytes
+     */
+    private long measure(String format) {
+        Bundle exported = transfer(WeatherContract.METHOD_EXPORT_WEATHER, mSource, format);
+        long fileBytes = mFile.length();
+        log(format + " export", exported, fileBytes);
+
+        IsolatedWeatherProvider target = IsolatedWeatherProvider.create(mContext,
+                TARGET_DATABASE_NAME);
+        try {
+            Bundle imported = transfer(WeatherContract.METHOD_IMPORT_WEATHER, target, format);
+            log(format + " import", imported, fileBytes);
+
+            assertEquals(ROWS, exported.getInt(WeatherContract.RESULT_ROWS_TRANSFERRED));
+            assertEquals(ROWS, imported.getInt(WeatherContract.RESULT_ROWS_CHANGED));
+            assertTrue(exported.getLong(WeatherContract.RESULT_PEAK_HEAP_BYTES) < fileBytes);
+            assertTrue(imported.getLong(WeatherContract.RESULT_PEAK_HEAP_BYTES) < fileBytes);
+        } finally {
+            target.close();
+        }
+        return fileBytes;
+    }
+
+    private Bundle transfer(String method, IsolatedWeatherProvider provider, String format) {
+        Bundle extras = new Bundle();
+        extras.putString(WeatherContract.EXTRA_TRANSFER_FORMAT, format);
+        return provider.call(method, mFile.getPath(), extras);
+    }
+
+    private static void log(String name, Bundle result, long fileBytes) {
+        int rows = result.getInt(WeatherContract.RESULT_ROWS_TRANSFERRED);
+        long elapsedMillis = result.getLong(WeatherContract.RESULT_ELAPSED_MILLIS);
+        Log.i(TAG, name + ": " + rows + " rows in " + elapsedMillis + "ms, "
+                + rows * 1000L / Math.max(1, elapsedMillis) + " rows/s, file "
+                + fileBytes / 1024 + " KiB, peak heap "
+                + result.getLong(WeatherContract.RESULT_PEAK_HEAP_BYTES) / 1024 + " KiB");
+    }
+
+    /* Writes the rows straight into the database, a batch per transaction */
+    private void seed(long locationId) {
+        SQLiteDatabase db = mSource.getDatabase();
+        ContentValues values = new ContentValues();
+        for (int first = 0; first < ROWS; first += SEED_BATCH_ROWS) {
+            db.beginTransaction();
+            try {
+                for (int day = first; day < Math.min(ROWS, first + SEED_BATCH_ROWS); day++) {
+                    values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+                    values.put(WeatherEntry.COLUMN_DATE,
+                            FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS);
+                    values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + day % 5);
+                    values.put(WeatherEntry.COLUMN_MIN_TEMP, day % 40 - 12.345678901234);
+                    values.put(WeatherEntry.COLUMN_MAX_TEMP, day % 40 - 2.345678901234);
+                    values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0 + day % 3);
+                    values.put(WeatherEntry.COLUMN_PRESSURE, 1013.25);
+                    values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0 / 7);
+                    values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+                    db.insertOrThrow(WeatherEntry.TABLE_NAME, null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Exports a database in each format and imports the file into an empty one, which has to end up
+ * with the same locations and weather.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherTransferTest {
+
+    private static final String SOURCE_DATABASE_NAME = "weather_transfer_source_test.db";
+    private static final String TARGET_DATABASE_NAME = "weather_transfer_target_test.db";
+
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    /* More than one of WeatherTransfer's import batches */
+    private static final int DAYS = 1500;
+
+    private Context mContext;
+    private IsolatedWeatherProvider mSource;
+    private IsolatedWeatherProvider mTarget;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mSource = IsolatedWeatherProvider.create(mContext, SOURCE_DATABASE_NAME);
+        mTarget = IsolatedWeatherProvider.create(mContext, TARGET_DATABASE_NAME);
+        mFile = new File(mContext.getCacheDir(), "weather_transfer_test.export");
+
+        long mountainView = addLocation("94043", "Mountain View", 37.4284, -122.0724);
+        ContentValues[] days = new ContentValues[DAYS];
+        for (int day = 0; day < DAYS; day++) {
+            days[day] = createWeather(day, day % 40 - 12.345678901234);
+        }
+        mSource.bulkInsert(LocationEntry.buildWeatherUri(mountainView), days);
+
+        /* A location whose name needs quoting in CSV, and that has no coordinates */
+        long paris = addLocation("Paris, \"FR\"", "Paris,\n\"Ville Lumière\"", null, null);
+        mSource.bulkInsert(LocationEntry.buildWeatherUri(paris), new ContentValues[]{
+                createWeather(0, -0.1), createWeather(1, 1e-7), createWeather(2, 1e7)
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mSource.close();
+        mTarget.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void binaryExportsRoundTrip() {
+        checkRoundTrip(WeatherContract.TRANSFER_FORMAT_BINARY);
+    }
+
+    @Test
+    public void csvExportsRoundTrip() {
+        checkRoundTrip(WeatherContract.TRANSFER_FORMAT_CSV);
+    }
+
+    @Test
+    public void importingTheSameFileAgainChangesNothing() {
+        transfer(WeatherContract.METHOD_EXPORT_WEATHER, mSource, null);
+
+        Bundle first = transfer(WeatherContract.METHOD_IMPORT_WEATHER, mTarget, null);
+        Bundle second = transfer(WeatherContract.METHOD_IMPORT_WEATHER, mTarget, null);
+
+        assertEquals(DAYS + 3, first.getInt(WeatherContract.RESULT_ROWS_CHANGED));
+        assertEquals(DAYS + 3, second.getInt(WeatherContract.RESULT_ROWS_TRANSFERRED));
+        assertEquals(0, second.getInt(WeatherContract.RESULT_ROWS_CHANGED));
+    }
+
+    @Test
+    public void filesThatAreNotExportsAreRefused() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write("date,weather_id\n17000,800\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        for (String format : new String[]{
+                WeatherContract.TRANSFER_FORMAT_BINARY, WeatherContract.TRANSFER_FORMAT_CSV}) {
+            try {
+                transfer(WeatherContract.METHOD_IMPORT_WEATHER, mTarget, format);
+                fail("Expected the " + format + " import to be refused");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(0, describeWeather(mTarget).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFormatsAreRefused() {
+        transfer(WeatherContract.METHOD_EXPORT_WEATHER, mSource, "xml");
+    }
+
+    private void checkRoundTrip(String format) {
+        Bundle exported = transfer(WeatherContract.METHOD_EXPORT_WEATHER, mSource, format);
+        Bundle imported = transfer(WeatherContract.METHOD_IMPORT_WEATHER, mTarget, format);
+
+        assertEquals(DAYS + 3, exported.getInt(WeatherContract.RESULT_ROWS_TRANSFERRED));
+        assertEquals(DAYS + 3, imported.getInt(WeatherContract.RESULT_ROWS_TRANSFERRED));
+        assertEquals(describeWeather(mSource), describeWeather(mTarget));
+    }
+
+    private Bundle transfer(String method, IsolatedWeatherProvider provider, String format) {
+        Bundle extras = null;
+        if (format != null) {
+            extras = new Bundle();
+            extras.putString(WeatherContract.EXTRA_TRANSFER_FORMAT, format);
+        }
+        return provider.call(method, mFile.getPath(), extras);
+    }
+
+    private long addLocation(String setting, String cityName, Double latitude, Double longitude) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, setting);
+        values.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+        values.put(LocationEntry.COLUMN_COORD_LAT, latitude);
+        values.put(LocationEntry.COLUMN_COORD_LONG, longitude);
+        return mSource.getDatabase().insertOrThrow(LocationEntry.TABLE_NAME, null, values);
+    }
+
+    private static ContentValues createWeather(int day, double minTemp) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_DATE, FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + day % 5);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, minTemp);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, minTemp + 10);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0 + day % 3);
+        values.put(WeatherEntry.COLUMN_PRESSURE, 1013.25);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0 / 7);
+        values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+        return values;
+    }
+
+    /*
+     * Every weather row with its location's setting, name and coordinates in place of its
+     * location _ID, which differs between databases
+     */
+    private static List<String> describeWeather(IsolatedWeatherProvider provider) {
+        Cursor cursor = provider.getDatabase().rawQuery("SELECT"
+                + " l." + LocationEntry.COLUMN_LOCATION_SETTING
+                + ", l." + LocationEntry.COLUMN_CITY_NAME
+                + ", l." + LocationEntry.COLUMN_COORD_LAT
+                + ", l." + LocationEntry.COLUMN_COORD_LONG
+                + ", w." + WeatherEntry.COLUMN_DATE
+                + ", w." + WeatherEntry.COLUMN_WEATHER_ID
+                + ", w." + WeatherEntry.COLUMN_MIN_TEMP
+                + ", w." + WeatherEntry.COLUMN_MAX_TEMP
+                + ", w." + WeatherEntry.COLUMN_HUMIDITY
+                + ", w." + WeatherEntry.COLUMN_PRESSURE
+                + ", w." + WeatherEntry.COLUMN_WIND_SPEED
+                + ", w." + WeatherEntry.COLUMN_DEGREES
+                + " FROM " + WeatherEntry.TABLE_NAME + " w"
+                + " JOIN " + LocationEntry.TABLE_NAME + " l"
+                + " ON l." + LocationEntry._ID + " = w." + WeatherEntry.COLUMN_LOC_KEY
+                + " ORDER BY 1, 5", null);
+        try {
+            List<String> rows = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
+                        /* Compare the doubles exactly, not as SQLite would print them */
+                        row.append(Double.doubleToLongBits(cursor.getDouble(i)));
+                    } else {
+                        row.append(cursor.getString(i));
+                    }
+                    row.append('|');
+                }
+                rows.add(row.toString());
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+}
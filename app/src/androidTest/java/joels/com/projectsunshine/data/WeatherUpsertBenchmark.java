@@ -0,0 +1,187 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes 10k, 100k and 1M weather rows through bulkInsert's compiled upsert statements, and
+ * through the path it replaced: db.insert for every row, with the table's ON CONFLICT REPLACE
+ * turning every existing date into a delete and an insert. Each path writes the rows once as new
+ * dates, and then again unchanged, as a refresh with nothing new does. The rows per second and
+ * the bytes written of each pass are logged under this class's tag.
+ * <p>
+ * The bytes written are the process's wchar from /proc/self/io: everything SQLite hands to
+ * write() for the database, its WAL and its checkpoints, along with the little the process
+ * writes otherwise while the pass runs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherUpsertBenchmark {
+
+    private static final String TAG = WeatherUpsertBenchmark.class.getSimpleName();
+
+    private static final String UPSERT_DATABASE_NAME = "weather_upsert_benchmark.db";
+    private static final String INSERT_DATABASE_NAME = "weather_insert_benchmark.db";
+
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    /* Rows per bulkInsert call and per transaction, so that a million rows never sit in memory */
+    private static final int CHUNK_ROWS = 10000;
+
+    private static final int[] ROW_COUNTS = {10000, 100000, 1000000};
+
+    private static final long BYTES_WRITTEN_UNKNOWN = -1;
+
+    @Test
+    public void upsertsSkipUnchangedRows() throws IOException {
+        for (int rows : ROW_COUNTS) {
+            Pass[] upsert = run(UPSERT_DATABASE_NAME, "upsert", rows, new Writer() {
+                @Override
+                public void write(IsolatedWeatherProvider provider, long locationId,
+                                  ContentValues[] chunk) {
+                    provider.bulkInsert(LocationEntry.buildWeatherUri(locationId), chunk);
+                }
+            });
+            Pass[] insert = run(INSERT_DATABASE_NAME, "insert or replace", rows, new Writer() {
+                @Override
+                public void write(IsolatedWeatherProvider provider, long locationId,
+                                  ContentValues[] chunk) {
+                    SQLiteDatabase db = provider.getDatabase();
+                    db.beginTransaction();
+                    try {
+                        for (ContentValues values : chunk) {
+                            values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+                            db.insert(WeatherEntry.TABLE_NAME, null, values);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            });
+
+            /* The unchanged refresh is where the upsert writes next to nothing */
+            Pass upsertRefresh = upsert[1];
+            Pass insertRefresh = insert[1];
+            if (upsertRefresh.mBytesWritten != BYTES_WRITTEN_UNKNOWN) {
+                assertTrue(upsertRefresh.mBytesWritten < insertRefresh.mBytesWritten);
+            }
+        }
+    }
+
+    /**
+     * Writes the rows twice into a database of their own: first as new dates, then unchanged.
+     *
+     * @return The new dates pass and the refresh pass
+     */
+    private Pass[] run(String databaseName, String name, int rows, Writer writer)
+            throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        IsolatedWeatherProvider provider = IsolatedWeatherProvider.create(context, databaseName);
+        try {
+            long locationId = provider.getLocationId("94043");
+            Pass[] passes = new Pass[]{
+                    write(provider, locationId, rows, writer),
+                    write(provider, locationId, rows, writer)
+            };
+            log(name, rows, "new", passes[0]);
+            log(name, rows, "unchanged", passes[1]);
+            return passes;
+        } finally {
+            provider.close();
+        }
+    }
+
+    private static Pass write(IsolatedWeatherProvider provider, long locationId, int rows,
+                              Writer writer) throws IOException {
+        long bytesBefore = readBytesWritten();
+        long startNanos = System.nanoTime();
+        for (int first = 0; first < rows; first += CHUNK_ROWS) {
+            int last = Math.min(rows, first + CHUNK_ROWS);
+            writer.write(provider, locationId, createChunk(first, last));
+        }
+        Pass pass = new Pass();
+        pass.mNanos = System.nanoTime() - startNanos;
+        long bytesAfter = readBytesWritten();
+        pass.mBytesWritten = bytesBefore == BYTES_WRITTEN_UNKNOWN
+                ? BYTES_WRITTEN_UNKNOWN
+                : bytesAfter - bytesBefore;
+        return pass;
+    }
+
+    private static void log(String name, int rows, String kind, Pass pass) {
+        long rowsPerSecond = rows * 1000000000L / Math.max(1, pass.mNanos);
+        Log.i(TAG, name + ", " + rows + " " + kind + " rows: " + rowsPerSecond + " rows/s, "
+                + (pass.mBytesWritten == BYTES_WRITTEN_UNKNOWN
+                        ? "bytes written unknown"
+                        : pass.mBytesWritten / 1024 + "KiB written"));
+    }
+
+    /* Days first (inclusive) to last (exclusive), one row per day */
+    private static ContentValues[] createChunk(int first, int last) {
+        ContentValues[] chunk = new ContentValues[last - first];
+        for (int day = first; day < last; day++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE,
+                    FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + day % 5);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, day % 40 - 12.5);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, day % 40 - 2.5);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0 + day % 3);
+            values.put(WeatherEntry.COLUMN_PRESSURE, 1013.25);
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+            values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+            chunk[day - first] = values;
+        }
+        return chunk;
+    }
+
+    /**
+     * @return The bytes this process has passed to write() so far, or BYTES_WRITTEN_UNKNOWN if
+     * the kernel doesn't let us read them
+     */
+    private static long readBytesWritten() throws IOException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/io"));
+        } catch (IOException e) {
+            return BYTES_WRITTEN_UNKNOWN;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("wchar:")) {
+                    return Long.parseLong(line.substring("wchar:".length()).trim());
+                }
+            }
+            return BYTES_WRITTEN_UNKNOWN;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private interface Writer {
+        void write(IsolatedWeatherProvider provider, long locationId, ContentValues[] chunk);
+    }
+
+    private static class Pass {
+        private long mNanos;
+        private long mBytesWritten;
+    }
+}
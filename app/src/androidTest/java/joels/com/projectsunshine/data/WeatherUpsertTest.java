@@ -0,0 +1,187 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that bulkInsert inserts new dates, updates changed ones in place and skips unchanged
+ * ones, and that it refuses rows it can't store.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherUpsertTest {
+
+    private static final String TEST_DATABASE_NAME = "weather_upsert_test.db";
+
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    private IsolatedWeatherProvider mProvider;
+    private long mLocationId;
+    private Uri mWeatherUri;
+
+    @Before
+    public void setUp() {
+        mProvider = IsolatedWeatherProvider.create(InstrumentationRegistry.getTargetContext(),
+                TEST_DATABASE_NAME);
+        mLocationId = mProvider.getLocationId("94043");
+        mWeatherUri = LocationEntry.buildWeatherUri(mLocationId);
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void newDatesAreInserted() {
+        int rowsWritten = mProvider.bulkInsert(mWeatherUri, new ContentValues[]{
+                createWeather(FIRST_DATE, 10.0),
+                createWeather(FIRST_DATE + SunshineDateUtils.DAY_IN_MILLIS, 12.0)
+        });
+
+        assertEquals(2, rowsWritten);
+        assertEquals(2, countWeather());
+    }
+
+    @Test
+    public void unchangedRowsAreSkipped() {
+        mProvider.bulkInsert(mWeatherUri, new ContentValues[]{createWeather(FIRST_DATE, 10.0)});
+        long id = getWeatherId(FIRST_DATE);
+
+        int rowsWritten = mProvider.bulkInsert(mWeatherUri,
+                new ContentValues[]{createWeather(FIRST_DATE, 10.0)});
+
+        assertEquals(0, rowsWritten);
+        assertEquals(id, getWeatherId(FIRST_DATE));
+    }
+
+    @Test
+    public void changedRowsAreUpdatedInPlace() {
+        mProvider.bulkInsert(mWeatherUri, new ContentValues[]{createWeather(FIRST_DATE, 10.0)});
+        long id = getWeatherId(FIRST_DATE);
+
+        int rowsWritten = mProvider.bulkInsert(mWeatherUri,
+                new ContentValues[]{createWeather(FIRST_DATE, 15.0)});
+
+        assertEquals(1, rowsWritten);
+        assertEquals(id, getWeatherId(FIRST_DATE));
+        assertEquals(15.0, getWeatherDouble(FIRST_DATE, WeatherEntry.COLUMN_MAX_TEMP), 0.0);
+    }
+
+    /* A row with only some columns changes those, and leaves the rest as they were */
+    @Test
+    public void partialRowsUpdateOnlyTheirColumns() {
+        mProvider.bulkInsert(mWeatherUri, new ContentValues[]{createWeather(FIRST_DATE, 10.0)});
+
+        ContentValues partial = new ContentValues();
+        partial.put(WeatherEntry.COLUMN_DATE, FIRST_DATE);
+        partial.put(WeatherEntry.COLUMN_HUMIDITY, 80.0);
+        int rowsWritten = mProvider.bulkInsert(mWeatherUri, new ContentValues[]{partial});
+
+        assertEquals(1, rowsWritten);
+        assertEquals(80.0, getWeatherDouble(FIRST_DATE, WeatherEntry.COLUMN_HUMIDITY), 0.0);
+        assertEquals(10.0, getWeatherDouble(FIRST_DATE, WeatherEntry.COLUMN_MAX_TEMP), 0.0);
+        assertEquals(1.0, getWeatherDouble(FIRST_DATE, WeatherEntry.COLUMN_MIN_TEMP), 0.0);
+    }
+
+    @Test
+    public void partialRowsForNewDatesAreRefused() {
+        ContentValues partial = new ContentValues();
+        partial.put(WeatherEntry.COLUMN_DATE, FIRST_DATE);
+        partial.put(WeatherEntry.COLUMN_HUMIDITY, 80.0);
+
+        try {
+            mProvider.bulkInsert(mWeatherUri, new ContentValues[]{partial});
+            fail("Expected a partial row for a new date to be refused");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, countWeather());
+    }
+
+    @Test
+    public void nullColumnValuesAreRefused() {
+        ContentValues values = createWeather(FIRST_DATE, 10.0);
+        values.putNull(WeatherEntry.COLUMN_PRESSURE);
+
+        try {
+            mProvider.bulkInsert(mWeatherUri, new ContentValues[]{values});
+            fail("Expected a null pressure to be refused");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, countWeather());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void insertRefusesNullValues() {
+        mProvider.insert(mWeatherUri, null);
+    }
+
+    @Test
+    public void insertReturnsTheUriOfTheDate() {
+        Uri uri = mProvider.insert(mWeatherUri, createWeather(FIRST_DATE, 10.0));
+
+        assertEquals(LocationEntry.buildWeatherUriWithDate(mLocationId, FIRST_DATE), uri);
+        assertTrue(getWeatherId(FIRST_DATE) > 0);
+    }
+
+    private static ContentValues createWeather(long date, double maxTemp) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, 1.0);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+        values.put(WeatherEntry.COLUMN_PRESSURE, 1013.0);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+        values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+        return values;
+    }
+
+    private long countWeather() {
+        Cursor cursor = queryWeather(null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long getWeatherId(long date) {
+        return (long) getWeatherDouble(date, WeatherEntry._ID);
+    }
+
+    private double getWeatherDouble(long date, String column) {
+        Cursor cursor = queryWeather(WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(date)});
+        try {
+            assertTrue("No weather stored for " + date, cursor.moveToFirst());
+            return cursor.getDouble(cursor.getColumnIndexOrThrow(column));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor queryWeather(String selection, String[] selectionArgs) {
+        return mProvider.getDatabase().query(WeatherEntry.TABLE_NAME, null,
+                DatabaseUtils.concatenateWhere(WeatherEntry.COLUMN_LOC_KEY + " = ?", selection),
+                DatabaseUtils.appendSelectionArgs(
+                        new String[]{Long.toString(mLocationId)}, selectionArgs),
+                null, null, null);
+    }
+}
@@ -0,0 +1,171 @@
+package joels.com.projectsunshine.sync;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives ForecastFetcher's circuit breaker through a real server that fails on command. Unlike
+ * CircuitBreakerTest, the failures here are real HTTP errors and dropped connections, and the
+ * fetcher's retries decide how many of them reach the breaker. Only the open period is measured
+ * on a clock the test moves, so that the test doesn't wait it out.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CircuitBreakerFaultTest {
+
+    private static final String LOCATION = "circuit_breaker_fault_test";
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /*
+     * A fetch the breaker rejects doesn't touch the network or back off, so it only has to load
+     * the stale rows. One that is let through waits out at least one backoff on top of that.
+     */
+    private static final long FAIL_FAST_MILLIS = 250;
+
+    private FaultInjectingServer mServer;
+    private URL mUrl;
+    private TestClock mClock;
+    private CircuitBreaker mBreaker;
+    private ForecastFetcher mFetcher;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new FaultInjectingServer();
+        mUrl = mServer.getUrl();
+        mClock = new TestClock();
+        mBreaker = new CircuitBreaker(mClock);
+        mFetcher = new ForecastFetcher(InstrumentationRegistry.getTargetContext(), 1) {
+            @Override
+            CircuitBreaker getCircuitBreaker(String endpoint) {
+                return mBreaker;
+            }
+        };
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mFetcher.shutdown();
+        mServer.close();
+    }
+
+    /* Each fetch retries, so it takes a second fetch to reach FAILURE_THRESHOLD */
+    @Test
+    public void repeatedServerErrorsOpenTheBreaker() {
+        mServer.setFault(FaultInjectingServer.Fault.SERVICE_UNAVAILABLE);
+
+        assertTrue(fetch().isStale());
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+        assertTrue(fetch().isStale());
+
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD, mServer.getRequestCount());
+    }
+
+    @Test
+    public void droppedConnectionsOpenTheBreaker() {
+        mServer.setFault(FaultInjectingServer.Fault.DROP_CONNECTION);
+
+        fetch();
+        fetch();
+
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+    }
+
+    /* The server has recovered, but the breaker doesn't know that until the open period ends */
+    @Test
+    public void anOpenBreakerFailsFastWithoutTheNetwork() {
+        openBreaker();
+        mServer.setFault(FaultInjectingServer.Fault.NONE);
+        int requestCount = mServer.getRequestCount();
+
+        ForecastFetcher.Result result = fetch();
+
+        assertTrue(result.isStale());
+        assertEquals(requestCount, mServer.getRequestCount());
+        assertTrue("Took " + result.latencyMillis + "ms",
+                result.latencyMillis < FAIL_FAST_MILLIS);
+    }
+
+    @Test
+    public void aHalfOpenTrialThatSucceedsClosesTheBreaker() throws Exception {
+        openBreaker();
+        mClock.mNowMillis += CircuitBreaker.OPEN_DURATION_MILLIS;
+        mServer.setFault(FaultInjectingServer.Fault.NONE);
+        int requestCount = mServer.getRequestCount();
+
+        CountDownLatch release = new CountDownLatch(1);
+        mServer.holdRequests(release);
+        Future<ForecastFetcher.Result> trial = mExecutor.submit(
+                new Callable<ForecastFetcher.Result>() {
+                    @Override
+                    public ForecastFetcher.Result call() {
+                        return fetch();
+                    }
+                });
+        assertTrue(mServer.awaitHeldRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, mBreaker.getState());
+
+        /* Only the trial gets through while it is in flight */
+        assertTrue(fetch().isStale());
+        assertEquals(requestCount + 1, mServer.getRequestCount());
+
+        release.countDown();
+        assertFalse(trial.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isStale());
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+    }
+
+    @Test
+    public void aHalfOpenTrialThatFailsReopensTheBreaker() {
+        openBreaker();
+        mClock.mNowMillis += CircuitBreaker.OPEN_DURATION_MILLIS;
+        int requestCount = mServer.getRequestCount();
+
+        assertTrue(fetch().isStale());
+
+        /* The trial failed, so the fetch's retries were rejected */
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+        assertEquals(requestCount + 1, mServer.getRequestCount());
+    }
+
+    private void openBreaker() {
+        mServer.setFault(FaultInjectingServer.Fault.SERVICE_UNAVAILABLE);
+        while (mBreaker.getState() != CircuitBreaker.State.OPEN) {
+            fetch();
+        }
+    }
+
+    private ForecastFetcher.Result fetch() {
+        return mFetcher.fetchNow(LOCATION, mUrl);
+    }
+
+    private static class TestClock implements CircuitBreaker.Clock {
+
+        private volatile long mNowMillis;
+
+        @Override
+        public long elapsedRealtime() {
+            return mNowMillis;
+        }
+    }
+}
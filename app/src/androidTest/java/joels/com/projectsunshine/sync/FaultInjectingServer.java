@@ -0,0 +1,179 @@
+package joels.com.projectsunshine.sync;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An HTTP server on the loopback interface that answers every request the way the test tells it
+ * to: with a forecast, with a 503, or by dropping the connection without answering. A request can
+ * also be held until the test releases it, to keep the fetcher waiting on the network.
+ * <p>
+ * Every response closes its connection, so a dropped connection is never a pooled one.
+ */
+class FaultInjectingServer {
+
+    enum Fault {
+        NONE,
+        SERVICE_UNAVAILABLE,
+        DROP_CONNECTION
+    }
+
+    /* One day of forecast, with every field OpenWeatherJsonUtils reads */
+    private static final String FORECAST_JSON = "{\"cod\":\"200\",\"list\":[{"
+            + "\"temp\":{\"max\":20.5,\"min\":10.5},"
+            + "\"weather\":[{\"id\":800}],"
+            + "\"pressure\":1013.25,\"humidity\":50,\"speed\":3.5,\"deg\":180}]}";
+
+    private static final long HOLD_TIMEOUT_SECONDS = 10;
+
+    private final ServerSocket mServerSocket;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    private volatile Fault mFault = Fault.NONE;
+
+    /* While set, requests wait for it before they are answered */
+    private volatile CountDownLatch mHold;
+    private final CountDownLatch mHeld = new CountDownLatch(1);
+
+    FaultInjectingServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "FaultInjectingServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    URL getUrl() throws MalformedURLException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), "/forecast");
+    }
+
+    void setFault(Fault fault) {
+        mFault = fault;
+    }
+
+    /**
+     * Holds every request from now on until the latch is counted down.
+     */
+    void holdRequests(CountDownLatch release) {
+        mHold = release;
+    }
+
+    /**
+     * @return true once a request is being held, false if none arrived in time
+     */
+    boolean awaitHeldRequest() throws InterruptedException {
+        return mHeld.await(HOLD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return The number of requests that have reached the server
+     */
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                /* The server has been closed */
+                return;
+            }
+
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "FaultInjectingServer connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            if (!readRequestHead(in)) return;
+            mRequestCount.incrementAndGet();
+
+            CountDownLatch hold = mHold;
+            if (hold != null) {
+                mHeld.countDown();
+                hold.await(HOLD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+
+            switch (mFault) {
+                case NONE:
+                    write(socket.getOutputStream(), "200 OK", FORECAST_JSON);
+                    break;
+                case SERVICE_UNAVAILABLE:
+                    write(socket.getOutputStream(), "503 Service Unavailable", "");
+                    break;
+                case DROP_CONNECTION:
+                    /* Closed below, without a response */
+                    break;
+            }
+        } catch (IOException e) {
+            /* The client went away */
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /* Reads up to the blank line that ends a GET's headers; false if the client hung up first */
+    private static boolean readRequestHead(InputStream in) throws IOException {
+        int lineLength = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                if (lineLength == 0) return true;
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+        return false;
+    }
+
+    private static void write(OutputStream out, String status, String body) throws IOException {
+        byte[] bodyBytes = body.getBytes("UTF-8");
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + bodyBytes.length + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+        out.write(head.getBytes("ISO-8859-1"));
+        out.write(bodyBytes);
+        out.flush();
+    }
+}
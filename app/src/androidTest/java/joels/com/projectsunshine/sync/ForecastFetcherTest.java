@@ -0,0 +1,149 @@
+package joels.com.projectsunshine.sync;
+
+import android.content.ContentValues;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks ForecastFetcher's de-duplication of requests that are in flight, with the network
+ * replaced by requests that finish when the test lets them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ForecastFetcherTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private CountingFetcher mFetcher;
+
+    @Before
+    public void setUp() {
+        mFetcher = new CountingFetcher();
+    }
+
+    @After
+    public void tearDown() {
+        mFetcher.mRelease.countDown();
+        mFetcher.shutdown();
+    }
+
+    @Test
+    public void requestsInFlightAreShared() throws Exception {
+        Future<ForecastFetcher.Result> first = mFetcher.fetch("94043");
+        assertTrue(mFetcher.mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        Future<ForecastFetcher.Result> second = mFetcher.fetch("94043");
+        mFetcher.mRelease.countDown();
+
+        assertSame(first, second);
+        assertSame(first.get(), second.get());
+        assertEquals(1, mFetcher.getRequestCount("94043"));
+    }
+
+    @Test
+    public void finishedRequestsAreNotShared() throws Exception {
+        mFetcher.mRelease.countDown();
+        Future<ForecastFetcher.Result> first = mFetcher.fetch("94043");
+        first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        /* done() takes the request out of the in-flight map just after the result is set */
+        Future<ForecastFetcher.Result> second = first;
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (second == first && System.currentTimeMillis() < deadline) {
+            second = mFetcher.fetch("94043");
+        }
+        second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertNotSame(first, second);
+        assertEquals(2, mFetcher.getRequestCount("94043"));
+    }
+
+    @Test
+    public void fetchAllFetchesEachLocationOnceInOrder() throws Exception {
+        mFetcher.mRelease.countDown();
+
+        List<ForecastFetcher.Result> results =
+                mFetcher.fetchAll(Arrays.asList("94043", "London", "94043", "Paris"));
+
+        assertEquals(3, results.size());
+        assertEquals("94043", results.get(0).locationQuery);
+        assertEquals("London", results.get(1).locationQuery);
+        assertEquals("Paris", results.get(2).locationQuery);
+        assertEquals(1, mFetcher.getRequestCount("94043"));
+    }
+
+    /* A request that was rejected must not be left for later callers to join and wait on */
+    @Test
+    public void rejectedRequestsAreNotLeftInFlight() {
+        mFetcher.shutdown();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                mFetcher.fetch("94043");
+                fail("Expected a RejectedExecutionException");
+            } catch (RejectedExecutionException expected) {
+            }
+        }
+        assertEquals(0, mFetcher.getRequestCount("94043"));
+    }
+
+    @Test
+    public void onlyServerErrorsAreNotRetried() {
+        assertTrue(ForecastFetcher.isRetryable(new IOException("Connection reset")));
+        assertFalse(ForecastFetcher.isRetryable(
+                new ForecastFetcher.ServerErrorException("Unknown location")));
+    }
+
+    /* Counts the requests that reach the network, and holds each until mRelease opens */
+    private static class CountingFetcher extends ForecastFetcher {
+
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mRelease = new CountDownLatch(1);
+        private final ConcurrentHashMap<String, AtomicInteger> mRequestCounts =
+                new ConcurrentHashMap<>();
+
+        CountingFetcher() {
+            super(InstrumentationRegistry.getTargetContext(), 4);
+        }
+
+        @Override
+        Result fetchNow(String locationQuery, URL url) {
+            mRequestCounts.putIfAbsent(locationQuery, new AtomicInteger());
+            mRequestCounts.get(locationQuery).incrementAndGet();
+            mStarted.countDown();
+            try {
+                mRelease.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new Result(locationQuery, new ContentValues[0], null, 0, null, null);
+        }
+
+        int getRequestCount(String locationQuery) {
+            AtomicInteger count = mRequestCounts.get(locationQuery);
+            return count == null ? 0 : count.get();
+        }
+    }
+}
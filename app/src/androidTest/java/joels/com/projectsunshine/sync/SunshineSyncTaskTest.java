@@ -0,0 +1,197 @@
+package joels.com.projectsunshine.sync;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import joels.com.projectsunshine.data.IsolatedWeatherProvider;
+import joels.com.projectsunshine.data.WeatherContract;
+import joels.com.projectsunshine.data.WeatherContract.SyncMetadataEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Runs syncs against a database of their own, with the network replaced by a fetcher that
+ * returns the same response every time, dated from whichever day the test says it is.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SunshineSyncTaskTest {
+
+    private static final String TEST_DATABASE_NAME = "sync_task_test.db";
+
+    private static final String LOCATION = "94043";
+    private static final int FORECAST_DAYS = 14;
+
+    /* The hash of the response, which never changes */
+    private static final String CONTENT_HASH = "0123456789abcdef0123456789abcdef";
+
+    private IsolatedWeatherProvider mProvider;
+    private MockContentResolver mResolver;
+    private FixedResponseFetcher mFetcher;
+    private long mToday;
+
+    @Before
+    public void setUp() {
+        mProvider = IsolatedWeatherProvider.create(InstrumentationRegistry.getTargetContext(),
+                TEST_DATABASE_NAME);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(WeatherContract.CONTENT_AUTHORITY, mProvider);
+        mFetcher = new FixedResponseFetcher();
+        mToday = SunshineDateUtils.normalizeDate(
+                SunshineDateUtils.getUTCDateFromLocal(System.currentTimeMillis()));
+    }
+
+    @After
+    public void tearDown() {
+        mFetcher.shutdown();
+        mProvider.close();
+    }
+
+    /* Yesterday's dates would otherwise be kept until retention deletes them one by one */
+    @Test
+    public void theSameResponseOnTheNextDayIsDatedAgain() {
+        mFetcher.mFirstDate = mToday - SunshineDateUtils.DAY_IN_MILLIS;
+        sync(0);
+
+        mFetcher.mFirstDate = mToday;
+        sync(0);
+
+        assertEquals(mToday + (FORECAST_DAYS - 1) * SunshineDateUtils.DAY_IN_MILLIS,
+                queryLong("SELECT MAX(" + WeatherEntry.COLUMN_DATE + ") FROM "
+                        + WeatherEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void theSameResponseOnTheSameDayIsNotWrittenAgain() {
+        mFetcher.mFirstDate = mToday;
+        sync(0);
+
+        /* Another write of today's row would put the response's temperature back */
+        ContentValues marked = new ContentValues();
+        marked.put(WeatherEntry.COLUMN_MAX_TEMP, 99.0);
+        mProvider.getDatabase().update(WeatherEntry.TABLE_NAME, marked,
+                WeatherEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(mToday)});
+
+        sync(0);
+
+        assertEquals(99, queryLong("SELECT " + WeatherEntry.COLUMN_MAX_TEMP
+                + " FROM " + WeatherEntry.TABLE_NAME
+                + " WHERE " + WeatherEntry.COLUMN_DATE + " = " + mToday));
+    }
+
+    /* A fetch from just before midnight is still within the TTL, but its dates are yesterday's */
+    @Test
+    public void theTtlOnlySkipsFetchesWhoseWeatherStartsToday() {
+        mFetcher.mFirstDate = mToday - SunshineDateUtils.DAY_IN_MILLIS;
+        sync(0);
+
+        mFetcher.mFirstDate = mToday;
+        sync(SunshineDateUtils.DAY_IN_MILLIS);
+        sync(SunshineDateUtils.DAY_IN_MILLIS);
+
+        assertEquals(2, mFetcher.mFetchCount.get());
+        assertEquals(mToday, queryLong("SELECT " + SyncMetadataEntry.COLUMN_FIRST_DATE
+                + " FROM " + SyncMetadataEntry.TABLE_NAME));
+    }
+
+    /* A failed sync keeps the rows, but the UI has to be able to tell they are out of date */
+    @Test
+    public void aFailedSyncMarksTheLocationStaleUntilOneSucceeds() {
+        mFetcher.mFirstDate = mToday;
+        sync(0);
+        assertEquals(0, queryStale());
+
+        mFetcher.mFailing = true;
+        sync(SunshineDateUtils.DAY_IN_MILLIS);
+        assertEquals(1, queryStale());
+        assertEquals(FORECAST_DAYS, queryLong("SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME));
+
+        /* A stale location is fetched again even within the TTL */
+        mFetcher.mFailing = false;
+        sync(SunshineDateUtils.DAY_IN_MILLIS);
+        assertEquals(3, mFetcher.mFetchCount.get());
+        assertEquals(0, queryStale());
+    }
+
+    /* A location with coordinates is asked for by them, but still stored under its name */
+    @Test
+    public void coordinatesAreFetchedByLatitudeAndLongitude() {
+        mFetcher.mFirstDate = mToday;
+        SunshineSyncTask.syncWeather(mResolver, mFetcher, LOCATION,
+                new double[]{37.4284, -122.0724}, 0);
+
+        Uri url = Uri.parse(mFetcher.mLastUrl.toString());
+        assertNotNull(url.getQueryParameter("lat"));
+        assertNotNull(url.getQueryParameter("lon"));
+        assertEquals(FORECAST_DAYS, queryLong("SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME
+                + " WHERE " + WeatherEntry.COLUMN_LOC_KEY
+                + " = " + mProvider.getLocationId(LOCATION)));
+    }
+
+    private void sync(long syncTtlMillis) {
+        SunshineSyncTask.syncWeather(mResolver, mFetcher, LOCATION, null, syncTtlMillis);
+    }
+
+    private long queryStale() {
+        return queryLong("SELECT " + SyncMetadataEntry.COLUMN_STALE
+                + " FROM " + SyncMetadataEntry.TABLE_NAME);
+    }
+
+    private long queryLong(String sql) {
+        return DatabaseUtils.longForQuery(mProvider.getDatabase(), sql, null);
+    }
+
+    /* Answers every request with the same forecast, dated from mFirstDate, unless mFailing */
+    private static class FixedResponseFetcher extends ForecastFetcher {
+
+        private volatile long mFirstDate;
+        private volatile boolean mFailing;
+        private volatile URL mLastUrl;
+        private final AtomicInteger mFetchCount = new AtomicInteger();
+
+        FixedResponseFetcher() {
+            super(InstrumentationRegistry.getTargetContext(), 1);
+        }
+
+        @Override
+        Result fetchNow(String locationQuery, URL url) {
+            mFetchCount.incrementAndGet();
+            mLastUrl = url;
+            if (mFailing) {
+                return new Result(locationQuery, new ContentValues[0],
+                        new IOException("Connection reset"), 0, null, null);
+            }
+
+            ContentValues[] days = new ContentValues[FORECAST_DAYS];
+            for (int day = 0; day < FORECAST_DAYS; day++) {
+                ContentValues values = new ContentValues();
+                values.put(WeatherEntry.COLUMN_DATE,
+                        mFirstDate + day * SunshineDateUtils.DAY_IN_MILLIS);
+                values.put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+                values.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0);
+                values.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + day);
+                values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0);
+                values.put(WeatherEntry.COLUMN_PRESSURE, 1013.0);
+                values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.0);
+                values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+                days[day] = values;
+            }
+            return new Result(locationQuery, days, null, 0, CONTENT_HASH, null);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package joels.com.projectsunshine.utilities;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import joels.com.projectsunshine.R;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that WeatherConditions' descriptions are the strings the lookup names, resolved the way
+ * SunshineWeatherUtils resolved them before the table.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherConditionDescriptionsTest {
+
+    @Test
+    public void descriptionsMatchTheLookup() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        WeatherConditions conditions = WeatherConditions.getInstance(context);
+
+        for (int weatherId = -100; weatherId <= 1200; weatherId++) {
+            int stringId = SunshineWeatherUtils.lookupStringForWeatherCondition(weatherId);
+            String expected = stringId == 0
+                    ? context.getString(R.string.condition_unknown, weatherId)
+                    : context.getString(stringId);
+
+            assertEquals("weather id " + weatherId, expected, conditions.getDescription(weatherId));
+        }
+    }
+
+    /* Every thunderstorm shares one string, which is resolved once */
+    @Test
+    public void sharedDescriptionsAreResolvedOnce() {
+        WeatherConditions conditions =
+                WeatherConditions.getInstance(InstrumentationRegistry.getTargetContext());
+
+        assertSame(conditions.getDescription(200), conditions.getDescription(232));
+    }
+
+    @Test
+    public void theSameInstanceIsKeptForTheLocale() {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        assertSame(WeatherConditions.getInstance(context), WeatherConditions.getInstance(context));
+    }
+}
@@ -0,0 +1,103 @@
+package joels.com.projectsunshine.utilities;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import joels.com.projectsunshine.R;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times a weather condition's description, icon and art looked up in WeatherConditions' tables
+ * against the same three found by SunshineWeatherUtils' if/else chains, with the description
+ * resolved from the resources on every call as it used to be. The time per lookup of each is
+ * logged under this class's tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherConditionsBenchmark {
+
+    private static final String TAG = WeatherConditionsBenchmark.class.getSimpleName();
+
+    /* The conditions a forecast is mostly made of, and an unknown one (999) */
+    private static final int[] WEATHER_IDS = {
+            800, 801, 802, 803, 804, 500, 501, 300, 200, 600, 741, 999
+    };
+
+    private static final int WARM_UP_ROUNDS = 2000;
+    private static final int MEASURED_ROUNDS = 20000;
+
+    private Context mContext;
+    private WeatherConditions mConditions;
+
+    /* Every result is folded into this, so that no lookup can be optimized away */
+    private int mSink;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mConditions = WeatherConditions.getInstance(mContext);
+    }
+
+    @Test
+    public void tablesAreFasterThanTheChains() {
+        Lookup tables = new Lookup() {
+            @Override
+            public void run(int weatherId) {
+                mSink += mConditions.getDescription(weatherId).length()
+                        + WeatherConditions.getIconResource(weatherId)
+                        + WeatherConditions.getArtResource(weatherId);
+            }
+        };
+        Lookup chains = new Lookup() {
+            @Override
+            public void run(int weatherId) {
+                int stringId = SunshineWeatherUtils.lookupStringForWeatherCondition(weatherId);
+                String description = stringId == 0
+                        ? mContext.getString(R.string.condition_unknown, weatherId)
+                        : mContext.getString(stringId);
+                mSink += description.length()
+                        + SunshineWeatherUtils.lookupIconResourceForWeatherCondition(weatherId)
+                        + SunshineWeatherUtils.lookupArtResourceForWeatherCondition(weatherId);
+            }
+        };
+
+        long chainNanos = measure("chains", chains);
+        long tableNanos = measure("tables", tables);
+
+        assertTrue(tableNanos < chainNanos);
+    }
+
+    /**
+     * @return The time per lookup, in nanoseconds
+     */
+    private long measure(String name, Lookup lookup) {
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            for (int weatherId : WEATHER_IDS) {
+                lookup.run(weatherId);
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            for (int weatherId : WEATHER_IDS) {
+                lookup.run(weatherId);
+            }
+        }
+        long nanosPerLookup = (System.nanoTime() - startNanos)
+                / ((long) MEASURED_ROUNDS * WEATHER_IDS.length);
+
+        Log.i(TAG, name + ": " + nanosPerLookup + "ns per description, icon and art ("
+                + mSink + ")");
+        return nanosPerLookup;
+    }
+
+    private interface Lookup {
+        void run(int weatherId);
+    }
+}
@@ -3,6 +3,8 @@ package joels.com.projectsunshine;
 import android.content.Context;
 import android.database.Cursor;
 import android.support.annotation.NonNull;
+import android.support.v4.os.TraceCompat;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -12,8 +14,13 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import joels.com.projectsunshine.utilities.SunshineDateUtils;
 import joels.com.projectsunshine.utilities.SunshineWeatherUtils;
+import joels.com.projectsunshine.utilities.WeatherFormatter;
 
 // Extend RecyclerView.Adapter<ForecastAdapter.ForecastAdapterViewHolder>
 /**
@@ -39,7 +46,25 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         void onClick(String weatherForDay);
     }
 
-    private Cursor mCursor;
+    /*
+     * The rows on display, already formatted by ForecastListLoader on a background thread, so
+     * binding a row is only a setText.
+     */
+    private List<ForecastRow> mRows = Collections.emptyList();
+
+    /**
+     * One row of the forecast list, formatted and ready to display. Rows are immutable, so a
+     * list of them can be built on one thread and displayed on another.
+     */
+    static final class ForecastRow {
+        final long date;
+        final String summary;
+
+        ForecastRow(long date, String summary) {
+            this.date = date;
+            this.summary = summary;
+        }
+    }
 
     /**
      * Creates a ForecastAdapter.
@@ -116,32 +141,88 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
      */
     @Override
     public void onBindViewHolder(ForecastAdapterViewHolder forecastAdapterViewHolder, int position) {
-        mCursor.moveToPosition(position);
+        TraceCompat.beginSection("ForecastAdapter.onBindViewHolder");
+        /* Display the summary that ForecastListLoader formatted for this row */
+        forecastAdapterViewHolder.weatherSummary.setText(mRows.get(position).summary);
+        TraceCompat.endSection();
+    }
+
+    /**
+     * Formats every row of a forecast cursor for display. This does all of the work that binding
+     * a row used to do, and is called off the main thread.
+     *
+     * @param context Used to format the dates, descriptions and temperatures
+     * @param cursor  A cursor over MainActivity.MAIN_FORECAST_PROJECTION
+     * @return The rows, in the cursor's order
+     */
+    static List<ForecastRow> buildRows(Context context, Cursor cursor) {
+        List<ForecastRow> rows = new ArrayList<>(cursor.getCount());
 
-        /*******************
-         * Weather Summary *
-         *******************/
+        /* One formatter and one builder for every row, so the temperatures don't allocate */
+        WeatherFormatter formatter = WeatherFormatter.getInstance(context);
+        StringBuilder weatherSummary = new StringBuilder();
 
-        /* Generate a weather summary with the date, description, high and low. */
-        /* Read date from the cursor */
-        Long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
-        /* Get human readable string using our utility method */
-        String dateString = SunshineDateUtils.getFriendlyDateString(mContext, dateInMillis, false);
-        /* Use the weatherId to obtain the proper description */
-        int weatherId = mCursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID);
-        String description = SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId);
-        /* Read high temperature from the cursor (in degrees celsius) */
-        double highInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP);
-        /* Read low temperature from the cursor (in degrees celsius) */
-        double lowInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
 
-        String highAndLowTemperature = SunshineWeatherUtils.formatHighLows(mContext, highInCelsius, lowInCelsius);
+            /*******************
+             * Weather Summary *
+             *******************/
 
-        String weatherSummary = dateString + " - " + description + " - " + highAndLowTemperature;
+            /* Generate a weather summary with the date, description, high and low. */
+            /* Read date from the cursor */
+            long dateInMillis = cursor.getLong(MainActivity.INDEX_WEATHER_DATE);
+            /* Get human readable string using our utility method */
+            String dateString = SunshineDateUtils.getFriendlyDateString(context, dateInMillis, false);
+            /* Use the weatherId to obtain the proper description */
+            int weatherId = cursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID);
+            String description = SunshineWeatherUtils.getStringForWeatherCondition(context, weatherId);
+            /* Read high temperature from the cursor (in degrees celsius) */
+            double highInCelsius = cursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP);
+            /* Read low temperature from the cursor (in degrees celsius) */
+            double lowInCelsius = cursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP);
 
-        /* Display the summary that you created above */
-        forecastAdapterViewHolder.weatherSummary.setText(weatherSummary);
+            weatherSummary.setLength(0);
+            weatherSummary.append(dateString).append(" - ").append(description).append(" - ");
+            formatter.appendHighLow(weatherSummary, highInCelsius, lowInCelsius);
 
+            rows.add(new ForecastRow(dateInMillis, weatherSummary.toString()));
+        }
+        return rows;
+    }
+
+    /**
+     * Compares two lists of rows for DiffUtil. A row is the same item as another if it is for the
+     * same date, and needs binding again if its formatted summary changed.
+     */
+    static final class RowDiffCallback extends DiffUtil.Callback {
+        private final List<ForecastRow> mOldRows;
+        private final List<ForecastRow> mNewRows;
+
+        RowDiffCallback(List<ForecastRow> oldRows, List<ForecastRow> newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).date == mNewRows.get(newItemPosition).date;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).summary.equals(mNewRows.get(newItemPosition).summary);
+        }
     }
 
     /**
@@ -152,20 +233,27 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
      */
     @Override
     public int getItemCount() {
-        if (mCursor == null) return 0;
-        return mCursor.getCount();
+        return mRows.size();
     }
 
     /**
-     * Swaps the cursor used by the ForecastAdapter for its weather data. This method is called by
-     * MainActivity after a load has finished, as well as when the Loader responsible for loading
-     * the weather data is reset. When this method is called, we assume we have a completely new
-     * set of data, so we call notifyDataSetChanged to tell the RecyclerView to update.
+     * Swaps in the rows of a finished load. This method is called by MainActivity after a load
+     * has finished, as well as when the Loader responsible for loading the weather data is reset.
+     * When the load's diff was computed against the rows on display, only the rows that changed
+     * are bound again; otherwise, such as for the first load, everything is.
      *
-     * @param newCursor the new cursor to use as ForecastAdapter's data source
+     * @param result The load to display, or null to display nothing
      */
-    void swapCursor(Cursor newCursor) {
-        mCursor = newCursor;
-        notifyDataSetChanged();
+    void swapRows(ForecastListLoader.Result result) {
+        List<ForecastRow> oldRows = mRows;
+        List<ForecastRow> newRows = result == null ? Collections.<ForecastRow>emptyList() : result.rows;
+        if (newRows == oldRows) return;
+
+        mRows = newRows;
+        if (result != null && result.diff != null && result.previousRows == oldRows) {
+            result.diff.dispatchUpdatesTo(this);
+        } else {
+            notifyDataSetChanged();
+        }
     }
 }
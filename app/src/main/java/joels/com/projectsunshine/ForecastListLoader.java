@@ -0,0 +1,204 @@
+package joels.com.projectsunshine;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.os.TraceCompat;
+import android.support.v7.util.DiffUtil;
+
+import java.util.Collections;
+import java.util.List;
+
+import joels.com.projectsunshine.ForecastAdapter.ForecastRow;
+import joels.com.projectsunshine.data.WeatherContract;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+/**
+ * Loads the forecast list and turns it into the rows ForecastAdapter displays, all on the
+ * loader's background thread: the query, the date, description and temperature formatting, and
+ * the diff against the rows delivered last time. The main thread is left with nothing to do but
+ * apply the diff, so only the rows that changed are bound again.
+ * <p>
+ * Like a CursorLoader, it loads again whenever the weather changes. It also loads again when
+ * the units change, as every temperature is formatted in them, and when the day changes, as the
+ * list starts at today and labels today and tomorrow.
+ */
+class ForecastListLoader extends AsyncTaskLoader<ForecastListLoader.Result> {
+
+    /**
+     * The rows of one load, and how they differ from the rows of the load before.
+     */
+    static final class Result {
+        final List<ForecastRow> rows;
+
+        /* The rows the diff was computed against, or null if there is no diff */
+        final List<ForecastRow> previousRows;
+        final DiffUtil.DiffResult diff;
+
+        Result(List<ForecastRow> rows, List<ForecastRow> previousRows, DiffUtil.DiffResult diff) {
+            this.rows = rows;
+            this.previousRows = previousRows;
+            this.diff = diff;
+        }
+    }
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserverRegistered;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /*
+     * SunshinePreferences is told about the change by a listener of its own, in the same round
+     * of callbacks as this one, and the rows must be formatted with the units it publishes. So
+     * the load is started once the round of callbacks is over.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mUnitsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    if (getContext().getString(R.string.pref_units_key).equals(key)) {
+                        mMainHandler.post(mContentChanged);
+                    }
+                }
+            };
+
+    /* Midnight, or a change of clock or time zone that may have moved today */
+    private final BroadcastReceiver mDayReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onContentChanged();
+        }
+    };
+
+    private final Runnable mContentChanged = new Runnable() {
+        @Override
+        public void run() {
+            onContentChanged();
+        }
+    };
+
+    private boolean mListenersRegistered;
+
+    /* The last result delivered. Written on the main thread, read by loadInBackground. */
+    private volatile Result mResult;
+
+    /* The local day number of the last load, from SunshineDateUtils.getDayNumber */
+    private volatile long mLoadedDayNumber;
+
+    ForecastListLoader(Context context) {
+        super(context);
+    }
+
+    @Override
+    public Result loadInBackground() {
+        TraceCompat.beginSection("ForecastListLoader.loadInBackground");
+        try {
+            mLoadedDayNumber = SunshineDateUtils.getDayNumber(System.currentTimeMillis());
+
+            /* Sort order: Ascending by date */
+            String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+            /*
+             * A SELECTION in SQL declares which rows you'd like to return. In our case, we
+             * want all weather data from today onwards that is stored in our weather table.
+             * Today is worked out again on every load, so the list moves on at midnight.
+             */
+            Cursor cursor = getContext().getContentResolver().query(
+                    WeatherContract.WeatherEntry.CONTENT_URI,
+                    MainActivity.MAIN_FORECAST_PROJECTION,
+                    WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards(),
+                    WeatherContract.WeatherEntry.getSelectionArgsForTodayOnwards(),
+                    sortOrder);
+
+            List<ForecastRow> rows = Collections.emptyList();
+            if (cursor != null) {
+                try {
+                    rows = ForecastAdapter.buildRows(getContext(), cursor);
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            Result previous = mResult;
+            if (previous == null) {
+                return new Result(rows, null, null);
+            }
+            DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                    new ForecastAdapter.RowDiffCallback(previous.rows, rows));
+            return new Result(rows, previous.rows, diff);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    @Override
+    public void deliverResult(Result result) {
+        if (isReset()) return;
+
+        mResult = result;
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            /* Changes to single dates are sent to URIs under this one, so watch those too */
+            getContext().getContentResolver().registerContentObserver(
+                    WeatherContract.WeatherEntry.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (!mListenersRegistered) {
+            PreferenceManager.getDefaultSharedPreferences(getContext())
+                    .registerOnSharedPreferenceChangeListener(mUnitsListener);
+
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_DATE_CHANGED);
+            filter.addAction(Intent.ACTION_TIME_CHANGED);
+            filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+            getContext().registerReceiver(mDayReceiver, filter);
+            mListenersRegistered = true;
+        }
+
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+
+        /* Midnight may have passed while the broadcast couldn't be delivered */
+        boolean dayChanged = mResult != null
+                && SunshineDateUtils.getDayNumber(System.currentTimeMillis()) != mLoadedDayNumber;
+        if (takeContentChanged() || mResult == null || dayChanged) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        onStopLoading();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        if (mListenersRegistered) {
+            PreferenceManager.getDefaultSharedPreferences(getContext())
+                    .unregisterOnSharedPreferenceChangeListener(mUnitsListener);
+            getContext().unregisterReceiver(mDayReceiver);
+            mMainHandler.removeCallbacks(mContentChanged);
+            mListenersRegistered = false;
+        }
+        mResult = null;
+    }
+}
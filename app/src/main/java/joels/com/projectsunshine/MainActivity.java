@@ -3,14 +3,12 @@ package joels.com.projectsunshine;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.app.ShareCompat;
 import android.support.v4.content.AsyncTaskLoader;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
@@ -27,12 +25,12 @@ import java.net.URL;
 import joels.com.projectsunshine.ForecastAdapter.ForecastAdapterOnClickHandler;
 import joels.com.projectsunshine.data.SunshinePreferences;
 import joels.com.projectsunshine.data.WeatherContract;
-import joels.com.projectsunshine.utilities.FakeDataUtils;
+import joels.com.projectsunshine.sync.SunshineSyncUtils;
 import joels.com.projectsunshine.utilities.NetworkUtils;
 import joels.com.projectsunshine.utilities.OpenWeatherJsonUtils;
 
 public class MainActivity extends AppCompatActivity implements ForecastAdapterOnClickHandler,
-        LoaderCallbacks<Cursor> {
+        LoaderCallbacks<ForecastListLoader.Result> {
 
     private static final String TAG = MainActivity.class.getSimpleName();
 
@@ -79,7 +77,11 @@ public class MainActivity extends AppCompatActivity implements ForecastAdapterOn
         setContentView(R.layout.activity_forecast);
         getSupportActionBar().setElevation(0f);
 
-        FakeDataUtils.insertFakeData(MainActivity.this);
+        /*
+         * Kicks off a sync in the background. SunshineSyncTask skips the fetch while the data we
+         * already have is fresh, so this doesn't rewrite the weather table on every launch.
+         */
+        SunshineSyncUtils.startImmediateSync(this);
 
         mRecyclerView = findViewById(R.id.recyclerview_forecast);
 
@@ -178,28 +180,16 @@ public class MainActivity extends AppCompatActivity implements ForecastAdapterOn
      * @return A new Loader instance that is ready to start loading.
      */
     @Override
-    public Loader<Cursor> onCreateLoader(int loaderId, final Bundle bundle) {
+    public Loader<ForecastListLoader.Result> onCreateLoader(int loaderId, final Bundle bundle) {
         switch (loaderId) {
 
             case ID_FORECAST_LOADER:
-                /* If the loader requested is our forecast loader, return the appropriate CursorLoader */
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
-                /* Sort order: Ascending by date */
-                String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
                 /*
-                 * A SELECTION in SQL declares which rows you'd like to return. In our case, we
-                 * want all weather data from today onwards that is stored in our weather table.
-                 * We created a handy method to do that in our WeatherEntry class.
+                 * If the loader requested is our forecast loader, return a ForecastListLoader. It
+                 * queries the weather from today onwards and formats the list's rows in the
+                 * background.
                  */
-                String selection = WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards();
-
-                return new CursorLoader(this,
-                        forecastQueryUri,
-                        MAIN_FORECAST_PROJECTION,
-                        selection,
-                        null,
-                        sortOrder
-                );
+                return new ForecastListLoader(this);
 
             default:
                 throw new RuntimeException("Loader Not Implemented: " + loaderId);
@@ -219,9 +209,9 @@ public class MainActivity extends AppCompatActivity implements ForecastAdapterOn
      */
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        /* Call mForecastAdapter's swapCursor method and pass in the new Cursor */
-        forecastAdapter.swapCursor(data);
+    public void onLoadFinished(Loader<ForecastListLoader.Result> loader, ForecastListLoader.Result data) {
+        /* Call mForecastAdapter's swapRows method and pass in the new rows */
+        forecastAdapter.swapRows(data);
 
         /* If mPosition equals RecyclerView.NO_POSITION, set it to 0 */
         if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
@@ -229,8 +219,8 @@ public class MainActivity extends AppCompatActivity implements ForecastAdapterOn
         /* Smooth scroll the RecyclerView to mPosition */
         mRecyclerView.smoothScrollToPosition(mPosition);
 
-        /* If the Cursor's size is not equal to 0, call showWeatherDataView */
-        if (data.getCount() != 0) showWeatherDataView();
+        /* If there are rows to show, call showWeatherDataView */
+        if (!data.rows.isEmpty()) showWeatherDataView();
     }
 
     /**
@@ -240,12 +230,12 @@ public class MainActivity extends AppCompatActivity implements ForecastAdapterOn
      * @param loader The loader that is being reset.
      */
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<ForecastListLoader.Result> loader) {
         /*
          * Since this Loader's data is now invalid, we need to clear the Adapter that is
          * displaying the data.
          */
-        forecastAdapter.swapCursor(null);
+        forecastAdapter.swapRows(null);
     }
 
     /**
@@ -0,0 +1,239 @@
+package joels.com.projectsunshine.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the results of recent weather queries in memory, so that a CursorLoader restarting with
+ * the same query doesn't go back to SQLite when nothing has changed.
+ * <p>
+ * Results are stored as plain rows and handed out as a fresh MatrixCursor each time, so callers
+ * can close and move their cursors independently. Entries belong to a location, and
+ * WeatherProvider drops a location's entries whenever it writes that location's weather.
+ * <p>
+ * This class is thread safe.
+ */
+final class QueryResultCache {
+
+    /* How many distinct queries are kept. The least recently used one is evicted first. */
+    private static final int MAX_ENTRIES = 16;
+
+    /* Results larger than this are not worth holding in memory and are never cached */
+    private static final int MAX_ROWS = 256;
+
+    private final LinkedHashMap<Key, Result> mResults =
+            new LinkedHashMap<Key, Result>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        mEvictionCount++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /*
+     * Bumped by every invalidation. A query that started before an invalidation may have read
+     * the old rows, so its result is not stored.
+     */
+    private long mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    /**
+     * @return A new cursor over the cached result for the key, or null if there is none
+     */
+    synchronized Cursor get(Key key) {
+        Result result = mResults.get(key);
+        if (result == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return result.newCursor();
+    }
+
+    /**
+     * @return The generation to pass to {@link #put} for a query that is about to run
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Reads the cursor into the cache, unless it is too large or the cache was invalidated since
+     * the query started. The cursor is closed either way.
+     *
+     * @param key        The query that produced the cursor
+     * @param cursor     The result of the query
+     * @param generation What {@link #getGeneration} returned before the query ran
+     * @return A cursor over the same rows as the one passed in
+     */
+    Cursor put(Key key, Cursor cursor, long generation) {
+        if (cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+
+        Result result;
+        try {
+            result = Result.copyOf(cursor);
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mResults.put(key, result);
+            }
+        }
+        return result.newCursor();
+    }
+
+    /**
+     * Drops every cached query for a location.
+     *
+     * @param locationId The _ID of the location whose weather changed
+     */
+    synchronized void invalidateLocation(long locationId) {
+        mGeneration++;
+        Iterator<Key> keys = mResults.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().mLocationId == locationId) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops every cached query.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mResults.clear();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Everything that decides the rows a weather query returns: the arguments to query, plus the
+     * location the URI was resolved to, since the plain weather URIs mean whichever location is
+     * preferred at the time.
+     */
+    static final class Key {
+        private final Uri mUri;
+        private final long mLocationId;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+        private final int mHashCode;
+
+        Key(Uri uri, long locationId, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+            mUri = uri;
+            mLocationId = locationId;
+            mProjection = projection;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mSortOrder = sortOrder;
+
+            int hashCode = uri.hashCode();
+            hashCode = 31 * hashCode + (int) (locationId ^ (locationId >>> 32));
+            hashCode = 31 * hashCode + Arrays.hashCode(projection);
+            hashCode = 31 * hashCode + (selection == null ? 0 : selection.hashCode());
+            hashCode = 31 * hashCode + Arrays.hashCode(selectionArgs);
+            hashCode = 31 * hashCode + (sortOrder == null ? 0 : sortOrder.hashCode());
+            mHashCode = hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key other = (Key) o;
+            return mHashCode == other.mHashCode
+                    && mLocationId == other.mLocationId
+                    && mUri.equals(other.mUri)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && TextUtils.equals(mSelection, other.mSelection)
+                    && Arrays.equals(mSelectionArgs, other.mSelectionArgs)
+                    && TextUtils.equals(mSortOrder, other.mSortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /* The rows of a query, copied out of the database cursor */
+    private static final class Result {
+        private final String[] mColumnNames;
+        private final Object[][] mRows;
+
+        private Result(String[] columnNames, Object[][] rows) {
+            mColumnNames = columnNames;
+            mRows = rows;
+        }
+
+        static Result copyOf(Cursor cursor) {
+            String[] columnNames = cursor.getColumnNames();
+            Object[][] rows = new Object[cursor.getCount()][];
+
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[columnNames.length];
+                for (int i = 0; i < columnNames.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = cursor.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = cursor.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[i] = cursor.getString(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[i] = cursor.getBlob(i);
+                            break;
+                        default:
+                            row[i] = null;
+                            break;
+                    }
+                }
+                rows[cursor.getPosition()] = row;
+            }
+            return new Result(columnNames, rows);
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(mColumnNames, mRows.length);
+            for (Object[] row : mRows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+}
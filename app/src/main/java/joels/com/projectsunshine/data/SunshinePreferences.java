@@ -31,6 +31,112 @@ public class SunshinePreferences {
     private static final String DEFAULT_MAP_LOCATION =
             "1600 Amphitheatre Parkway, Mountain View, CA 94043";
 
+    /**
+     * The preferences that are read while formatting and syncing weather, as they were the last
+     * time they changed. isMetric is called for every temperature in the list, and a snapshot
+     * saves it a SharedPreferences lookup and three resource lookups each time.
+     * <p>
+     * A snapshot is never changed once it is made. When a preference changes, a new one is made
+     * and published in its place, so a thread that reads sSnapshot once sees one consistent set
+     * of values.
+     */
+    private static final class Snapshot {
+        final boolean metric;
+        final String location;
+
+        /* Null if the coordinates haven't been set */
+        final double[] coordinates;
+
+        Snapshot(Context context, SharedPreferences sp) {
+            String keyForUnits = context.getString(R.string.pref_units_key);
+            String metricUnits = context.getString(R.string.pref_units_metric);
+            metric = metricUnits.equals(sp.getString(keyForUnits, metricUnits));
+
+            String keyForLocation = context.getString(R.string.pref_location_key);
+            String defaultLocation = context.getString(R.string.pref_location_default);
+            location = sp.getString(keyForLocation, defaultLocation);
+
+            if (sp.contains(PREF_COORD_LAT) && sp.contains(PREF_COORD_LONG)) {
+                /*
+                 * SharedPreferences can't store doubles, so the coordinates are stored as the
+                 * raw long bits of the double and converted back here without losing any
+                 * precision.
+                 */
+                coordinates = new double[]{
+                        Double.longBitsToDouble(
+                                sp.getLong(PREF_COORD_LAT, Double.doubleToRawLongBits(0.0))),
+                        Double.longBitsToDouble(
+                                sp.getLong(PREF_COORD_LONG, Double.doubleToRawLongBits(0.0)))
+                };
+            } else {
+                coordinates = null;
+            }
+        }
+    }
+
+    private static volatile Snapshot sSnapshot;
+
+    /*
+     * SharedPreferences only keeps a weak reference to its listeners, so the listener that
+     * keeps the snapshot up to date is held here for as long as the process lives.
+     */
+    private static SharedPreferences.OnSharedPreferenceChangeListener sSnapshotListener;
+
+    /**
+     * Returns the current snapshot, reading the preferences and starting to listen for changes
+     * to them the first time it is called.
+     */
+    private static Snapshot getSnapshot(Context context) {
+        Snapshot snapshot = sSnapshot;
+        if (snapshot != null) return snapshot;
+
+        synchronized (SunshinePreferences.class) {
+            if (sSnapshot == null) {
+                final Context appContext = context.getApplicationContext();
+                SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(appContext);
+
+                sSnapshotListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                        republish(appContext, sharedPreferences);
+                    }
+                };
+                sp.registerOnSharedPreferenceChangeListener(sSnapshotListener);
+                sSnapshot = new Snapshot(appContext, sp);
+            }
+            return sSnapshot;
+        }
+    }
+
+    /**
+     * Reads the preferences into a new snapshot and publishes it.
+     * <p>
+     * Both the listener and the writers below publish, from different threads. The preferences
+     * are read and the snapshot stored under one lock, so whichever publishes last has read the
+     * newest values, and an older snapshot can never replace a newer one.
+     */
+    private static void republish(Context appContext, SharedPreferences sp) {
+        synchronized (SunshinePreferences.class) {
+            sSnapshot = new Snapshot(appContext, sp);
+        }
+    }
+
+    /**
+     * Applies a batch of edits and publishes a new snapshot straight away.
+     * <p>
+     * apply writes to disk in the background, but it updates the in-memory preferences before
+     * it returns. The listener above isn't told until later, on the main thread, so the snapshot
+     * is republished here to let a background thread that wrote a preference read it back.
+     */
+    private static void applyAndRepublish(Context context, SharedPreferences sp,
+                                          SharedPreferences.Editor editor) {
+        editor.apply();
+
+        /* Makes sure the listener is registered, so later changes are picked up too */
+        getSnapshot(context);
+        republish(context.getApplicationContext(), sp);
+    }
+
     /**
      * Helper method to handle setting location details in Preferences (City Name, Latitude,
      * Longitude)
@@ -41,7 +147,13 @@ public class SunshinePreferences {
      * @param lon      The longitude of the city
      */
     static public void setLocationDetails(Context c, String cityName, double lat, double lon) {
-        /** This will be implemented in a future lesson **/
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        SharedPreferences.Editor editor = sp.edit();
+
+        editor.putString(PREF_CITY_NAME, cityName);
+        editor.putLong(PREF_COORD_LAT, Double.doubleToRawLongBits(lat));
+        editor.putLong(PREF_COORD_LONG, Double.doubleToRawLongBits(lon));
+        applyAndRepublish(c, sp, editor);
     }
 
     /**
@@ -54,7 +166,13 @@ public class SunshinePreferences {
      * @param lon             The longitude of the city
      */
     static public void setLocation(Context c, String locationSetting, double lat, double lon) {
-        /** This will be implemented in a future lesson **/
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        SharedPreferences.Editor editor = sp.edit();
+
+        editor.putString(c.getString(R.string.pref_location_key), locationSetting);
+        editor.putLong(PREF_COORD_LAT, Double.doubleToRawLongBits(lat));
+        editor.putLong(PREF_COORD_LONG, Double.doubleToRawLongBits(lon));
+        applyAndRepublish(c, sp, editor);
     }
 
     /**
@@ -63,7 +181,12 @@ public class SunshinePreferences {
      * @param c Context used to get the SharedPreferences
      */
     static public void resetLocationCoordinates(Context c) {
-        /** This will be implemented in a future lesson **/
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        SharedPreferences.Editor editor = sp.edit();
+
+        editor.remove(PREF_COORD_LAT);
+        editor.remove(PREF_COORD_LONG);
+        applyAndRepublish(c, sp, editor);
     }
 
     /**
@@ -76,10 +199,7 @@ public class SunshinePreferences {
      * "94043,USA" if SharedPreferences have not been implemented yet.
      */
     public static String getPreferredWeatherLocation(Context context) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String keyForLocation = context.getString(R.string.pref_location_key);
-        String defaultLocation = context.getString(R.string.pref_location_default);
-        return prefs.getString(keyForLocation, defaultLocation);
+        return getSnapshot(context).location;
     }
 
     /**
@@ -89,18 +209,7 @@ public class SunshinePreferences {
      * @return true If metric display should be used
      */
     public static boolean isMetric(Context context) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String keyForUnits = context.getString(R.string.pref_units_key);
-        String defaultUnits = context.getString(R.string.pref_units_metric);
-        String preferredUnits = prefs.getString(keyForUnits, defaultUnits);
-        String metric = context.getString(R.string.pref_units_metric);
-        boolean userPrefersMetric;
-        if (metric.equals(preferredUnits)){
-            userPrefersMetric = true;
-        } else {
-            userPrefersMetric = false;
-        }
-        return userPrefersMetric;
+        return getSnapshot(context).metric;
     }
 
     /**
@@ -112,7 +221,14 @@ public class SunshinePreferences {
      * @return An array containing the two coordinate values.
      */
     public static double[] getLocationCoordinates(Context context) {
-        return getDefaultWeatherCoordinates();
+        double[] coordinates = getSnapshot(context).coordinates;
+        if (coordinates == null) {
+            /* A copy as well, so that the caller can't change the defaults */
+            return getDefaultWeatherCoordinates().clone();
+        }
+
+        /* A copy, so that the caller can't change the snapshot */
+        return coordinates.clone();
     }
 
     /**
@@ -123,8 +239,7 @@ public class SunshinePreferences {
      * @return true if lat/long are set
      */
     public static boolean isLocationLatLonAvailable(Context context) {
-        /** This will be implemented in a future lesson **/
-        return false;
+        return getSnapshot(context).coordinates != null;
     }
 
     private static String getDefaultWeatherLocation() {
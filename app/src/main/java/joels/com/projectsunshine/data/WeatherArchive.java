@@ -0,0 +1,347 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import joels.com.projectsunshine.data.WeatherContract.ArchiveEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+
+/**
+ * Long-term weather history, kept in compressed blocks of up to BLOCK_ROWS days per location
+ * rather than one row per day. See {@link WeatherArchiveCodec} for how a block is encoded.
+ * <p>
+ * Weather moves here from the weather table once it falls out of the retention window. Each
+ * block's date range is kept in indexed columns, so a range query only reads and decodes the
+ * blocks that overlap it.
+ */
+final class WeatherArchive {
+
+    private static final String TAG = WeatherArchive.class.getSimpleName();
+
+    /* Days per block. The newest block of a location fills up before a new one is started. */
+    static final int BLOCK_ROWS = 128;
+
+    /* Rows moved from the weather table per transaction */
+    private static final int ARCHIVE_BATCH_ROWS = 200;
+
+    /*
+     * The columns the archive URIs return, which are those of the weather table. Archived days
+     * have no row of their own, so _ID holds the date, which is unique for a location.
+     */
+    static final String[] COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    /* The indices of the columns of COLUMNS, which the weather table is also read with */
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_LOC_KEY = 1;
+    private static final int INDEX_DATE = 2;
+    private static final int INDEX_WEATHER_ID = 3;
+    private static final int INDEX_FIRST_VALUE = 4;
+
+    private static final String[] TAIL_BLOCK_PROJECTION = {
+            ArchiveEntry._ID,
+            ArchiveEntry.COLUMN_ROW_COUNT,
+            ArchiveEntry.COLUMN_LAST_DATE,
+            ArchiveEntry.COLUMN_DATA
+    };
+
+    private WeatherArchive() {
+    }
+
+    /**
+     * Moves every weather row dated before the cutoff into the archive, in batches of
+     * ARCHIVE_BATCH_ROWS rows per transaction. Must not be called inside a transaction.
+     *
+     * @param db     The writable database
+     * @param cutoff Normalized date; rows before it are archived
+     * @return The number of rows moved
+     */
+    static int archiveExpired(SQLiteDatabase db, long cutoff) {
+        int rowsArchived = 0;
+        SQLiteStatement deleteStatement = db.compileStatement(
+                "DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry._ID + " = ?");
+        try {
+            int batchArchived;
+            do {
+                db.beginTransactionNonExclusive();
+                try {
+                    batchArchived = archiveBatch(db, cutoff, deleteStatement);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                rowsArchived += batchArchived;
+            } while (batchArchived == ARCHIVE_BATCH_ROWS);
+        } finally {
+            deleteStatement.close();
+        }
+        return rowsArchived;
+    }
+
+    private static int archiveBatch(SQLiteDatabase db, long cutoff, SQLiteStatement deleteStatement) {
+        Cursor cursor = db.query(
+                WeatherEntry.TABLE_NAME,
+                COLUMNS,
+                WeatherEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(cutoff)},
+                null,
+                null,
+                WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE,
+                Integer.toString(ARCHIVE_BATCH_ROWS));
+        try {
+            int rowCount = cursor.getCount();
+
+            /* The rows are sorted by location, so each location's rows are one run */
+            int runStart = 0;
+            while (runStart < rowCount) {
+                cursor.moveToPosition(runStart);
+                long locationId = cursor.getLong(INDEX_LOC_KEY);
+                int runEnd = runStart + 1;
+                while (runEnd < rowCount && cursor.moveToPosition(runEnd)
+                        && cursor.getLong(INDEX_LOC_KEY) == locationId) {
+                    runEnd++;
+                }
+
+                WeatherArchiveCodec.Block rows = new WeatherArchiveCodec.Block(runEnd - runStart);
+                for (int row = 0; row < rows.rowCount; row++) {
+                    cursor.moveToPosition(runStart + row);
+                    rows.dates[row] = cursor.getLong(INDEX_DATE);
+                    rows.weatherIds[row] = cursor.getInt(INDEX_WEATHER_ID);
+                    for (int column = 0; column < WeatherArchiveCodec.VALUE_COLUMN_COUNT; column++) {
+                        rows.values[column][row] = cursor.getDouble(INDEX_FIRST_VALUE + column);
+                    }
+
+                    deleteStatement.bindLong(1, cursor.getLong(INDEX_ID));
+                    deleteStatement.executeUpdateDelete();
+                }
+                rows.computeRanges();
+                append(db, locationId, rows);
+
+                runStart = runEnd;
+            }
+            return rowCount;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Adds days to a location's archive. They are merged into the location's newest block while
+     * it has room, or if they overlap it. Must be called inside a transaction.
+     *
+     * @param db         The writable database, with a transaction open
+     * @param locationId The _ID of the location the days belong to
+     * @param rows       The days to add, in ascending date order
+     */
+    static void append(SQLiteDatabase db, long locationId, WeatherArchiveCodec.Block rows) {
+        WeatherArchiveCodec.Block combined = rows;
+
+        Cursor tail = db.query(
+                ArchiveEntry.TABLE_NAME,
+                TAIL_BLOCK_PROJECTION,
+                ArchiveEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)},
+                null,
+                null,
+                ArchiveEntry.COLUMN_FIRST_DATE + " DESC",
+                "1");
+        try {
+            if (tail.moveToFirst()
+                    && (tail.getInt(1) < BLOCK_ROWS || rows.dates[0] <= tail.getLong(2))) {
+                combined = merge(WeatherArchiveCodec.decode(tail.getBlob(3)), rows);
+                db.delete(ArchiveEntry.TABLE_NAME, ArchiveEntry._ID + " = ?",
+                        new String[]{Long.toString(tail.getLong(0))});
+            }
+        } finally {
+            tail.close();
+        }
+
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        for (int start = 0; start < combined.rowCount; start += BLOCK_ROWS) {
+            WeatherArchiveCodec.Block block =
+                    combined.slice(start, Math.min(start + BLOCK_ROWS, combined.rowCount));
+            byte[] data = WeatherArchiveCodec.encode(block);
+
+            ContentValues blockValues = new ContentValues();
+            blockValues.put(ArchiveEntry.COLUMN_LOC_KEY, locationId);
+            blockValues.put(ArchiveEntry.COLUMN_FIRST_DATE, block.dates[0]);
+            blockValues.put(ArchiveEntry.COLUMN_LAST_DATE, block.dates[block.rowCount - 1]);
+            blockValues.put(ArchiveEntry.COLUMN_ROW_COUNT, block.rowCount);
+            blockValues.put(ArchiveEntry.COLUMN_DATA, data);
+            db.insert(ArchiveEntry.TABLE_NAME, null, blockValues);
+
+            /* A date, a condition ID and six doubles per day, as they are held in memory */
+            rawBytes += block.rowCount * (8 + 4 + 8 * WeatherArchiveCodec.VALUE_COLUMN_COUNT);
+            encodedBytes += data.length;
+        }
+        Log.d(TAG, "Archived " + rows.rowCount + " days for location " + locationId + ": "
+                + rawBytes + " bytes encoded to " + encodedBytes + " bytes");
+    }
+
+    /**
+     * Merges newer days into an existing block. A newer day replaces an older one with the same
+     * date. Newer days from before the start of the older block would overlap the blocks
+     * before it, and are dropped, as those dates are already archived.
+     */
+    private static WeatherArchiveCodec.Block merge(WeatherArchiveCodec.Block older,
+                                                   WeatherArchiveCodec.Block newer) {
+        WeatherArchiveCodec.Block merged =
+                new WeatherArchiveCodec.Block(older.rowCount + newer.rowCount);
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (j < newer.rowCount && older.rowCount > 0 && newer.dates[j] < older.dates[0]) {
+            j++;
+        }
+        if (j > 0) {
+            Log.w(TAG, "Dropped " + j + " days that are older than the newest archive block");
+        }
+
+        while (i < older.rowCount || j < newer.rowCount) {
+            if (j == newer.rowCount || (i < older.rowCount && older.dates[i] < newer.dates[j])) {
+                copyRow(older, i++, merged, count++);
+            } else {
+                if (i < older.rowCount && older.dates[i] == newer.dates[j]) {
+                    i++;
+                }
+                copyRow(newer, j++, merged, count++);
+            }
+        }
+        return merged.slice(0, count);
+    }
+
+    private static void copyRow(WeatherArchiveCodec.Block from, int fromRow,
+                                WeatherArchiveCodec.Block to, int toRow) {
+        to.dates[toRow] = from.dates[fromRow];
+        to.weatherIds[toRow] = from.weatherIds[fromRow];
+        for (int column = 0; column < WeatherArchiveCodec.VALUE_COLUMN_COUNT; column++) {
+            to.values[column][toRow] = from.values[column][fromRow];
+        }
+    }
+
+    /**
+     * Reads a location's weather from the archive and the weather table together, so callers
+     * don't need to know where a given day is kept. Where both hold a date, the weather table's
+     * row wins.
+     *
+     * @param db         The database
+     * @param locationId The _ID of the location
+     * @param from       The first date to return
+     * @param to         The date to stop before
+     * @param projection Columns from {@link #COLUMNS}, or null for all of them
+     * @return The days in ascending date order
+     */
+    static Cursor query(SQLiteDatabase db, long locationId, long from, long to, String[] projection) {
+        String[] columns = projection != null ? projection : COLUMNS;
+        int[] columnIndices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columnIndices[i] = indexOf(columns[i]);
+        }
+
+        long startMillis = SystemClock.elapsedRealtime();
+        TreeMap<Long, Object[]> days = new TreeMap<>();
+        String[] rangeArgs = {Long.toString(locationId), Long.toString(to), Long.toString(from)};
+
+        int blocksRead = 0;
+        Cursor blocks = db.query(
+                ArchiveEntry.TABLE_NAME,
+                new String[]{ArchiveEntry.COLUMN_DATA},
+                ArchiveEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + ArchiveEntry.COLUMN_FIRST_DATE + " < ? AND "
+                        + ArchiveEntry.COLUMN_LAST_DATE + " >= ?",
+                rangeArgs,
+                null,
+                null,
+                ArchiveEntry.COLUMN_FIRST_DATE);
+        try {
+            while (blocks.moveToNext()) {
+                WeatherArchiveCodec.Block block = WeatherArchiveCodec.decode(blocks.getBlob(0));
+                blocksRead++;
+                for (int row = 0; row < block.rowCount; row++) {
+                    long date = block.dates[row];
+                    if (date < from || date >= to) continue;
+
+                    Object[] day = new Object[COLUMNS.length];
+                    day[INDEX_ID] = date;
+                    day[INDEX_LOC_KEY] = locationId;
+                    day[INDEX_DATE] = date;
+                    day[INDEX_WEATHER_ID] = block.weatherIds[row];
+                    for (int column = 0; column < WeatherArchiveCodec.VALUE_COLUMN_COUNT; column++) {
+                        day[INDEX_FIRST_VALUE + column] = block.values[column][row];
+                    }
+                    days.put(date, day);
+                }
+            }
+        } finally {
+            blocks.close();
+        }
+        int archivedDays = days.size();
+
+        Cursor live = db.query(
+                WeatherEntry.TABLE_NAME,
+                COLUMNS,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherEntry.COLUMN_DATE + " < ? AND "
+                        + WeatherEntry.COLUMN_DATE + " >= ?",
+                rangeArgs,
+                null,
+                null,
+                null);
+        try {
+            while (live.moveToNext()) {
+                long date = live.getLong(INDEX_DATE);
+                Object[] day = new Object[COLUMNS.length];
+                day[INDEX_ID] = date;
+                day[INDEX_LOC_KEY] = locationId;
+                day[INDEX_DATE] = date;
+                day[INDEX_WEATHER_ID] = live.getInt(INDEX_WEATHER_ID);
+                for (int column = 0; column < WeatherArchiveCodec.VALUE_COLUMN_COUNT; column++) {
+                    day[INDEX_FIRST_VALUE + column] = live.getDouble(INDEX_FIRST_VALUE + column);
+                }
+                days.put(date, day);
+            }
+        } finally {
+            live.close();
+        }
+
+        MatrixCursor cursor = new MatrixCursor(columns, days.size());
+        for (Map.Entry<Long, Object[]> day : days.entrySet()) {
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                row[i] = day.getValue()[columnIndices[i]];
+            }
+            cursor.addRow(row);
+        }
+
+        Log.d(TAG, "Read " + archivedDays + " archived days from " + blocksRead + " blocks and "
+                + (days.size() - archivedDays) + " other days in "
+                + (SystemClock.elapsedRealtime() - startMillis) + "ms");
+        return cursor;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) return i;
+        }
+        throw new IllegalArgumentException("Unknown archive column: " + column);
+    }
+}
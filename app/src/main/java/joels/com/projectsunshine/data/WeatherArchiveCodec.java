@@ -0,0 +1,342 @@
+package joels.com.projectsunshine.data;
+
+import java.util.Arrays;
+
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+/**
+ * Encodes a block of archived weather column by column, which is what makes the archive small:
+ * neighbouring values in one column are alike, so each is stored as its difference from the one
+ * before.
+ * <ul>
+ * <li>Dates are stored as whole days, each as the change in the step from the previous date.
+ * Daily weather steps by one day every time, so almost every date costs a single byte.</li>
+ * <li>Weather condition IDs are stored as the change from the previous ID.</li>
+ * <li>The numeric columns are stored as the XOR of each value's bits with the previous value's
+ * bits, keeping only the bits between the leading and trailing zeros. An unchanged value costs
+ * one bit.</li>
+ * </ul>
+ * The header of a block also holds the lowest and highest value of every numeric column, so that
+ * aggregates over whole blocks can be answered without decoding them.
+ */
+final class WeatherArchiveCodec {
+
+    private static final int FORMAT_VERSION = 1;
+
+    /* The numeric columns of a block, in the order they are stored */
+    static final int VALUE_MIN_TEMP = 0;
+    static final int VALUE_MAX_TEMP = 1;
+    static final int VALUE_HUMIDITY = 2;
+    static final int VALUE_PRESSURE = 3;
+    static final int VALUE_WIND_SPEED = 4;
+    static final int VALUE_DEGREES = 5;
+    static final int VALUE_COLUMN_COUNT = 6;
+
+    private WeatherArchiveCodec() {
+    }
+
+    /**
+     * The rows of one block, held as one array per column. Rows are in ascending date order.
+     */
+    static final class Block {
+        final int rowCount;
+        final long[] dates;
+        final int[] weatherIds;
+        final double[][] values;
+
+        /* The lowest and highest value of each numeric column, indexed like values */
+        final double[] lowest;
+        final double[] highest;
+
+        Block(int rowCount) {
+            this.rowCount = rowCount;
+            dates = new long[rowCount];
+            weatherIds = new int[rowCount];
+            values = new double[VALUE_COLUMN_COUNT][rowCount];
+            lowest = new double[VALUE_COLUMN_COUNT];
+            highest = new double[VALUE_COLUMN_COUNT];
+        }
+
+        /**
+         * Recomputes lowest and highest from the values. Call this once the rows are filled in.
+         */
+        void computeRanges() {
+            for (int column = 0; column < VALUE_COLUMN_COUNT; column++) {
+                double low = Double.POSITIVE_INFINITY;
+                double high = Double.NEGATIVE_INFINITY;
+                for (double value : values[column]) {
+                    low = Math.min(low, value);
+                    high = Math.max(high, value);
+                }
+                lowest[column] = low;
+                highest[column] = high;
+            }
+        }
+
+        /**
+         * @return A new block holding rows from (inclusive) to to (exclusive) of this one
+         */
+        Block slice(int from, int to) {
+            Block slice = new Block(to - from);
+            System.arraycopy(dates, from, slice.dates, 0, slice.rowCount);
+            System.arraycopy(weatherIds, from, slice.weatherIds, 0, slice.rowCount);
+            for (int column = 0; column < VALUE_COLUMN_COUNT; column++) {
+                System.arraycopy(values[column], from, slice.values[column], 0, slice.rowCount);
+            }
+            slice.computeRanges();
+            return slice;
+        }
+    }
+
+    /**
+     * @return The encoded block
+     */
+    static byte[] encode(Block block) {
+        BitWriter out = new BitWriter(16 + block.rowCount * 8);
+        out.writeVarLong(FORMAT_VERSION);
+        out.writeVarLong(block.rowCount);
+
+        for (int column = 0; column < VALUE_COLUMN_COUNT; column++) {
+            out.writeBits(Double.doubleToRawLongBits(block.lowest[column]), 64);
+            out.writeBits(Double.doubleToRawLongBits(block.highest[column]), 64);
+        }
+        if (block.rowCount == 0) {
+            return out.toByteArray();
+        }
+
+        /* Dates: the first day, then each change in the step between days */
+        long previousDay = block.dates[0] / SunshineDateUtils.DAY_IN_MILLIS;
+        long previousStep = 0;
+        out.writeVarLong(zigZag(previousDay));
+        for (int row = 1; row < block.rowCount; row++) {
+            long day = block.dates[row] / SunshineDateUtils.DAY_IN_MILLIS;
+            long step = day - previousDay;
+            out.writeVarLong(zigZag(step - previousStep));
+            previousDay = day;
+            previousStep = step;
+        }
+
+        /* Weather condition IDs: each change from the previous ID */
+        long previousId = 0;
+        for (int row = 0; row < block.rowCount; row++) {
+            out.writeVarLong(zigZag(block.weatherIds[row] - previousId));
+            previousId = block.weatherIds[row];
+        }
+
+        for (int column = 0; column < VALUE_COLUMN_COUNT; column++) {
+            writeXorColumn(out, block.values[column], block.rowCount);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads only the header of an encoded block.
+     *
+     * @return A block with no rows, with lowest and highest filled in
+     */
+    static Block decodeHeader(byte[] encoded) {
+        BitReader in = new BitReader(encoded);
+        checkVersion(in);
+        in.readVarLong();
+
+        Block header = new Block(0);
+        readRanges(in, header);
+        return header;
+    }
+
+    /**
+     * @return The decoded block
+     */
+    static Block decode(byte[] encoded) {
+        BitReader in = new BitReader(encoded);
+        checkVersion(in);
+        int rowCount = (int) in.readVarLong();
+
+        Block block = new Block(rowCount);
+        readRanges(in, block);
+        if (rowCount == 0) {
+            return block;
+        }
+
+        long day = unZigZag(in.readVarLong());
+        long step = 0;
+        block.dates[0] = day * SunshineDateUtils.DAY_IN_MILLIS;
+        for (int row = 1; row < rowCount; row++) {
+            step += unZigZag(in.readVarLong());
+            day += step;
+            block.dates[row] = day * SunshineDateUtils.DAY_IN_MILLIS;
+        }
+
+        long weatherId = 0;
+        for (int row = 0; row < rowCount; row++) {
+            weatherId += unZigZag(in.readVarLong());
+            block.weatherIds[row] = (int) weatherId;
+        }
+
+        for (int column = 0; column < VALUE_COLUMN_COUNT; column++) {
+            readXorColumn(in, block.values[column], rowCount);
+        }
+        return block;
+    }
+
+    private static void readRanges(BitReader in, Block block) {
+        for (int column = 0; column < VALUE_COLUMN_COUNT; column++) {
+            block.lowest[column] = Double.longBitsToDouble(in.readBits(64));
+            block.highest[column] = Double.longBitsToDouble(in.readBits(64));
+        }
+    }
+
+    private static void checkVersion(BitReader in) {
+        long version = in.readVarLong();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown archive block version " + version);
+        }
+    }
+
+    /*
+     * Each value after the first is written as:
+     *   0                   the same as the previous value
+     *   1 0 <bits>          the XOR with the previous value fits in the previous window
+     *   1 1 <5> <6> <bits>  a new window: leading zeros, then the number of meaningful bits
+     */
+    private static void writeXorColumn(BitWriter out, double[] values, int count) {
+        long previous = Double.doubleToRawLongBits(values[0]);
+        out.writeBits(previous, 64);
+
+        int windowLeading = Integer.MAX_VALUE;
+        int windowTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previous;
+            previous = bits;
+
+            if (xor == 0) {
+                out.writeBit(false);
+                continue;
+            }
+            out.writeBit(true);
+
+            /* The leading zero count must fit in 5 bits */
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (leading >= windowLeading && trailing >= windowTrailing) {
+                out.writeBit(false);
+                out.writeBits(xor >>> windowTrailing, 64 - windowLeading - windowTrailing);
+            } else {
+                int meaningful = 64 - leading - trailing;
+                out.writeBit(true);
+                out.writeBits(leading, 5);
+                /* 1 to 64 meaningful bits, stored as 0 to 63 */
+                out.writeBits(meaningful - 1, 6);
+                out.writeBits(xor >>> trailing, meaningful);
+                windowLeading = leading;
+                windowTrailing = trailing;
+            }
+        }
+    }
+
+    private static void readXorColumn(BitReader in, double[] values, int count) {
+        long previous = in.readBits(64);
+        values[0] = Double.longBitsToDouble(previous);
+
+        int windowLeading = 0;
+        int windowTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    windowLeading = (int) in.readBits(5);
+                    int meaningful = (int) in.readBits(6) + 1;
+                    windowTrailing = 64 - windowLeading - meaningful;
+                }
+                int meaningful = 64 - windowLeading - windowTrailing;
+                previous ^= in.readBits(meaningful) << windowTrailing;
+            }
+            values[i] = Double.longBitsToDouble(previous);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /* Writes bits most significant first into a growing byte array */
+    private static final class BitWriter {
+        private byte[] mBuffer;
+        private long mBitCount;
+
+        BitWriter(int expectedBytes) {
+            mBuffer = new byte[Math.max(expectedBytes, 16)];
+        }
+
+        void writeBit(boolean bit) {
+            int byteIndex = (int) (mBitCount >>> 3);
+            if (byteIndex == mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+            }
+            if (bit) {
+                mBuffer[byteIndex] |= 0x80 >>> (mBitCount & 7);
+            }
+            mBitCount++;
+        }
+
+        /* Writes the low count bits of value */
+        void writeBits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                writeBit(((value >>> i) & 1) != 0);
+            }
+        }
+
+        /* Writes an unsigned value 7 bits at a time, with a continuation bit in front of each */
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeBits(0x80 | (value & 0x7F), 8);
+                value >>>= 7;
+            }
+            writeBits(value, 8);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, (int) ((mBitCount + 7) >>> 3));
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] mBuffer;
+        private long mBitPosition;
+
+        BitReader(byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        boolean readBit() {
+            int byteIndex = (int) (mBitPosition >>> 3);
+            boolean bit = (mBuffer[byteIndex] & (0x80 >>> (mBitPosition & 7))) != 0;
+            mBitPosition++;
+            return bit;
+        }
+
+        long readBits(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            long next;
+            do {
+                next = readBits(8);
+                value |= (next & 0x7F) << shift;
+                shift += 7;
+            } while ((next & 0x80) != 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import joels.com.projectsunshine.data.WeatherContract.ArchiveEntry;
+import joels.com.projectsunshine.data.WeatherContract.HourlyEntry;
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+
+/**
+ * Sends WeatherProvider's change notifications, addressed as narrowly as the change allows.
+ * <p>
+ * Changes to a single date are sent to that date's URI, so a detail screen showing another day
+ * doesn't reload. Changes to several dates are sent once to the location's weather URI, which
+ * observers of the list and of every date receive. Either way, each observer is notified at
+ * most once per change set.
+ * <p>
+ * Between {@link #beginBatch()} and {@link #endBatch()}, changes are collected instead of sent,
+ * and the whole batch goes out as one change set when the outermost batch ends. A sync that
+ * writes several times therefore causes one reload rather than one per write.
+ * <p>
+ * This class is thread safe.
+ */
+final class WeatherChangeNotifier {
+
+    private static final String TAG = WeatherChangeNotifier.class.getSimpleName();
+
+    /* Stands for "every date" in a location's set of changed dates */
+    private static final Long ALL_DATES = Long.MIN_VALUE;
+
+    /**
+     * Finds which location the plain weather URIs refer to when a change set is sent.
+     */
+    interface PreferredLocation {
+        /**
+         * @return The _ID of the preferred location, or -1 if it has no row yet
+         */
+        long getId();
+    }
+
+    private final ContentResolver mResolver;
+    private final PreferredLocation mPreferredLocation;
+
+    private int mBatchDepth;
+
+    /*
+     * The dates changed for each location _ID, the locations whose hourly points changed, and
+     * any other URIs changed, since the last send
+     */
+    private final LongSparseArray<Set<Long>> mChangedDates = new LongSparseArray<>();
+    private final Set<Long> mChangedHourlyLocations = new HashSet<>();
+    private final Set<Uri> mChangedUris = new LinkedHashSet<>();
+    private boolean mAllWeatherChanged;
+
+    /* Changes reported since the last send, for the log */
+    private int mChangesReported;
+
+    WeatherChangeNotifier(ContentResolver resolver, PreferredLocation preferredLocation) {
+        mResolver = resolver;
+        mPreferredLocation = preferredLocation;
+    }
+
+    /**
+     * Starts holding notifications back. Batches nest; every call must be matched by a call to
+     * {@link #endBatch()}.
+     */
+    synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * Ends a batch. When the outermost batch ends, everything that changed during it is sent as
+     * one change set.
+     */
+    void endBatch() {
+        synchronized (this) {
+            if (mBatchDepth == 0) {
+                throw new IllegalStateException("endBatch without beginBatch");
+            }
+            mBatchDepth--;
+        }
+        dispatchIfNotBatching();
+    }
+
+    /**
+     * Reports that the weather of a location changed on the given dates.
+     */
+    void weatherChanged(long locationId, Collection<Long> dates) {
+        if (dates.isEmpty()) return;
+        synchronized (this) {
+            getChangedDates(locationId).addAll(dates);
+            mChangesReported += dates.size();
+        }
+        dispatchIfNotBatching();
+    }
+
+    /**
+     * Reports that the weather of a location changed on dates that aren't known.
+     */
+    void allWeatherChanged(long locationId) {
+        synchronized (this) {
+            getChangedDates(locationId).add(ALL_DATES);
+            mChangesReported++;
+        }
+        dispatchIfNotBatching();
+    }
+
+    /**
+     * Reports that the weather of every location may have changed.
+     */
+    void allWeatherChanged() {
+        synchronized (this) {
+            mAllWeatherChanged = true;
+            mChangesReported++;
+        }
+        dispatchIfNotBatching();
+    }
+
+    /**
+     * Reports that the hourly points of a location changed. The days they roll up into are
+     * reported separately, through {@link #weatherChanged}.
+     */
+    void hourlyChanged(long locationId) {
+        synchronized (this) {
+            mChangedHourlyLocations.add(locationId);
+            mChangesReported++;
+        }
+        dispatchIfNotBatching();
+    }
+
+    /**
+     * Reports a change to a URI that isn't weather, such as a location or sync metadata.
+     */
+    void uriChanged(Uri uri) {
+        synchronized (this) {
+            mChangedUris.add(uri);
+            mChangesReported++;
+        }
+        dispatchIfNotBatching();
+    }
+
+    private Set<Long> getChangedDates(long locationId) {
+        Set<Long> dates = mChangedDates.get(locationId);
+        if (dates == null) {
+            dates = new HashSet<>();
+            mChangedDates.put(locationId, dates);
+        }
+        return dates;
+    }
+
+    private void dispatchIfNotBatching() {
+        synchronized (this) {
+            if (mBatchDepth > 0 || !hasPendingChanges()) return;
+        }
+
+        /*
+         * Finding the preferred location is a database query, so it is done before taking the
+         * lock, rather than making every thread that reports a change wait for it.
+         */
+        long preferredLocationId = mPreferredLocation.getId();
+
+        Set<Uri> uris;
+        int changesReported;
+        synchronized (this) {
+            /* Another thread may have sent the changes, or started a batch, in the meantime */
+            if (mBatchDepth > 0 || !hasPendingChanges()) return;
+            uris = takePendingUris(preferredLocationId);
+            changesReported = mChangesReported;
+            mChangesReported = 0;
+        }
+
+        /* Notifying outside the lock, as observers may call back into the provider */
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+        Log.d(TAG, "Sent " + uris.size() + " notifications for " + changesReported + " changes");
+    }
+
+    private boolean hasPendingChanges() {
+        return mAllWeatherChanged || mChangedDates.size() > 0 || !mChangedHourlyLocations.isEmpty()
+                || !mChangedUris.isEmpty();
+    }
+
+    /**
+     * Turns the pending changes into the URIs to notify, and clears them. Must hold the lock.
+     *
+     * @param preferredLocationId The _ID of the preferred location, or -1 if it has no row
+     */
+    private Set<Uri> takePendingUris(long preferredLocationId) {
+        Set<Uri> uris = new LinkedHashSet<>();
+
+        if (mAllWeatherChanged) {
+            /* Everything under these is notified too, which covers every weather URI */
+            uris.add(WeatherEntry.CONTENT_URI);
+            uris.add(HourlyEntry.CONTENT_URI);
+            uris.add(ArchiveEntry.CONTENT_URI);
+            uris.add(LocationEntry.CONTENT_URI);
+        } else if (mChangedDates.size() > 0 || !mChangedHourlyLocations.isEmpty()) {
+            for (long locationId : mChangedHourlyLocations) {
+                uris.add(LocationEntry.buildHourlyUri(locationId));
+                if (locationId == preferredLocationId) {
+                    uris.add(HourlyEntry.CONTENT_URI);
+                }
+            }
+            for (int i = 0; i < mChangedDates.size(); i++) {
+                long locationId = mChangedDates.keyAt(i);
+                Set<Long> dates = mChangedDates.valueAt(i);
+
+                /* Exactly one known date: notify only it. Otherwise notify the whole location. */
+                Long onlyDate = dates.size() == 1 ? dates.iterator().next() : null;
+                if (ALL_DATES.equals(onlyDate)) onlyDate = null;
+
+                uris.add(onlyDate == null
+                        ? LocationEntry.buildWeatherUri(locationId)
+                        : LocationEntry.buildWeatherUriWithDate(locationId, onlyDate));
+                if (locationId == preferredLocationId) {
+                    uris.add(onlyDate == null
+                            ? WeatherEntry.CONTENT_URI
+                            : WeatherEntry.buildWeatherUriWithDate(onlyDate));
+                }
+
+                /* The archive URIs include the days still in the weather table */
+                uris.add(LocationEntry.buildArchiveUri(locationId));
+                if (locationId == preferredLocationId) {
+                    uris.add(ArchiveEntry.CONTENT_URI);
+                }
+            }
+        }
+        uris.addAll(mChangedUris);
+
+        mAllWeatherChanged = false;
+        mChangedDates.clear();
+        mChangedHourlyLocations.clear();
+        mChangedUris.clear();
+        return uris;
+    }
+}
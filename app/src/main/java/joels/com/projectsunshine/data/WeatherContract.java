@@ -37,7 +37,273 @@ public class WeatherContract {
      */
     public static final String PATH_WEATHER = "weather";
 
-    /* Inner class that defines the table contents of the weather table */
+    /* Path for looking at the locations we hold weather for */
+    public static final String PATH_LOCATION = "location";
+
+    /* Path for looking at the hourly forecast points that the daily weather is rolled up from */
+    public static final String PATH_HOURLY = "hourly";
+
+    /* Path, under a weather URI, for aggregates over a range of its dates */
+    public static final String PATH_AGGREGATE = "aggregate";
+
+    /* Path for looking at weather history, however old */
+    public static final String PATH_ARCHIVE = "archive";
+
+    /* Path for the bookkeeping of when each location's weather was last fetched */
+    public static final String PATH_SYNC_METADATA = "sync_metadata";
+
+    /*
+     * Passed to ContentResolver#call to move weather older than the retention window into the
+     * archive, delete hourly points older than it, and compact the database. The arg is the
+     * retention window in milliseconds, counted back from today; with no arg, only today onwards
+     * is kept. The returned Bundle holds the RESULT_* values below.
+     */
+    public static final String METHOD_COMPACT = "compact";
+
+    public static final String RESULT_ROWS_DELETED = "rows_deleted";
+    public static final String RESULT_ROWS_ARCHIVED = "rows_archived";
+    public static final String RESULT_BYTES_RECLAIMED = "bytes_reclaimed";
+    public static final String RESULT_ELAPSED_MILLIS = "elapsed_millis";
+
+    /*
+     * Passed to ContentResolver#call to read the counters of the provider's in-memory query
+     * result cache, returned under the RESULT_CACHE_* keys below.
+     */
+    public static final String METHOD_GET_QUERY_CACHE_STATS = "get_query_cache_stats";
+
+    public static final String RESULT_CACHE_HITS = "cache_hits";
+    public static final String RESULT_CACHE_MISSES = "cache_misses";
+    public static final String RESULT_CACHE_EVICTIONS = "cache_evictions";
+
+    /*
+     * Also returned by METHOD_GET_QUERY_CACHE_STATS: how many queries ran SQL text that the
+     * provider had run recently, and how many ran text it hadn't. These are the provider's own
+     * estimate of how well SQLite's statement cache could be used, not counts read from SQLite.
+     * Under RESULT_QUERY_EXECUTIONS is a Bundle of how many times each named query ran.
+     */
+    public static final String RESULT_REPEATED_SQL_ESTIMATE = "repeated_sql_estimate";
+    public static final String RESULT_NEW_SQL_ESTIMATE = "new_sql_estimate";
+    public static final String RESULT_QUERY_EXECUTIONS = "query_executions";
+
+    /*
+     * Passed to ContentResolver#call around a group of writes, such as a sync, so that their
+     * change notifications are sent together as one change set when the group ends. Every begin
+     * must be matched by an end, even if the writes fail.
+     */
+    public static final String METHOD_BEGIN_NOTIFICATION_BATCH = "begin_notification_batch";
+    public static final String METHOD_END_NOTIFICATION_BATCH = "end_notification_batch";
+
+    /*
+     * Passed to ContentResolver#call to stream every location and all of the weather table out
+     * to a file, or to read such a file back in and upsert its rows. The arg is the path of the
+     * file; the extras may name its format under EXTRA_TRANSFER_FORMAT, which is binary if not
+     * given. The returned Bundle holds RESULT_ROWS_TRANSFERRED, RESULT_ROWS_CHANGED (the rows an
+     * import inserted or changed), RESULT_ELAPSED_MILLIS and RESULT_PEAK_HEAP_BYTES.
+     */
+    public static final String METHOD_EXPORT_WEATHER = "export_weather";
+    public static final String METHOD_IMPORT_WEATHER = "import_weather";
+
+    public static final String EXTRA_TRANSFER_FORMAT = "transfer_format";
+    public static final String TRANSFER_FORMAT_BINARY = "binary";
+    public static final String TRANSFER_FORMAT_CSV = "csv";
+
+    public static final String RESULT_ROWS_TRANSFERRED = "rows_transferred";
+    public static final String RESULT_ROWS_CHANGED = "rows_changed";
+    public static final String RESULT_PEAK_HEAP_BYTES = "peak_heap_bytes";
+
+    /* Inner class that defines the table contents of the location table */
+    public static final class LocationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the location table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_LOCATION)
+                .build();
+
+        /* Used internally as the name of our location table. */
+        public static final String TABLE_NAME = "location";
+
+        /*
+         * The location setting string is what is sent to the weather server as the location
+         * query, e.g. "94043,USA". It is unique, so there is one row per location.
+         */
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        /* Human readable location string, provided by the API */
+        public static final String COLUMN_CITY_NAME = "city_name";
+
+        /* In order to uniquely pinpoint the location on the map, we store latitude and longitude */
+        public static final String COLUMN_COORD_LAT = "coord_lat";
+        public static final String COLUMN_COORD_LONG = "coord_long";
+
+        /**
+         * Builds a URI for all of the weather stored for one location:
+         *
+         *     content://joels.com.projectsunshine/location/3/weather
+         *
+         * @param locationId The _ID of the location
+         * @return Uri to query the weather for that location
+         */
+        public static Uri buildWeatherUri(long locationId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(Long.toString(locationId))
+                    .appendPath(PATH_WEATHER)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the weather of one location on a single day.
+         *
+         * @param locationId The _ID of the location
+         * @param date       Normalized date in milliseconds
+         * @return Uri to query details about a single weather entry of that location
+         */
+        public static Uri buildWeatherUriWithDate(long locationId, long date) {
+            return buildWeatherUri(locationId).buildUpon()
+                    .appendPath(Long.toString(date))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for all of the hourly forecast points stored for one location:
+         *
+         *     content://joels.com.projectsunshine/location/3/hourly
+         *
+         * @param locationId The _ID of the location
+         * @return Uri to query the hourly forecast for that location
+         */
+        public static Uri buildHourlyUri(long locationId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(Long.toString(locationId))
+                    .appendPath(PATH_HOURLY)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the whole weather history of one location:
+         *
+         *     content://joels.com.projectsunshine/location/3/archive
+         *
+         * @param locationId The _ID of the location
+         * @return Uri to query the weather history for that location
+         */
+        public static Uri buildArchiveUri(long locationId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(Long.toString(locationId))
+                    .appendPath(PATH_ARCHIVE)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the weather history of one location, between two dates.
+         *
+         * @param locationId The _ID of the location
+         * @param from       The first normalized date to return
+         * @param to         The normalized date to stop before
+         * @return Uri to query the weather history for that location
+         */
+        public static Uri buildArchiveUri(long locationId, long from, long to) {
+            return buildArchiveUri(locationId).buildUpon()
+                    .appendQueryParameter(ArchiveEntry.QUERY_PARAMETER_FROM, Long.toString(from))
+                    .appendQueryParameter(ArchiveEntry.QUERY_PARAMETER_TO, Long.toString(to))
+                    .build();
+        }
+    }
+
+    /*
+     * Inner class that defines the archive, where weather is kept once it falls out of the
+     * retention window. The archive stores compressed blocks of days, but its URIs return the
+     * same columns as WeatherEntry, and include the days still in the weather table, so a query
+     * sees one history however old each day is. The _ID of a returned day is its date.
+     * <p>
+     * CONTENT_URI refers to the user's preferred location. Without the from and to query
+     * parameters, the whole history is returned.
+     */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the archive from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_ARCHIVE)
+                .build();
+
+        /* The first normalized date to return, and the normalized date to stop before */
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /* Used internally as the name of our archive table, which has one row per block */
+        public static final String TABLE_NAME = "archive_block";
+
+        /* The _ID of the location (in the location table) the block belongs to */
+        public static final String COLUMN_LOC_KEY = "location_id";
+
+        /* The dates of the first and last day in the block, which let range queries skip it */
+        public static final String COLUMN_FIRST_DATE = "first_date";
+        public static final String COLUMN_LAST_DATE = "last_date";
+
+        /* The number of days in the block */
+        public static final String COLUMN_ROW_COUNT = "row_count";
+
+        /* The encoded block */
+        public static final String COLUMN_DATA = "data";
+
+        /**
+         * Builds a URI for the weather history of the preferred location, between two dates.
+         *
+         * @param from The first normalized date to return
+         * @param to   The normalized date to stop before
+         * @return Uri to query the weather history
+         */
+        public static Uri buildArchiveUri(long from, long to) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, Long.toString(from))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, Long.toString(to))
+                    .build();
+        }
+    }
+
+    /*
+     * Inner class that defines the table contents of the hourly table, which holds forecast
+     * points at hourly or 3-hourly intervals. Inserting points also rolls each day they fall on
+     * up into a row of the weather table, if that day has none, so the daily list never reads
+     * this table. Days that already have weather, such as the daily forecast, are left alone.
+     * Like WeatherEntry, CONTENT_URI refers to the user's preferred location.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the hourly table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_HOURLY)
+                .build();
+
+        /* Used internally as the name of our hourly table. */
+        public static final String TABLE_NAME = "hourly";
+
+        /* The _ID of the location (in the location table) this point belongs to */
+        public static final String COLUMN_LOC_KEY = "location_id";
+
+        /*
+         * The time of the point, in UTC milliseconds since the epoch. It must fall on the hour,
+         * and there is one point per location and hour.
+         */
+        public static final String COLUMN_TIME = "time";
+
+        /* Weather condition ID, as for WeatherEntry.COLUMN_WEATHER_ID */
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        /* The temperature at that hour. Its daily min and max become the day's min and max. */
+        public static final String COLUMN_TEMP = "temp";
+
+        /* Same units as the matching WeatherEntry columns */
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+        public static final String COLUMN_DEGREES = "degrees";
+    }
+
+    /*
+     * Inner class that defines the table contents of the weather table. Every row belongs to a
+     * location; CONTENT_URI and the URIs built from it refer to the weather of the user's
+     * preferred location. Use the LocationEntry URIs to reach any other location.
+     */
     public static final class WeatherEntry implements BaseColumns {
 
         /* The base CONTENT_URI used to query the Weather table from the content provider */
@@ -48,6 +314,9 @@ public class WeatherContract {
         /* Used internally as the name of our weather table. */
         public static final String TABLE_NAME = "weather";
 
+        /* Column with the foreign key into the location table */
+        public static final String COLUMN_LOC_KEY = "location_id";
+
         /*
          * The date column will store the UTC date that correlates to the local date for which
          * each particular weather row represents. For example, if you live in the Eastern
@@ -104,17 +373,124 @@ public class WeatherContract {
                     .build();
         }
 
+        /*
+         * Query parameters of the aggregate URIs: the aggregate function (one of the FN_*
+         * values), the column it is applied to, and the range of normalized dates, from
+         * (inclusive) to (exclusive). Without from or to, the range is open on that side.
+         */
+        public static final String QUERY_PARAMETER_FN = "fn";
+        public static final String QUERY_PARAMETER_COLUMN = "column";
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        public static final String FN_MIN = "min";
+        public static final String FN_MAX = "max";
+        public static final String FN_AVG = "avg";
+        public static final String FN_SUM = "sum";
+        public static final String FN_COUNT = "count";
+
+        /*
+         * An aggregate query returns one row: the value of the aggregate (null if no day is in
+         * the range), and the number of days it was computed over. For FN_MIN and FN_MAX, the
+         * row also holds the COLUMN_DATE of the day the value was found on.
+         */
+        public static final String AGGREGATE_COLUMN_VALUE = "value";
+        public static final String AGGREGATE_COLUMN_COUNT = "count";
+
+        /**
+         * Builds a URI that computes an aggregate over a range of the preferred location's
+         * weather, such as the warmest day in the next two weeks:
+         *
+         *     content://joels.com.projectsunshine/weather/aggregate?fn=max&column=max&from=...&to=...
+         *
+         * Use {@link LocationEntry#buildWeatherUri} with {@link #appendAggregate} for any other
+         * location.
+         *
+         * @param fn     One of the FN_* values
+         * @param column The weather column to aggregate, such as COLUMN_MAX_TEMP
+         * @param from   The first normalized date to include
+         * @param to     The normalized date to stop before
+         * @return Uri to query the aggregate
+         */
+        public static Uri buildAggregateUri(String fn, String column, long from, long to) {
+            return appendAggregate(CONTENT_URI, fn, column, from, to);
+        }
+
+        /**
+         * Turns a weather URI, for the preferred location or any other, into an aggregate URI.
+         * See {@link #buildAggregateUri}.
+         */
+        public static Uri appendAggregate(Uri weatherUri, String fn, String column, long from, long to) {
+            return weatherUri.buildUpon()
+                    .appendPath(PATH_AGGREGATE)
+                    .appendQueryParameter(QUERY_PARAMETER_FN, fn)
+                    .appendQueryParameter(QUERY_PARAMETER_COLUMN, column)
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, Long.toString(from))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, Long.toString(to))
+                    .build();
+        }
+
         /**
-         * Returns just the selection part of the weather query from a normalized today value.
-         * This is used to get a weather forecast from today's date. To make this easy to use
-         * in compound selection, we embed today's date as an argument in the query.
+         * Returns just the selection part of the weather query for today onwards. This is used
+         * to get a weather forecast from today's date. Today's date is left as a "?" so that the
+         * selection is the same text every day and SQLite can reuse its compiled statement;
+         * pass {@link #getSelectionArgsForTodayOnwards()} as the selection arguments.
          *
          * @return The selection part of the weather query for today onwards
          */
         public static String getSqlSelectForTodayOnwards() {
-            Long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
-            return WeatherEntry.COLUMN_DATE + " >= " + normalizedUtcNow;
+            return WeatherEntry.COLUMN_DATE + " >= ?";
         }
 
+        /**
+         * @return The selection arguments that go with {@link #getSqlSelectForTodayOnwards()}:
+         * the normalized date of today
+         */
+        public static String[] getSelectionArgsForTodayOnwards() {
+            long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+            return new String[]{Long.toString(normalizedUtcNow)};
+        }
+
+    }
+
+    /* Inner class that defines the table contents of the sync metadata table */
+    public static final class SyncMetadataEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the sync metadata table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SYNC_METADATA)
+                .build();
+
+        /* Used internally as the name of our sync metadata table. */
+        public static final String TABLE_NAME = "sync_metadata";
+
+        /* The location query the weather was fetched for. There is one row per location. */
+        public static final String COLUMN_LOCATION = "location";
+
+        /* When the weather for the location was last fetched successfully, in UTC milliseconds */
+        public static final String COLUMN_LAST_FETCH = "last_fetch";
+
+        /* The ETag of the last response from the server, if it sent one */
+        public static final String COLUMN_ETAG = "etag";
+
+        /*
+         * A hash of the last response body. If a new response hashes to the same value, the
+         * weather hasn't changed and there is nothing to write to the weather table.
+         */
+        public static final String COLUMN_CONTENT_HASH = "content_hash";
+
+        /*
+         * The date of the first day of the weather last written, in normalized UTC milliseconds.
+         * The days of a response are dated from the day it is parsed on, so on a new day even an
+         * unchanged response has to be written again.
+         */
+        public static final String COLUMN_FIRST_DATE = "first_date";
+
+        /*
+         * 1 if the last sync for the location failed, 0 if it succeeded. While it is 1, the
+         * weather in the weather table is the last good forecast rather than a current one, and
+         * the UI can say so.
+         */
+        public static final String COLUMN_STALE = "stale";
     }
 }
@@ -1,9 +1,14 @@
 package joels.com.projectsunshine.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import joels.com.projectsunshine.data.WeatherContract.ArchiveEntry;
+import joels.com.projectsunshine.data.WeatherContract.HourlyEntry;
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.SyncMetadataEntry;
 import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
 
 /**
@@ -29,9 +34,116 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
      */
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 10;
+
+    /*
+     * Covers the forecast list query (MainActivity.MAIN_FORECAST_PROJECTION for one location,
+     * from a date onwards, sorted by date) so it is answered by a range scan of this index alone,
+     * without touching the table.
+     */
+    static final String INDEX_WEATHER_LIST = "weather_location_date_list";
+
+    /*
+     * Lets WeatherRetention find expired rows across every location with a range scan, rather
+     * than reading the whole table.
+     */
+    static final String INDEX_WEATHER_DATE = "weather_date";
+
+    /* The same for the hourly table */
+    static final String INDEX_HOURLY_TIME = "hourly_time";
+
+    /* Finds the archive blocks of a location that overlap a range of dates */
+    static final String INDEX_ARCHIVE_RANGE = "archive_block_location_date";
+
+    /*
+     * Tuning for our workload: a sync writes a batch of rows in one transaction while the UI
+     * reads the forecast list. A negative cache size is in KiB rather than pages. The cache size
+     * only reaches the writer connection (see onConfigure); readers keep SQLite's default.
+     */
+    private static final int PAGE_SIZE_BYTES = 4096;
+    private static final int CACHE_SIZE_KIB = 2048;
+
+    /*
+     * Checkpoint policy: SQLite copies the write-ahead log back into the database once it holds
+     * this many pages (2 MiB), and truncates the log file back down to JOURNAL_SIZE_LIMIT_BYTES
+     * afterwards so that one large sync doesn't leave a big WAL file on disk.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 512;
+    private static final int JOURNAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
+    private final Context mContext;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /*
+     * Opens a database under another name, so that tests don't touch the app's own weather.
+     */
+    WeatherDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    /**
+     * Called when the database connection is being configured, before onCreate or onUpgrade.
+     *
+     * @param db The database.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+
+        /*
+         * The page size and auto_vacuum mode can only be set while the file is still empty.
+         * Switching to write-ahead logging writes the file header, after which both pragmas are
+         * silently ignored, so they must come first.
+         *
+         * With incremental auto_vacuum, pages freed by WeatherRetention are kept in the file
+         * until it runs an incremental vacuum. If the file already has content (an older
+         * database, or the android_metadata table the framework creates when it opens the
+         * connection), the mode is only applied by WeatherRetention's one-time VACUUM.
+         */
+        executePragma(db, "PRAGMA page_size = " + PAGE_SIZE_BYTES);
+        executePragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+
+        /*
+         * With write-ahead logging, the CursorLoader's queries read from the last committed
+         * snapshot while a sync's bulkInsert transaction is open, instead of waiting for it to
+         * finish. SQLiteDatabase also keeps a pool of connections so that several readers can
+         * run at once next to the single writer.
+         */
+        db.enableWriteAheadLogging();
+
+        /*
+         * Everything from here on is per connection, but only reaches the primary (writer)
+         * connection: SQLiteDatabase runs anything that isn't a SELECT, these PRAGMAs included,
+         * on that connection, and it has no hook for configuring the reader connections in its
+         * pool. That is where the rest belong anyway, since only the writer commits, checkpoints
+         * and truncates the log. The readers' page caches keep SQLite's default of 2000 KiB,
+         * which is about the same as ours.
+         */
+        executePragma(db, "PRAGMA cache_size = -" + CACHE_SIZE_KIB);
+
+        /*
+         * In WAL mode, NORMAL only syncs at checkpoints. A crash can lose the last transaction
+         * but never corrupts the database, which is fine for what is only a cache of server data.
+         */
+        executePragma(db, "PRAGMA synchronous = NORMAL");
+        executePragma(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+        executePragma(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT_BYTES);
+    }
+
+    /**
+     * Some PRAGMAs return a row, which execSQL refuses to run, so they are run as queries.
+     */
+    static void executePragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -42,6 +154,21 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        /*
+         * The location table holds one row per location that we have weather for. Weather rows
+         * point at it, which lets us cache the weather for several locations at once.
+         */
+        final String SQL_CREATE_LOCATION_TABLE =
+                "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+                LocationEntry._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, "                     +
+                LocationEntry.COLUMN_CITY_NAME        + " TEXT, "                              +
+                LocationEntry.COLUMN_COORD_LAT        + " REAL, "                              +
+                LocationEntry.COLUMN_COORD_LONG       + " REAL, "                              +
+                " UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + ") ON CONFLICT IGNORE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+
         /*
          * This String will contain a simple SQL statement that will create a table that will
          * cache our weather data.
@@ -54,6 +181,10 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                  * named "_ID". We use that here to designate our table's primary key.
                  */
                 WeatherEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                WeatherEntry.COLUMN_LOC_KEY    + " INTEGER NOT NULL REFERENCES "       +
+                        LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), "   +
+
                 WeatherEntry.COLUMN_DATE       + " INTEGER NOT NULL, "                 +
 
                 WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, "                 +
@@ -68,12 +199,14 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL," +
 
                 /*
-                 * To ensure this table can only contain one weather entry per date, we declare
-                 * the date column to be unique. We also specify "ON CONFLICT REPLACE". This tells
-                 * SQLite that if we have a weather entry for a certain date and we attempt to
-                 * insert another weather entry with that date, we replace the old weather entry.
+                 * To ensure this table can only contain one weather entry per date for each
+                 * location, we declare the pair to be unique. We also specify "ON CONFLICT
+                 * REPLACE". This tells SQLite that if we have a weather entry for a certain
+                 * location and date and we attempt to insert another weather entry with that
+                 * location and date, we replace the old weather entry.
                  */
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE +
+                ") ON CONFLICT REPLACE);";
 
         /*
          * After we've spelled out our SQLite table creation statement above, we actually execute
@@ -81,15 +214,104 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
          */
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
 
+        final String SQL_CREATE_WEATHER_LIST_INDEX =
+                "CREATE INDEX " + INDEX_WEATHER_LIST + " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY    + ", " +
+                WeatherEntry.COLUMN_DATE       + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP   + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP   + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ");";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LIST_INDEX);
+
+        final String SQL_CREATE_WEATHER_DATE_INDEX =
+                "CREATE INDEX " + INDEX_WEATHER_DATE + " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_DATE + ");";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_DATE_INDEX);
+
+        /*
+         * The hourly table holds the forecast points that weather rows are rolled up from. Its
+         * UNIQUE constraint doubles as the index that everything reads it through: one location's
+         * points are stored in time order, so every day (or any other span of time) is one
+         * contiguous range of that index.
+         */
+        final String SQL_CREATE_HOURLY_TABLE =
+                "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                HourlyEntry.COLUMN_LOC_KEY    + " INTEGER NOT NULL REFERENCES "       +
+                        LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), "   +
+                HourlyEntry.COLUMN_TIME       + " INTEGER NOT NULL, "                 +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, "                 +
+                HourlyEntry.COLUMN_TEMP       + " REAL NOT NULL, "                    +
+                HourlyEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                    +
+                HourlyEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                    +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
+                HourlyEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " + HourlyEntry.COLUMN_TIME +
+                ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+
+        final String SQL_CREATE_HOURLY_TIME_INDEX =
+                "CREATE INDEX " + INDEX_HOURLY_TIME + " ON " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry.COLUMN_TIME + ");";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TIME_INDEX);
+
+        /*
+         * The archive table holds weather history in compressed blocks of days, written and
+         * read by WeatherArchive.
+         */
+        final String SQL_CREATE_ARCHIVE_TABLE =
+                "CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+                ArchiveEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                ArchiveEntry.COLUMN_LOC_KEY    + " INTEGER NOT NULL REFERENCES "       +
+                        LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), "   +
+                ArchiveEntry.COLUMN_FIRST_DATE + " INTEGER NOT NULL, "                 +
+                ArchiveEntry.COLUMN_LAST_DATE  + " INTEGER NOT NULL, "                 +
+                ArchiveEntry.COLUMN_ROW_COUNT  + " INTEGER NOT NULL, "                 +
+                ArchiveEntry.COLUMN_DATA       + " BLOB NOT NULL);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+
+        final String SQL_CREATE_ARCHIVE_RANGE_INDEX =
+                "CREATE INDEX " + INDEX_ARCHIVE_RANGE + " ON " + ArchiveEntry.TABLE_NAME + " (" +
+                ArchiveEntry.COLUMN_LOC_KEY    + ", " +
+                ArchiveEntry.COLUMN_FIRST_DATE + ", " +
+                ArchiveEntry.COLUMN_LAST_DATE  + ");";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_RANGE_INDEX);
+
+        /*
+         * The sync metadata table records, per location, when and what we last fetched. It lets
+         * a sync skip the network and the weather table entirely while that data is fresh.
+         */
+        final String SQL_CREATE_SYNC_METADATA_TABLE =
+                "CREATE TABLE " + SyncMetadataEntry.TABLE_NAME + " (" +
+                SyncMetadataEntry._ID                 + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                SyncMetadataEntry.COLUMN_LOCATION     + " TEXT NOT NULL, "                     +
+                SyncMetadataEntry.COLUMN_LAST_FETCH   + " INTEGER NOT NULL, "                  +
+                SyncMetadataEntry.COLUMN_ETAG         + " TEXT, "                              +
+                SyncMetadataEntry.COLUMN_CONTENT_HASH + " TEXT, "                              +
+                SyncMetadataEntry.COLUMN_FIRST_DATE   + " INTEGER, "                           +
+                SyncMetadataEntry.COLUMN_STALE        + " INTEGER NOT NULL DEFAULT 0, "        +
+                " UNIQUE (" + SyncMetadataEntry.COLUMN_LOCATION + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METADATA_TABLE);
     }
 
     /**
-     * This database is only a cache for online data, so its upgrade policy is simply to discard
-     * the data and call through to onCreate to recreate the table. Note that this only fires if
-     * you change the version number for your database (in our case, DATABASE_VERSION). It does NOT
-     * depend on the version number for your application found in your app/build.gradle file. If
-     * you want to update the schema without wiping data, commenting out the current body of this
-     * method should be your top priority before modifying this method.
+     * This database is a cache for online data, but throwing it away on every schema change
+     * would mean that every user refetches everything right after an update. Instead, the
+     * database is upgraded one version at a time by {@link WeatherDbMigrations}, which carries
+     * the cached rows forward. Only databases too old to have a migration path are discarded
+     * and recreated through onCreate.
+     * <p>
+     * Note that this only fires if you change the version number for your database (in our case,
+     * DATABASE_VERSION). It does NOT depend on the version number for your application found in
+     * your app/build.gradle file. Every bump of DATABASE_VERSION needs a matching step in
+     * WeatherDbMigrations.
      *
      * @param sqLiteDatabase Database that is being upgraded
      * @param oldVersion     The old database version
@@ -97,7 +319,16 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        if (WeatherDbMigrations.canMigrateFrom(oldVersion)) {
+            WeatherDbMigrations.migrate(mContext, sqLiteDatabase, oldVersion, newVersion);
+            return;
+        }
+
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetadataEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
@@ -0,0 +1,237 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Upgrades the weather database one version at a time while carrying the cached weather forward,
+ * so that an app update doesn't force every user into a cold refetch at the same moment.
+ * <p>
+ * Each step is written against the schema as it was at that version, using literal table and
+ * column names rather than the WeatherContract constants: the contract describes the newest
+ * schema, and a step must keep doing the same thing after the contract moves on.
+ */
+final class WeatherDbMigrations {
+
+    private static final String TAG = WeatherDbMigrations.class.getSimpleName();
+
+    /*
+     * Databases older than this predate this app's schema history. There is nothing to carry
+     * forward from them, so they are recreated instead.
+     */
+    static final int OLDEST_MIGRATABLE_VERSION = 3;
+
+    /* Rows copied per statement when a table has to be rebuilt */
+    private static final int COPY_BATCH_SIZE = 500;
+
+    private WeatherDbMigrations() {
+    }
+
+    /**
+     * @param oldVersion The version the database is at
+     * @return true if {@link #migrate} can bring a database at this version up to date
+     */
+    static boolean canMigrateFrom(int oldVersion) {
+        return oldVersion >= OLDEST_MIGRATABLE_VERSION;
+    }
+
+    /**
+     * Runs every step from oldVersion up to newVersion, in order. This runs inside the
+     * transaction SQLiteOpenHelper opens for onUpgrade, so a failed step leaves the database at
+     * oldVersion.
+     *
+     * @param context    Used to read the preferred location
+     * @param db         The database being upgraded
+     * @param oldVersion The version the database is at
+     * @param newVersion The version to upgrade to
+     */
+    static void migrate(Context context, SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            Log.d(TAG, "Migrating weather database from version " + version + " to " + (version + 1));
+            switch (version) {
+                case 3:
+                    migrate3To4(db);
+                    break;
+
+                case 4:
+                    migrate4To5(context, db);
+                    break;
+
+                case 5:
+                    migrate5To6(db);
+                    break;
+
+                case 6:
+                    migrate6To7(db);
+                    break;
+
+                case 7:
+                    migrate7To8(db);
+                    break;
+
+                case 8:
+                    migrate8To9(db);
+                    break;
+
+                case 9:
+                    migrate9To10(db);
+                    break;
+
+                default:
+                    throw new IllegalStateException("No migration from version " + version);
+            }
+        }
+    }
+
+    /**
+     * Version 4 added the sync_metadata table. The weather table is unchanged.
+     */
+    private static void migrate3To4(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE sync_metadata ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "location TEXT NOT NULL, "
+                + "last_fetch INTEGER NOT NULL, "
+                + "etag TEXT, "
+                + "content_hash TEXT, "
+                + " UNIQUE (location) ON CONFLICT REPLACE);");
+    }
+
+    /**
+     * Version 5 added the location table and keyed weather by (location_id, date). Until then
+     * the table only held the weather for the preferred location, so the existing rows are
+     * carried over as that location's weather.
+     */
+    private static void migrate4To5(Context context, SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE location ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "location_setting TEXT NOT NULL, "
+                + "city_name TEXT, "
+                + "coord_lat REAL, "
+                + "coord_long REAL, "
+                + " UNIQUE (location_setting) ON CONFLICT IGNORE);");
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put("location_setting", SunshinePreferences.getPreferredWeatherLocation(context));
+        long locationId = db.insert("location", null, locationValues);
+
+        db.execSQL("ALTER TABLE weather RENAME TO weather_v4");
+
+        db.execSQL("CREATE TABLE weather ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "location_id INTEGER NOT NULL REFERENCES location (_id), "
+                + "date INTEGER NOT NULL, "
+                + "weather_id INTEGER NOT NULL, "
+                + "min REAL NOT NULL, "
+                + "max REAL NOT NULL, "
+                + "humidity REAL NOT NULL, "
+                + "pressure REAL NOT NULL, "
+                + "wind REAL NOT NULL, "
+                + "degrees REAL NOT NULL,"
+                + " UNIQUE (location_id, date) ON CONFLICT REPLACE);");
+
+        copyInBatches(db, "weather_v4",
+                "INSERT INTO weather (_id, location_id, date, weather_id, min, max, humidity, "
+                        + "pressure, wind, degrees) "
+                        + "SELECT _id, " + locationId + ", date, weather_id, min, max, humidity, "
+                        + "pressure, wind, degrees "
+                        + "FROM weather_v4 WHERE _id >= ?1 AND _id < ?2");
+
+        db.execSQL("DROP TABLE weather_v4");
+
+        db.execSQL("CREATE INDEX weather_location_date_list ON weather "
+                + "(location_id, date, max, min, weather_id);");
+    }
+
+    /**
+     * Version 6 added an index on the weather date, for deleting expired rows. Databases created
+     * before this version keep auto_vacuum off until WeatherRetention first vacuums them, since
+     * switching it needs a full VACUUM, which can't run inside this transaction.
+     */
+    private static void migrate5To6(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX weather_date ON weather (date);");
+    }
+
+    /**
+     * Version 7 added the hourly table. The daily weather is unchanged.
+     */
+    private static void migrate6To7(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE hourly ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "location_id INTEGER NOT NULL REFERENCES location (_id), "
+                + "time INTEGER NOT NULL, "
+                + "weather_id INTEGER NOT NULL, "
+                + "temp REAL NOT NULL, "
+                + "humidity REAL NOT NULL, "
+                + "pressure REAL NOT NULL, "
+                + "wind REAL NOT NULL, "
+                + "degrees REAL NOT NULL, "
+                + " UNIQUE (location_id, time) ON CONFLICT REPLACE);");
+
+        db.execSQL("CREATE INDEX hourly_time ON hourly (time);");
+    }
+
+    /**
+     * Version 8 added the archive of weather history. Until then, expired weather was deleted,
+     * so the archive starts out empty.
+     */
+    private static void migrate7To8(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE archive_block ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "location_id INTEGER NOT NULL REFERENCES location (_id), "
+                + "first_date INTEGER NOT NULL, "
+                + "last_date INTEGER NOT NULL, "
+                + "row_count INTEGER NOT NULL, "
+                + "data BLOB NOT NULL);");
+
+        db.execSQL("CREATE INDEX archive_block_location_date ON archive_block "
+                + "(location_id, first_date, last_date);");
+    }
+
+    /**
+     * Version 9 added the first date of the weather last written to the sync metadata. It is
+     * left empty, so the next sync writes its weather even if the response hasn't changed.
+     */
+    private static void migrate8To9(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE sync_metadata ADD COLUMN first_date INTEGER");
+    }
+
+    /**
+     * Version 10 added the stale flag to the sync metadata. Nothing recorded failed syncs
+     * before, so every location starts out not stale.
+     */
+    private static void migrate9To10(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE sync_metadata ADD COLUMN stale INTEGER NOT NULL DEFAULT 0");
+    }
+
+    /**
+     * Copies a table in slices of COPY_BATCH_SIZE _IDs, so that no single statement has to
+     * build up the whole table at once.
+     *
+     * @param db          The database being upgraded
+     * @param sourceTable The table being copied from, which must have an _id column
+     * @param copySql     An INSERT ... SELECT that copies the rows with ?1 <= _id < ?2
+     */
+    private static void copyInBatches(SQLiteDatabase db, String sourceTable, String copySql) {
+        long minId = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MIN(_id), 0) FROM " + sourceTable, null);
+        long maxId = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(_id), -1) FROM " + sourceTable, null);
+
+        SQLiteStatement copyStatement = db.compileStatement(copySql);
+        long rowsCopied = 0;
+        try {
+            for (long batchStart = minId; batchStart <= maxId; batchStart += COPY_BATCH_SIZE) {
+                copyStatement.bindLong(1, batchStart);
+                copyStatement.bindLong(2, batchStart + COPY_BATCH_SIZE);
+                rowsCopied += copyStatement.executeUpdateDelete();
+            }
+        } finally {
+            copyStatement.close();
+        }
+        Log.d(TAG, "Copied " + rowsCopied + " rows from " + sourceTable);
+    }
+}
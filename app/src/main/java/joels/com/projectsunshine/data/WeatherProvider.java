@@ -2,26 +2,46 @@ package joels.com.projectsunshine.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
 import joels.com.projectsunshine.utilities.SunshineDateUtils;
 
 /**
  * This class serves as the ContentProvider for all of Sunshine's data. This class allows us to
- * bulkInsert data, query data, and delete data.
+ * bulkInsert data, query data, update data and delete data, and to apply a batch of those in a
+ * single transaction.
  * <p>
- * Although ContentProvider implementation requires the implementation of additional methods to
- * perform single inserts, updates, and the ability to get the type of the data from a URI.
- * However, here, they are not implemented for the sake of brevity and simplicity. If you would
- * like, you may implement them on your own. However, we are not going to be teaching how to do
- * so in this course.
+ * Although ContentProvider implementation requires the ability to get the type of the data from
+ * a URI, here it is not implemented for the sake of brevity and simplicity.
  */
 public class WeatherProvider extends ContentProvider {
 
@@ -32,6 +52,16 @@ public class WeatherProvider extends ContentProvider {
      */
     public static final int CODE_WEATHER = 100;
     public static final int CODE_WEATHER_WITH_DATE = 101;
+    public static final int CODE_WEATHER_AGGREGATE = 102;
+    public static final int CODE_SYNC_METADATA = 200;
+    public static final int CODE_LOCATION = 300;
+    public static final int CODE_WEATHER_FOR_LOCATION = 301;
+    public static final int CODE_WEATHER_FOR_LOCATION_WITH_DATE = 302;
+    public static final int CODE_HOURLY_FOR_LOCATION = 303;
+    public static final int CODE_ARCHIVE_FOR_LOCATION = 304;
+    public static final int CODE_WEATHER_FOR_LOCATION_AGGREGATE = 305;
+    public static final int CODE_HOURLY = 400;
+    public static final int CODE_ARCHIVE = 500;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -42,6 +72,14 @@ public class WeatherProvider extends ContentProvider {
 
     private WeatherDbHelper mOpenHelper;
 
+    /* Results of recent weather queries, dropped whenever the weather they read is written */
+    private final QueryResultCache mQueryCache = new QueryResultCache();
+
+    private WeatherChangeNotifier mNotifier;
+
+    /* The parameterized query behind each UriMatcher code, with how often each ran */
+    private final WeatherQueries mQueries = buildQueries();
+
     /**
      * Creates the UriMatcher that will match each URI to the CODE_WEATHER and
      * CODE_WEATHER_WITH_DATE constants defined above.
@@ -84,9 +122,89 @@ public class WeatherProvider extends ContentProvider {
          */
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/#", CODE_WEATHER_WITH_DATE);
 
+        /*
+         * This URI is content://com.example.android.sunshine/weather/aggregate?fn=...&column=...
+         * and computes one aggregate over a range of dates. See WeatherEntry.buildAggregateUri.
+         */
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_AGGREGATE,
+                CODE_WEATHER_AGGREGATE);
+
+        /* This URI is content://com.example.android.sunshine/sync_metadata/ */
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METADATA, CODE_SYNC_METADATA);
+
+        /* This URI is content://com.example.android.sunshine/location/ */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION, CODE_LOCATION);
+
+        /*
+         * These URIs look like content://com.example.android.sunshine/location/3/weather and
+         * content://com.example.android.sunshine/location/3/weather/1472214172, and address the
+         * weather of the location with _ID 3 whether or not it is the preferred location.
+         */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER,
+                CODE_WEATHER_FOR_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER + "/#",
+                CODE_WEATHER_FOR_LOCATION_WITH_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER
+                        + "/" + WeatherContract.PATH_AGGREGATE,
+                CODE_WEATHER_FOR_LOCATION_AGGREGATE);
+
+        /*
+         * These URIs are content://com.example.android.sunshine/hourly/ for the preferred
+         * location, and content://com.example.android.sunshine/location/3/hourly for any other.
+         */
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, CODE_HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_HOURLY,
+                CODE_HOURLY_FOR_LOCATION);
+
+        /*
+         * These URIs are content://com.example.android.sunshine/archive/ for the preferred
+         * location, and content://com.example.android.sunshine/location/3/archive for any other.
+         */
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE, CODE_ARCHIVE);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_ARCHIVE,
+                CODE_ARCHIVE_FOR_LOCATION);
+
         return matcher;
     }
 
+    /**
+     * Creates the registry of the queries behind the codes sUriMatcher returns. Everything a URI
+     * contributes to a query, like its location and date, is a ? in the selection, so each of
+     * these compiles to the same SQL every time it runs with the same projection, selection and
+     * sort order. The archive and aggregate codes build their own SQL.
+     *
+     * @return A WeatherQueries holding a query for each code that reads a table directly
+     */
+    private static WeatherQueries buildQueries() {
+        WeatherQueries queries = new WeatherQueries();
+
+        WeatherQueries.NamedQuery weatherList = new WeatherQueries.NamedQuery("weather_list",
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?");
+        queries.register(CODE_WEATHER, weatherList);
+        queries.register(CODE_WEATHER_FOR_LOCATION, weatherList);
+
+        WeatherQueries.NamedQuery weatherDetail = new WeatherQueries.NamedQuery("weather_detail",
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?");
+        queries.register(CODE_WEATHER_WITH_DATE, weatherDetail);
+        queries.register(CODE_WEATHER_FOR_LOCATION_WITH_DATE, weatherDetail);
+
+        WeatherQueries.NamedQuery hourlyList = new WeatherQueries.NamedQuery("hourly_list",
+                WeatherContract.HourlyEntry.TABLE_NAME,
+                WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ?");
+        queries.register(CODE_HOURLY, hourlyList);
+        queries.register(CODE_HOURLY_FOR_LOCATION, hourlyList);
+
+        queries.register(CODE_LOCATION, new WeatherQueries.NamedQuery("location_list",
+                WeatherContract.LocationEntry.TABLE_NAME, null));
+        queries.register(CODE_SYNC_METADATA, new WeatherQueries.NamedQuery("sync_metadata",
+                WeatherContract.SyncMetadataEntry.TABLE_NAME, null));
+
+        return queries;
+    }
+
     /**
      * In onCreate, we initialize our content provider on startup. This method is called for all
      * registered content providers on the application main thread at application launch time.
@@ -110,11 +228,28 @@ public class WeatherProvider extends ContentProvider {
          * lengthy operations will cause lag in your app. Since WeatherDbHelper's constructor is
          * very lightweight, we are safe to perform that initialization here.
          */
-        mOpenHelper = new WeatherDbHelper(getContext());
+        mOpenHelper = createOpenHelper(getContext());
+
+        /* The preferred location is only looked up when a change set is sent */
+        mNotifier = new WeatherChangeNotifier(getContext().getContentResolver(),
+                new WeatherChangeNotifier.PreferredLocation() {
+                    @Override
+                    public long getId() {
+                        String locationSetting = SunshinePreferences.getPreferredWeatherLocation(getContext());
+                        return getLocationIdForSetting(mOpenHelper.getReadableDatabase(), locationSetting, false);
+                    }
+                });
 
         return true;
     }
 
+    /*
+     * Tests override this to give the provider a database of its own.
+     */
+    WeatherDbHelper createOpenHelper(Context context) {
+        return new WeatherDbHelper(context);
+    }
+
     /**
      * Handles requests to insert a set of new rows. In Sunshine, we are only going to be
      * inserting multiple rows of data at a time from a weather forecast. There is no use case
@@ -126,27 +261,77 @@ public class WeatherProvider extends ContentProvider {
      * @param values An array of sets of column_name/value pairs to add to the database.
      *               This must not be {@code null}.
      *
-     * @return The number of values that were inserted.
+     * @return The number of values that were inserted or changed. Rows identical to the ones
+     * already stored are not written and are not counted.
      */
     @Override
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values){
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        switch (sUriMatcher.match(uri)) {
-            /* Only perform bulkInsert if the URI matches the CODE_WEATHER code */
+        /*
+         * The transactions below are non-exclusive: with write-ahead logging enabled in
+         * WeatherDbHelper, queries on other connections keep reading while they are open.
+         */
+
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            /* Weather is inserted either for the preferred location or for a given location */
             case CODE_WEATHER:
-                db.beginTransaction();
-                int rowsInserted = 0;
+            case CODE_WEATHER_FOR_LOCATION:
+                db.beginTransactionNonExclusive();
+                long locationId;
+                List<Long> changedDates = new ArrayList<>(values.length);
+                int rowsInserted;
+                try {
+                    locationId = getLocationId(db, uri, match, true);
+                    rowsInserted = upsertWeather(db, locationId, values, changedDates);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (rowsInserted > 0 ){
+                    mQueryCache.invalidateLocation(locationId);
+                    mNotifier.weatherChanged(locationId, changedDates);
+                }
+
+                return rowsInserted;
+
+            /* Locations that already exist are ignored, thanks to the table's ON CONFLICT IGNORE */
+            case CODE_LOCATION:
+                db.beginTransactionNonExclusive();
+                int locationsInserted = 0;
                 try {
-                    for (ContentValues value : values){
-                        Long weatherDate = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-                        if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
-                            throw new IllegalArgumentException("Date must be normalized to insert");
+                    for (ContentValues value : values) {
+                        long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, value);
+                        if (_id != -1) {
+                            locationsInserted++;
                         }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (locationsInserted > 0) {
+                    mNotifier.uriChanged(uri);
+                }
+
+                return locationsInserted;
 
-                        Long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1){
-                            rowsInserted++;
+            /*
+             * Sync metadata rows are written once per sync. The table has one row per location,
+             * so writing a location's row again replaces it.
+             */
+            case CODE_SYNC_METADATA:
+                db.beginTransactionNonExclusive();
+                int metadataInserted = 0;
+                try {
+                    for (ContentValues value : values) {
+                        long _id = db.insertWithOnConflict(WeatherContract.SyncMetadataEntry.TABLE_NAME,
+                                null, value, SQLiteDatabase.CONFLICT_REPLACE);
+                        if (_id != -1) {
+                            metadataInserted++;
                         }
                     }
                     db.setTransactionSuccessful();
@@ -154,11 +339,41 @@ public class WeatherProvider extends ContentProvider {
                     db.endTransaction();
                 }
 
-                if (rowsInserted > 0 ){
-                    getContext().getContentResolver().notifyChange(uri, null);
+                if (metadataInserted > 0) {
+                    mNotifier.uriChanged(uri);
                 }
 
-                return rowsInserted;
+                return metadataInserted;
+
+            /*
+             * Hourly points are inserted for the preferred location or for a given location, and
+             * every day they fall on that has no weather yet is rolled up into the weather table
+             * in the same transaction.
+             */
+            case CODE_HOURLY:
+            case CODE_HOURLY_FOR_LOCATION: {
+                db.beginTransactionNonExclusive();
+                long locationId;
+                List<Long> changedDates = new ArrayList<>();
+                int pointsInserted;
+                try {
+                    locationId = getLocationId(db, uri, match, true);
+                    pointsInserted = insertHourlyAndRollUp(db, locationId, values, changedDates);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (pointsInserted > 0) {
+                    mNotifier.hourlyChanged(locationId);
+                }
+                if (!changedDates.isEmpty()) {
+                    mQueryCache.invalidateLocation(locationId);
+                    mNotifier.weatherChanged(locationId, changedDates);
+                }
+
+                return pointsInserted;
+            }
 
             /* If the URI does match match CODE_WEATHER, return the super implementation of bulkInsert */
             default:
@@ -168,6 +383,452 @@ public class WeatherProvider extends ContentProvider {
 
     }
 
+    /*
+     * The columns written by upsertWeather, in the order of their numbered SQL parameters. The
+     * location and date come first, as ?1 and ?2 are used to find an existing row for them.
+     */
+    private static final String[] UPSERT_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    /* The columns written by insertHourlyAndRollUp, in the order of their numbered SQL parameters */
+    private static final String[] HOURLY_COLUMNS = {
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+            WeatherContract.HourlyEntry.COLUMN_TIME,
+            WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+            WeatherContract.HourlyEntry.COLUMN_TEMP,
+            WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+            WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+            WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+            WeatherContract.HourlyEntry.COLUMN_DEGREES
+    };
+
+    /*
+     * OR IGNORE overrides the weather table's ON CONFLICT REPLACE, so an existing row for the
+     * date is left alone (and keeps its _ID) instead of being deleted and inserted again. Hourly
+     * points keep the table's ON CONFLICT REPLACE, as nothing refers to their _IDs.
+     *
+     * WeatherTransfer binds these two statements itself, in the order of UPSERT_COLUMNS.
+     */
+    static final String SQL_INSERT_WEATHER_OR_IGNORE =
+            buildInsert("INSERT OR IGNORE", WeatherContract.WeatherEntry.TABLE_NAME, UPSERT_COLUMNS);
+    static final String SQL_UPDATE_CHANGED_WEATHER = buildUpdateChangedWeather();
+    private static final String SQL_INSERT_HOURLY =
+            buildInsert("INSERT", WeatherContract.HourlyEntry.TABLE_NAME, HOURLY_COLUMNS);
+    private static final String SQL_ROLL_UP_HOURLY = buildRollUpHourly();
+
+    /**
+     * INSERT INTO table (column1, column2, ...) VALUES (?1, ?2, ...)
+     */
+    private static String buildInsert(String insert, String table, String[] insertColumns) {
+        StringBuilder columns = new StringBuilder();
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < insertColumns.length; i++) {
+            if (i > 0) {
+                columns.append(", ");
+                parameters.append(", ");
+            }
+            columns.append(insertColumns[i]);
+            parameters.append('?').append(i + 1);
+        }
+        return insert + " INTO " + table
+                + " (" + columns + ") VALUES (" + parameters + ")";
+    }
+
+    /**
+     * UPDATE weather SET weather_id = ?3, ...
+     *     WHERE location_id = ?1 AND date = ?2 AND (weather_id IS NOT ?3 OR ...)
+     * <p>
+     * The second half of the WHERE clause means a row whose values are all unchanged is not
+     * written at all.
+     */
+    private static String buildUpdateChangedWeather() {
+        StringBuilder assignments = new StringBuilder();
+        StringBuilder changed = new StringBuilder();
+        for (int i = 2; i < UPSERT_COLUMNS.length; i++) {
+            if (i > 2) {
+                assignments.append(", ");
+                changed.append(" OR ");
+            }
+            assignments.append(UPSERT_COLUMNS[i]).append(" = ?").append(i + 1);
+            changed.append(UPSERT_COLUMNS[i]).append(" IS NOT ?").append(i + 1);
+        }
+        return "UPDATE " + WeatherContract.WeatherEntry.TABLE_NAME
+                + " SET " + assignments
+                + " WHERE " + UPSERT_COLUMNS[0] + " = ?1"
+                + " AND " + UPSERT_COLUMNS[1] + " = ?2"
+                + " AND (" + changed + ")";
+    }
+
+    /**
+     * Writes rows of weather data using two compiled statements that are reused for every row:
+     * each row is inserted if its date is new, updated in place if any of its values changed,
+     * and skipped if it is identical to what is already stored. Must be called inside a
+     * transaction.
+     * <p>
+     * A row that leaves some columns out can only change a date that is already stored, and
+     * only the columns it has are written; see {@link #updatePartialWeather}.
+     *
+     * @param db           The writable database, with a transaction open
+     * @param locationId   The _ID of the location the rows belong to
+     * @param values       The rows to write
+     * @param changedDates Receives the date of every row that was inserted or changed
+     * @return The number of rows that were inserted or changed
+     */
+    private static int upsertWeather(SQLiteDatabase db, long locationId, ContentValues[] values,
+                                     List<Long> changedDates) {
+        SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_WEATHER_OR_IGNORE);
+        SQLiteStatement updateStatement = db.compileStatement(SQL_UPDATE_CHANGED_WEATHER);
+        int rowsWritten = 0;
+        try {
+            for (ContentValues value : values) {
+                Long weatherDate = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                if (weatherDate == null || !SunshineDateUtils.isDateNormalized(weatherDate)) {
+                    throw new IllegalArgumentException("Date must be normalized to insert");
+                }
+
+                /*
+                 * INSERT OR IGNORE also ignores NOT NULL failures, so a row with a null or
+                 * missing value would be dropped without a word. Catch those here instead.
+                 */
+                boolean hasEveryColumn = true;
+                for (int i = 2; i < UPSERT_COLUMNS.length; i++) {
+                    if (!value.containsKey(UPSERT_COLUMNS[i])) {
+                        hasEveryColumn = false;
+                    } else if (value.get(UPSERT_COLUMNS[i]) == null) {
+                        throw new IllegalArgumentException(UPSERT_COLUMNS[i] + " must not be null");
+                    }
+                }
+                if (!hasEveryColumn) {
+                    if (updatePartialWeather(db, locationId, weatherDate, value)) {
+                        rowsWritten++;
+                        changedDates.add(weatherDate);
+                    }
+                    continue;
+                }
+
+                bindValues(insertStatement, locationId, value, UPSERT_COLUMNS);
+                if (insertStatement.executeInsert() != -1) {
+                    rowsWritten++;
+                    changedDates.add(weatherDate);
+                    continue;
+                }
+
+                /* The date already exists, so update it in place if anything changed */
+                bindValues(updateStatement, locationId, value, UPSERT_COLUMNS);
+                if (updateStatement.executeUpdateDelete() > 0) {
+                    rowsWritten++;
+                    changedDates.add(weatherDate);
+                }
+            }
+        } finally {
+            insertStatement.close();
+            updateStatement.close();
+        }
+        return rowsWritten;
+    }
+
+    /**
+     * Writes the columns a row has to the weather already stored for its date, leaving the
+     * others as they are. The UPDATE is built for just those columns, as binding the rest would
+     * write nulls into them.
+     *
+     * @param db          The writable database, with a transaction open
+     * @param locationId  The _ID of the location the row belongs to
+     * @param weatherDate The normalized date of the row
+     * @param value       The row, which has some but not all of the weather columns
+     * @return true if the stored row changed
+     * @throws IllegalArgumentException if nothing is stored for the date, as a row can't be
+     *                                  inserted without every column
+     */
+    private static boolean updatePartialWeather(SQLiteDatabase db, long locationId,
+                                                long weatherDate, ContentValues value) {
+        List<String> columns = new ArrayList<>();
+        for (int i = 2; i < UPSERT_COLUMNS.length; i++) {
+            if (value.containsKey(UPSERT_COLUMNS[i])) {
+                columns.add(UPSERT_COLUMNS[i]);
+            }
+        }
+
+        if (!columns.isEmpty()) {
+            /*
+             * UPDATE weather SET max = ?3, ...
+             *     WHERE location_id = ?1 AND date = ?2 AND (max IS NOT ?3 OR ...)
+             */
+            StringBuilder assignments = new StringBuilder();
+            StringBuilder changed = new StringBuilder();
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    assignments.append(", ");
+                    changed.append(" OR ");
+                }
+                assignments.append(columns.get(i)).append(" = ?").append(i + 3);
+                changed.append(columns.get(i)).append(" IS NOT ?").append(i + 3);
+            }
+            String sql = "UPDATE " + WeatherContract.WeatherEntry.TABLE_NAME
+                    + " SET " + assignments
+                    + " WHERE " + UPSERT_COLUMNS[0] + " = ?1"
+                    + " AND " + UPSERT_COLUMNS[1] + " = ?2"
+                    + " AND (" + changed + ")";
+
+            SQLiteStatement updateStatement = db.compileStatement(sql);
+            try {
+                updateStatement.bindLong(1, locationId);
+                updateStatement.bindLong(2, weatherDate);
+                for (int i = 0; i < columns.size(); i++) {
+                    bindValue(updateStatement, i + 3, value.get(columns.get(i)));
+                }
+                if (updateStatement.executeUpdateDelete() > 0) {
+                    return true;
+                }
+            } finally {
+                updateStatement.close();
+            }
+        }
+
+        /* Nothing changed: either the stored row already matches, or there is no stored row */
+        long storedRows = DatabaseUtils.queryNumEntries(db, WeatherContract.WeatherEntry.TABLE_NAME,
+                UPSERT_COLUMNS[0] + " = ? AND " + UPSERT_COLUMNS[1] + " = ?",
+                new String[]{Long.toString(locationId), Long.toString(weatherDate)});
+        if (storedRows == 0) {
+            throw new IllegalArgumentException("No weather is stored for " + weatherDate
+                    + ", so a row without every column can't be inserted");
+        }
+        return false;
+    }
+
+    /**
+     * Binds a row to a statement whose numbered parameters are the given columns, the first of
+     * which is the location.
+     */
+    private static void bindValues(SQLiteStatement statement, long locationId, ContentValues value,
+                                   String[] columns) {
+        statement.clearBindings();
+        statement.bindLong(1, locationId);
+        for (int i = 1; i < columns.length; i++) {
+            bindValue(statement, i + 1, value.get(columns[i]));
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object columnValue) {
+        if (columnValue == null) {
+            statement.bindNull(index);
+        } else if (columnValue instanceof Double || columnValue instanceof Float) {
+            statement.bindDouble(index, ((Number) columnValue).doubleValue());
+        } else if (columnValue instanceof Number) {
+            statement.bindLong(index, ((Number) columnValue).longValue());
+        } else {
+            statement.bindString(index, columnValue.toString());
+        }
+    }
+
+    /**
+     * Builds the query that rolls a location's hourly points up into one weather row per day,
+     * for the days from ?2 up to (not including) ?3 that have no weather row yet:
+     * <ul>
+     * <li>min and max are the lowest and highest temperature of the day</li>
+     * <li>weather_id is the day's most frequent condition, the more severe (lower) one on a
+     * tie</li>
+     * <li>humidity, pressure and wind are the day's averages</li>
+     * <li>degrees is the wind direction at the day's strongest wind, as compass directions
+     * can't simply be averaged</li>
+     * </ul>
+     * Every part of it is a range scan of the (location_id, time) index, apart from one lookup
+     * of the (location_id, date) key for each day.
+     */
+    private static String buildRollUpHourly() {
+        final String table = WeatherContract.HourlyEntry.TABLE_NAME;
+        final String location = WeatherContract.HourlyEntry.COLUMN_LOC_KEY;
+        final String time = WeatherContract.HourlyEntry.COLUMN_TIME;
+        final String day = "(h." + time + " - h." + time + " % " + SunshineDateUtils.DAY_IN_MILLIS + ")";
+        final String sameDay = " WHERE d." + location + " = h." + location
+                + " AND d." + time + " >= " + day
+                + " AND d." + time + " < " + day + " + " + SunshineDateUtils.DAY_IN_MILLIS;
+
+        return "SELECT " + day + " AS " + WeatherContract.WeatherEntry.COLUMN_DATE + ", "
+                + "(SELECT d." + WeatherContract.HourlyEntry.COLUMN_WEATHER_ID + " FROM " + table + " AS d" + sameDay
+                + " GROUP BY d." + WeatherContract.HourlyEntry.COLUMN_WEATHER_ID
+                + " ORDER BY COUNT(*) DESC, d." + WeatherContract.HourlyEntry.COLUMN_WEATHER_ID
+                + " LIMIT 1) AS " + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + "MIN(h." + WeatherContract.HourlyEntry.COLUMN_TEMP + ") AS "
+                + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", "
+                + "MAX(h." + WeatherContract.HourlyEntry.COLUMN_TEMP + ") AS "
+                + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + "AVG(h." + WeatherContract.HourlyEntry.COLUMN_HUMIDITY + ") AS "
+                + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", "
+                + "AVG(h." + WeatherContract.HourlyEntry.COLUMN_PRESSURE + ") AS "
+                + WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", "
+                + "AVG(h." + WeatherContract.HourlyEntry.COLUMN_WIND_SPEED + ") AS "
+                + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", "
+                + "(SELECT d." + WeatherContract.HourlyEntry.COLUMN_DEGREES + " FROM " + table + " AS d" + sameDay
+                + " ORDER BY d." + WeatherContract.HourlyEntry.COLUMN_WIND_SPEED + " DESC"
+                + " LIMIT 1) AS " + WeatherContract.WeatherEntry.COLUMN_DEGREES
+                + " FROM " + table + " AS h"
+                + " WHERE h." + location + " = ?1 AND h." + time + " >= ?2 AND h." + time + " < ?3"
+                + " GROUP BY " + WeatherContract.WeatherEntry.COLUMN_DATE
+                + " HAVING NOT EXISTS (SELECT 1"
+                + " FROM " + WeatherContract.WeatherEntry.TABLE_NAME + " AS w"
+                + " WHERE w." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?1"
+                + " AND w." + WeatherContract.WeatherEntry.COLUMN_DATE + " = " + day + ")";
+    }
+
+    /**
+     * Inserts hourly points, then fills in the weather row of every day they fall on that doesn't
+     * have one, from all of that day's points. A day that already has a row keeps it: the daily
+     * forecast from the API is better than a summary of a few points, and a rolled up row is
+     * only a stand-in until it arrives. Must be called inside a transaction.
+     *
+     * @param db           The writable database, with a transaction open
+     * @param locationId   The _ID of the location the points belong to
+     * @param values       The points to insert
+     * @param changedDates Receives the date of every weather row that was inserted or changed
+     * @return The number of points inserted
+     */
+    private static int insertHourlyAndRollUp(SQLiteDatabase db, long locationId, ContentValues[] values,
+                                             List<Long> changedDates) {
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MIN_VALUE;
+        int pointsInserted = 0;
+
+        SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_HOURLY);
+        try {
+            for (ContentValues value : values) {
+                Long time = value.getAsLong(WeatherContract.HourlyEntry.COLUMN_TIME);
+                if (time == null || time % SunshineDateUtils.HOUR_IN_MILLIS != 0) {
+                    throw new IllegalArgumentException("Time must be on the hour to insert");
+                }
+
+                bindValues(insertStatement, locationId, value, HOURLY_COLUMNS);
+                if (insertStatement.executeInsert() != -1) {
+                    pointsInserted++;
+                    firstTime = Math.min(firstTime, time);
+                    lastTime = Math.max(lastTime, time);
+                }
+            }
+        } finally {
+            insertStatement.close();
+        }
+
+        if (pointsInserted == 0) {
+            return 0;
+        }
+
+        long firstDay = SunshineDateUtils.normalizeDate(firstTime);
+        long endDay = SunshineDateUtils.normalizeDate(lastTime) + SunshineDateUtils.DAY_IN_MILLIS;
+        Cursor rollUps = db.rawQuery(SQL_ROLL_UP_HOURLY, new String[]{
+                Long.toString(locationId), Long.toString(firstDay), Long.toString(endDay)});
+        ContentValues[] dailyValues;
+        try {
+            dailyValues = new ContentValues[rollUps.getCount()];
+            while (rollUps.moveToNext()) {
+                /* Every column of the rollup is a number; keep them as numbers, not Strings */
+                ContentValues daily = new ContentValues();
+                for (int i = 0; i < rollUps.getColumnCount(); i++) {
+                    if (rollUps.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                        daily.put(rollUps.getColumnName(i), rollUps.getLong(i));
+                    } else {
+                        daily.put(rollUps.getColumnName(i), rollUps.getDouble(i));
+                    }
+                }
+                dailyValues[rollUps.getPosition()] = daily;
+            }
+        } finally {
+            rollUps.close();
+        }
+
+        upsertWeather(db, locationId, dailyValues, changedDates);
+        return pointsInserted;
+    }
+
+    /**
+     * Finds the location a weather URI refers to. The plain weather URIs refer to the user's
+     * preferred location; the location URIs carry the _ID of the location in their path.
+     *
+     * @param db     The database
+     * @param uri    The weather URI
+     * @param match  The code sUriMatcher returned for the URI
+     * @param create Whether to add the preferred location to the location table if it isn't
+     *               there yet. Only pass true from within a write transaction.
+     * @return The _ID of the location, or -1 if the preferred location has no row (and therefore
+     * no weather) yet
+     */
+    private long getLocationId(SQLiteDatabase db, Uri uri, int match, boolean create) {
+        switch (match) {
+            case CODE_WEATHER_FOR_LOCATION:
+            case CODE_WEATHER_FOR_LOCATION_WITH_DATE:
+            case CODE_WEATHER_FOR_LOCATION_AGGREGATE:
+            case CODE_HOURLY_FOR_LOCATION:
+            case CODE_ARCHIVE_FOR_LOCATION:
+                /* content://.../location/3/weather[/date]: the _ID is the second path segment */
+                return Long.parseLong(uri.getPathSegments().get(1));
+
+            default:
+                String locationSetting = SunshinePreferences.getPreferredWeatherLocation(getContext());
+                return getLocationIdForSetting(db, locationSetting, create);
+        }
+    }
+
+    static long getLocationIdForSetting(SQLiteDatabase db, String locationSetting, boolean create) {
+        try {
+            return DatabaseUtils.longForQuery(db,
+                    "SELECT " + WeatherContract.LocationEntry._ID
+                            + " FROM " + WeatherContract.LocationEntry.TABLE_NAME
+                            + " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{locationSetting});
+        } catch (SQLiteDoneException noSuchLocation) {
+            if (!create) return -1;
+
+            ContentValues locationValues = new ContentValues();
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            return db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, locationValues);
+        }
+    }
+
+    private static boolean isWeatherWithDate(int match) {
+        return match == CODE_WEATHER_WITH_DATE || match == CODE_WEATHER_FOR_LOCATION_WITH_DATE;
+    }
+
+    /**
+     * Builds the selection for the rows a weather URI addresses: the weather of its location,
+     * narrowed to one date for the URIs that end in a date, and then to the caller's selection.
+     * The arguments come from {@link #getWeatherSelectionArgs}.
+     */
+    private static String getWeatherSelection(int match, String selection) {
+        String uriSelection = WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?";
+        if (isWeatherWithDate(match)) {
+            uriSelection += " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?";
+        }
+        return DatabaseUtils.concatenateWhere(uriSelection, selection);
+    }
+
+    private static String[] getWeatherSelectionArgs(Uri uri, int match, long locationId, String[] selectionArgs) {
+        String[] uriSelectionArgs = isWeatherWithDate(match)
+                ? new String[]{Long.toString(locationId), uri.getLastPathSegment()}
+                : new String[]{Long.toString(locationId)};
+        return DatabaseUtils.appendSelectionArgs(uriSelectionArgs, selectionArgs);
+    }
+
+    /**
+     * Reports a change to the rows a weather URI addresses: just its date for the URIs that end
+     * in a date, otherwise all of the location's weather.
+     */
+    private void notifyWeatherChanged(Uri uri, int match, long locationId) {
+        if (isWeatherWithDate(match)) {
+            mNotifier.weatherChanged(locationId,
+                    Collections.singletonList(Long.parseLong(uri.getLastPathSegment())));
+        } else {
+            mNotifier.allWeatherChanged(locationId);
+        }
+    }
+
     /**
      * Handles query requests from clients. We will use this method in Sunshine to query for all
      * of our weather data as well as to query for the weather on a particular day.
@@ -187,12 +848,14 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
         Cursor cursor;
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
         /*
          * Here's the switch statement that, given a URI, will determine what kind of request is
          * being made and query the database accordingly.
          */
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
 
             /*
              * When sUriMatcher's match method is called with a URI that looks something like this
@@ -207,7 +870,14 @@ public class WeatherProvider extends ContentProvider {
              * In this case, we want to return a cursor that contains one row of weather data for
              * a particular date.
              */
-            case CODE_WEATHER_WITH_DATE: {
+            case CODE_WEATHER_WITH_DATE:
+            case CODE_WEATHER_FOR_LOCATION_WITH_DATE: {
+                long locationId = getLocationId(db, uri, match, false);
+                QueryResultCache.Key cacheKey = new QueryResultCache.Key(
+                        uri, locationId, projection, selection, selectionArgs, sortOrder);
+                cursor = mQueryCache.get(cacheKey);
+                if (cursor != null) break;
+                long cacheGeneration = mQueryCache.getGeneration();
 
                 /*
                  * In order to determine the date associated with this URI, we look at the last
@@ -217,37 +887,18 @@ public class WeatherProvider extends ContentProvider {
                 String normalizedUtcDateString = uri.getLastPathSegment();
 
                 /*
-                 * The query method accepts a string array of arguments, as there may be more
-                 * than one "?" in the selection statement. Even though in our case, we only have
-                 * one "?", we have to create a string array that only contains one element
-                 * because this method signature accepts a string array.
+                 * The location the weather belongs to and the date fill in the two "?"s of the
+                 * weather_detail query, and the caller's selection narrows it further. Passing
+                 * them as arguments rather than writing them into the SQL means the statement
+                 * compiles once, no matter which day is asked for.
                  */
-                String selectionArguments[] = new String[]{normalizedUtcDateString};
-
-                cursor = mOpenHelper.getReadableDatabase().query(
-                        /* Table we are going to query */
-                        WeatherContract.WeatherEntry.TABLE_NAME,
-                        /*
-                         * A projection designates the columns we want returned in our Cursor.
-                         * Passing null will return all columns of data within the Cursor.
-                         * However, if you don't need all the data from the table, it's best
-                         * practice to limit the columns returned in the Cursor with a projection.
-                         */
+                cursor = mQueries.query(db, match,
+                        new String[]{Long.toString(locationId), normalizedUtcDateString},
                         projection,
-                        /*
-                         * The URI that matches CODE_WEATHER_WITH_DATE contains a date at the end
-                         * of it. We extract that date and use it with these next two lines to
-                         * specify the row of weather we want returned in the cursor. We use a
-                         * question mark here and then designate selectionArguments as the next
-                         * argument for performance reasons. Whatever Strings are contained
-                         * within the selectionArguments array will be inserted into the
-                         * selection statement by SQLite under the hood.
-                         */
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                        selection,
                         selectionArgs,
-                        null,
-                        null,
                         sortOrder);
+                cursor = mQueryCache.put(cacheKey, cursor, cacheGeneration);
                 break;
             }
 
@@ -260,16 +911,90 @@ public class WeatherProvider extends ContentProvider {
              * to return all of the weather in our weather table.
              *
              * In this case, we want to return a cursor that contains every row of weather data
-             * in our weather table.
+             * for the preferred location (or, for a location URI, that location). The location
+             * is put first in the selection so that the list query is a range scan over the
+             * (location_id, date) covering index.
+             *
+             * Both kinds of weather query are answered from mQueryCache when the same query has
+             * already been run since the location's weather last changed.
+             */
+            case CODE_WEATHER:
+            case CODE_WEATHER_FOR_LOCATION: {
+                long locationId = getLocationId(db, uri, match, false);
+                QueryResultCache.Key cacheKey = new QueryResultCache.Key(
+                        uri, locationId, projection, selection, selectionArgs, sortOrder);
+                cursor = mQueryCache.get(cacheKey);
+                if (cursor != null) break;
+                long cacheGeneration = mQueryCache.getGeneration();
+                cursor = mQueries.query(db, match,
+                        new String[]{Long.toString(locationId)},
+                        projection,
+                        selection,
+                        selectionArgs,
+                        sortOrder);
+                cursor = mQueryCache.put(cacheKey, cursor, cacheGeneration);
+                break;
+            }
+
+            /*
+             * The history of a location, from the archive and the weather table together. The
+             * range comes from the URI's query parameters; selection and sortOrder can't be
+             * applied to archived days, and the days always come in ascending date order.
+             */
+            case CODE_ARCHIVE:
+            case CODE_ARCHIVE_FOR_LOCATION: {
+                if (selection != null || sortOrder != null) {
+                    throw new IllegalArgumentException(
+                            "Archive queries take a range, not a selection or sort order: " + uri);
+                }
+                String from = uri.getQueryParameter(WeatherContract.ArchiveEntry.QUERY_PARAMETER_FROM);
+                String to = uri.getQueryParameter(WeatherContract.ArchiveEntry.QUERY_PARAMETER_TO);
+                cursor = WeatherArchive.query(db,
+                        getLocationId(db, uri, match, false),
+                        from == null ? Long.MIN_VALUE : Long.parseLong(from),
+                        to == null ? Long.MAX_VALUE : Long.parseLong(to),
+                        projection);
+                break;
+            }
+
+            /* Hourly points are read for one location, much like its weather */
+            case CODE_HOURLY:
+            case CODE_HOURLY_FOR_LOCATION: {
+                long locationId = getLocationId(db, uri, match, false);
+                cursor = mQueries.query(db, match,
+                        new String[]{Long.toString(locationId)},
+                        projection,
+                        selection,
+                        selectionArgs,
+                        sortOrder);
+                break;
+            }
+
+            /*
+             * An aggregate over a range of a location's weather, computed in SQL so that only
+             * one row comes back. It is answered from mQueryCache like the other weather queries.
              */
-            case CODE_WEATHER: {
-                cursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+            case CODE_WEATHER_AGGREGATE:
+            case CODE_WEATHER_FOR_LOCATION_AGGREGATE: {
+                long locationId = getLocationId(db, uri, match, false);
+                QueryResultCache.Key cacheKey = new QueryResultCache.Key(
+                        uri, locationId, null, null, null, null);
+                cursor = mQueryCache.get(cacheKey);
+                if (cursor != null) break;
+                long cacheGeneration = mQueryCache.getGeneration();
+
+                cursor = queryAggregate(db, uri, locationId, mQueries);
+                cursor = mQueryCache.put(cacheKey, cursor, cacheGeneration);
+                break;
+            }
+
+            case CODE_LOCATION:
+            case CODE_SYNC_METADATA: {
+                cursor = mQueries.query(db, match,
+                        new String[0],
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
                         sortOrder);
                 break;
             }
@@ -277,11 +1002,87 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("UnKnown Uri: " + uri);
         }
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        /*
+         * A change to a single date is sent to that date's URI, which an aggregate URI is not
+         * under, so aggregates are observed through the weather URI they were built from.
+         */
+        Uri notificationUri = uri;
+        if (match == CODE_WEATHER_AGGREGATE || match == CODE_WEATHER_FOR_LOCATION_AGGREGATE) {
+            List<String> segments = uri.getPathSegments();
+            notificationUri = uri.buildUpon()
+                    .path(TextUtils.join("/", segments.subList(0, segments.size() - 1)))
+                    .clearQuery()
+                    .build();
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return cursor;
 
     }
 
+    /* The weather columns that aggregates may be computed over */
+    private static final Set<String> AGGREGATE_COLUMNS = new HashSet<>(Arrays.asList(
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES));
+
+    private static final Set<String> AGGREGATE_FNS = new HashSet<>(Arrays.asList(
+            WeatherContract.WeatherEntry.FN_MIN,
+            WeatherContract.WeatherEntry.FN_MAX,
+            WeatherContract.WeatherEntry.FN_AVG,
+            WeatherContract.WeatherEntry.FN_SUM,
+            WeatherContract.WeatherEntry.FN_COUNT));
+
+    /**
+     * Runs the aggregate an aggregate URI asks for:
+     *
+     *     SELECT fn(column) AS value, COUNT(*) AS count[, date] FROM weather
+     *         WHERE location_id = ? AND date >= ? AND date < ?
+     *
+     * The WHERE clause is a range scan of the (location_id, date) covering index, which also
+     * holds min and max, so the temperature aggregates never touch the table. With a single MIN
+     * or MAX, SQLite takes the date from the row the extreme value came from.
+     * <p>
+     * The function and column are checked against fixed lists before they go into the SQL.
+     */
+    private static Cursor queryAggregate(SQLiteDatabase db, Uri uri, long locationId, WeatherQueries queries) {
+        String fn = uri.getQueryParameter(WeatherContract.WeatherEntry.QUERY_PARAMETER_FN);
+        String column = uri.getQueryParameter(WeatherContract.WeatherEntry.QUERY_PARAMETER_COLUMN);
+        if (!AGGREGATE_FNS.contains(fn)) {
+            throw new IllegalArgumentException("Unknown aggregate function: " + uri);
+        }
+
+        String value;
+        if (WeatherContract.WeatherEntry.FN_COUNT.equals(fn)) {
+            value = "COUNT(*)";
+        } else if (AGGREGATE_COLUMNS.contains(column)) {
+            value = fn.toUpperCase(Locale.US) + "(" + column + ")";
+        } else {
+            throw new IllegalArgumentException("Unknown aggregate column: " + uri);
+        }
+
+        String from = uri.getQueryParameter(WeatherContract.WeatherEntry.QUERY_PARAMETER_FROM);
+        String to = uri.getQueryParameter(WeatherContract.WeatherEntry.QUERY_PARAMETER_TO);
+
+        boolean withDate = WeatherContract.WeatherEntry.FN_MIN.equals(fn)
+                || WeatherContract.WeatherEntry.FN_MAX.equals(fn);
+        String sql = "SELECT " + value + " AS " + WeatherContract.WeatherEntry.AGGREGATE_COLUMN_VALUE
+                + ", COUNT(*) AS " + WeatherContract.WeatherEntry.AGGREGATE_COLUMN_COUNT
+                + (withDate ? ", " + WeatherContract.WeatherEntry.COLUMN_DATE : "")
+                + " FROM " + WeatherContract.WeatherEntry.TABLE_NAME
+                + " WHERE " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?"
+                + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?"
+                + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " < ?";
+
+        queries.recordExecution("weather_aggregate", sql);
+        return db.rawQuery(sql, new String[]{
+                Long.toString(locationId),
+                from == null ? Long.toString(Long.MIN_VALUE) : Long.toString(Long.parseLong(from)),
+                to == null ? Long.toString(Long.MAX_VALUE) : Long.toString(Long.parseLong(to))});
+    }
+
     /**
      * In Sunshine, we aren't going to do anything with this method. However, we are required to
      * override it as WeatherProvider extends ContentProvider and getType is an abstract method in
@@ -299,20 +1100,33 @@ public class WeatherProvider extends ContentProvider {
     }
 
     /**
-     * In Sunshine, we aren't going to do anything with this method. However, we are required to
-     * override it as WeatherProvider extends ContentProvider and insert is an abstract method in
-     * ContentProvider. Rather than the single insert method, we are only going to implement
-     * {@link WeatherProvider#bulkInsert}.
+     * Inserts a single day of weather, the same way {@link WeatherProvider#bulkInsert} does. Syncs
+     * should still use bulkInsert; this is here so that weather can be written from
+     * {@link WeatherProvider#applyBatch}.
      *
-     * @param uri    The URI of the insertion request. This must not be null.
+     * @param uri    The weather URI, for the preferred location or for a given location
      * @param values A set of column_name/value pairs to add to the database.
      *               This must not be null
-     * @return nothing in Sunshine, but normally the URI for the newly inserted item.
+     * @return The URI of the inserted day of weather
      */
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
-        throw new RuntimeException("We are not implementing insert in Sunshine. Use bulkInsert instead");
+        if (values == null) {
+            throw new IllegalArgumentException("Cannot insert null values into " + uri);
+        }
+
+        switch (sUriMatcher.match(uri)) {
+            case CODE_WEATHER:
+            case CODE_WEATHER_FOR_LOCATION:
+                bulkInsert(uri, new ContentValues[]{values});
+                return uri.buildUpon()
+                        .appendPath(values.getAsString(WeatherContract.WeatherEntry.COLUMN_DATE))
+                        .build();
+
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
     }
 
     /**
@@ -337,27 +1151,256 @@ public class WeatherProvider extends ContentProvider {
          */
         if (null==selection) selection = "1";
 
-        switch (sUriMatcher.match(uri)) {
-            /* Only implement the functionality, given the proper URI, to delete all rows in the weather table */
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long locationId;
+
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            /* Only implement the functionality, given the proper URI, to delete the rows of a location */
             case CODE_WEATHER:
-                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+            case CODE_WEATHER_FOR_LOCATION:
+            case CODE_WEATHER_WITH_DATE:
+            case CODE_WEATHER_FOR_LOCATION_WITH_DATE:
+                locationId = getLocationId(db, uri, match, false);
+                numRowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        getWeatherSelection(match, selection),
+                        getWeatherSelectionArgs(uri, match, locationId, selectionArgs));
+                if (numRowsDeleted != 0) {
+                    mQueryCache.invalidateLocation(locationId);
+                    notifyWeatherChanged(uri, match, locationId);
+                }
+                break;
+
+            /*
+             * The days the deleted points rolled up into keep their weather rows, in the same
+             * way that weather stays in place when the server stops sending a day.
+             */
+            case CODE_HOURLY:
+            case CODE_HOURLY_FOR_LOCATION:
+                locationId = getLocationId(db, uri, match, false);
+                numRowsDeleted = db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                        DatabaseUtils.concatenateWhere(
+                                WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ?", selection),
+                        DatabaseUtils.appendSelectionArgs(
+                                new String[]{Long.toString(locationId)}, selectionArgs));
+                if (numRowsDeleted != 0) {
+                    mNotifier.hourlyChanged(locationId);
+                }
                 break;
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        /* If we actually deleted any rows, notify that a change has occurred to this URI */
-        if (numRowsDeleted != 0){
-            getContext().getContentResolver().notifyChange(uri, null);
+        return numRowsDeleted;
+    }
+
+    /**
+     * Runs the provider's maintenance methods:
+     * <ul>
+     * <li>WeatherContract.METHOD_COMPACT deletes the weather for every location that is older
+     * than the retention window and compacts the database. See {@link WeatherRetention}.</li>
+     * <li>WeatherContract.METHOD_GET_QUERY_CACHE_STATS reports the query result cache's
+     * counters.</li>
+     * <li>WeatherContract.METHOD_BEGIN_NOTIFICATION_BATCH and METHOD_END_NOTIFICATION_BATCH
+     * hold change notifications back and then send them as one change set. See
+     * {@link WeatherChangeNotifier}.</li>
+     * </ul>
+     *
+     * @param method One of the WeatherContract.METHOD_* constants
+     * @param arg    For METHOD_COMPACT, the retention window in milliseconds, or null to keep
+     *               only today onwards
+     * @param extras Unused
+     * @return A Bundle holding the method's WeatherContract.RESULT_* values
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        switch (method) {
+            case WeatherContract.METHOD_COMPACT:
+                long retentionMillis = arg == null ? 0 : Long.parseLong(arg);
+                Bundle report = WeatherRetention.run(mOpenHelper.getWritableDatabase(), retentionMillis);
+
+                if (report.getInt(WeatherContract.RESULT_ROWS_DELETED) > 0) {
+                    mQueryCache.invalidateAll();
+                    mNotifier.allWeatherChanged();
+                }
+                return report;
+
+            case WeatherContract.METHOD_BEGIN_NOTIFICATION_BATCH:
+                mNotifier.beginBatch();
+                return null;
+
+            case WeatherContract.METHOD_END_NOTIFICATION_BATCH:
+                mNotifier.endBatch();
+                return null;
+
+            case WeatherContract.METHOD_EXPORT_WEATHER:
+                return exportWeather(arg, extras);
+
+            case WeatherContract.METHOD_IMPORT_WEATHER:
+                return importWeather(arg, extras);
+
+            case WeatherContract.METHOD_GET_QUERY_CACHE_STATS:
+                Bundle stats = new Bundle();
+                stats.putLong(WeatherContract.RESULT_CACHE_HITS, mQueryCache.getHitCount());
+                stats.putLong(WeatherContract.RESULT_CACHE_MISSES, mQueryCache.getMissCount());
+                stats.putLong(WeatherContract.RESULT_CACHE_EVICTIONS, mQueryCache.getEvictionCount());
+                stats.putLong(WeatherContract.RESULT_REPEATED_SQL_ESTIMATE, mQueries.getRepeatedSqlCount());
+                stats.putLong(WeatherContract.RESULT_NEW_SQL_ESTIMATE, mQueries.getNewSqlCount());
+                stats.putBundle(WeatherContract.RESULT_QUERY_EXECUTIONS, mQueries.getExecutionCounts());
+                return stats;
+
+            default:
+                return super.call(method, arg, extras);
         }
+    }
 
-        return numRowsDeleted;
+    private Bundle exportWeather(String path, Bundle extras) {
+        String format = extras == null ? null : extras.getString(WeatherContract.EXTRA_TRANSFER_FORMAT);
+        try {
+            OutputStream out = new FileOutputStream(path);
+            try {
+                return WeatherTransfer.exportWeather(mOpenHelper.getReadableDatabase(), out, format);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not export weather to " + path, e);
+        }
     }
 
+    private Bundle importWeather(String path, Bundle extras) {
+        String format = extras == null ? null : extras.getString(WeatherContract.EXTRA_TRANSFER_FORMAT);
+        try {
+            InputStream in = new FileInputStream(path);
+            try {
+                return WeatherTransfer.importWeather(mOpenHelper.getWritableDatabase(), in, format);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not import weather from " + path, e);
+        } finally {
+            /* Batches are committed as they are read, so even a failed import changes rows */
+            mQueryCache.invalidateAll();
+            mNotifier.allWeatherChanged();
+        }
+    }
+
+    /**
+     * Updates the rows at a given URI. Weather rows stay with the location they belong to, so
+     * the location column can't be updated.
+     *
+     * @param uri           The URI of the rows to update
+     * @param values        The new column values. This must not be null.
+     * @param selection     An optional restriction to apply to rows when updating.
+     * @param selectionArgs Used in conjunction with the selection statement
+     * @return The number of rows updated
+     */
     @Override
     public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection, @Nullable String[] selectionArgs) {
-        throw new RuntimeException("We are not implementing update in Sunshine");
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int numRowsUpdated;
+
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case CODE_WEATHER:
+            case CODE_WEATHER_FOR_LOCATION:
+            case CODE_WEATHER_WITH_DATE:
+            case CODE_WEATHER_FOR_LOCATION_WITH_DATE:
+                if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)) {
+                    throw new IllegalArgumentException("Weather can't be moved to another location");
+                }
+                if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)
+                        && !SunshineDateUtils.isDateNormalized(
+                                values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE))) {
+                    throw new IllegalArgumentException("Date must be normalized to update");
+                }
+
+                long locationId = getLocationId(db, uri, match, false);
+                numRowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+                        values,
+                        getWeatherSelection(match, selection),
+                        getWeatherSelectionArgs(uri, match, locationId, selectionArgs));
+                if (numRowsUpdated != 0) {
+                    mQueryCache.invalidateLocation(locationId);
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        /* Rows moved to other dates, so more than the URI's date changed */
+                        mNotifier.allWeatherChanged(locationId);
+                    } else {
+                        notifyWeatherChanged(uri, match, locationId);
+                    }
+                }
+                return numRowsUpdated;
+
+            case CODE_LOCATION:
+                numRowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME,
+                        values, selection, selectionArgs);
+                break;
+
+            case CODE_SYNC_METADATA:
+                numRowsUpdated = db.update(WeatherContract.SyncMetadataEntry.TABLE_NAME,
+                        values, selection, selectionArgs);
+                break;
+
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        if (numRowsUpdated != 0) {
+            mNotifier.uriChanged(uri);
+        }
+        return numRowsUpdated;
+    }
+
+    /**
+     * Applies the operations in a single transaction, so that other readers see either none of
+     * them or all of them, and observers are notified once, after it commits. A pruning delete
+     * followed by the inserts of a refresh therefore costs one transaction and one reload.
+     * <p>
+     * Operations built with {@link ContentProviderOperation.Builder#withYieldAllowed} mark
+     * points where the transaction may be committed early and restarted if another thread is
+     * waiting to write, so that a long batch doesn't hold the write lock throughout. Only mark
+     * points where the rows written so far make sense on their own.
+     *
+     * @param operations The operations to apply
+     * @return The results of the operations, in order
+     * @throws OperationApplicationException If an operation fails, in which case the batch is
+     * rolled back to the last yield point
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+
+        mNotifier.beginBatch();
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                for (int i = 0; i < operations.size(); i++) {
+                    ContentProviderOperation operation = operations.get(i);
+                    if (i > 0 && operation.isYieldAllowed()) {
+                        db.yieldIfContendedSafely();
+                    }
+                    results[i] = operation.apply(this, results, i);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+
+                /*
+                 * The operations dropped their cached queries as they ran, but other connections
+                 * could only see their rows from here on, and may have cached the old ones since.
+                 */
+                mQueryCache.invalidateAll();
+            }
+        } finally {
+            mNotifier.endBatch();
+        }
+        return results;
     }
 
     /**
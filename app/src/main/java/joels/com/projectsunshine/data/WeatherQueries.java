@@ -0,0 +1,161 @@
+package joels.com.projectsunshine.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.Bundle;
+import android.util.SparseArray;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The queries WeatherProvider runs, one named shape for each of its UriMatcher codes. Each shape
+ * is a table plus a selection with ? placeholders for whatever the URI contributes (the
+ * location, the date), and every value is bound as an argument instead of being written into
+ * the SQL.
+ * <p>
+ * SQLite compiles a statement once per distinct SQL text and keeps it in the connection's
+ * statement cache, so a query whose text doesn't change between calls is only compiled the
+ * first time. The registry can't see that cache, so it keeps its own list of the SQL texts run
+ * most recently and counts how often a query's text was already on it. That is only an
+ * estimate of how often the real cache could have been used: the connection pool has a cache
+ * for each connection, and other code runs statements through them too.
+ * <p>
+ * This class is thread safe.
+ */
+final class WeatherQueries {
+
+    /* The number of SQL texts remembered, the size of each connection's statement cache */
+    private static final int RECENT_SQL_SIZE = 25;
+
+    /**
+     * One query shape.
+     */
+    static final class NamedQuery {
+        final String name;
+        final String table;
+        final String uriSelection;
+        final int uriArgumentCount;
+
+        /**
+         * @param name         The name the query is counted under
+         * @param table        The table it reads
+         * @param uriSelection The selection for the rows its URIs address, with one ? for each
+         *                     value taken from the URI, or null if the URIs address every row
+         */
+        NamedQuery(String name, String table, String uriSelection) {
+            this.name = name;
+            this.table = table;
+            this.uriSelection = uriSelection;
+
+            int count = 0;
+            for (int i = 0; uriSelection != null && i < uriSelection.length(); i++) {
+                if (uriSelection.charAt(i) == '?') count++;
+            }
+            uriArgumentCount = count;
+        }
+    }
+
+    private final SparseArray<NamedQuery> mQueries = new SparseArray<>();
+
+    /* The SQL texts run most recently, oldest first */
+    private final LinkedHashMap<String, Boolean> mRecentSql =
+            new LinkedHashMap<String, Boolean>(RECENT_SQL_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > RECENT_SQL_SIZE;
+                }
+            };
+
+    /* Executions of each named query */
+    private final Map<String, Long> mExecutions = new LinkedHashMap<>();
+
+    /* Executions whose SQL text was, and wasn't, among the recent ones */
+    private long mRepeatedSqlCount;
+    private long mNewSqlCount;
+
+    /**
+     * Registers the shape of the queries for a UriMatcher code.
+     */
+    synchronized void register(int code, NamedQuery query) {
+        mQueries.put(code, query);
+        if (!mExecutions.containsKey(query.name)) {
+            mExecutions.put(query.name, 0L);
+        }
+    }
+
+    /**
+     * Runs the query registered for a code, narrowed to the caller's selection.
+     *
+     * @param db            The database
+     * @param code          The UriMatcher code of the URI being queried
+     * @param uriArguments  The values the URI contributes, one for each ? in its selection
+     * @param projection    The columns to return, or null for all of them
+     * @param selection     The caller's selection, which may be null
+     * @param selectionArgs The arguments for the caller's selection
+     * @param sortOrder     The caller's sort order, which may be null
+     * @return A cursor over the rows
+     */
+    Cursor query(SQLiteDatabase db, int code, String[] uriArguments, String[] projection,
+                 String selection, String[] selectionArgs, String sortOrder) {
+        NamedQuery query;
+        synchronized (this) {
+            query = mQueries.get(code);
+        }
+        if (query == null) {
+            throw new UnsupportedOperationException("No query registered for code " + code);
+        }
+        if (uriArguments.length != query.uriArgumentCount) {
+            throw new IllegalArgumentException("Query " + query.name + " takes "
+                    + query.uriArgumentCount + " URI arguments, not " + uriArguments.length);
+        }
+
+        String sql = SQLiteQueryBuilder.buildQueryString(false, query.table, projection,
+                DatabaseUtils.concatenateWhere(query.uriSelection, selection),
+                null, null, sortOrder, null);
+        recordExecution(query.name, sql);
+        return db.rawQuery(sql, DatabaseUtils.appendSelectionArgs(uriArguments, selectionArgs));
+    }
+
+    /**
+     * Counts a statement that was built outside the registry, such as an aggregate, under the
+     * given name.
+     */
+    synchronized void recordExecution(String name, String sql) {
+        if (mRecentSql.put(sql, Boolean.TRUE) != null) {
+            mRepeatedSqlCount++;
+        } else {
+            mNewSqlCount++;
+        }
+        Long executions = mExecutions.get(name);
+        mExecutions.put(name, executions == null ? 1 : executions + 1);
+    }
+
+    /**
+     * The number of executions whose SQL text had run recently. An estimate of statement cache
+     * hits, not a count of them.
+     */
+    synchronized long getRepeatedSqlCount() {
+        return mRepeatedSqlCount;
+    }
+
+    /**
+     * The number of executions whose SQL text had not run recently.
+     */
+    synchronized long getNewSqlCount() {
+        return mNewSqlCount;
+    }
+
+    /**
+     * @return The number of times each named query ran, keyed by its name
+     */
+    synchronized Bundle getExecutionCounts() {
+        Bundle executions = new Bundle();
+        for (Map.Entry<String, Long> entry : mExecutions.entrySet()) {
+            executions.putLong(entry.getKey(), entry.getValue());
+        }
+        return executions;
+    }
+}
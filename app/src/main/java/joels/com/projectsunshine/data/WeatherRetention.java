@@ -0,0 +1,176 @@
+package joels.com.projectsunshine.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import joels.com.projectsunshine.data.WeatherContract.HourlyEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+/**
+ * Clears out the rows that have fallen out of the retention window and gives the freed space
+ * back to the file system. Weather rows are moved into the {@link WeatherArchive}; hourly points
+ * are deleted, as the archive already holds the days they rolled up into.
+ * <p>
+ * Rows are moved and deleted in small batches, each in its own short transaction, so the write
+ * lock is never held long enough to stall a sync or the UI. Once enough pages are free, an
+ * incremental vacuum releases them.
+ */
+final class WeatherRetention {
+
+    private static final String TAG = WeatherRetention.class.getSimpleName();
+
+    /* Rows deleted per transaction */
+    private static final int DELETE_BATCH_SIZE = 200;
+
+    /* Free pages (4 KiB each) worth reclaiming before we bother running a vacuum */
+    private static final long FREE_PAGE_VACUUM_THRESHOLD = 64;
+
+    /* PRAGMA auto_vacuum value for INCREMENTAL */
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final String SQL_DELETE_EXPIRED_HOURLY_BATCH =
+            buildDeleteExpiredBatch(HourlyEntry.TABLE_NAME, HourlyEntry.COLUMN_TIME);
+
+    /*
+     * Whether this process has already run the full VACUUM that converts the file to incremental
+     * auto_vacuum. Once that worked, the file itself says INCREMENTAL and later processes never
+     * get here; if it didn't, this keeps a full VACUUM from running on every retention pass.
+     */
+    private static boolean sConversionAttempted;
+
+    private WeatherRetention() {
+    }
+
+    /**
+     * Archives every weather row and deletes every hourly row dated before the retention window,
+     * then vacuums if enough pages are free. Must not be called inside a transaction, as VACUUM
+     * can't run in one.
+     *
+     * @param db              The writable database
+     * @param retentionMillis How far back from today rows are kept. 0 keeps today onwards.
+     * @return A Bundle with the rows removed (archived ones included), rows archived, bytes
+     * reclaimed and time spent, under the WeatherContract.RESULT_* keys
+     */
+    static Bundle run(SQLiteDatabase db, long retentionMillis) {
+        long startMillis = SystemClock.elapsedRealtime();
+
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        long cutoff = today - retentionMillis;
+
+        int rowsArchived = WeatherArchive.archiveExpired(db, cutoff);
+        int rowsDeleted = rowsArchived + deleteInBatches(db, SQL_DELETE_EXPIRED_HOURLY_BATCH, cutoff);
+
+        long bytesReclaimed = vacuumIfWorthwhile(db);
+
+        long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+        Log.d(TAG, "Removed " + rowsDeleted + " expired rows (" + rowsArchived + " archived) and "
+                + "reclaimed " + bytesReclaimed + " bytes in " + elapsedMillis + "ms");
+
+        Bundle report = new Bundle();
+        report.putInt(WeatherContract.RESULT_ROWS_DELETED, rowsDeleted);
+        report.putInt(WeatherContract.RESULT_ROWS_ARCHIVED, rowsArchived);
+        report.putLong(WeatherContract.RESULT_BYTES_RECLAIMED, bytesReclaimed);
+        report.putLong(WeatherContract.RESULT_ELAPSED_MILLIS, elapsedMillis);
+        return report;
+    }
+
+    /**
+     * DELETE FROM table WHERE _id IN (SELECT _id FROM table WHERE timeColumn < ?1 LIMIT n)
+     */
+    private static String buildDeleteExpiredBatch(String table, String timeColumn) {
+        return "DELETE FROM " + table + " WHERE " + BaseColumns._ID + " IN ("
+                + "SELECT " + BaseColumns._ID + " FROM " + table
+                + " WHERE " + timeColumn + " < ?1"
+                + " LIMIT " + DELETE_BATCH_SIZE + ")";
+    }
+
+    /**
+     * Runs a batched delete until it deletes less than a full batch.
+     *
+     * @return The number of rows deleted
+     */
+    private static int deleteInBatches(SQLiteDatabase db, String deleteBatchSql, long cutoff) {
+        int rowsDeleted = 0;
+        SQLiteStatement deleteStatement = db.compileStatement(deleteBatchSql);
+        try {
+            int batchDeleted;
+            do {
+                db.beginTransactionNonExclusive();
+                try {
+                    deleteStatement.bindLong(1, cutoff);
+                    batchDeleted = deleteStatement.executeUpdateDelete();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                rowsDeleted += batchDeleted;
+            } while (batchDeleted == DELETE_BATCH_SIZE);
+        } finally {
+            deleteStatement.close();
+        }
+        return rowsDeleted;
+    }
+
+    private static synchronized boolean claimConversion() {
+        if (sConversionAttempted) return false;
+        sConversionAttempted = true;
+        return true;
+    }
+
+    /**
+     * @return The number of bytes the database file shrank by
+     */
+    private static long vacuumIfWorthwhile(SQLiteDatabase db) {
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (freePages < FREE_PAGE_VACUUM_THRESHOLD) {
+            return 0;
+        }
+
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long pagesBefore = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+        long autoVacuum = DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null);
+        if (autoVacuum == AUTO_VACUUM_INCREMENTAL) {
+            /*
+             * incremental_vacuum frees one page per step, so the cursor is read to the end to
+             * run it to completion.
+             */
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + freePages + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    /* Nothing to read, each row is one page given back */
+                }
+            } finally {
+                cursor.close();
+            }
+        } else if (claimConversion()) {
+            /*
+             * Databases whose file had content before WeatherDbHelper.onConfigure could set
+             * incremental auto_vacuum need one full VACUUM for the mode to take effect. After
+             * that, the branch above is used.
+             */
+            WeatherDbHelper.executePragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+                Log.w(TAG, "Couldn't switch to incremental auto_vacuum, free pages stay in the file");
+            }
+        } else {
+            /*
+             * The conversion has been tried already. A full VACUUM rewrites the whole file under
+             * an exclusive lock, which is exactly what this class avoids, so the free pages are
+             * left for SQLite to reuse.
+             */
+            return 0;
+        }
+
+        long pagesAfter = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        return Math.max(0, pagesBefore - pagesAfter) * pageSize;
+    }
+}
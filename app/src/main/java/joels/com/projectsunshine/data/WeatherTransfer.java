@@ -0,0 +1,624 @@
+package joels.com.projectsunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+/**
+ * Streams the weather table, with the locations it belongs to, to and from a file. Both
+ * directions hold only a fixed number of rows in memory at a time, however large the file:
+ * exports read the table a page at a time, and imports commit every IMPORT_BATCH_ROWS rows in
+ * their own transaction.
+ * <p>
+ * Locations are written by their location setting, not their _ID, so a file can be imported on
+ * another device. Imported rows are upserted the same way bulkInsert writes them.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ * <li>Binary, the default: a header, then one record per location and one per weather row. A
+ * weather row takes 65 bytes.</li>
+ * <li>CSV, with a header line and one line per weather row that repeats its location's
+ * setting, city and coordinates, for reading by people and other tools.</li>
+ * </ul>
+ */
+final class WeatherTransfer {
+
+    private static final String TAG = WeatherTransfer.class.getSimpleName();
+
+    /* Rows read per page when exporting */
+    private static final int EXPORT_BATCH_ROWS = 1000;
+
+    /* Rows written per transaction when importing */
+    private static final int IMPORT_BATCH_ROWS = 1000;
+
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+
+    /* "SNWX", then the format version */
+    private static final int BINARY_MAGIC = 0x534E5758;
+    private static final int BINARY_VERSION = 1;
+
+    private static final byte RECORD_LOCATION = 'L';
+    private static final byte RECORD_WEATHER = 'W';
+    private static final byte RECORD_END = 'E';
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    /*
+     * The numeric weather columns, in the order the rest of the row is stored in both formats.
+     * This is also their order in WeatherProvider's upsert statements, after the location, date
+     * and weather condition ID.
+     */
+    private static final String[] VALUE_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final String[] EXPORT_COLUMNS = concat(new String[]{
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID
+    }, VALUE_COLUMNS);
+
+    private static final String[] CSV_HEADER = concat(new String[]{
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID
+    }, VALUE_COLUMNS);
+
+    private WeatherTransfer() {
+    }
+
+    /**
+     * Writes every location and every weather row to a stream. The stream is flushed but not
+     * closed.
+     *
+     * @param db     The database
+     * @param out    Where to write the rows
+     * @param format One of the WeatherContract.TRANSFER_FORMAT_* values
+     * @return A Bundle with the rows written, time spent and peak heap use, under the
+     * WeatherContract.RESULT_* keys
+     */
+    static Bundle exportWeather(SQLiteDatabase db, OutputStream out, String format) throws IOException {
+        long startMillis = SystemClock.elapsedRealtime();
+        HeapWatermark heap = new HeapWatermark();
+        RowWriter writer = isCsv(format) ? new CsvRowWriter(out) : new BinaryRowWriter(out);
+
+        Cursor locations = db.query(LocationEntry.TABLE_NAME, LOCATION_COLUMNS,
+                null, null, null, null, null);
+        try {
+            while (locations.moveToNext()) {
+                writer.writeLocation(locations.getLong(0), new Location(
+                        locations.getString(1),
+                        locations.isNull(2) ? null : locations.getString(2),
+                        locations.isNull(3) ? null : locations.getDouble(3),
+                        locations.isNull(4) ? null : locations.getDouble(4)));
+            }
+        } finally {
+            locations.close();
+        }
+
+        /*
+         * Pages are read by _ID rather than by OFFSET, so each one starts with an index seek
+         * instead of stepping over every row exported so far.
+         */
+        double[] values = new double[VALUE_COLUMNS.length];
+        long lastId = -1;
+        int rowsExported = 0;
+        int pageRows;
+        do {
+            Cursor cursor = db.query(WeatherEntry.TABLE_NAME, EXPORT_COLUMNS,
+                    WeatherEntry._ID + " > ?", new String[]{Long.toString(lastId)},
+                    null, null, WeatherEntry._ID, Integer.toString(EXPORT_BATCH_ROWS));
+            try {
+                pageRows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = cursor.getDouble(4 + i);
+                    }
+                    writer.writeWeather(cursor.getLong(1), cursor.getLong(2), cursor.getInt(3), values);
+                }
+            } finally {
+                cursor.close();
+            }
+            rowsExported += pageRows;
+            heap.sample();
+        } while (pageRows == EXPORT_BATCH_ROWS);
+
+        writer.finish();
+        return report("Exported", rowsExported, rowsExported, startMillis, heap);
+    }
+
+    /**
+     * Reads rows written by {@link #exportWeather} and upserts them, adding any locations that
+     * aren't stored yet. Each batch of rows is committed as it is read, so if the import fails
+     * part way, the rows before the failed batch stay written.
+     *
+     * @param db     The writable database. Must not be inside a transaction.
+     * @param in     Where to read the rows from. The stream is not closed.
+     * @param format One of the WeatherContract.TRANSFER_FORMAT_* values
+     * @return A Bundle with the rows read, the rows inserted or changed, time spent and peak
+     * heap use, under the WeatherContract.RESULT_* keys
+     */
+    static Bundle importWeather(SQLiteDatabase db, InputStream in, String format) throws IOException {
+        long startMillis = SystemClock.elapsedRealtime();
+        HeapWatermark heap = new HeapWatermark();
+        RowReader reader = isCsv(format) ? new CsvRowReader(in) : new BinaryRowReader(in);
+
+        /* Location settings to their _IDs in this database */
+        Map<String, Long> locationIds = new HashMap<>();
+
+        SQLiteStatement insertStatement = db.compileStatement(WeatherProvider.SQL_INSERT_WEATHER_OR_IGNORE);
+        SQLiteStatement updateStatement = db.compileStatement(WeatherProvider.SQL_UPDATE_CHANGED_WEATHER);
+        Row row = new Row();
+        int rowsRead = 0;
+        int rowsChanged = 0;
+        boolean moreRows = true;
+        try {
+            while (moreRows) {
+                db.beginTransactionNonExclusive();
+                try {
+                    for (int i = 0; i < IMPORT_BATCH_ROWS; i++) {
+                        if (!reader.readRow(row)) {
+                            moreRows = false;
+                            break;
+                        }
+                        if (!SunshineDateUtils.isDateNormalized(row.date)) {
+                            throw new IllegalArgumentException("Date must be normalized to import: " + row.date);
+                        }
+                        rowsRead++;
+
+                        long locationId = getLocationId(db, row.location, locationIds);
+                        bindRow(insertStatement, locationId, row);
+                        if (insertStatement.executeInsert() != -1) {
+                            rowsChanged++;
+                            continue;
+                        }
+                        bindRow(updateStatement, locationId, row);
+                        if (updateStatement.executeUpdateDelete() > 0) {
+                            rowsChanged++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                heap.sample();
+            }
+        } finally {
+            insertStatement.close();
+            updateStatement.close();
+        }
+        return report("Imported", rowsRead, rowsChanged, startMillis, heap);
+    }
+
+    private static boolean isCsv(String format) {
+        if (format == null || WeatherContract.TRANSFER_FORMAT_BINARY.equals(format)) return false;
+        if (WeatherContract.TRANSFER_FORMAT_CSV.equals(format)) return true;
+        throw new IllegalArgumentException("Unknown transfer format: " + format);
+    }
+
+    private static long getLocationId(SQLiteDatabase db, Location location, Map<String, Long> locationIds) {
+        Long locationId = locationIds.get(location.setting);
+        if (locationId != null) return locationId;
+
+        locationId = WeatherProvider.getLocationIdForSetting(db, location.setting, false);
+        if (locationId == -1) {
+            ContentValues locationValues = new ContentValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, location.setting);
+            locationValues.put(LocationEntry.COLUMN_CITY_NAME, location.cityName);
+            locationValues.put(LocationEntry.COLUMN_COORD_LAT, location.latitude);
+            locationValues.put(LocationEntry.COLUMN_COORD_LONG, location.longitude);
+            locationId = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+        }
+        locationIds.put(location.setting, locationId);
+        return locationId;
+    }
+
+    /* Binds a row to one of WeatherProvider's upsert statements */
+    private static void bindRow(SQLiteStatement statement, long locationId, Row row) {
+        statement.clearBindings();
+        statement.bindLong(1, locationId);
+        statement.bindLong(2, row.date);
+        statement.bindLong(3, row.weatherId);
+        for (int i = 0; i < row.values.length; i++) {
+            statement.bindDouble(4 + i, row.values[i]);
+        }
+    }
+
+    private static Bundle report(String verb, int rowsTransferred, int rowsChanged, long startMillis,
+                                 HeapWatermark heap) {
+        long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+        Log.d(TAG, verb + " " + rowsTransferred + " rows in " + elapsedMillis + "ms ("
+                + (rowsTransferred * 1000L / Math.max(elapsedMillis, 1)) + " rows/s), peak heap "
+                + heap.getPeakBytes() / 1024 + " KiB");
+
+        Bundle report = new Bundle();
+        report.putInt(WeatherContract.RESULT_ROWS_TRANSFERRED, rowsTransferred);
+        report.putInt(WeatherContract.RESULT_ROWS_CHANGED, rowsChanged);
+        report.putLong(WeatherContract.RESULT_ELAPSED_MILLIS, elapsedMillis);
+        report.putLong(WeatherContract.RESULT_PEAK_HEAP_BYTES, heap.getPeakBytes());
+        return report;
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    /* Tracks the most heap in use at any of the points it was sampled */
+    private static final class HeapWatermark {
+        private final Runtime mRuntime = Runtime.getRuntime();
+        private long mPeakBytes;
+
+        HeapWatermark() {
+            sample();
+        }
+
+        void sample() {
+            mPeakBytes = Math.max(mPeakBytes, mRuntime.totalMemory() - mRuntime.freeMemory());
+        }
+
+        long getPeakBytes() {
+            return mPeakBytes;
+        }
+    }
+
+    private static final class Location {
+        final String setting;
+        final String cityName;
+        final Double latitude;
+        final Double longitude;
+
+        Location(String setting, String cityName, Double latitude, Double longitude) {
+            this.setting = setting;
+            this.cityName = cityName;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    /* One weather row read from a file. Readers fill the same instance in for every row. */
+    private static final class Row {
+        Location location;
+        long date;
+        int weatherId;
+        final double[] values = new double[VALUE_COLUMNS.length];
+    }
+
+    private interface RowWriter {
+        /* Called for every location before any weather is written */
+        void writeLocation(long locationId, Location location) throws IOException;
+
+        void writeWeather(long locationId, long date, int weatherId, double[] values) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    private interface RowReader {
+        /**
+         * @return false once there are no more rows
+         */
+        boolean readRow(Row row) throws IOException;
+    }
+
+    /*
+     * The binary format, after the magic number and version:
+     *   'L' id setting hasCity [city] hasCoordinates [latitude longitude]
+     *   'W' locationId day weatherId minTemp maxTemp humidity pressure wind degrees
+     *   'E'
+     * Dates are stored as whole days, since weather dates are normalized.
+     */
+    private static final class BinaryRowWriter implements RowWriter {
+        private final DataOutputStream mOut;
+
+        BinaryRowWriter(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out, STREAM_BUFFER_BYTES));
+            mOut.writeInt(BINARY_MAGIC);
+            mOut.writeInt(BINARY_VERSION);
+        }
+
+        @Override
+        public void writeLocation(long locationId, Location location) throws IOException {
+            mOut.writeByte(RECORD_LOCATION);
+            mOut.writeLong(locationId);
+            mOut.writeUTF(location.setting);
+            mOut.writeBoolean(location.cityName != null);
+            if (location.cityName != null) {
+                mOut.writeUTF(location.cityName);
+            }
+            boolean hasCoordinates = location.latitude != null && location.longitude != null;
+            mOut.writeBoolean(hasCoordinates);
+            if (hasCoordinates) {
+                mOut.writeDouble(location.latitude);
+                mOut.writeDouble(location.longitude);
+            }
+        }
+
+        @Override
+        public void writeWeather(long locationId, long date, int weatherId, double[] values) throws IOException {
+            mOut.writeByte(RECORD_WEATHER);
+            mOut.writeLong(locationId);
+            mOut.writeInt((int) (date / SunshineDateUtils.DAY_IN_MILLIS));
+            mOut.writeInt(weatherId);
+            for (double value : values) {
+                mOut.writeDouble(value);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            mOut.writeByte(RECORD_END);
+            mOut.flush();
+        }
+    }
+
+    private static final class BinaryRowReader implements RowReader {
+        private final DataInputStream mIn;
+
+        /* The locations read so far, by their _ID in the file */
+        private final LongSparseArray<Location> mLocations = new LongSparseArray<>();
+
+        BinaryRowReader(InputStream in) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(in, STREAM_BUFFER_BYTES));
+            if (mIn.readInt() != BINARY_MAGIC) {
+                throw new IllegalArgumentException("Not a weather export");
+            }
+            int version = mIn.readInt();
+            if (version != BINARY_VERSION) {
+                throw new IllegalArgumentException("Unknown weather export version " + version);
+            }
+        }
+
+        @Override
+        public boolean readRow(Row row) throws IOException {
+            while (true) {
+                byte record = mIn.readByte();
+                switch (record) {
+                    case RECORD_LOCATION:
+                        long locationId = mIn.readLong();
+                        String setting = mIn.readUTF();
+                        String cityName = mIn.readBoolean() ? mIn.readUTF() : null;
+                        Double latitude = null;
+                        Double longitude = null;
+                        if (mIn.readBoolean()) {
+                            latitude = mIn.readDouble();
+                            longitude = mIn.readDouble();
+                        }
+                        mLocations.put(locationId, new Location(setting, cityName, latitude, longitude));
+                        break;
+
+                    case RECORD_WEATHER:
+                        row.location = mLocations.get(mIn.readLong());
+                        if (row.location == null) {
+                            throw new IllegalArgumentException("Weather row for an unknown location");
+                        }
+                        row.date = mIn.readInt() * SunshineDateUtils.DAY_IN_MILLIS;
+                        row.weatherId = mIn.readInt();
+                        for (int i = 0; i < row.values.length; i++) {
+                            row.values[i] = mIn.readDouble();
+                        }
+                        return true;
+
+                    case RECORD_END:
+                        return false;
+
+                    default:
+                        throw new IllegalArgumentException("Unknown weather export record " + record);
+                }
+            }
+        }
+    }
+
+    /*
+     * Fields holding a comma, quote or line break are quoted, with quotes doubled. Empty fields
+     * stand for null.
+     */
+    private static final class CsvRowWriter implements RowWriter {
+        private final Writer mOut;
+        private final LongSparseArray<Location> mLocations = new LongSparseArray<>();
+
+        CsvRowWriter(OutputStream out) throws IOException {
+            mOut = new OutputStreamWriter(new BufferedOutputStream(out, STREAM_BUFFER_BYTES), "UTF-8");
+            for (int i = 0; i < CSV_HEADER.length; i++) {
+                if (i > 0) mOut.write(',');
+                mOut.write(CSV_HEADER[i]);
+            }
+            mOut.write('\n');
+        }
+
+        @Override
+        public void writeLocation(long locationId, Location location) {
+            mLocations.put(locationId, location);
+        }
+
+        @Override
+        public void writeWeather(long locationId, long date, int weatherId, double[] values) throws IOException {
+            Location location = mLocations.get(locationId);
+            writeField(location.setting);
+            mOut.write(',');
+            writeField(location.cityName);
+            mOut.write(',');
+            if (location.latitude != null) mOut.write(Double.toString(location.latitude));
+            mOut.write(',');
+            if (location.longitude != null) mOut.write(Double.toString(location.longitude));
+            mOut.write(',');
+            mOut.write(Long.toString(date));
+            mOut.write(',');
+            mOut.write(Integer.toString(weatherId));
+            for (double value : values) {
+                mOut.write(',');
+                mOut.write(Double.toString(value));
+            }
+            mOut.write('\n');
+        }
+
+        private void writeField(String field) throws IOException {
+            if (field == null) return;
+            boolean quote = false;
+            for (int i = 0; i < field.length() && !quote; i++) {
+                char c = field.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                mOut.write(field);
+                return;
+            }
+            mOut.write('"');
+            mOut.write(field.replace("\"", "\"\""));
+            mOut.write('"');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            mOut.flush();
+        }
+    }
+
+    private static final class CsvRowReader implements RowReader {
+        private final Reader mIn;
+        private final char[] mBuffer = new char[STREAM_BUFFER_BYTES / 2];
+        private int mPosition;
+        private int mLimit;
+
+        private final StringBuilder mField = new StringBuilder();
+        private final String[] mFields = new String[CSV_HEADER.length];
+
+        /* Rows repeat their location, so each distinct one is parsed once */
+        private final Map<String, Location> mLocations = new HashMap<>();
+
+        CsvRowReader(InputStream in) throws IOException {
+            mIn = new InputStreamReader(in, "UTF-8");
+            if (readRecord() != CSV_HEADER.length || !Arrays.equals(mFields, CSV_HEADER)) {
+                throw new IllegalArgumentException("Not a weather export: unexpected CSV header");
+            }
+        }
+
+        @Override
+        public boolean readRow(Row row) throws IOException {
+            int fieldCount = readRecord();
+            if (fieldCount == -1) return false;
+            if (fieldCount != CSV_HEADER.length) {
+                throw new IllegalArgumentException("Expected " + CSV_HEADER.length + " CSV fields, found " + fieldCount);
+            }
+
+            try {
+                row.location = mLocations.get(mFields[0]);
+                if (row.location == null) {
+                    row.location = new Location(mFields[0], mFields[1],
+                            parseNullableDouble(mFields[2]), parseNullableDouble(mFields[3]));
+                    mLocations.put(row.location.setting, row.location);
+                }
+                row.date = Long.parseLong(mFields[4]);
+                row.weatherId = Integer.parseInt(mFields[5]);
+                for (int i = 0; i < row.values.length; i++) {
+                    row.values[i] = Double.parseDouble(mFields[6 + i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed CSV row", e);
+            }
+            return true;
+        }
+
+        private static Double parseNullableDouble(String field) {
+            return field == null ? null : Double.valueOf(field);
+        }
+
+        private int read() throws IOException {
+            if (mPosition == mLimit) {
+                mLimit = mIn.read(mBuffer);
+                mPosition = 0;
+                if (mLimit <= 0) {
+                    mLimit = 0;
+                    return -1;
+                }
+            }
+            return mBuffer[mPosition++];
+        }
+
+        /**
+         * Reads one record into mFields. Carriage returns outside quotes are skipped, so lines
+         * may end in either \n or \r\n.
+         *
+         * @return The number of fields read, or -1 at the end of the file
+         */
+        private int readRecord() throws IOException {
+            int c = read();
+            if (c == -1) return -1;
+
+            int fieldCount = 0;
+            boolean quoted = false;
+            mField.setLength(0);
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new EOFException("Unterminated quoted CSV field");
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c == '"') {
+                            mField.append('"');
+                            c = read();
+                        } else {
+                            quoted = false;
+                        }
+                        continue;
+                    }
+                    mField.append((char) c);
+                } else if (c == '"' && mField.length() == 0) {
+                    quoted = true;
+                } else if (c == ',' || c == '\n' || c == -1) {
+                    if (fieldCount == mFields.length) {
+                        throw new IllegalArgumentException("Too many CSV fields");
+                    }
+                    mFields[fieldCount++] = mField.length() == 0 ? null : mField.toString();
+                    mField.setLength(0);
+                    if (c != ',') return fieldCount;
+                } else if (c != '\r') {
+                    mField.append((char) c);
+                }
+                c = read();
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package joels.com.projectsunshine.sync;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A circuit breaker for one weather server endpoint. While the server keeps failing, requests
+ * fail fast instead of piling more load onto it and making the user wait for timeouts.
+ * <p>
+ * The breaker starts CLOSED and lets every request through. After FAILURE_THRESHOLD consecutive
+ * failures it goes OPEN and rejects requests for OPEN_DURATION_MILLIS. It then goes HALF_OPEN and
+ * lets a single trial request through: if that succeeds the breaker closes again, otherwise it
+ * re-opens for another OPEN_DURATION_MILLIS.
+ */
+public final class CircuitBreaker {
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_DURATION_MILLIS = 30 * 1000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * The time the open period is measured in. Tests substitute a clock they can move.
+     */
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    /* One breaker per endpoint (host), shared by every fetcher in the process */
+    private static final Map<String, CircuitBreaker> sBreakers = new HashMap<>();
+
+    private final Clock mClock;
+
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenedAtMillis;
+    private boolean mTrialInFlight;
+
+    CircuitBreaker(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param endpoint The host requests are sent to
+     * @return The breaker for that endpoint
+     */
+    public static CircuitBreaker forEndpoint(String endpoint) {
+        synchronized (sBreakers) {
+            CircuitBreaker breaker = sBreakers.get(endpoint);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(SYSTEM_CLOCK);
+                sBreakers.put(endpoint, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * Asks whether a request may be sent now. Every request that is allowed must be followed by
+     * a call to {@link #recordSuccess()} or {@link #recordFailure()}.
+     *
+     * @return true if the request may be sent, false if it should fail fast
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                if (mClock.elapsedRealtime() - mOpenedAtMillis < OPEN_DURATION_MILLIS) {
+                    return false;
+                }
+                moveTo(State.HALF_OPEN);
+                /* Fall through: this request becomes the trial */
+
+            case HALF_OPEN:
+                if (mTrialInFlight) return false;
+                mTrialInFlight = true;
+                return true;
+
+            default:
+                throw new IllegalStateException("Unknown state: " + mState);
+        }
+    }
+
+    /**
+     * Records that an allowed request succeeded, closing the breaker.
+     */
+    public synchronized void recordSuccess() {
+        mConsecutiveFailures = 0;
+        mTrialInFlight = false;
+        if (mState != State.CLOSED) moveTo(State.CLOSED);
+    }
+
+    /**
+     * Records that an allowed request failed. A failed trial re-opens the breaker, and enough
+     * consecutive failures open a closed one.
+     */
+    public synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN || mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            mTrialInFlight = false;
+            mOpenedAtMillis = mClock.elapsedRealtime();
+            if (mState != State.OPEN) moveTo(State.OPEN);
+        }
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /*
+     * Nothing here logs, so that the JVM tests can drive every transition. A request the breaker
+     * turns away shows up in ForecastFetcher's log as a "Circuit open" failure.
+     */
+    private void moveTo(State state) {
+        mState = state;
+    }
+}
@@ -0,0 +1,436 @@
+package joels.com.projectsunshine.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import joels.com.projectsunshine.data.WeatherContract;
+import joels.com.projectsunshine.utilities.ForecastResponseCache;
+import joels.com.projectsunshine.utilities.NetworkUtils;
+import joels.com.projectsunshine.utilities.OpenWeatherJsonUtils;
+
+/**
+ * Fetches and parses the forecasts for a set of locations concurrently, on a bounded pool of
+ * threads.
+ * <p>
+ * Requests are de-duplicated by URL: if a forecast is requested while a request for the same URL
+ * is already in flight (for example when a settings change and a sync fire at the same time),
+ * the caller shares the result of the request that is already running instead of starting a
+ * second one.
+ * <p>
+ * Failed requests are retried with jittered exponential backoff, and every endpoint has a
+ * {@link CircuitBreaker} so that a server that is down is not hammered by retries. When a
+ * location cannot be fetched, the last good rows from the WeatherProvider are returned instead,
+ * marked as stale.
+ */
+public class ForecastFetcher {
+
+    private static final String TAG = ForecastFetcher.class.getSimpleName();
+
+    /* Includes the first attempt */
+    private static final int MAX_ATTEMPTS = 4;
+
+    private static final long BACKOFF_BASE_MILLIS = 500;
+    private static final long BACKOFF_MAX_MILLIS = 8 * 1000;
+
+    /**
+     * The outcome of fetching the forecast for one location.
+     */
+    public static final class Result {
+
+        /* The location query the forecast was requested for */
+        public final String locationQuery;
+
+        /*
+         * The parsed forecast. If the request failed, these are the last good rows from the
+         * WeatherProvider (see isStale), which may be empty.
+         */
+        public final ContentValues[] weatherValues;
+
+        /* The error that made the request fail, or null if it succeeded */
+        public final IOException error;
+
+        /* Time spent on the network request(s) and parse, in milliseconds */
+        public final long latencyMillis;
+
+        /* Hex MD5 of the response body, or null if the request failed */
+        public final String contentHash;
+
+        /* The ETag the server sent with the response, if any */
+        public final String eTag;
+
+        Result(String locationQuery, ContentValues[] weatherValues, IOException error,
+               long latencyMillis, String contentHash, String eTag) {
+            this.locationQuery = locationQuery;
+            this.weatherValues = weatherValues;
+            this.error = error;
+            this.latencyMillis = latencyMillis;
+            this.contentHash = contentHash;
+            this.eTag = eTag;
+        }
+
+        /**
+         * @return true if the request failed and weatherValues holds the rows we already had.
+         * These must not be written back to the WeatherProvider.
+         */
+        public boolean isStale() {
+            return error != null;
+        }
+    }
+
+    private final Context mContext;
+    private final ExecutorService mExecutor;
+
+    /* Requests that are currently running, keyed by URL */
+    private final Map<String, FutureTask<Result>> mInFlight = new HashMap<>();
+
+    /**
+     * @param context               Used for the response cache and parsing
+     * @param maxConcurrentRequests The maximum number of requests that run at the same time
+     */
+    public ForecastFetcher(Context context, int maxConcurrentRequests) {
+        mContext = context.getApplicationContext();
+        mExecutor = Executors.newFixedThreadPool(maxConcurrentRequests, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + " #" + mCount.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts fetching the forecast for a location, or joins the request for it that is already
+     * in flight.
+     *
+     * @param locationQuery The location to fetch, as passed to {@link NetworkUtils#buildUrl(String)}
+     * @return A Future for the result
+     */
+    public Future<Result> fetch(String locationQuery) {
+        return fetch(locationQuery, NetworkUtils.buildUrl(locationQuery));
+    }
+
+    /**
+     * Like {@link #fetch(String)}, but asks the server for the forecast at the location's
+     * coordinates rather than by its name. Nearby coordinates share a URL (see
+     * {@link NetworkUtils#buildUrl(Double, Double)}), and so share a request that is in flight.
+     *
+     * @param locationQuery The location the forecast is for, which the result is labelled with
+     * @param latitude      The latitude of the location
+     * @param longitude     The longitude of the location
+     * @return A Future for the result
+     */
+    public Future<Result> fetch(String locationQuery, double latitude, double longitude) {
+        return fetch(locationQuery, NetworkUtils.buildUrl(latitude, longitude));
+    }
+
+    private Future<Result> fetch(final String locationQuery, final URL url) {
+        if (url == null) {
+            /* There is nothing to send, so fail straight away with the rows we already have */
+            FutureTask<Result> failed = new FutureTask<Result>(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return staleResult(locationQuery,
+                            new IOException("Couldn't build a URL for " + locationQuery),
+                            SystemClock.elapsedRealtime());
+                }
+            });
+            failed.run();
+            return failed;
+        }
+        final String key = url.toString();
+
+        FutureTask<Result> task;
+        synchronized (mInFlight) {
+            task = mInFlight.get(key);
+            if (task != null) {
+                Log.v(TAG, "Joining in-flight request for " + locationQuery);
+                return task;
+            }
+
+            task = new FutureTask<Result>(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return fetchNow(locationQuery, url);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    synchronized (mInFlight) {
+                        mInFlight.remove(key);
+                    }
+                }
+            };
+            mInFlight.put(key, task);
+        }
+
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            /*
+             * We have been shut down, so the task will never run. Cancelling it runs done(), which
+             * takes it out of mInFlight, so no later caller joins it and waits forever.
+             */
+            task.cancel(false);
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * Fetches the forecasts for all of the locations concurrently and waits for them to finish.
+     * The per-location latency and the overall throughput are logged.
+     *
+     * @param locationQueries The locations to fetch. Duplicates are only fetched once.
+     * @return One result per distinct location, in the order they were given
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public List<Result> fetchAll(Collection<String> locationQueries) throws InterruptedException {
+        long startMillis = SystemClock.elapsedRealtime();
+
+        List<Future<Result>> futures = new ArrayList<>();
+        for (String locationQuery : new LinkedHashSet<>(locationQueries)) {
+            futures.add(fetch(locationQuery));
+        }
+
+        List<Result> results = new ArrayList<>(futures.size());
+        for (Future<Result> future : futures) {
+            try {
+                Result result = future.get();
+                Log.d(TAG, result.locationQuery + " took " + result.latencyMillis + "ms"
+                        + (result.error != null ? " and failed: " + result.error : ""));
+                results.add(result);
+            } catch (ExecutionException e) {
+                /* fetchNow catches everything it expects, so this is a programming error */
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        long elapsedMillis = Math.max(1, SystemClock.elapsedRealtime() - startMillis);
+        Log.d(TAG, "Fetched " + results.size() + " locations in " + elapsedMillis + "ms ("
+                + (results.size() * 1000f / elapsedMillis) + " locations/s)");
+
+        return results;
+    }
+
+    /**
+     * Stops the worker threads. Requests that are already running are allowed to finish.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /*
+     * Tests override this to stand in for the network.
+     */
+    Result fetchNow(String locationQuery, URL url) {
+        long startMillis = SystemClock.elapsedRealtime();
+        CircuitBreaker breaker = getCircuitBreaker(url.getHost());
+
+        IOException lastError = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (!breaker.allowRequest()) {
+                lastError = new IOException("Circuit open for " + url.getHost());
+                break;
+            }
+
+            try {
+                Result result = fetchOnce(locationQuery, url, startMillis);
+                breaker.recordSuccess();
+                return result;
+            } catch (IOException e) {
+                lastError = e;
+            } catch (RuntimeException e) {
+                /* JsonReader reports malformed JSON with runtime exceptions */
+                lastError = new IOException(e);
+            }
+
+            /*
+             * Whatever the response cache holds for this URL didn't give us a forecast, so it
+             * mustn't let the next attempt, or the next sync, pass as "not modified".
+             */
+            ForecastResponseCache.getInstance(mContext).remove(url);
+
+            if (isRetryable(lastError)) {
+                breaker.recordFailure();
+            } else {
+                /*
+                 * The server answered, it just had nothing for this request (a 404, or a "cod"
+                 * error for a bad location). That says nothing about the endpoint being down.
+                 */
+                breaker.recordSuccess();
+                break;
+            }
+
+            if (attempt == MAX_ATTEMPTS - 1) break;
+
+            try {
+                Thread.sleep(getBackoffMillis(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return staleResult(locationQuery, lastError, startMillis);
+    }
+
+    /*
+     * Tests override this with a breaker whose clock they control.
+     */
+    CircuitBreaker getCircuitBreaker(String endpoint) {
+        return CircuitBreaker.forEndpoint(endpoint);
+    }
+
+    private Result staleResult(String locationQuery, IOException error, long startMillis) {
+        Log.w(TAG, "Serving stale data for " + locationQuery, error);
+        return new Result(locationQuery, loadLastGoodRows(locationQuery), error,
+                SystemClock.elapsedRealtime() - startMillis, null, null);
+    }
+
+    /*
+     * When the server says the data hasn't changed, the body comes from the response cache and is
+     * parsed again, so that its days are dated from today.
+     */
+    private Result fetchOnce(String locationQuery, URL url, long startMillis) throws IOException {
+        InputStream body = NetworkUtils.getResponseStreamFromHttpUrl(mContext, url);
+
+        ContentValues[] weatherValues;
+        MessageDigest digest = newDigest();
+        try {
+            DigestInputStream digestBody = new DigestInputStream(body, digest);
+            weatherValues = OpenWeatherJsonUtils.getFullWeatherDataFromJson(mContext, digestBody);
+
+            /* Hash whatever the parser didn't need, so the hash covers the whole body */
+            byte[] remainder = new byte[256];
+            while (digestBody.read(remainder) != -1) {
+                /* Keep reading */
+            }
+            if (weatherValues == null) {
+                throw new ServerErrorException("Server returned an error for " + locationQuery);
+            }
+
+            /* Only a body we could use is kept to revalidate the next request against */
+            ForecastResponseCache.commit(body);
+        } finally {
+            body.close();
+        }
+
+        /* The body has been committed, so the response cache holds the new entry by now */
+        ForecastResponseCache.Entry cacheEntry = ForecastResponseCache.getInstance(mContext).get(url);
+
+        return new Result(locationQuery, weatherValues, null,
+                SystemClock.elapsedRealtime() - startMillis,
+                toHex(digest.digest()),
+                cacheEntry != null ? cacheEntry.getETag() : null);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            /* Every Android device ships MD5 */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static boolean isRetryable(IOException error) {
+        if (error instanceof NetworkUtils.HttpStatusException) {
+            return ((NetworkUtils.HttpStatusException) error).isRetryable();
+        }
+        if (error instanceof ServerErrorException) {
+            /* The server answered this location with an error; asking again won't change that */
+            return false;
+        }
+        /* Timeouts, dropped connections and truncated bodies are worth another try */
+        return true;
+    }
+
+    /**
+     * Thrown when the server's JSON reports an error in its "cod" field, such as an unknown
+     * location.
+     */
+    static class ServerErrorException extends IOException {
+
+        ServerErrorException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * "Full jitter" backoff: a random delay between zero and an exponentially growing cap, so
+     * that many clients failing at the same time don't all retry at the same time.
+     *
+     * @param attempt The attempt that just failed, starting at 0
+     * @return How long to wait before the next attempt
+     */
+    private static long getBackoffMillis(int attempt) {
+        long cap = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << attempt);
+        return (long) (Math.random() * cap);
+    }
+
+    /**
+     * @param locationQuery The location to load the rows of
+     * @return The forecast rows from today onwards that are already in the WeatherProvider
+     */
+    private ContentValues[] loadLastGoodRows(String locationQuery) {
+        long locationId = SunshineSyncTask.getLocationId(mContext.getContentResolver(), locationQuery);
+        if (locationId == -1) return new ContentValues[0];
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.buildWeatherUri(locationId),
+                null,
+                WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards(),
+                WeatherContract.WeatherEntry.getSelectionArgsForTodayOnwards(),
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) return new ContentValues[0];
+
+        try {
+            ContentValues[] rows = new ContentValues[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                rows[i] = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, rows[i]);
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+}
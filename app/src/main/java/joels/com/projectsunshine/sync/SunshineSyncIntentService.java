@@ -0,0 +1,25 @@
+package joels.com.projectsunshine.sync;
+
+import android.app.IntentService;
+import android.content.Intent;
+
+/**
+ * An {@link IntentService} subclass for handling asynchronous task requests in
+ * a service on a separate handler thread.
+ */
+public class SunshineSyncIntentService extends IntentService {
+
+    public SunshineSyncIntentService() {
+        super("SunshineSyncIntentService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        /*
+         * SunshineSyncTask batches the notifications for the rows it writes. The fetch before
+         * those writes can take minutes with retries, so no batch is held open around it.
+         */
+        SunshineSyncTask.syncWeather(this);
+        SunshineSyncTask.compactWeather(this, SunshineSyncTask.DEFAULT_RETENTION_MILLIS);
+    }
+}
@@ -0,0 +1,284 @@
+package joels.com.projectsunshine.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+
+import joels.com.projectsunshine.data.SunshinePreferences;
+import joels.com.projectsunshine.data.WeatherContract;
+import joels.com.projectsunshine.data.WeatherContract.LocationEntry;
+import joels.com.projectsunshine.data.WeatherContract.SyncMetadataEntry;
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+/**
+ * Performs a sync of the weather for the user's preferred location, skipping whatever work the
+ * sync metadata shows to be redundant:
+ * <ul>
+ * <li>While the last fetch is younger than the TTL and its weather starts today, the network
+ * isn't touched at all.</li>
+ * <li>If the response hashes to the same content as last time (which is also the case when the
+ * server says the data is unchanged, and the cached response is parsed again) and its weather
+ * starts on the same day, nothing is written to the weather table, so no change notification
+ * is sent and no loader reloads.</li>
+ * </ul>
+ * The parser dates the days of a response from the day it runs on, so the same response gives
+ * a new set of dates every day. Those have to be written even though the response hasn't
+ * changed, or the forecast would lose a day at the front every day as retention deletes it.
+ * <p>
+ * When a sync fails, the weather already in the table is kept, and the location's sync metadata
+ * is marked stale so that the UI can tell the user the forecast is out of date.
+ */
+public class SunshineSyncTask {
+
+    private static final String TAG = SunshineSyncTask.class.getSimpleName();
+
+    /* Weather data younger than this is not fetched again */
+    public static final long DEFAULT_SYNC_TTL_MILLIS = 3 * SunshineDateUtils.HOUR_IN_MILLIS;
+
+    /*
+     * Weather older than this, counted back from today, is deleted after a sync. Yesterday is
+     * kept so that "today" still has weather in time zones behind UTC.
+     */
+    public static final long DEFAULT_RETENTION_MILLIS = SunshineDateUtils.DAY_IN_MILLIS;
+
+    /* Shared by every sync in the process, so concurrent syncs de-duplicate their requests */
+    private static ForecastFetcher sFetcher;
+
+    private static final String[] SYNC_METADATA_PROJECTION = {
+            SyncMetadataEntry.COLUMN_LAST_FETCH,
+            SyncMetadataEntry.COLUMN_ETAG,
+            SyncMetadataEntry.COLUMN_CONTENT_HASH,
+            SyncMetadataEntry.COLUMN_FIRST_DATE,
+            SyncMetadataEntry.COLUMN_STALE
+    };
+
+    private static final int INDEX_LAST_FETCH = 0;
+    private static final int INDEX_ETAG = 1;
+    private static final int INDEX_CONTENT_HASH = 2;
+    private static final int INDEX_FIRST_DATE = 3;
+    private static final int INDEX_STALE = 4;
+
+    /* Stands for a first date that isn't known, which never matches a real day */
+    private static final long NO_FIRST_DATE = -1;
+
+    /**
+     * Syncs the weather using the default TTL.
+     *
+     * @param context Used to access the preferences and the ContentResolver
+     */
+    synchronized public static void syncWeather(Context context) {
+        syncWeather(context, DEFAULT_SYNC_TTL_MILLIS);
+    }
+
+    /**
+     * Fetches the weather for the preferred location and writes it to the WeatherProvider, unless
+     * the sync metadata shows it to be unnecessary.
+     *
+     * @param context       Used to access the preferences and the ContentResolver
+     * @param syncTtlMillis How old the last fetch may be before the weather is fetched again.
+     *                      Pass 0 to always ask the server.
+     */
+    synchronized public static void syncWeather(Context context, long syncTtlMillis) {
+        /* When the user picked a place, its coordinates are more precise than its name */
+        double[] coordinates = SunshinePreferences.isLocationLatLonAvailable(context)
+                ? SunshinePreferences.getLocationCoordinates(context)
+                : null;
+        syncWeather(context.getContentResolver(), getFetcher(context),
+                SunshinePreferences.getPreferredWeatherLocation(context), coordinates,
+                syncTtlMillis);
+    }
+
+    /*
+     * Tests call this with a resolver for a database of their own, and a fetcher that stands in
+     * for the network. The weather is fetched by coordinates if there are any (latitude, then
+     * longitude), and by the location's name otherwise. Either way it is stored under the name.
+     */
+    synchronized static void syncWeather(ContentResolver resolver, ForecastFetcher fetcher,
+                                         String location, double[] coordinates,
+                                         long syncTtlMillis) {
+        long lastFetchMillis = 0;
+        String lastETag = null;
+        String lastContentHash = null;
+        long lastFirstDate = NO_FIRST_DATE;
+        boolean lastStale = false;
+        Cursor metadata = resolver.query(
+                SyncMetadataEntry.CONTENT_URI,
+                SYNC_METADATA_PROJECTION,
+                SyncMetadataEntry.COLUMN_LOCATION + " = ?",
+                new String[]{location},
+                null);
+        if (metadata != null) {
+            try {
+                if (metadata.moveToFirst()) {
+                    lastFetchMillis = metadata.getLong(INDEX_LAST_FETCH);
+                    lastETag = metadata.getString(INDEX_ETAG);
+                    lastContentHash = metadata.getString(INDEX_CONTENT_HASH);
+                    if (!metadata.isNull(INDEX_FIRST_DATE)) {
+                        lastFirstDate = metadata.getLong(INDEX_FIRST_DATE);
+                    }
+                    lastStale = metadata.getInt(INDEX_STALE) != 0;
+                }
+            } finally {
+                metadata.close();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        /* The same day the parser dates a response from */
+        long today = SunshineDateUtils.normalizeDate(SunshineDateUtils.getUTCDateFromLocal(now));
+        if (now - lastFetchMillis < syncTtlMillis && lastFirstDate == today && !lastStale) {
+            Log.d(TAG, "Weather for " + location + " is fresh, skipping sync");
+            return;
+        }
+
+        ForecastFetcher.Result result;
+        try {
+            result = coordinates != null
+                    ? fetcher.fetch(location, coordinates[0], coordinates[1]).get()
+                    : fetcher.fetch(location).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Sync failed for " + location, e.getCause());
+            return;
+        }
+
+        if (result.isStale()) {
+            /*
+             * The rows we already have stay in place; try again on the next sync. Everything
+             * else about the last good fetch is kept, so that it is still compared against.
+             */
+            Log.w(TAG, "Sync failed for " + location, result.error);
+            writeMetadata(resolver, location, lastFetchMillis, lastETag, lastContentHash,
+                    lastFirstDate, true);
+            return;
+        }
+
+        /*
+         * The location, the weather and the sync metadata are written one after the other.
+         * Batching their notifications means observers reload once, after all of them. The batch
+         * is only opened now that the fetch is done, because every notification the provider
+         * sends is held back while it is open.
+         */
+        resolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_BEGIN_NOTIFICATION_BATCH, null, null);
+        try {
+            String contentHash = lastContentHash;
+            long firstDate = lastFirstDate;
+            if (result.contentHash != null && result.contentHash.equals(lastContentHash)
+                    && getFirstDate(result.weatherValues) == lastFirstDate) {
+                Log.d(TAG, "Weather for " + location + " has the same content, skipping insert");
+            } else if (result.weatherValues.length != 0) {
+                /*
+                 * Insert for this location explicitly, rather than through
+                 * WeatherEntry.CONTENT_URI, in case the preferred location changes while we sync.
+                 */
+                long locationId = getOrCreateLocationId(resolver, location);
+                resolver.bulkInsert(LocationEntry.buildWeatherUri(locationId),
+                        result.weatherValues);
+                contentHash = result.contentHash;
+                firstDate = getFirstDate(result.weatherValues);
+            }
+
+            writeMetadata(resolver, location, now,
+                    result.eTag != null ? result.eTag : lastETag, contentHash, firstDate, false);
+        } finally {
+            resolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_END_NOTIFICATION_BATCH, null, null);
+        }
+    }
+
+    /**
+     * Deletes the weather that has fallen out of the retention window, for every location, and
+     * compacts the database. This is done in small batches, so it can run alongside a sync.
+     *
+     * @param context         Used to access the ContentResolver
+     * @param retentionMillis How far back from today weather is kept
+     */
+    public static void compactWeather(Context context, long retentionMillis) {
+        Bundle report = context.getContentResolver().call(
+                WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_COMPACT,
+                Long.toString(retentionMillis),
+                null);
+        if (report != null) {
+            Log.d(TAG, "Compacted weather: " + report.getInt(WeatherContract.RESULT_ROWS_DELETED)
+                    + " rows and " + report.getLong(WeatherContract.RESULT_BYTES_RECLAIMED)
+                    + " bytes in " + report.getLong(WeatherContract.RESULT_ELAPSED_MILLIS) + "ms");
+        }
+    }
+
+    /**
+     * Writes a location's row of sync metadata, replacing the one it had.
+     */
+    private static void writeMetadata(ContentResolver resolver, String location,
+                                      long lastFetchMillis, String eTag, String contentHash,
+                                      long firstDate, boolean stale) {
+        ContentValues metadataValues = new ContentValues();
+        metadataValues.put(SyncMetadataEntry.COLUMN_LOCATION, location);
+        metadataValues.put(SyncMetadataEntry.COLUMN_LAST_FETCH, lastFetchMillis);
+        metadataValues.put(SyncMetadataEntry.COLUMN_ETAG, eTag);
+        metadataValues.put(SyncMetadataEntry.COLUMN_CONTENT_HASH, contentHash);
+        if (firstDate != NO_FIRST_DATE) {
+            metadataValues.put(SyncMetadataEntry.COLUMN_FIRST_DATE, firstDate);
+        }
+        metadataValues.put(SyncMetadataEntry.COLUMN_STALE, stale ? 1 : 0);
+        resolver.bulkInsert(SyncMetadataEntry.CONTENT_URI, new ContentValues[]{metadataValues});
+    }
+
+    /**
+     * @param weatherValues Weather rows in date order
+     * @return The date of the first row, or NO_FIRST_DATE if there are none
+     */
+    private static long getFirstDate(ContentValues[] weatherValues) {
+        if (weatherValues.length == 0) return NO_FIRST_DATE;
+        Long firstDate = weatherValues[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        return firstDate != null ? firstDate : NO_FIRST_DATE;
+    }
+
+    /**
+     * Looks up the _ID of a location in the location table.
+     *
+     * @param resolver        The ContentResolver to query
+     * @param locationSetting The location query string
+     * @return The _ID of the location, or -1 if it isn't in the table
+     */
+    static long getLocationId(ContentResolver resolver, String locationSetting) {
+        Cursor cursor = resolver.query(
+                LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (cursor == null) return -1;
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long getOrCreateLocationId(ContentResolver resolver, String locationSetting) {
+        long locationId = getLocationId(resolver, locationSetting);
+        if (locationId == -1) {
+            ContentValues locationValues = new ContentValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            resolver.bulkInsert(LocationEntry.CONTENT_URI, new ContentValues[]{locationValues});
+            locationId = getLocationId(resolver, locationSetting);
+        }
+        return locationId;
+    }
+
+    private static ForecastFetcher getFetcher(Context context) {
+        if (sFetcher == null) {
+            sFetcher = new ForecastFetcher(context, 2);
+        }
+        return sFetcher;
+    }
+}
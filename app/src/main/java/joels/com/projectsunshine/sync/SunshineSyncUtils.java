@@ -0,0 +1,20 @@
+package joels.com.projectsunshine.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.NonNull;
+
+public class SunshineSyncUtils {
+
+    /**
+     * Helper method to perform a sync immediately using an IntentService for asynchronous
+     * execution. Whether the network is actually used is decided by {@link SunshineSyncTask},
+     * so it is cheap to call this on every launch.
+     *
+     * @param context The Context used to start the IntentService for the sync.
+     */
+    public static void startImmediateSync(@NonNull final Context context) {
+        Intent intentToSyncImmediately = new Intent(context, SunshineSyncIntentService.class);
+        context.startService(intentToSyncImmediately);
+    }
+}
@@ -0,0 +1,122 @@
+package joels.com.projectsunshine.utilities;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Snaps coordinates onto a grid of roughly square cells, and caches the forecast URL built for
+ * each cell. Every position inside a cell maps to the same URL, so a user moving around a few
+ * hundred meters reuses the same cached response (and in-flight request) instead of producing a
+ * cache miss for every small change in GPS position.
+ */
+public final class CoordinateGrid {
+
+    /* Length of one degree of latitude, and of longitude at the equator, in meters */
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    /* How many cells' URLs we remember */
+    private static final int MAX_CACHED_CELLS = 64;
+
+    private final double mCellSizeMeters;
+    private final double mLatitudeStep;
+
+    private final LinkedHashMap<String, URL> mUrlsByCell =
+            new LinkedHashMap<String, URL>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, URL> eldest) {
+                    return size() > MAX_CACHED_CELLS;
+                }
+            };
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * @param cellSizeMeters The approximate width and height of one grid cell, e.g. 1000 for
+     *                       ~1 km cells
+     */
+    public CoordinateGrid(double cellSizeMeters) {
+        if (cellSizeMeters <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSizeMeters);
+        }
+        mCellSizeMeters = cellSizeMeters;
+        mLatitudeStep = cellSizeMeters / METERS_PER_DEGREE;
+    }
+
+    public double getCellSizeMeters() {
+        return mCellSizeMeters;
+    }
+
+    /**
+     * Snaps a coordinate onto the center of the grid cell that contains it. Latitude is snapped
+     * first; the longitude step is then widened by the latitude so that cells stay about
+     * cellSizeMeters wide away from the equator.
+     *
+     * @param lat The latitude
+     * @param lon The longitude
+     * @return {snappedLat, snappedLon}
+     */
+    public double[] snap(double lat, double lon) {
+        long latIndex = (long) Math.floor(lat / mLatitudeStep);
+        double snappedLat = (latIndex + 0.5) * mLatitudeStep;
+
+        double lonStep = getLongitudeStep(snappedLat);
+        long lonIndex = (long) Math.floor(lon / lonStep);
+        double snappedLon = (lonIndex + 0.5) * lonStep;
+
+        return new double[]{
+                Math.max(-90, Math.min(90, snappedLat)),
+                Math.max(-180, Math.min(180, snappedLon))};
+    }
+
+    /**
+     * Returns the URL cached for the cell containing a coordinate.
+     *
+     * @param lat The latitude
+     * @param lon The longitude
+     * @return The cached URL, or null on a miss
+     */
+    synchronized URL getCachedUrl(double lat, double lon) {
+        URL url = mUrlsByCell.get(cellKey(lat, lon));
+        if (url != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return url;
+    }
+
+    synchronized void putCachedUrl(double lat, double lon, URL url) {
+        mUrlsByCell.put(cellKey(lat, lon), url);
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return The fraction of lookups that were served from the cache, or 0 if there were none
+     */
+    public synchronized double getHitRate() {
+        long lookups = mHitCount + mMissCount;
+        return lookups == 0 ? 0 : (double) mHitCount / lookups;
+    }
+
+    private String cellKey(double lat, double lon) {
+        long latIndex = (long) Math.floor(lat / mLatitudeStep);
+        double lonStep = getLongitudeStep((latIndex + 0.5) * mLatitudeStep);
+        long lonIndex = (long) Math.floor(lon / lonStep);
+        return latIndex + ":" + lonIndex;
+    }
+
+    private double getLongitudeStep(double lat) {
+        /* Near the poles cos() approaches 0; cap the step so a cell never exceeds the globe */
+        double cosLat = Math.max(Math.cos(Math.toRadians(lat)), mLatitudeStep / 360);
+        return Math.min(360, mLatitudeStep / cosLat);
+    }
+}
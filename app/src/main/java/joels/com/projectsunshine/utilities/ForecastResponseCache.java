@@ -0,0 +1,545 @@
+package joels.com.projectsunshine.utilities;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An on-disk cache of weather server responses, keyed by the URL built by
+ * {@link NetworkUtils#buildUrl(String)} or {@link NetworkUtils#buildUrl(Double, Double)}. For
+ * every response we keep the body along with its ETag, Last-Modified and max-age, so that the
+ * next request for the same URL can be made conditional, or skipped entirely while the response
+ * is still fresh.
+ * <p>
+ * Entries live in the app's cache directory, so they survive process restarts. The total size of
+ * the cached bodies is bounded, and the least recently used entries are evicted first.
+ * <p>
+ * A body is only stored once its consumer has accepted it with {@link #commit(InputStream)}, so
+ * a response that couldn't be parsed, or that carried an error, never becomes an entry that later
+ * requests are revalidated against.
+ */
+public final class ForecastResponseCache {
+
+    private static final String TAG = ForecastResponseCache.class.getSimpleName();
+
+    private static final String CACHE_DIRECTORY = "forecast-responses";
+
+    /* A 14 day forecast is a few kilobytes, so this holds the responses for many locations */
+    private static final long MAX_SIZE_BYTES = 1024 * 1024;
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String MAX_AGE = "max-age=";
+
+    private static final String SUFFIX_META = ".meta";
+    private static final String SUFFIX_BODY = ".body";
+    private static final String SUFFIX_TEMP = ".tmp";
+
+    private static ForecastResponseCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+
+    /* Cache key to the size of its body, iterated from least to most recently used */
+    private final LinkedHashMap<String, Long> mEntrySizes =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private long mSize;
+
+    /**
+     * The validators and freshness information stored for one cached response.
+     */
+    public static final class Entry {
+
+        final String url;
+        final String eTag;
+        final String lastModified;
+        final long expiresAtMillis;
+
+        Entry(String url, String eTag, String lastModified, long expiresAtMillis) {
+            this.url = url;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        /**
+         * @return The ETag the server sent with the response, or null if it didn't send one
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @param nowMillis The current time in milliseconds
+         * @return true if the server's max-age has not yet passed, in which case the server does
+         * not need to be asked at all.
+         */
+        public boolean isFresh(long nowMillis) {
+            return nowMillis < expiresAtMillis;
+        }
+
+        /**
+         * @return true if the server gave us something to make a conditional request with.
+         */
+        boolean hasValidators() {
+            return eTag != null || lastModified != null;
+        }
+
+        /**
+         * Adds If-None-Match / If-Modified-Since to a request so the server can answer with
+         * 304 Not Modified instead of the full body.
+         *
+         * @param urlConnection The connection, before it is connected
+         */
+        void addConditionalHeaders(HttpURLConnection urlConnection) {
+            if (eTag != null) {
+                urlConnection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+        }
+
+        /**
+         * Reads the validators and max-age from a response.
+         *
+         * @param url           The URL that was requested
+         * @param urlConnection A connection whose response headers have been received
+         * @param nowMillis     The current time in milliseconds
+         * @return The cache entry for the response
+         */
+        static Entry fromResponse(URL url, HttpURLConnection urlConnection, long nowMillis) {
+            long maxAgeSeconds = parseMaxAge(urlConnection.getHeaderField(HEADER_CACHE_CONTROL));
+            return new Entry(url.toString(),
+                    urlConnection.getHeaderField(HEADER_ETAG),
+                    urlConnection.getHeaderField(HEADER_LAST_MODIFIED),
+                    nowMillis + maxAgeSeconds * SunshineDateUtils.SECOND_IN_MILLIS);
+        }
+
+        /**
+         * A 304 response may carry new validators or a new max-age. Anything it leaves out is
+         * carried over from this entry.
+         */
+        Entry revalidatedWith(Entry notModified) {
+            return new Entry(url,
+                    notModified.eTag != null ? notModified.eTag : eTag,
+                    notModified.lastModified != null ? notModified.lastModified : lastModified,
+                    notModified.expiresAtMillis);
+        }
+    }
+
+    /**
+     * @param directory    Where the entries are kept
+     * @param maxSizeBytes The total size of the bodies, above which entries are evicted
+     */
+    ForecastResponseCache(File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        loadIndex();
+    }
+
+    /**
+     * @param context Used to find the app's cache directory
+     * @return The process-wide response cache
+     */
+    public static synchronized ForecastResponseCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY);
+            sInstance = new ForecastResponseCache(directory, MAX_SIZE_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the stored validators for a URL, marking the entry as recently used.
+     *
+     * @param url The request URL
+     * @return The cache entry, or null if the URL has not been cached
+     */
+    public synchronized Entry get(URL url) {
+        String key = keyFor(url);
+        /* get, not containsKey: only get moves the entry to the end of the LRU order */
+        if (mEntrySizes.get(key) == null) return null;
+
+        Entry entry = readMeta(key);
+        if (entry == null || !entry.url.equals(url.toString())) {
+            /* Unreadable, or a hash collision: either way, this isn't our entry */
+            remove(key);
+            return null;
+        }
+        metaFile(key).setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Opens the last body that was stored for a URL, for when the server has told us (by a 304,
+     * or by a max-age that hasn't passed) that it is still current.
+     *
+     * @param url The request URL
+     * @return The cached body, or null if there is none. The caller must close it.
+     */
+    public synchronized InputStream openCachedBody(URL url) {
+        if (get(url) == null) return null;
+        try {
+            return new FileInputStream(bodyFile(keyFor(url)));
+        } catch (IOException e) {
+            remove(keyFor(url));
+            return null;
+        }
+    }
+
+    /**
+     * Drops the entry for a URL, so that the next request for it is sent unconditionally.
+     *
+     * @param url The request URL
+     */
+    public synchronized void remove(URL url) {
+        remove(keyFor(url));
+    }
+
+    /**
+     * Stores the new validators for an entry after the server answered 304 Not Modified. The
+     * body on disk is left untouched.
+     *
+     * @param entry The revalidated entry
+     */
+    synchronized void update(Entry entry) {
+        try {
+            writeMeta(keyFor(entry.url), entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't update cache entry for " + entry.url, e);
+        }
+    }
+
+    /**
+     * Wraps a response body so that it is written to a temporary file as it is read. The entry
+     * is only stored if the consumer accepts the body with {@link #commit(InputStream)}; closing
+     * the stream without committing it throws the temporary file away. That way a partial
+     * download, or a body the consumer couldn't use, never replaces a good entry.
+     *
+     * @param entry The validators for the response
+     * @param body  The response body
+     * @return A stream that reads the same bytes as body
+     */
+    InputStream cacheWhileReading(Entry entry, InputStream body) {
+        String key = keyFor(entry.url);
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                return body;
+            }
+            /* Every writer gets its own file, so two downloads of one URL can't mix their bytes */
+            File tempFile = File.createTempFile(key, SUFFIX_TEMP, mDirectory);
+            return new CachingInputStream(body, new FileOutputStream(tempFile), key, entry, tempFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't cache response for " + entry.url, e);
+            return body;
+        }
+    }
+
+    /**
+     * Accepts a body returned by {@link NetworkUtils#getResponseStreamFromHttpUrl(Context, URL)}:
+     * whatever is left of it is read, and it is stored as the cache entry for its URL. Call this
+     * once the body has been parsed successfully, before closing it. A body that isn't being
+     * cached is left alone.
+     *
+     * @param body The response body
+     * @throws IOException If the rest of the body cannot be read
+     */
+    public static void commit(InputStream body) throws IOException {
+        if (body instanceof CachingInputStream) {
+            ((CachingInputStream) body).commit();
+        }
+    }
+
+    private synchronized void commit(String key, Entry entry, File tempFile) {
+        try {
+            File bodyFile = bodyFile(key);
+            remove(key);
+            if (!tempFile.renameTo(bodyFile)) {
+                throw new IOException("Couldn't rename " + tempFile);
+            }
+            writeMeta(key, entry);
+            mEntrySizes.put(key, bodyFile.length());
+            mSize += bodyFile.length();
+            trimToSize();
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't commit cache entry for " + entry.url, e);
+            tempFile.delete();
+            remove(key);
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> eldest = mEntrySizes.entrySet().iterator();
+        while (mSize > mMaxSizeBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            mSize -= entry.getValue();
+            eldest.remove();
+            metaFile(entry.getKey()).delete();
+            bodyFile(entry.getKey()).delete();
+        }
+    }
+
+    private void remove(String key) {
+        Long size = mEntrySizes.remove(key);
+        if (size != null) mSize -= size;
+        metaFile(key).delete();
+        bodyFile(key).delete();
+    }
+
+    /**
+     * Rebuilds the LRU order from disk. The meta file of an entry is touched every time it is
+     * used, so sorting by its modification time restores the order from the last process.
+     */
+    private void loadIndex() {
+        File[] metaFiles = mDirectory.listFiles();
+        if (metaFiles == null) return;
+
+        Arrays.sort(metaFiles, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long lhs = a.lastModified();
+                long rhs = b.lastModified();
+                return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+            }
+        });
+
+        for (File file : metaFiles) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX_TEMP)) {
+                /* Left over from a download that was interrupted */
+                file.delete();
+            } else if (name.endsWith(SUFFIX_META)) {
+                String key = name.substring(0, name.length() - SUFFIX_META.length());
+                File bodyFile = bodyFile(key);
+                if (bodyFile.isFile()) {
+                    mEntrySizes.put(key, bodyFile.length());
+                    mSize += bodyFile.length();
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        trimToSize();
+    }
+
+    private Entry readMeta(String key) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(metaFile(key)));
+            String url = in.readUTF();
+            String eTag = in.readBoolean() ? in.readUTF() : null;
+            String lastModified = in.readBoolean() ? in.readUTF() : null;
+            long expiresAtMillis = in.readLong();
+            return new Entry(url, eTag, lastModified, expiresAtMillis);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeMeta(String key, Entry entry) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(metaFile(key)));
+        try {
+            out.writeUTF(entry.url);
+            out.writeBoolean(entry.eTag != null);
+            if (entry.eTag != null) out.writeUTF(entry.eTag);
+            out.writeBoolean(entry.lastModified != null);
+            if (entry.lastModified != null) out.writeUTF(entry.lastModified);
+            out.writeLong(entry.expiresAtMillis);
+        } finally {
+            out.close();
+        }
+    }
+
+    private File metaFile(String key) {
+        return new File(mDirectory, key + SUFFIX_META);
+    }
+
+    private File bodyFile(String key) {
+        return new File(mDirectory, key + SUFFIX_BODY);
+    }
+
+    private static String keyFor(URL url) {
+        return keyFor(url.toString());
+    }
+
+    private static String keyFor(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            /* Every Android device ships MD5 and UTF-8 */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses the max-age directive of a Cache-Control header.
+     *
+     * @param cacheControl The header value, may be null
+     * @return max-age in seconds, or 0 if the response must always be revalidated
+     */
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) return 0;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.equalsIgnoreCase("no-cache") || directive.equalsIgnoreCase("no-store")) {
+                return 0;
+            }
+            if (directive.regionMatches(true, 0, MAX_AGE, 0, MAX_AGE.length())) {
+                try {
+                    return Math.max(0, Long.parseLong(directive.substring(MAX_AGE.length()).trim()));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null) return;
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Copies every byte read from the response into a temporary file, which becomes the cache
+     * entry when the consumer commits it.
+     */
+    private class CachingInputStream extends FilterInputStream {
+
+        private final OutputStream mCacheOut;
+        private final String mKey;
+        private final Entry mEntry;
+        private final File mTempFile;
+
+        private boolean mFailed;
+        private boolean mReachedEnd;
+        private boolean mCacheOutClosed;
+        private boolean mCommitted;
+        private boolean mClosed;
+
+        CachingInputStream(InputStream in, OutputStream cacheOut, String key, Entry entry, File tempFile) {
+            super(in);
+            mCacheOut = cacheOut;
+            mKey = key;
+            mEntry = entry;
+            mTempFile = tempFile;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                mReachedEnd = true;
+            } else if (!mFailed) {
+                try {
+                    mCacheOut.write(b);
+                } catch (IOException e) {
+                    mFailed = true;
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read == -1) {
+                mReachedEnd = true;
+            } else if (!mFailed) {
+                try {
+                    mCacheOut.write(buffer, offset, read);
+                } catch (IOException e) {
+                    mFailed = true;
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            /* Skipped bytes still have to make it into the cache */
+            byte[] buffer = new byte[(int) Math.min(count, 1024)];
+            int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        void commit() throws IOException {
+            if (mClosed) {
+                throw new IOException("Body was closed before it was committed");
+            }
+            if (mCommitted) return;
+            mCommitted = true;
+
+            /* Read whatever the parser left behind, so the cached body is complete */
+            byte[] buffer = new byte[1024];
+            while (!mReachedEnd && read(buffer, 0, buffer.length) != -1) {
+                /* Keep reading */
+            }
+            closeCacheOut();
+
+            if (!mFailed) {
+                ForecastResponseCache.this.commit(mKey, mEntry, mTempFile);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) return;
+            mClosed = true;
+            try {
+                in.close();
+            } finally {
+                closeCacheOut();
+                /* Renamed away if it was committed, otherwise the body is abandoned */
+                mTempFile.delete();
+            }
+        }
+
+        private void closeCacheOut() {
+            if (mCacheOutClosed) return;
+            mCacheOutClosed = true;
+            try {
+                mCacheOut.close();
+            } catch (IOException e) {
+                mFailed = true;
+            }
+        }
+    }
+}
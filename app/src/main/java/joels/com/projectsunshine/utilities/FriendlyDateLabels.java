@@ -0,0 +1,146 @@
+package joels.com.projectsunshine.utilities;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Remembers the labels {@link SunshineDateUtils#getFriendlyDateString} makes for the days around
+ * today, so that a list of forecasts formats each day once instead of on every bind.
+ * <p>
+ * The labels hold for one local day, in one time zone and locale: "Today" becomes "Yesterday's"
+ * date at midnight, and every label changes with the locale. So the labels are kept in a window
+ * that knows when its day ends, and that is thrown away when the time zone, locale or clock
+ * changes. Within a window, a label is found by its day number relative to today.
+ * <p>
+ * This class is safe to call from any thread. A window is never changed once it is published,
+ * apart from filling in its labels, and two threads filling in the same label store equal
+ * Strings.
+ */
+public final class FriendlyDateLabels {
+
+    /* The days, relative to today, that have a slot in the window */
+    private static final int FIRST_DAY = -7;
+    private static final int LAST_DAY = 28;
+
+    private static volatile Window sWindow;
+
+    private static final Object sReceiverLock = new Object();
+    private static boolean sReceiverRegistered;
+
+    private FriendlyDateLabels() {
+    }
+
+    /**
+     * The labels for one local day.
+     */
+    private static final class Window {
+        final TimeZone timeZone;
+        final Locale locale;
+        final long currentDayNumber;
+
+        /* The window holds from local midnight today until local midnight tonight */
+        final long validFromMillis;
+        final long validUntilMillis;
+
+        final String[] labels = new String[LAST_DAY - FIRST_DAY + 1];
+        final String[] fullLabels = new String[LAST_DAY - FIRST_DAY + 1];
+
+        Window(long now, Locale locale) {
+            this.timeZone = TimeZone.getDefault();
+            this.locale = locale;
+            currentDayNumber = (now + timeZone.getOffset(now)) / SunshineDateUtils.DAY_IN_MILLIS;
+
+            long todayStart = currentDayNumber * SunshineDateUtils.DAY_IN_MILLIS;
+            validFromMillis = todayStart - timeZone.getOffset(todayStart);
+            long tomorrowStart = todayStart + SunshineDateUtils.DAY_IN_MILLIS;
+            validUntilMillis = tomorrowStart - timeZone.getOffset(tomorrowStart);
+        }
+    }
+
+    /**
+     * Returns the same as {@link SunshineDateUtils#getFriendlyDateString}, from the window for
+     * today if the label has been made before.
+     *
+     * @param context      Context to use for resource localization
+     * @param dateInMillis The date in milliseconds (UTC)
+     * @param showFullDate Whether to show the full date, as well as the day
+     * @return A user-friendly representation of the date such as "Today, June 8", "Tomorrow",
+     * or "Friday"
+     */
+    public static String getFriendlyDateString(Context context, long dateInMillis, boolean showFullDate) {
+        Window window = getWindow(context);
+
+        /* The same conversion as getLocalDateFromUTC and getDayNumber, in the window's zone */
+        TimeZone timeZone = window.timeZone;
+        long localDate = dateInMillis - timeZone.getOffset(dateInMillis);
+        long dayNumber = (localDate + timeZone.getOffset(localDate)) / SunshineDateUtils.DAY_IN_MILLIS;
+
+        long relativeDay = dayNumber - window.currentDayNumber;
+        if (relativeDay < FIRST_DAY || relativeDay > LAST_DAY) {
+            return SunshineDateUtils.formatFriendlyDateString(context, localDate, dayNumber,
+                    window.currentDayNumber, showFullDate);
+        }
+
+        String[] labels = showFullDate ? window.fullLabels : window.labels;
+        int slot = (int) (relativeDay - FIRST_DAY);
+        String label = labels[slot];
+        if (label == null) {
+            label = SunshineDateUtils.formatFriendlyDateString(context, localDate, dayNumber,
+                    window.currentDayNumber, showFullDate);
+            labels[slot] = label;
+        }
+        return label;
+    }
+
+    /**
+     * Throws the labels away. They are made again, for the current day, time zone and locale,
+     * the next time they are asked for.
+     */
+    public static void invalidate() {
+        sWindow = null;
+    }
+
+    private static Window getWindow(Context context) {
+        long now = System.currentTimeMillis();
+        Locale locale = Locale.getDefault();
+
+        Window window = sWindow;
+        if (window == null
+                || now < window.validFromMillis
+                || now >= window.validUntilMillis
+                || !window.locale.equals(locale)) {
+            registerReceiver(context);
+            window = new Window(now, locale);
+            sWindow = window;
+        }
+        return window;
+    }
+
+    /*
+     * Midnight is caught by the window's end, but a change of time zone, locale or clock
+     * can happen at any time, so we listen for those.
+     */
+    private static void registerReceiver(Context context) {
+        synchronized (sReceiverLock) {
+            if (sReceiverRegistered) return;
+
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+            filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+            filter.addAction(Intent.ACTION_TIME_CHANGED);
+            filter.addAction(Intent.ACTION_DATE_CHANGED);
+            context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    invalidate();
+                }
+            }, filter);
+            sReceiverRegistered = true;
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package joels.com.projectsunshine.utilities;
 
+import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
 
 /**
  * These utilities will be used to communicate with the weather servers.
@@ -46,6 +50,36 @@ public final class NetworkUtils {
     final static String UNITS_PARAM = "units";
     final static String DAYS_PARAM = "cnt";
 
+    /*
+     * Without explicit timeouts HttpURLConnection can wait forever on a dead server, which would
+     * leave a refresh hanging with the loading indicator showing.
+     */
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+
+    /* HttpURLConnection has no constant for this one */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /* Coordinates within about this many meters of each other share one forecast request */
+    private static final double DEFAULT_GRID_CELL_METERS = 1000;
+
+    private static volatile CoordinateGrid sCoordinateGrid =
+            new CoordinateGrid(DEFAULT_GRID_CELL_METERS);
+
+    /* Size of the buffer used to copy response bodies. One buffer is kept per thread. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final ThreadLocal<byte[]> sReadBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
     /**
      * Builds the URL used to talk to the weather server using a location. This location is based
      * on the query capabilities of the weather provider that we are using.
@@ -81,8 +115,53 @@ public final class NetworkUtils {
      * @return The Url to use to query the weather server.
      */
     public static URL buildUrl(Double lat, Double lon) {
-        /** This will be implemented in a future lesson **/
-        return null;
+        CoordinateGrid grid = sCoordinateGrid;
+
+        URL url = grid.getCachedUrl(lat, lon);
+        if (url != null) {
+            return url;
+        }
+
+        /*
+         * Nearby positions are snapped onto the same grid cell, so they share one URL and
+         * therefore one cached response and one in-flight request.
+         */
+        double[] snapped = grid.snap(lat, lon);
+        Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+                .appendQueryParameter(LAT_PARAM, String.format(Locale.US, "%.5f", snapped[0]))
+                .appendQueryParameter(LON_PARAM, String.format(Locale.US, "%.5f", snapped[1]))
+                .appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .build();
+        try {
+            url = new URL(builtUri.toString());
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        Log.v(TAG, "Built URI " + url);
+
+        grid.putCachedUrl(lat, lon, url);
+        return url;
+    }
+
+    /**
+     * Changes the size of the cells that {@link #buildUrl(Double, Double)} snaps coordinates onto.
+     * This starts a new grid, with its own URL cache and hit-rate metrics.
+     *
+     * @param cellSizeMeters The approximate width and height of one cell, in meters
+     */
+    public static void setCoordinateGridCellSize(double cellSizeMeters) {
+        sCoordinateGrid = new CoordinateGrid(cellSizeMeters);
+    }
+
+    /**
+     * @return The grid used by {@link #buildUrl(Double, Double)}, for its hit-rate metrics
+     */
+    public static CoordinateGrid getCoordinateGrid() {
+        return sCoordinateGrid;
     }
 
     /**
@@ -93,21 +172,242 @@ public final class NetworkUtils {
      * @throws IOException Related to network and stream reading
      */
     public static String getResponseFromHttpUrl(URL url) throws IOException {
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        InputStream in = getResponseStreamFromHttpUrl(url);
         try {
-            InputStream in = urlConnection.getInputStream();
-
-            Scanner scanner = new Scanner(in);
-            scanner.useDelimiter("\\A");
+            ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+            byte[] buffer = sReadBuffer.get();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
 
-            boolean hasInput = scanner.hasNext();
-            if (hasInput) {
-                return scanner.next();
-            } else {
+            if (body.size() == 0) {
                 return null;
             }
+            return body.toString("UTF-8");
         } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens the HTTP response for the given URL and returns its body as a stream, so that callers
+     * such as {@link OpenWeatherJsonUtils#getFullWeatherDataFromJson(android.content.Context,
+     * InputStream)} can parse it without first reading it into a String. A gzip encoded body is
+     * decompressed on the fly.
+     * <p>
+     * The caller must close the returned stream. Closing it (rather than disconnecting) hands the
+     * underlying socket back to the connection pool so the next request can reuse it.
+     *
+     * @param url The URL to fetch the HTTP response from.
+     * @return The body of the HTTP response.
+     * @throws IOException Related to network and stream reading
+     */
+    public static InputStream getResponseStreamFromHttpUrl(URL url) throws IOException {
+        HttpURLConnection urlConnection = openConnection(url);
+        try {
+            return openResponseBody(urlConnection);
+        } catch (IOException e) {
+            /* The connection is in an unknown state, so don't let it go back into the pool */
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Like {@link #getResponseStreamFromHttpUrl(URL)}, but goes through the on-disk
+     * {@link ForecastResponseCache}. If the last response for this URL is still within its
+     * max-age, the network is skipped. Otherwise the request is sent with If-None-Match /
+     * If-Modified-Since, and a 304 Not Modified answer means nothing is downloaded.
+     * <p>
+     * In both of those cases the cached body is returned, so the caller parses it again. The
+     * forecast's days are dated from the day it is parsed on, so an unchanged body still has to
+     * be parsed again once the day has moved on.
+     * <p>
+     * A new body is only stored in the cache if the caller passes it to
+     * {@link ForecastResponseCache#commit(InputStream)} after parsing it successfully.
+     *
+     * @param context Used to access the response cache
+     * @param url     The URL to fetch the HTTP response from.
+     * @return The body of the HTTP response, or the cached body if that is still valid.
+     * @throws IOException Related to network and stream reading
+     */
+    public static InputStream getResponseStreamFromHttpUrl(Context context, URL url) throws IOException {
+        return getResponseStreamFromHttpUrl(ForecastResponseCache.getInstance(context), url);
+    }
+
+    /*
+     * Tests call this with a cache of their own.
+     */
+    static InputStream getResponseStreamFromHttpUrl(ForecastResponseCache cache, URL url)
+            throws IOException {
+        ForecastResponseCache.Entry cachedEntry = cache.get(url);
+
+        if (cachedEntry != null && cachedEntry.isFresh(System.currentTimeMillis())) {
+            InputStream cachedBody = cache.openCachedBody(url);
+            if (cachedBody != null) {
+                return cachedBody;
+            }
+            /* The body couldn't be opened, and the entry with it is gone, so ask in full */
+            cachedEntry = null;
+        }
+
+        HttpURLConnection urlConnection = openConnection(url);
+        if (cachedEntry != null) {
+            cachedEntry.addConditionalHeaders(urlConnection);
+        }
+
+        try {
+            int responseCode = urlConnection.getResponseCode();
+            ForecastResponseCache.Entry responseEntry =
+                    ForecastResponseCache.Entry.fromResponse(url, urlConnection, System.currentTimeMillis());
+
+            if (responseCode != HttpURLConnection.HTTP_NOT_MODIFIED || cachedEntry == null) {
+                InputStream body = openResponseBody(urlConnection);
+                if (!responseEntry.hasValidators() && !responseEntry.isFresh(System.currentTimeMillis())) {
+                    /* Nothing to revalidate with later, so there is no point in caching it */
+                    return body;
+                }
+                return cache.cacheWhileReading(responseEntry, body);
+            }
+
+            cache.update(cachedEntry.revalidatedWith(responseEntry));
+            /* A 304 has no body, but closing it returns the connection to the pool */
+            openResponseBody(urlConnection).close();
+        } catch (IOException e) {
             urlConnection.disconnect();
+            throw e;
+        }
+
+        InputStream cachedBody = cache.openCachedBody(url);
+        if (cachedBody != null) {
+            return cachedBody;
+        }
+        /*
+         * The body was evicted since we looked, which took the entry with it, so this request
+         * goes out without validators and gets the whole response.
+         */
+        return getResponseStreamFromHttpUrl(cache, url);
+    }
+
+    /**
+     * Creates a connection for the URL with our timeouts and encoding set. The connection is not
+     * disconnected when we are done with it, which leaves keep-alive to HttpURLConnection's pool.
+     *
+     * @param url The URL to connect to.
+     * @return A connection that has not been connected yet.
+     * @throws IOException If the connection cannot be created
+     */
+    static HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        /*
+         * Once we set Accept-Encoding ourselves, HttpURLConnection no longer decompresses the
+         * body for us. That is handled in openResponseBody.
+         */
+        urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+        return urlConnection;
+    }
+
+    /**
+     * Returns the body of a connection's response, wrapped in a GZIPInputStream if the server
+     * compressed it.
+     *
+     * @param urlConnection A connection created by {@link #openConnection(URL)}
+     * @return The (decompressed) body of the response.
+     * @throws IOException If the server responded with an error or the body cannot be read
+     */
+    static InputStream openResponseBody(HttpURLConnection urlConnection) throws IOException {
+        InputStream in;
+        try {
+            in = urlConnection.getInputStream();
+        } catch (IOException e) {
+            /*
+             * For error responses the body is on the error stream. Reading it to the end lets
+             * the connection be reused for the next request.
+             */
+            discardErrorStream(urlConnection);
+
+            int responseCode = urlConnection.getResponseCode();
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new HttpStatusException(urlConnection.getURL(), responseCode);
+            }
+            throw e;
+        }
+
+        if (ENCODING_GZIP.equalsIgnoreCase(urlConnection.getContentEncoding())) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return new DrainingInputStream(in);
+    }
+
+    private static void discardErrorStream(HttpURLConnection urlConnection) {
+        InputStream errorStream = urlConnection.getErrorStream();
+        if (errorStream == null) return;
+        try {
+            byte[] buffer = sReadBuffer.get();
+            while (errorStream.read(buffer) != -1) {
+                /* Discard the error body */
+            }
+        } catch (IOException ignored) {
+            /* Nothing to recover; the connection simply won't be reused */
+        } finally {
+            try {
+                errorStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Thrown when the weather server answers with an HTTP error status, so that callers can tell
+     * errors worth retrying (5xx, 429) apart from ones that will never succeed (e.g. 404).
+     */
+    public static class HttpStatusException extends IOException {
+
+        private final int mResponseCode;
+
+        HttpStatusException(URL url, int responseCode) {
+            super("Server returned HTTP " + responseCode + " for " + url);
+            mResponseCode = responseCode;
+        }
+
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        /**
+         * @return true if the same request may succeed when it is sent again later
+         */
+        public boolean isRetryable() {
+            return mResponseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                    || mResponseCode == HTTP_TOO_MANY_REQUESTS
+                    || mResponseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+        }
+    }
+
+    /**
+     * HttpURLConnection only returns a socket to its pool if the response body was read to the
+     * end. Parsers may stop before the last byte (e.g. trailing whitespace), so this stream
+     * consumes whatever is left when it is closed.
+     */
+    private static class DrainingInputStream extends FilterInputStream {
+
+        DrainingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                byte[] buffer = sReadBuffer.get();
+                while (in.read(buffer) != -1) {
+                    /* Discard the remainder of the body */
+                }
+            } finally {
+                in.close();
+            }
         }
     }
 }
\ No newline at end of file
@@ -2,12 +2,23 @@ package joels.com.projectsunshine.utilities;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+import joels.com.projectsunshine.data.WeatherContract.WeatherEntry;
 
 /**
  * Utility functions to handle OpenWeatherMap JSON data.
@@ -121,6 +132,22 @@ public final class OpenWeatherJsonUtils {
         return parsedWeatherData;
     }
 
+    /* Keys used by the OpenWeatherMap JSON that we read in the streaming parser below */
+    private static final String OWM_LIST = "list";
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
     /**
      * Parse the JSON and convert it into ContentValues that can be inserted into our database.
      *
@@ -128,9 +155,141 @@ public final class OpenWeatherJsonUtils {
      * @param forecastJsonStr The JSON to parse into ContentValues.
      *
      * @return An array of ContentValues parsed from the JSON.
+     *
+     * @throws IOException If JSON data cannot be properly parsed
      */
-    public static ContentValues[] getFullWeatherDataFromJson(Context context, String forecastJsonStr) {
-        /** This will be implemented in a future lesson **/
-        return null;
+    public static ContentValues[] getFullWeatherDataFromJson(Context context, String forecastJsonStr)
+            throws IOException {
+        return getFullWeatherDataFromJson(context, new StringReader(forecastJsonStr));
+    }
+
+    /**
+     * Parse the JSON straight off of the response stream and convert it into ContentValues that
+     * can be inserted into our database. Unlike {@link #getSimpleWeatherStringsFromJson}, this
+     * never holds the whole response in memory: the JSON is pulled token by token and each day
+     * is written directly into its ContentValues row.
+     *
+     * @param context        An application context, such as a service or activity context.
+     * @param forecastStream The stream of the HTTP response body, encoded in UTF-8. The caller
+     *                       remains responsible for closing it.
+     *
+     * @return An array of ContentValues parsed from the JSON, or null if the server reported an
+     * error in the "cod" field.
+     *
+     * @throws IOException If the stream cannot be read or the JSON cannot be properly parsed
+     */
+    public static ContentValues[] getFullWeatherDataFromJson(Context context, InputStream forecastStream)
+            throws IOException {
+        return getFullWeatherDataFromJson(context, new InputStreamReader(forecastStream, "UTF-8"));
+    }
+
+    private static ContentValues[] getFullWeatherDataFromJson(Context context, Reader forecastReader)
+            throws IOException {
+        JsonReader reader = new JsonReader(forecastReader);
+
+        List<ContentValues> weatherContentValues = new ArrayList<>();
+
+        long localDate = System.currentTimeMillis();
+        long utcDate = SunshineDateUtils.getUTCDateFromLocal(localDate);
+        long startDay = SunshineDateUtils.normalizeDate(utcDate);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                /* "cod" may arrive as either a number or a string, nextInt handles both */
+                int errorCode = reader.nextInt();
+                if (errorCode != HttpURLConnection.HTTP_OK) {
+                    /* Location invalid (HTTP_NOT_FOUND) or server probably down */
+                    return null;
+                }
+            } else if (OWM_LIST.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    /*
+                     * As in getSimpleWeatherStringsFromJson, we ignore the datetime values
+                     * embedded in the JSON and assume the days are returned in order.
+                     */
+                    long dateTimeMillis = startDay
+                            + SunshineDateUtils.DAY_IN_MILLIS * weatherContentValues.size();
+
+                    ContentValues weatherValues = new ContentValues();
+                    weatherValues.put(WeatherEntry.COLUMN_DATE, dateTimeMillis);
+                    readDayForecast(reader, weatherValues);
+                    weatherContentValues.add(weatherValues);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return weatherContentValues.toArray(new ContentValues[weatherContentValues.size()]);
+    }
+
+    /**
+     * Reads a single element of the "list" array into the supplied row.
+     *
+     * @param reader        A JsonReader positioned at the start of a day's forecast object
+     * @param weatherValues The row to write the day's values into
+     *
+     * @throws IOException If the JSON cannot be properly parsed
+     */
+    private static void readDayForecast(JsonReader reader, ContentValues weatherValues)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (OWM_MAX.equals(temperatureName)) {
+                        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, reader.nextDouble());
+                    } else if (OWM_MIN.equals(temperatureName)) {
+                        weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, reader.nextDouble());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                /* "weather" is an array that is 1 element long; only the first is read */
+                reader.beginArray();
+                boolean isFirstWeather = true;
+                while (reader.hasNext()) {
+                    if (!isFirstWeather || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    isFirstWeather = false;
+
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, reader.nextInt());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else if (OWM_PRESSURE.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_PRESSURE, reader.nextDouble());
+            } else if (OWM_HUMIDITY.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, reader.nextDouble());
+            } else if (OWM_WINDSPEED.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, reader.nextDouble());
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                weatherValues.put(WeatherEntry.COLUMN_DEGREES, reader.nextDouble());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
     }
 }
\ No newline at end of file
@@ -110,17 +110,33 @@ public final class SunshineDateUtils {
      * or "Friday"
      */
     public static String getFriendlyDateString(Context context, long dateInMillis, boolean showFullDate) {
+        /*
+         * The labels for the days around today only change at midnight, so they're made once a
+         * day and remembered, rather than formatted again every time a date is displayed.
+         */
+        return FriendlyDateLabels.getFriendlyDateString(context, dateInMillis, showFullDate);
+    }
 
-        long localDate = getLocalDateFromUTC(dateInMillis);
-        long dayNumber = getDayNumber(localDate);
-        long currentDayNumber = getDayNumber(System.currentTimeMillis());
-
+    /**
+     * Does the work of {@link #getFriendlyDateString}, for a date whose day numbers have
+     * already been worked out.
+     *
+     * @param context          Context to use for resource localization
+     * @param localDate        The date in milliseconds (local time)
+     * @param dayNumber        The day number of localDate, from {@link #getDayNumber}
+     * @param currentDayNumber The day number of today
+     * @param showFullDate     Used to show a fuller-version of the date
+     *
+     * @return A user-friendly representation of the date
+     */
+    static String formatFriendlyDateString(Context context, long localDate, long dayNumber,
+                                           long currentDayNumber, boolean showFullDate) {
         if (dayNumber == currentDayNumber || showFullDate) {
             /*
              * If the date we're building the String for is today's date, the format
              * is "Today, June 24"
              */
-            String dayName = getDayName(context, localDate);
+            String dayName = getDayName(context, localDate, dayNumber, currentDayNumber);
             String readableDate = getReadableDateString(context, localDate);
             if (dayNumber - currentDayNumber < 2) {
                 /*
@@ -140,7 +156,7 @@ public final class SunshineDateUtils {
             }
         } else if (dayNumber < currentDayNumber + 7) {
             /* If the input date is less than a week in the future, just return the day name. */
-            return getDayName(context, localDate);
+            return getDayName(context, localDate, dayNumber, currentDayNumber);
         } else {
             int flags = DateUtils.FORMAT_SHOW_DATE
                     | DateUtils.FORMAT_NO_YEAR
@@ -172,18 +188,19 @@ public final class SunshineDateUtils {
      * Given a day, returns just the name to use for that day.
      *   E.g "today", "tomorrow", "Wednesday".
      *
-     * @param context      Context to use for resource localization
-     * @param dateInMillis The date in milliseconds (local time)
+     * @param context          Context to use for resource localization
+     * @param dateInMillis     The date in milliseconds (local time)
+     * @param dayNumber        The day number of dateInMillis
+     * @param currentDayNumber The day number of today
      *
      * @return the string day of the week
      */
-    private static String getDayName(Context context, long dateInMillis) {
+    private static String getDayName(Context context, long dateInMillis, long dayNumber,
+                                     long currentDayNumber) {
         /*
          * If the date is today, return the localized version of "Today" instead of the actual
          * day name.
          */
-        long dayNumber = getDayNumber(dateInMillis);
-        long currentDayNumber = getDayNumber(System.currentTimeMillis());
         if (dayNumber == currentDayNumber) {
             return context.getString(R.string.today);
         } else if (dayNumber == currentDayNumber + 1) {
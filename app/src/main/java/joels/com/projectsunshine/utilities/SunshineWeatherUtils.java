@@ -4,7 +4,6 @@ import android.content.Context;
 import android.util.Log;
 
 import joels.com.projectsunshine.R;
-import joels.com.projectsunshine.data.SunshinePreferences;
 
 /**
  * Contains useful utilities for a weather app, such as conversion between Celsius and Fahrenheit,
@@ -22,7 +21,7 @@ public final class SunshineWeatherUtils {
      *
      * @return Temperature in degrees Fahrenheit (°F)
      */
-    private static double celsiusToFahrenheit(double temperatureInCelsius) {
+    static double celsiusToFahrenheit(double temperatureInCelsius) {
         double temperatureInFahrenheit = (temperatureInCelsius * 1.8) + 32;
         return temperatureInFahrenheit;
     }
@@ -40,15 +39,11 @@ public final class SunshineWeatherUtils {
      * "21°C"
      */
     public static String formatTemperature(Context context, double temperature) {
-        int temperatureFormatResourceId = R.string.format_temperature_celsius;
-
-        if (!SunshinePreferences.isMetric(context)) {
-            temperature = celsiusToFahrenheit(temperature);
-            temperatureFormatResourceId = R.string.format_temperature_fahrenheit;
-        }
-
-        /* For presentation, assume the user doesn't care about tenths of a degree. */
-        return String.format(context.getString(temperatureFormatResourceId), temperature);
+        /*
+         * For presentation, assume the user doesn't care about tenths of a degree. That leaves
+         * few enough strings that WeatherFormatter keeps them all, rather than formatting again.
+         */
+        return WeatherFormatter.getInstance(context).formatTemperature(temperature);
     }
 
     /**
@@ -62,14 +57,10 @@ public final class SunshineWeatherUtils {
      * @return String in the form: "HIGH°C / LOW°C"
      */
     public static String formatHighLows(Context context, double high, double low) {
-        long roundedHigh = Math.round(high);
-        long roundedLow = Math.round(low);
-
-        String formattedHigh = formatTemperature(context, roundedHigh);
-        String formattedLow = formatTemperature(context, roundedLow);
-
-        String highLowStr = formattedHigh + " / " + formattedLow;
-        return highLowStr;
+        /* Use WeatherFormatter#appendHighLow directly to build this into a StringBuilder */
+        return WeatherFormatter.getInstance(context)
+                .appendHighLow(new StringBuilder(), high, low)
+                .toString();
     }
 
     /**
@@ -84,37 +75,11 @@ public final class SunshineWeatherUtils {
      * @return Wind String in the following form: "2 km/h SW"
      */
     public static String getFormattedWind(Context context, float windSpeed, float degrees) {
-
-        int windFormat = R.string.format_wind_kmh;
-
-        if (!SunshinePreferences.isMetric(context)) {
-            windFormat = R.string.format_wind_mph;
-            windSpeed = .621371192237334f * windSpeed;
-        }
-
         /*
-         * You know what's fun, writing really long if/else statements with tons of possible
-         * conditions. Seriously, try it!
+         * There used to be a really long if/else statement here for the compass direction.
+         * WeatherFormatter looks the direction up by its 45 degree sector instead.
          */
-        String direction = "Unknown";
-        if (degrees >= 337.5 || degrees < 22.5) {
-            direction = "N";
-        } else if (degrees >= 22.5 && degrees < 67.5) {
-            direction = "NE";
-        } else if (degrees >= 67.5 && degrees < 112.5) {
-            direction = "E";
-        } else if (degrees >= 112.5 && degrees < 157.5) {
-            direction = "SE";
-        } else if (degrees >= 157.5 && degrees < 202.5) {
-            direction = "S";
-        } else if (degrees >= 202.5 && degrees < 247.5) {
-            direction = "SW";
-        } else if (degrees >= 247.5 && degrees < 292.5) {
-            direction = "W";
-        } else if (degrees >= 292.5 && degrees < 337.5) {
-            direction = "NW";
-        }
-        return String.format(context.getString(windFormat), windSpeed, direction);
+        return WeatherFormatter.getInstance(context).formatWind(windSpeed, degrees);
     }
 
     /**
@@ -128,6 +93,22 @@ public final class SunshineWeatherUtils {
      * @return String for the weather condition, null if no relation is found.
      */
     public static String getStringForWeatherCondition(Context context, int weatherId) {
+        /*
+         * WeatherConditions keeps the strings for every condition id, resolved for the current
+         * locale, so this is an array lookup rather than the switch below and a resource lookup.
+         */
+        return WeatherConditions.getInstance(context).getDescription(weatherId);
+    }
+
+    /**
+     * The mapping behind {@link #getStringForWeatherCondition}, which WeatherConditions builds
+     * its table from.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     *
+     * @return The string resource id for the weather condition, or 0 if no relation is found.
+     */
+    static int lookupStringForWeatherCondition(int weatherId) {
         int stringId;
         if (weatherId >= 200 && weatherId <= 232) {
             stringId = R.string.condition_2xx;
@@ -291,9 +272,9 @@ public final class SunshineWeatherUtils {
                 stringId = R.string.condition_962;
                 break;
             default:
-                return context.getString(R.string.condition_unknown, weatherId);
+                return 0;
         }
-        return context.getString(stringId);
+        return stringId;
     }
 
     /**
@@ -305,6 +286,18 @@ public final class SunshineWeatherUtils {
      * @return resource id for the corresponding icon. -1 if no relation is found.
      */
     public static int getIconResourceForWeatherCondition(int weatherId) {
+        return WeatherConditions.getIconResource(weatherId);
+    }
+
+    /**
+     * The mapping behind {@link #getIconResourceForWeatherCondition}, which WeatherConditions
+     * builds its table from.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     *
+     * @return resource id for the corresponding icon. -1 if no relation is found.
+     */
+    static int lookupIconResourceForWeatherCondition(int weatherId) {
         /*
          * Based on weather code data found at:
          * See http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
@@ -344,6 +337,23 @@ public final class SunshineWeatherUtils {
      * @return resource id for the corresponding icon. -1 if no relation is found.
      */
     public static int getArtResourceForWeatherCondition(int weatherId) {
+        int artId = WeatherConditions.getArtResource(weatherId);
+        if (artId == 0) {
+            Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
+            return R.drawable.art_storm;
+        }
+        return artId;
+    }
+
+    /**
+     * The mapping behind {@link #getArtResourceForWeatherCondition}, which WeatherConditions
+     * builds its table from.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     *
+     * @return resource id for the corresponding art, or 0 if no relation is found.
+     */
+    static int lookupArtResourceForWeatherCondition(int weatherId) {
         /*
          * Based on weather code data found at:
          * http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
@@ -377,7 +387,6 @@ public final class SunshineWeatherUtils {
         } else if (weatherId >= 951 && weatherId <= 957) {
             return R.drawable.art_clear;
         }
-        Log.e(LOG_TAG, "Unknown Weather: " + weatherId);
-        return R.drawable.art_storm;
+        return 0;
     }
 }
\ No newline at end of file
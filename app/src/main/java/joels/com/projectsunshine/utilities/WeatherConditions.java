@@ -0,0 +1,142 @@
+package joels.com.projectsunshine.utilities;
+
+import android.content.Context;
+
+import java.util.Locale;
+
+import joels.com.projectsunshine.R;
+
+/**
+ * Tables of the strings, icons and art for every OpenWeatherMap condition id, so that looking
+ * one up is an array index instead of a walk down SunshineWeatherUtils' if/else chains and
+ * switch.
+ * <p>
+ * Condition ids are all below 1000, so each table has a slot for every id from 0 to 999. The
+ * tables are filled by asking the lookup methods in SunshineWeatherUtils about every id, so they
+ * give the same answers, oddities and all: 761 is in the fog range that is checked before the
+ * storm branch that also names it, so it has always been fog. Ids outside the tables are passed
+ * to the lookup methods, as before.
+ * <p>
+ * The resource ids are the same in every locale and are worked out once. The descriptions are
+ * resolved for one locale; get the current set with {@link #getInstance(Context)}. Instances are
+ * safe to use from any thread. Two threads may both fill the same description, but they store
+ * equal Strings.
+ */
+final class WeatherConditions {
+
+    /* The highest condition id that has a slot in the tables */
+    private static final int MAX_TABLE_CONDITION_ID = 999;
+
+    private static final int[] sStringIds = new int[MAX_TABLE_CONDITION_ID + 1];
+    private static final int[] sIconIds = new int[MAX_TABLE_CONDITION_ID + 1];
+    private static final int[] sArtIds = new int[MAX_TABLE_CONDITION_ID + 1];
+
+    static {
+        for (int weatherId = 0; weatherId <= MAX_TABLE_CONDITION_ID; weatherId++) {
+            sStringIds[weatherId] = SunshineWeatherUtils.lookupStringForWeatherCondition(weatherId);
+            sIconIds[weatherId] = SunshineWeatherUtils.lookupIconResourceForWeatherCondition(weatherId);
+            sArtIds[weatherId] = SunshineWeatherUtils.lookupArtResourceForWeatherCondition(weatherId);
+        }
+    }
+
+    private static volatile WeatherConditions sInstance;
+
+    private final Context mContext;
+    private final Locale mLocale;
+
+    /*
+     * The description of each condition id. The known conditions are resolved up front; the
+     * "Unknown (id)" strings are only formatted if one turns up.
+     */
+    private final String[] mDescriptions = new String[MAX_TABLE_CONDITION_ID + 1];
+
+    private WeatherConditions(Context context, Locale locale) {
+        mContext = context;
+        mLocale = locale;
+
+        /* Many ids share a string, such as every thunderstorm in 200 to 232, so resolve each once */
+        int lastStringId = 0;
+        String lastString = null;
+        for (int weatherId = 0; weatherId <= MAX_TABLE_CONDITION_ID; weatherId++) {
+            int stringId = sStringIds[weatherId];
+            if (stringId == 0) continue;
+            if (stringId != lastStringId) {
+                lastString = context.getString(stringId);
+                lastStringId = stringId;
+            }
+            mDescriptions[weatherId] = lastString;
+        }
+    }
+
+    /**
+     * Returns the descriptions for the current locale. The same instance is returned until the
+     * locale changes.
+     *
+     * @param context Used to resolve the descriptions
+     * @return The conditions to use
+     */
+    static WeatherConditions getInstance(Context context) {
+        Locale locale = Locale.getDefault();
+
+        WeatherConditions conditions = sInstance;
+        if (conditions == null || !conditions.mLocale.equals(locale)) {
+            conditions = new WeatherConditions(context.getApplicationContext(), locale);
+            sInstance = conditions;
+        }
+        return conditions;
+    }
+
+    /**
+     * The same as {@link SunshineWeatherUtils#getStringForWeatherCondition}.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return The description of the condition, or "Unknown (id)"
+     */
+    String getDescription(int weatherId) {
+        if (weatherId < 0 || weatherId > MAX_TABLE_CONDITION_ID) {
+            return describe(weatherId);
+        }
+
+        String description = mDescriptions[weatherId];
+        if (description == null) {
+            description = describe(weatherId);
+            mDescriptions[weatherId] = description;
+        }
+        return description;
+    }
+
+    private String describe(int weatherId) {
+        int stringId = SunshineWeatherUtils.lookupStringForWeatherCondition(weatherId);
+        if (stringId == 0) {
+            return mContext.getString(R.string.condition_unknown, weatherId);
+        }
+        return mContext.getString(stringId);
+    }
+
+    /**
+     * The same as {@link SunshineWeatherUtils#getIconResourceForWeatherCondition}.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return resource id for the corresponding icon. -1 if no relation is found.
+     */
+    static int getIconResource(int weatherId) {
+        if (weatherId < 0 || weatherId > MAX_TABLE_CONDITION_ID) {
+            return SunshineWeatherUtils.lookupIconResourceForWeatherCondition(weatherId);
+        }
+        return sIconIds[weatherId];
+    }
+
+    /**
+     * The art for a condition, which {@link SunshineWeatherUtils#getArtResourceForWeatherCondition}
+     * falls back from when it isn't known.
+     *
+     * @param weatherId from OpenWeatherMap API response
+     * @return resource id for the corresponding art, or 0 if no relation is found.
+     */
+    static int getArtResource(int weatherId) {
+        if (weatherId < 0 || weatherId > MAX_TABLE_CONDITION_ID) {
+            return SunshineWeatherUtils.lookupArtResourceForWeatherCondition(weatherId);
+        }
+        return sArtIds[weatherId];
+    }
+}
@@ -0,0 +1,226 @@
+package joels.com.projectsunshine.utilities;
+
+import android.content.Context;
+
+import java.util.Locale;
+
+import joels.com.projectsunshine.R;
+import joels.com.projectsunshine.data.SunshinePreferences;
+
+/**
+ * Formats temperatures and wind the way {@link SunshineWeatherUtils} does, without formatting
+ * anything on the hot path.
+ * <p>
+ * Displayed temperatures and wind speeds are whole numbers from a small range, and there are
+ * only eight compass directions, so each string is formatted once, the first time it is needed,
+ * and kept in a table indexed by the rounded value. After that, formatting is a table lookup,
+ * and the append methods add to a StringBuilder the caller reuses, so nothing is allocated.
+ * Values outside the tables are formatted with String.format, as before.
+ * <p>
+ * A formatter is a snapshot of one unit system and locale; get the current one with
+ * {@link #getInstance(Context)} once per batch of values, not once per value. Formatters are
+ * safe to use from any thread. Two threads may both fill the same table entry, but they store
+ * equal Strings.
+ */
+public final class WeatherFormatter {
+
+    /* The range of rounded temperatures, in the display units, that are kept in the table */
+    private static final int MIN_TABLE_TEMPERATURE = -150;
+    private static final int MAX_TABLE_TEMPERATURE = 150;
+
+    /* Rounded wind speeds, in the display units, from 0 up to this are kept in the table */
+    private static final int MAX_TABLE_WIND_SPEED = 250;
+
+    /* Miles per kilometer, as a float, which is how the wind speed has always been converted */
+    private static final float MILES_PER_KILOMETER = .621371192237334f;
+
+    /*
+     * The compass directions, indexed by 45 degree sector starting from north, plus one for
+     * degrees that aren't a number
+     */
+    private static final String[] COMPASS_DIRECTIONS = {"N", "NE", "E", "SE", "S", "SW", "W", "NW", "Unknown"};
+    private static final int COMPASS_NORTH = 0;
+    private static final int COMPASS_UNKNOWN = 8;
+
+    private static volatile WeatherFormatter sInstance;
+
+    private final boolean mMetric;
+    private final Locale mLocale;
+    private final String mTemperatureFormat;
+    private final String mWindFormat;
+
+    private final String[] mTemperatures = new String[MAX_TABLE_TEMPERATURE - MIN_TABLE_TEMPERATURE + 1];
+
+    /* "-0", which is what a temperature between -0.5 and 0 is formatted as */
+    private String mNegativeZeroTemperature;
+
+    private final String[][] mWinds = new String[COMPASS_DIRECTIONS.length][MAX_TABLE_WIND_SPEED + 1];
+
+    private WeatherFormatter(Context context, boolean metric, Locale locale) {
+        this(metric, locale,
+                context.getString(metric
+                        ? R.string.format_temperature_celsius
+                        : R.string.format_temperature_fahrenheit),
+                context.getString(metric ? R.string.format_wind_kmh : R.string.format_wind_mph));
+    }
+
+    /* Takes the format strings themselves, so that tests don't need the resources */
+    WeatherFormatter(boolean metric, Locale locale, String temperatureFormat, String windFormat) {
+        mMetric = metric;
+        mLocale = locale;
+        mTemperatureFormat = temperatureFormat;
+        mWindFormat = windFormat;
+    }
+
+    /**
+     * Returns the formatter for the user's preferred units and the current locale. The same
+     * formatter, and its tables, is returned until either of those changes.
+     *
+     * @param context Used to read the preferred units and the format strings
+     * @return The formatter to use
+     */
+    public static WeatherFormatter getInstance(Context context) {
+        boolean metric = SunshinePreferences.isMetric(context);
+        Locale locale = Locale.getDefault();
+
+        WeatherFormatter formatter = sInstance;
+        if (formatter == null || formatter.mMetric != metric || !formatter.mLocale.equals(locale)) {
+            formatter = new WeatherFormatter(context.getApplicationContext(), metric, locale);
+            sInstance = formatter;
+        }
+        return formatter;
+    }
+
+    /**
+     * @return Whether this formatter displays metric units
+     */
+    public boolean isMetric() {
+        return mMetric;
+    }
+
+    /**
+     * The same as {@link SunshineWeatherUtils#formatTemperature}: "21°C", or the temperature in
+     * Fahrenheit if the user prefers imperial units.
+     *
+     * @param temperature Temperature in degrees Celsius (°C)
+     * @return The formatted temperature
+     */
+    public String formatTemperature(double temperature) {
+        if (!mMetric) {
+            temperature = SunshineWeatherUtils.celsiusToFahrenheit(temperature);
+        }
+
+        long rounded = roundHalfUp(temperature);
+        if (rounded == 0 && isNegative(temperature)) {
+            String negativeZero = mNegativeZeroTemperature;
+            if (negativeZero == null) {
+                negativeZero = String.format(mTemperatureFormat, temperature);
+                mNegativeZeroTemperature = negativeZero;
+            }
+            return negativeZero;
+        }
+        if (!isFinite(temperature)
+                || rounded < MIN_TABLE_TEMPERATURE || rounded > MAX_TABLE_TEMPERATURE) {
+            return String.format(mTemperatureFormat, temperature);
+        }
+
+        int index = (int) rounded - MIN_TABLE_TEMPERATURE;
+        String formatted = mTemperatures[index];
+        if (formatted == null) {
+            formatted = String.format(mTemperatureFormat, (double) rounded);
+            mTemperatures[index] = formatted;
+        }
+        return formatted;
+    }
+
+    /**
+     * Appends {@link #formatTemperature} to a StringBuilder.
+     *
+     * @return out
+     */
+    public StringBuilder appendTemperature(StringBuilder out, double temperature) {
+        return out.append(formatTemperature(temperature));
+    }
+
+    /**
+     * Appends the same as {@link SunshineWeatherUtils#formatHighLows}: "HIGH°C / LOW°C".
+     *
+     * @param out  Where to append the temperatures
+     * @param high High temperature for a day, in degrees Celsius
+     * @param low  Low temperature for a day, in degrees Celsius
+     * @return out
+     */
+    public StringBuilder appendHighLow(StringBuilder out, double high, double low) {
+        return out.append(formatTemperature(Math.round(high)))
+                .append(" / ")
+                .append(formatTemperature(Math.round(low)));
+    }
+
+    /**
+     * The same as {@link SunshineWeatherUtils#getFormattedWind}: "2 km/h SW", or the speed in
+     * miles per hour if the user prefers imperial units.
+     *
+     * @param windSpeed Wind speed in kilometers / hour
+     * @param degrees   Degrees as measured on a compass
+     * @return The formatted wind
+     */
+    public String formatWind(float windSpeed, float degrees) {
+        if (!mMetric) {
+            windSpeed = MILES_PER_KILOMETER * windSpeed;
+        }
+        int direction = getCompassDirection(degrees);
+
+        long rounded = roundHalfUp(windSpeed);
+        if (!isFinite(windSpeed) || isNegative(windSpeed) || rounded > MAX_TABLE_WIND_SPEED) {
+            return String.format(mWindFormat, windSpeed, COMPASS_DIRECTIONS[direction]);
+        }
+
+        String[] winds = mWinds[direction];
+        String formatted = winds[(int) rounded];
+        if (formatted == null) {
+            formatted = String.format(mWindFormat, (float) rounded, COMPASS_DIRECTIONS[direction]);
+            winds[(int) rounded] = formatted;
+        }
+        return formatted;
+    }
+
+    /**
+     * Appends {@link #formatWind} to a StringBuilder.
+     *
+     * @return out
+     */
+    public StringBuilder appendWind(StringBuilder out, float windSpeed, float degrees) {
+        return out.append(formatWind(windSpeed, degrees));
+    }
+
+    /**
+     * @return The index into COMPASS_DIRECTIONS of the direction the degrees point in
+     */
+    private static int getCompassDirection(float degrees) {
+        if (Float.isNaN(degrees)) return COMPASS_UNKNOWN;
+        /* North takes in everything outside 22.5 to 337.5, as the old if/else chain did */
+        if (degrees < 22.5f || degrees >= 337.5f) return COMPASS_NORTH;
+        return (int) ((degrees + 22.5) / 45);
+    }
+
+    /*
+     * Rounds to the nearest whole number, with halves rounded away from zero, as String.format
+     * does with %1.0f
+     */
+    private static long roundHalfUp(double value) {
+        double magnitude = Math.abs(value);
+        long whole = (long) magnitude;
+        if (magnitude - whole >= 0.5) whole++;
+        return value < 0 ? -whole : whole;
+    }
+
+    /* NaN and the infinities don't round to a whole number, so they are never in the tables */
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /* True for -0.0 as well as the values below it */
+    private static boolean isNegative(double value) {
+        return value < 0 || (value == 0 && 1 / value < 0);
+    }
+}
@@ -0,0 +1,107 @@
+package joels.com.projectsunshine;
+
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the forecast list is diffed by date, so that a new day or a changed forecast only
+ * binds the rows that changed.
+ */
+public class ForecastAdapterDiffTest {
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long FIRST_DATE = 17000 * DAY_IN_MILLIS;
+
+    @Test
+    public void unchangedRowsAreNotUpdated() {
+        Updates updates = diff(createRows(0, 7, "Clear"), createRows(0, 7, "Clear"));
+
+        assertEquals(0, updates.mInserted + updates.mRemoved + updates.mChanged + updates.mMoved);
+    }
+
+    @Test
+    public void aChangedForecastChangesOnlyItsRow() {
+        List<ForecastAdapter.ForecastRow> newRows = createRows(0, 7, "Clear");
+        newRows.set(3, new ForecastAdapter.ForecastRow(newRows.get(3).date, "Rain"));
+
+        Updates updates = diff(createRows(0, 7, "Clear"), newRows);
+
+        assertEquals(1, updates.mChanged);
+        assertEquals(3, updates.mLastChangedPosition);
+        assertEquals(0, updates.mInserted + updates.mRemoved + updates.mMoved);
+    }
+
+    /* At midnight the first day drops off the top and a new one is added at the bottom */
+    @Test
+    public void aNewDayRemovesOneRowAndInsertsOne() {
+        Updates updates = diff(createRows(0, 7, "Clear"), createRows(1, 8, "Clear"));
+
+        assertEquals(1, updates.mRemoved);
+        assertEquals(1, updates.mInserted);
+        assertEquals(0, updates.mChanged + updates.mMoved);
+    }
+
+    /* A change of units reformats every summary, but every row is still for the same day */
+    @Test
+    public void reformattedRowsAreChangedInPlace() {
+        Updates updates = diff(createRows(0, 7, "21°C"), createRows(0, 7, "70°F"));
+
+        assertEquals(7, updates.mChanged);
+        assertEquals(0, updates.mInserted + updates.mRemoved + updates.mMoved);
+    }
+
+    private static Updates diff(List<ForecastAdapter.ForecastRow> oldRows,
+                                List<ForecastAdapter.ForecastRow> newRows) {
+        Updates updates = new Updates();
+        DiffUtil.calculateDiff(new ForecastAdapter.RowDiffCallback(oldRows, newRows))
+                .dispatchUpdatesTo(updates);
+        return updates;
+    }
+
+    /* Rows for days from (inclusive) to to (exclusive), each summarized as the day and a label */
+    private static List<ForecastAdapter.ForecastRow> createRows(int from, int to, String label) {
+        List<ForecastAdapter.ForecastRow> rows = new ArrayList<>();
+        for (int day = from; day < to; day++) {
+            rows.add(new ForecastAdapter.ForecastRow(FIRST_DATE + day * DAY_IN_MILLIS,
+                    "Day " + day + " - " + label));
+        }
+        return rows;
+    }
+
+    /* Totals up the updates DiffUtil dispatches, whichever way it batches them */
+    private static class Updates implements ListUpdateCallback {
+        private int mInserted;
+        private int mRemoved;
+        private int mChanged;
+        private int mMoved;
+        private int mLastChangedPosition = -1;
+
+        @Override
+        public void onInserted(int position, int count) {
+            mInserted += count;
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            mRemoved += count;
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mMoved++;
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            mChanged += count;
+            mLastChangedPosition = position + count - 1;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package joels.com.projectsunshine.data;
+
+import org.junit.Test;
+
+import joels.com.projectsunshine.utilities.SunshineDateUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WeatherArchiveCodecTest {
+
+    private static final long FIRST_DATE = 17000 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    @Test
+    public void dailyWeatherRoundTrips() {
+        WeatherArchiveCodec.Block block = createDailyBlock(365);
+
+        checkRoundTrip(block);
+    }
+
+    @Test
+    public void irregularDatesAndIdsRoundTrip() {
+        WeatherArchiveCodec.Block block = createDailyBlock(6);
+        long[] days = {0, 1, 5, 6, 30, 31};
+        int[] weatherIds = {800, 200, 962, 0, 800, 531};
+        for (int row = 0; row < block.rowCount; row++) {
+            block.dates[row] = FIRST_DATE + days[row] * SunshineDateUtils.DAY_IN_MILLIS;
+            block.weatherIds[row] = weatherIds[row];
+        }
+        block.computeRanges();
+
+        checkRoundTrip(block);
+    }
+
+    /* Values whose bits differ in every way the XOR encoding has to handle */
+    @Test
+    public void unusualValuesRoundTrip() {
+        double[] values = {
+                21.5, 21.5, -21.5, 0.0, -0.0, Double.NaN, Double.NaN, Double.MIN_VALUE,
+                Double.MAX_VALUE, -Double.MAX_VALUE, Double.POSITIVE_INFINITY, 1e-300, 3.0, 3.0
+        };
+        WeatherArchiveCodec.Block block = createDailyBlock(values.length);
+        for (int column = 0; column < WeatherArchiveCodec.VALUE_COLUMN_COUNT; column++) {
+            for (int row = 0; row < values.length; row++) {
+                /* Each column starts somewhere else in the list, so windows are entered anew */
+                block.values[column][row] = values[(row + column) % values.length];
+            }
+        }
+        block.computeRanges();
+
+        checkRoundTrip(block);
+    }
+
+    @Test
+    public void singleRowRoundTrips() {
+        checkRoundTrip(createDailyBlock(1));
+    }
+
+    @Test
+    public void emptyBlockRoundTrips() {
+        WeatherArchiveCodec.Block block = new WeatherArchiveCodec.Block(0);
+        block.computeRanges();
+
+        WeatherArchiveCodec.Block decoded =
+                WeatherArchiveCodec.decode(WeatherArchiveCodec.encode(block));
+
+        assertEquals(0, decoded.rowCount);
+    }
+
+    /* Unchanged values cost a bit and steady dates a byte, so a year is far below 8 bytes a value */
+    @Test
+    public void dailyWeatherIsSmallerThanItsRawColumns() {
+        WeatherArchiveCodec.Block block = createDailyBlock(365);
+        int rawSize = block.rowCount * (8 + 4 + 8 * WeatherArchiveCodec.VALUE_COLUMN_COUNT);
+
+        byte[] encoded = WeatherArchiveCodec.encode(block);
+
+        assertTrue(encoded.length < rawSize / 2);
+    }
+
+    @Test
+    public void headerHoldsTheRangesOfEveryColumn() {
+        WeatherArchiveCodec.Block block = createDailyBlock(30);
+
+        WeatherArchiveCodec.Block header =
+                WeatherArchiveCodec.decodeHeader(WeatherArchiveCodec.encode(block));
+
+        assertEquals(0, header.rowCount);
+        assertArrayEquals(block.lowest, header.lowest, 0.0);
+        assertArrayEquals(block.highest, header.highest, 0.0);
+        assertEquals(-5.0, header.lowest[WeatherArchiveCodec.VALUE_MIN_TEMP], 0.0);
+        assertEquals(34.0, header.highest[WeatherArchiveCodec.VALUE_MAX_TEMP], 0.0);
+    }
+
+    @Test
+    public void sliceKeepsTheRowsAndRecomputesTheRanges() {
+        WeatherArchiveCodec.Block block = createDailyBlock(30);
+
+        WeatherArchiveCodec.Block slice = block.slice(10, 15);
+
+        assertEquals(5, slice.rowCount);
+        assertEquals(block.dates[10], slice.dates[0]);
+        assertEquals(block.weatherIds[14], slice.weatherIds[4]);
+        assertEquals(5.0, slice.lowest[WeatherArchiveCodec.VALUE_MIN_TEMP], 0.0);
+        assertEquals(9.0, slice.highest[WeatherArchiveCodec.VALUE_MIN_TEMP], 0.0);
+        checkRoundTrip(slice);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersionsAreRejected() {
+        byte[] encoded = WeatherArchiveCodec.encode(createDailyBlock(3));
+        encoded[0] = 0x7F;
+
+        WeatherArchiveCodec.decode(encoded);
+    }
+
+    /* Consecutive days whose minimum cycles through a month and whose other columns barely move */
+    private static WeatherArchiveCodec.Block createDailyBlock(int days) {
+        WeatherArchiveCodec.Block block = new WeatherArchiveCodec.Block(days);
+        for (int day = 0; day < days; day++) {
+            double min = day % 30 - 5;
+            block.dates[day] = FIRST_DATE + day * SunshineDateUtils.DAY_IN_MILLIS;
+            block.weatherIds[day] = day % 7 == 0 ? 500 : 800;
+            block.values[WeatherArchiveCodec.VALUE_MIN_TEMP][day] = min;
+            block.values[WeatherArchiveCodec.VALUE_MAX_TEMP][day] = min + 10;
+            block.values[WeatherArchiveCodec.VALUE_HUMIDITY][day] = 50.0;
+            block.values[WeatherArchiveCodec.VALUE_PRESSURE][day] = 1013.0 + day % 3;
+            block.values[WeatherArchiveCodec.VALUE_WIND_SPEED][day] = 3.0;
+            block.values[WeatherArchiveCodec.VALUE_DEGREES][day] = 180.0;
+        }
+        block.computeRanges();
+        return block;
+    }
+
+    /* Compares the values bit for bit, so that -0.0 and NaN have to survive too */
+    private static void checkRoundTrip(WeatherArchiveCodec.Block block) {
+        WeatherArchiveCodec.Block decoded =
+                WeatherArchiveCodec.decode(WeatherArchiveCodec.encode(block));
+
+        assertEquals(block.rowCount, decoded.rowCount);
+        assertArrayEquals(block.dates, decoded.dates);
+        assertArrayEquals(block.weatherIds, decoded.weatherIds);
+        for (int column = 0; column < WeatherArchiveCodec.VALUE_COLUMN_COUNT; column++) {
+            for (int row = 0; row < block.rowCount; row++) {
+                assertEquals("column " + column + " row " + row,
+                        Double.doubleToRawLongBits(block.values[column][row]),
+                        Double.doubleToRawLongBits(decoded.values[column][row]));
+            }
+            assertEquals(Double.doubleToRawLongBits(block.lowest[column]),
+                    Double.doubleToRawLongBits(decoded.lowest[column]));
+            assertEquals(Double.doubleToRawLongBits(block.highest[column]),
+                    Double.doubleToRawLongBits(decoded.highest[column]));
+        }
+    }
+}
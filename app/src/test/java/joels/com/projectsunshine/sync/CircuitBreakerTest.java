@@ -0,0 +1,118 @@
+package joels.com.projectsunshine.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private long mNow = 1000;
+    private CircuitBreaker mBreaker;
+
+    @Before
+    public void setUp() {
+        mBreaker = new CircuitBreaker(new CircuitBreaker.Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return mNow;
+            }
+        });
+    }
+
+    @Test
+    public void startsClosed() {
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void opensAfterTheFailureThreshold() {
+        failRequests(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+
+        failRequests(1);
+
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+        assertFalse(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void aSuccessResetsTheFailureCount() {
+        failRequests(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.recordSuccess();
+
+        failRequests(CircuitBreaker.FAILURE_THRESHOLD - 1);
+
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+    }
+
+    @Test
+    public void staysOpenForTheOpenDuration() {
+        failRequests(CircuitBreaker.FAILURE_THRESHOLD);
+
+        mNow += CircuitBreaker.OPEN_DURATION_MILLIS - 1;
+
+        assertFalse(mBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+    }
+
+    @Test
+    public void letsOneTrialThroughOnceHalfOpen() {
+        failRequests(CircuitBreaker.FAILURE_THRESHOLD);
+
+        mNow += CircuitBreaker.OPEN_DURATION_MILLIS;
+
+        assertTrue(mBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, mBreaker.getState());
+        assertFalse("Only one trial may be in flight", mBreaker.allowRequest());
+    }
+
+    @Test
+    public void aSuccessfulTrialCloses() {
+        failRequests(CircuitBreaker.FAILURE_THRESHOLD);
+        mNow += CircuitBreaker.OPEN_DURATION_MILLIS;
+        assertTrue(mBreaker.allowRequest());
+
+        mBreaker.recordSuccess();
+
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+        assertTrue(mBreaker.allowRequest());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void aFailedTrialReopensForAnotherOpenDuration() {
+        failRequests(CircuitBreaker.FAILURE_THRESHOLD);
+        mNow += CircuitBreaker.OPEN_DURATION_MILLIS;
+        assertTrue(mBreaker.allowRequest());
+
+        mBreaker.recordFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+        mNow += CircuitBreaker.OPEN_DURATION_MILLIS - 1;
+        assertFalse(mBreaker.allowRequest());
+        mNow += 1;
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void breakersAreSharedPerEndpoint() {
+        CircuitBreaker breaker = CircuitBreaker.forEndpoint("shared.example.com");
+
+        assertSame(breaker, CircuitBreaker.forEndpoint("shared.example.com"));
+        assertNotSame(breaker, CircuitBreaker.forEndpoint("other.example.com"));
+    }
+
+    private void failRequests(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.recordFailure();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package joels.com.projectsunshine.utilities;
+
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CoordinateGridTest {
+
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    private final CoordinateGrid mGrid = new CoordinateGrid(1000);
+
+    @Test
+    public void nearbyPositionsSnapToTheSameCell() {
+        double[] center = mGrid.snap(37.4284, -122.0724);
+
+        assertArrayEquals(center, mGrid.snap(center[0] + 0.001, center[1] - 0.001), 0.0);
+        assertArrayEquals(center, mGrid.snap(center[0] - 0.001, center[1] + 0.001), 0.0);
+    }
+
+    @Test
+    public void positionsAreWithinHalfACellOfTheirCenter() {
+        double latitudeStep = 1000 / METERS_PER_DEGREE;
+        for (double lat = -80; lat <= 80; lat += 7.3) {
+            for (double lon = -179; lon <= 179; lon += 13.7) {
+                double[] snapped = mGrid.snap(lat, lon);
+                double longitudeStep = latitudeStep / Math.cos(Math.toRadians(snapped[0]));
+
+                assertTrue(Math.abs(snapped[0] - lat) <= latitudeStep / 2);
+                assertTrue(Math.abs(snapped[1] - lon) <= longitudeStep / 2);
+            }
+        }
+    }
+
+    @Test
+    public void positionsMoreThanACellApartSnapToDifferentCells() {
+        double[] snapped = mGrid.snap(37.4284, -122.0724);
+
+        assertNotEquals(snapped[0], mGrid.snap(37.4284 + 0.01, -122.0724)[0]);
+        assertNotEquals(snapped[1], mGrid.snap(37.4284, -122.0724 + 0.02)[1]);
+    }
+
+    /* A cell is about as wide as it is tall, so away from the equator it spans more longitude */
+    @Test
+    public void cellsWidenInLongitudeAwayFromTheEquator() {
+        double latitudeStep = 1000 / METERS_PER_DEGREE;
+
+        double[] equator = mGrid.snap(0.001, 0.001);
+        double[] north = mGrid.snap(60.001, 0.001);
+
+        assertEquals(latitudeStep / 2, equator[1], latitudeStep / 100);
+        assertEquals(latitudeStep, north[1], latitudeStep / 20);
+    }
+
+    @Test
+    public void snappedCoordinatesStayOnTheGlobe() {
+        double[][] corners = {{90, 180}, {-90, -180}, {89.9999, 179.9999}, {-89.9999, -179.9999}};
+        for (double[] corner : corners) {
+            double[] snapped = mGrid.snap(corner[0], corner[1]);
+
+            assertTrue(snapped[0] >= -90 && snapped[0] <= 90);
+            assertTrue(snapped[1] >= -180 && snapped[1] <= 180);
+        }
+    }
+
+    @Test
+    public void urlsAreCachedPerCell() throws Exception {
+        double[] center = mGrid.snap(37.4284, -122.0724);
+        URL url = new URL("http://example.com/forecast?lat=37.43&lon=-122.07");
+
+        assertNull(mGrid.getCachedUrl(center[0], center[1]));
+        mGrid.putCachedUrl(center[0], center[1], url);
+
+        assertSame(url, mGrid.getCachedUrl(center[0] + 0.001, center[1] + 0.001));
+        assertNull(mGrid.getCachedUrl(center[0] + 0.1, center[1]));
+
+        assertEquals(1, mGrid.getHitCount());
+        assertEquals(2, mGrid.getMissCount());
+        assertEquals(1 / 3.0, mGrid.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void hitRateIsZeroBeforeAnyLookup() {
+        assertEquals(0, mGrid.getHitRate(), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cellSizeMustBePositive() {
+        new CoordinateGrid(0);
+    }
+}
@@ -0,0 +1,174 @@
+package joels.com.projectsunshine.utilities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ForecastResponseCacheTest {
+
+    private static final long MAX_SIZE_BYTES = 1000;
+
+    private File mDirectory;
+    private ForecastResponseCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("forecast-responses").toFile();
+        mCache = new ForecastResponseCache(mDirectory, MAX_SIZE_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void parseMaxAge() {
+        assertEquals(0, ForecastResponseCache.parseMaxAge(null));
+        assertEquals(0, ForecastResponseCache.parseMaxAge(""));
+        assertEquals(60, ForecastResponseCache.parseMaxAge("max-age=60"));
+        assertEquals(3600, ForecastResponseCache.parseMaxAge("public, max-age=3600"));
+        assertEquals(120, ForecastResponseCache.parseMaxAge("Max-Age=120, must-revalidate"));
+        assertEquals(0, ForecastResponseCache.parseMaxAge("max-age=soon"));
+        assertEquals(0, ForecastResponseCache.parseMaxAge("max-age=-5"));
+        assertEquals(0, ForecastResponseCache.parseMaxAge("no-cache, max-age=60"));
+        assertEquals(0, ForecastResponseCache.parseMaxAge("no-store"));
+    }
+
+    @Test
+    public void committedBodiesAreCached() throws IOException {
+        URL url = urlFor("94043");
+        byte[] body = bodyOf(100, 'a');
+
+        store(url, "\"v1\"", body, true);
+
+        ForecastResponseCache.Entry entry = mCache.get(url);
+        assertNotNull(entry);
+        assertEquals("\"v1\"", entry.getETag());
+        assertArrayEquals(body, readCachedBody(url));
+    }
+
+    /* A body that was read but never accepted, such as one that failed to parse */
+    @Test
+    public void uncommittedBodiesAreNotCached() throws IOException {
+        URL url = urlFor("94043");
+
+        store(url, "\"v1\"", bodyOf(100, 'a'), false);
+
+        assertNull(mCache.get(url));
+        assertEquals(0, mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void uncommittedBodiesKeepThePreviousEntry() throws IOException {
+        URL url = urlFor("94043");
+        byte[] body = bodyOf(100, 'a');
+        store(url, "\"v1\"", body, true);
+
+        store(url, "\"v2\"", bodyOf(100, 'b'), false);
+
+        assertEquals("\"v1\"", mCache.get(url).getETag());
+        assertArrayEquals(body, readCachedBody(url));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws IOException {
+        URL first = urlFor("first");
+        URL second = urlFor("second");
+        URL third = urlFor("third");
+        store(first, null, bodyOf(400, 'a'), true);
+        store(second, null, bodyOf(400, 'b'), true);
+
+        /* Using the first entry makes the second the least recently used */
+        assertNotNull(mCache.get(first));
+        store(third, null, bodyOf(400, 'c'), true);
+
+        assertNotNull(mCache.get(first));
+        assertNull(mCache.get(second));
+        assertNotNull(mCache.get(third));
+    }
+
+    @Test
+    public void removedEntriesAreGone() throws IOException {
+        URL url = urlFor("94043");
+        store(url, "\"v1\"", bodyOf(100, 'a'), true);
+
+        mCache.remove(url);
+
+        assertNull(mCache.get(url));
+        assertNull(mCache.openCachedBody(url));
+    }
+
+    @Test
+    public void entriesSurviveARestart() throws IOException {
+        URL url = urlFor("94043");
+        byte[] body = bodyOf(100, 'a');
+        store(url, "\"v1\"", body, true);
+
+        mCache = new ForecastResponseCache(mDirectory, MAX_SIZE_BYTES);
+
+        assertEquals("\"v1\"", mCache.get(url).getETag());
+        assertArrayEquals(body, readCachedBody(url));
+    }
+
+    private void store(URL url, String eTag, byte[] body, boolean commit) throws IOException {
+        ForecastResponseCache.Entry entry =
+                new ForecastResponseCache.Entry(url.toString(), eTag, null, 0);
+        InputStream in = mCache.cacheWhileReading(entry, new ByteArrayInputStream(body));
+        try {
+            in.read(new byte[body.length / 2]);
+            if (commit) {
+                ForecastResponseCache.commit(in);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] readCachedBody(URL url) throws IOException {
+        InputStream in = mCache.openCachedBody(url);
+        assertNotNull(in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static URL urlFor(String location) throws IOException {
+        return new URL("http://example.com/forecast?q=" + location);
+    }
+
+    private static byte[] bodyOf(int length, char fill) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) fill;
+        }
+        return body;
+    }
+}
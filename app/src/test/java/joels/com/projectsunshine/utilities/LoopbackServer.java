@@ -0,0 +1,212 @@
+package joels.com.projectsunshine.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A small HTTP/1.1 server on the loopback interface, so that NetworkUtils can be tested against a
+ * real socket. Connections are kept alive, as a real server's would be, and every request is
+ * answered by the test's Handler.
+ */
+class LoopbackServer {
+
+    interface Handler {
+        Response handle(Request request) throws IOException;
+    }
+
+    static final class Request {
+
+        final String path;
+
+        /* Keyed by the lower case header name */
+        private final Map<String, String> mHeaders;
+
+        Request(String path, Map<String, String> headers) {
+            this.path = path;
+            mHeaders = headers;
+        }
+
+        String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    static final class Response {
+
+        final int code;
+        final byte[] body;
+        final Map<String, String> headers = new LinkedHashMap<>();
+
+        /**
+         * @param code The status code
+         * @param body The body, or null for a response that has none (such as a 304)
+         */
+        Response(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+
+    private final List<Request> mRequests = new ArrayList<>();
+    private final List<Socket> mSockets = new ArrayList<>();
+
+    LoopbackServer(Handler handler) throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mHandler = handler;
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "LoopbackServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    URL getUrl(String path) throws MalformedURLException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+    }
+
+    /**
+     * @return The number of connections that have been opened to the server
+     */
+    synchronized int getConnectionCount() {
+        return mSockets.size();
+    }
+
+    /**
+     * @return The requests the server has answered, oldest first
+     */
+    synchronized List<Request> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    void close() {
+        closeQuietly(mServerSocket);
+        synchronized (this) {
+            for (Socket socket : mSockets) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                /* The server has been closed */
+                return;
+            }
+            synchronized (this) {
+                mSockets.add(socket);
+            }
+
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "LoopbackServer connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    /* Answers requests on one connection until the client closes it */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            String requestLine;
+            while ((requestLine = readLine(in)) != null && !requestLine.isEmpty()) {
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+
+                /* "GET /path HTTP/1.1": our requests are all GETs, so there is no body to read */
+                Request request = new Request(requestLine.split(" ")[1], headers);
+                synchronized (this) {
+                    mRequests.add(request);
+                }
+                write(mHandler.handle(request), out);
+            }
+        } catch (IOException e) {
+            /* The client went away, or the server was closed */
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void write(Response response, OutputStream out) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.code).append(" Status\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (response.body != null) {
+            head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (response.body != null) {
+            out.write(response.body);
+        }
+        out.flush();
+    }
+
+    /* Reads one CRLF terminated line, or returns null at the end of the stream */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package joels.com.projectsunshine.utilities;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NetworkUtilsTest {
+
+    private static final byte[] BODY = "{\"cod\":\"200\",\"list\":[]}   ".getBytes();
+
+    private static final String ETAG = "\"v1\"";
+
+    /* For the transport benchmark: about the size of a 14 day forecast, many times over */
+    private static final int LARGE_BODY_BYTES = 64 * 1024;
+    private static final int WARM_UP_REQUESTS = 20;
+    private static final int MEASURED_REQUESTS = 200;
+    private static final long ALLOCATIONS_UNSUPPORTED = -1;
+
+    private File mCacheDirectory;
+    private ForecastResponseCache mCache;
+    private LoopbackServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mCacheDirectory = Files.createTempDirectory("forecast-responses").toFile();
+        mCache = new ForecastResponseCache(mCacheDirectory, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) mServer.close();
+        deleteCachedFiles(".meta");
+        deleteCachedFiles(".body");
+        mCacheDirectory.delete();
+    }
+
+    @Test
+    public void connectionsAskForGzipAndTimeOut() throws IOException {
+        HttpURLConnection connection =
+                NetworkUtils.openConnection(new URL("http://example.com/forecast"));
+
+        assertEquals("gzip", connection.getRequestProperty("Accept-Encoding"));
+        assertTrue(connection.getConnectTimeout() > 0);
+        assertTrue(connection.getReadTimeout() > 0);
+    }
+
+    @Test
+    public void plainBodiesArePassedThrough() throws IOException {
+        FakeConnection connection = new FakeConnection(200, null, BODY);
+
+        assertArrayEquals(BODY, readFully(NetworkUtils.openResponseBody(connection)));
+    }
+
+    @Test
+    public void gzippedBodiesAreDecompressed() throws IOException {
+        FakeConnection connection = new FakeConnection(200, "gzip", gzip(BODY));
+
+        assertArrayEquals(BODY, readFully(NetworkUtils.openResponseBody(connection)));
+    }
+
+    /* The connection only goes back to the pool once its body has been read to the end */
+    @Test
+    public void closingDrainsWhatTheParserLeft() throws IOException {
+        FakeConnection connection = new FakeConnection(200, null, BODY);
+        InputStream body = NetworkUtils.openResponseBody(connection);
+
+        body.read(new byte[4]);
+        body.close();
+
+        assertEquals(0, connection.mBody.available());
+        assertTrue(connection.mBody.mClosed);
+    }
+
+    @Test
+    public void errorStatusesAreThrownAndTheirBodiesDrained() throws IOException {
+        FakeConnection connection = new FakeConnection(404, null, BODY);
+
+        try {
+            NetworkUtils.openResponseBody(connection);
+            fail("Expected an HttpStatusException");
+        } catch (NetworkUtils.HttpStatusException e) {
+            assertEquals(404, e.getResponseCode());
+        }
+
+        assertEquals(0, connection.mBody.available());
+        assertTrue(connection.mBody.mClosed);
+    }
+
+    @Test
+    public void onlyServerSideStatusesAreRetryable() throws IOException {
+        URL url = new URL("http://example.com/forecast");
+
+        assertTrue(new NetworkUtils.HttpStatusException(url, 500).isRetryable());
+        assertTrue(new NetworkUtils.HttpStatusException(url, 503).isRetryable());
+        assertTrue(new NetworkUtils.HttpStatusException(url, 429).isRetryable());
+        assertTrue(new NetworkUtils.HttpStatusException(url, 408).isRetryable());
+        assertFalse(new NetworkUtils.HttpStatusException(url, 400).isRetryable());
+        assertFalse(new NetworkUtils.HttpStatusException(url, 401).isRetryable());
+        assertFalse(new NetworkUtils.HttpStatusException(url, 404).isRetryable());
+    }
+
+    /* The data hasn't changed, but it still has to be parsed again to date it from today */
+    @Test
+    public void notModifiedResponsesReturnTheCachedBody() throws IOException {
+        mServer = new LoopbackServer(new ETagHandler());
+        URL url = mServer.getUrl("/forecast");
+
+        assertArrayEquals(BODY, fetch(url));
+        assertArrayEquals(BODY, fetch(url));
+
+        List<LoopbackServer.Request> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertEquals(ETAG, requests.get(1).getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void freshResponsesAreReadFromTheCache() throws IOException {
+        mServer = new LoopbackServer(new LoopbackServer.Handler() {
+            @Override
+            public LoopbackServer.Response handle(LoopbackServer.Request request) {
+                return new LoopbackServer.Response(200, BODY).header("Cache-Control", "max-age=600");
+            }
+        });
+        URL url = mServer.getUrl("/forecast");
+
+        assertArrayEquals(BODY, fetch(url));
+        assertArrayEquals(BODY, fetch(url));
+
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    /* A 304 is no use once the body it refers to is gone, so the whole response is asked for */
+    @Test
+    public void aMissingCachedBodyIsFetchedAgain() throws IOException {
+        mServer = new LoopbackServer(new ETagHandler());
+        URL url = mServer.getUrl("/forecast");
+        fetch(url);
+        deleteCachedFiles(".body");
+
+        assertArrayEquals(BODY, fetch(url));
+
+        List<LoopbackServer.Request> requests = mServer.getRequests();
+        assertEquals(3, requests.size());
+        assertEquals(ETAG, requests.get(1).getHeader("If-None-Match"));
+        assertNull(requests.get(2).getHeader("If-None-Match"));
+    }
+
+    /* Closing the body hands the socket back, so every request after the first reuses it */
+    @Test
+    public void keptAliveConnectionsAreReused() throws IOException {
+        mServer = new LoopbackServer(new FixedHandler(BODY));
+        URL url = mServer.getUrl("/forecast");
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(new String(BODY, "UTF-8"), NetworkUtils.getResponseFromHttpUrl(url));
+        }
+
+        assertEquals(10, mServer.getRequests().size());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    /* What the parser leaves unread is drained on close, so the socket can still be reused */
+    @Test
+    public void partlyReadBodiesDontCostAConnection() throws IOException {
+        mServer = new LoopbackServer(new FixedHandler(createLargeBody()));
+        URL url = mServer.getUrl("/forecast");
+
+        for (int i = 0; i < 10; i++) {
+            InputStream body = NetworkUtils.getResponseStreamFromHttpUrl(url);
+            body.read(new byte[16]);
+            body.close();
+        }
+
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    /**
+     * Compares the transport against the one it replaced, which read the body with a Scanner and
+     * then disconnected, over a real socket: connections opened, time to last byte, and bytes
+     * allocated per request. The numbers are printed; the test asserts that the current
+     * transport opens one connection and allocates less.
+     */
+    @Test
+    public void transportBenchmark() throws IOException {
+        Assume.assumeTrue("Needs per-thread allocation counts",
+                getAllocatedBytes() != ALLOCATIONS_UNSUPPORTED);
+        byte[] largeBody = createLargeBody();
+        mServer = new LoopbackServer(new FixedHandler(largeBody));
+        String expected = new String(largeBody, "UTF-8");
+
+        Transport scannerTransport = new Transport() {
+            @Override
+            public String fetch(URL url) throws IOException {
+                return getResponseWithScanner(url);
+            }
+        };
+        Transport currentTransport = new Transport() {
+            @Override
+            public String fetch(URL url) throws IOException {
+                return NetworkUtils.getResponseFromHttpUrl(url);
+            }
+        };
+
+        Measurement before = measure("scanner", scannerTransport, mServer.getUrl("/scanner"),
+                expected);
+        Measurement after = measure("current", currentTransport, mServer.getUrl("/current"),
+                expected);
+
+        assertEquals(1, after.mConnections);
+        assertTrue(after.mConnections < before.mConnections);
+        assertTrue(after.mAllocatedBytesPerRequest < before.mAllocatedBytesPerRequest);
+    }
+
+    private Measurement measure(String name, Transport transport, URL url, String expected)
+            throws IOException {
+        int connectionsBefore = mServer.getConnectionCount();
+        for (int i = 0; i < WARM_UP_REQUESTS; i++) {
+            assertEquals(expected, transport.fetch(url));
+        }
+
+        long[] timesToLastByte = new long[MEASURED_REQUESTS];
+        long allocatedBefore = getAllocatedBytes();
+        for (int i = 0; i < MEASURED_REQUESTS; i++) {
+            long startNanos = System.nanoTime();
+            String body = transport.fetch(url);
+            timesToLastByte[i] = System.nanoTime() - startNanos;
+            if (body.length() != expected.length()) fail("Short body from " + name);
+        }
+        long allocatedAfter = getAllocatedBytes();
+
+        Measurement measurement = new Measurement();
+        measurement.mConnections = mServer.getConnectionCount() - connectionsBefore;
+        measurement.mAllocatedBytesPerRequest =
+                (allocatedAfter - allocatedBefore) / MEASURED_REQUESTS;
+
+        Arrays.sort(timesToLastByte);
+        System.out.println(name + ": " + MEASURED_REQUESTS + " requests of "
+                + LARGE_BODY_BYTES / 1024 + "KiB (after " + WARM_UP_REQUESTS + " to warm up)"
+                + " over " + measurement.mConnections + " connections, time to last byte p50 "
+                + TimeUnit.NANOSECONDS.toMicros(timesToLastByte[MEASURED_REQUESTS / 2]) + "us"
+                + " p99 "
+                + TimeUnit.NANOSECONDS.toMicros(timesToLastByte[MEASURED_REQUESTS * 99 / 100])
+                + "us, " + measurement.mAllocatedBytesPerRequest / 1024 + "KiB allocated"
+                + " per request");
+        return measurement;
+    }
+
+    /* How getResponseFromHttpUrl used to read a response */
+    private static String getResponseWithScanner(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        try {
+            Scanner scanner = new Scanner(urlConnection.getInputStream());
+            scanner.useDelimiter("\\A");
+            return scanner.hasNext() ? scanner.next() : null;
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+
+    /* The bytes this thread has allocated so far, where the JVM counts them */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return ALLOCATIONS_UNSUPPORTED;
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /* A JSON body of LARGE_BODY_BYTES */
+    private static byte[] createLargeBody() throws IOException {
+        StringBuilder json = new StringBuilder("{\"cod\":\"200\",\"list\":[");
+        while (json.length() < LARGE_BODY_BYTES - 2) {
+            json.append("{\"temp\":{\"max\":20.5,\"min\":10.5}},");
+        }
+        json.setLength(LARGE_BODY_BYTES - 2);
+        json.append("]}");
+        return json.toString().getBytes("UTF-8");
+    }
+
+    private interface Transport {
+        String fetch(URL url) throws IOException;
+    }
+
+    private static class Measurement {
+        private int mConnections;
+        private long mAllocatedBytesPerRequest;
+    }
+
+    /* Reads a body through the response cache and accepts it, as ForecastFetcher does */
+    private byte[] fetch(URL url) throws IOException {
+        InputStream body = NetworkUtils.getResponseStreamFromHttpUrl(mCache, url);
+        try {
+            byte[] bytes = readAll(body);
+            ForecastResponseCache.commit(body);
+            return bytes;
+        } finally {
+            body.close();
+        }
+    }
+
+    private void deleteCachedFiles(String suffix) {
+        File[] files = mCacheDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().endsWith(suffix)) file.delete();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            return readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /* Answers every request with the same body */
+    private static class FixedHandler implements LoopbackServer.Handler {
+
+        private final byte[] mBody;
+
+        FixedHandler(byte[] body) {
+            mBody = body;
+        }
+
+        @Override
+        public LoopbackServer.Response handle(LoopbackServer.Request request) {
+            return new LoopbackServer.Response(200, mBody);
+        }
+    }
+
+    /* Answers with BODY and an ETag, or with a 304 when the request carries that ETag */
+    private static class ETagHandler implements LoopbackServer.Handler {
+
+        @Override
+        public LoopbackServer.Response handle(LoopbackServer.Request request) {
+            if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                return new LoopbackServer.Response(304, null).header("ETag", ETAG);
+            }
+            return new LoopbackServer.Response(200, BODY).header("ETag", ETAG);
+        }
+    }
+
+    /* A connection that answers with a canned response, on the error stream for 4xx and 5xx */
+    private static class FakeConnection extends HttpURLConnection {
+
+        private final String mContentEncoding;
+        private final TrackingInputStream mBody;
+
+        FakeConnection(int responseCode, String contentEncoding, byte[] body) throws IOException {
+            super(new URL("http://example.com/forecast"));
+            this.responseCode = responseCode;
+            mContentEncoding = contentEncoding;
+            mBody = new TrackingInputStream(body);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (responseCode >= HTTP_BAD_REQUEST) {
+                throw new FileNotFoundException(url.toString());
+            }
+            return mBody;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return responseCode >= HTTP_BAD_REQUEST ? mBody : null;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return mContentEncoding;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+
+    private static class TrackingInputStream extends ByteArrayInputStream {
+
+        private boolean mClosed;
+
+        TrackingInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package joels.com.projectsunshine.utilities;
+
+import org.junit.Test;
+
+import joels.com.projectsunshine.R;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that WeatherConditions' tables give the same icons and art as SunshineWeatherUtils'
+ * if/else chains, inside the tables and out.
+ */
+public class WeatherConditionsTest {
+
+    private static final int[] IDS_OUTSIDE_THE_TABLES = {
+            Integer.MIN_VALUE, -1, 1000, 1200, Integer.MAX_VALUE
+    };
+
+    @Test
+    public void iconsMatchTheLookup() {
+        for (int weatherId = -100; weatherId <= 1200; weatherId++) {
+            assertEquals("weather id " + weatherId,
+                    SunshineWeatherUtils.lookupIconResourceForWeatherCondition(weatherId),
+                    WeatherConditions.getIconResource(weatherId));
+        }
+        for (int weatherId : IDS_OUTSIDE_THE_TABLES) {
+            assertEquals(-1, WeatherConditions.getIconResource(weatherId));
+        }
+    }
+
+    @Test
+    public void artMatchesTheLookup() {
+        for (int weatherId = -100; weatherId <= 1200; weatherId++) {
+            assertEquals("weather id " + weatherId,
+                    SunshineWeatherUtils.lookupArtResourceForWeatherCondition(weatherId),
+                    WeatherConditions.getArtResource(weatherId));
+        }
+        for (int weatherId : IDS_OUTSIDE_THE_TABLES) {
+            assertEquals(0, WeatherConditions.getArtResource(weatherId));
+        }
+    }
+
+    /* 761 falls in the fog range, which is checked before the storm branch that also names it */
+    @Test
+    public void theOldChainsOdditiesAreKept() {
+        assertEquals(R.drawable.ic_fog, WeatherConditions.getIconResource(761));
+        assertEquals(R.drawable.art_fog, WeatherConditions.getArtResource(761));
+        assertEquals(R.drawable.ic_storm, WeatherConditions.getIconResource(781));
+        assertEquals(-1, WeatherConditions.getIconResource(771));
+        assertEquals(R.drawable.art_storm, WeatherConditions.getArtResource(771));
+    }
+
+    @Test
+    public void commonConditionsHaveTheirIcons() {
+        assertEquals(R.drawable.ic_storm, WeatherConditions.getIconResource(200));
+        assertEquals(R.drawable.ic_light_rain, WeatherConditions.getIconResource(300));
+        assertEquals(R.drawable.ic_rain, WeatherConditions.getIconResource(500));
+        assertEquals(R.drawable.ic_snow, WeatherConditions.getIconResource(511));
+        assertEquals(R.drawable.ic_clear, WeatherConditions.getIconResource(800));
+        assertEquals(R.drawable.ic_light_clouds, WeatherConditions.getIconResource(801));
+        assertEquals(R.drawable.ic_cloudy, WeatherConditions.getIconResource(804));
+    }
+}
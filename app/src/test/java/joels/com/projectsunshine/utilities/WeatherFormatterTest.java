@@ -0,0 +1,145 @@
+package joels.com.projectsunshine.utilities;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that WeatherFormatter's tables give exactly what String.format gave before them.
+ */
+public class WeatherFormatterTest {
+
+    /* The format strings, as they are once the resources have trimmed them */
+    private static final String CELSIUS_FORMAT = "%1.0f°C";
+    private static final String FAHRENHEIT_FORMAT = "%1.0f°F";
+    private static final String KMH_FORMAT = "%1$1.0f km/h %2$s";
+    private static final String MPH_FORMAT = "%1$1.0f mph %2$s";
+
+    private static final double[] UNUSUAL_TEMPERATURES = {
+            0.0, -0.0, 0.5, -0.5, 0.49999999999999994, -0.49999999999999994, 2.5, -2.5,
+            -17.5, -17.7777, 149.5, 150.5, -150.5, 1000, -1000, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+
+    private static final float[] UNUSUAL_WIND_SPEEDS = {
+            0f, -0f, 0.5f, -0.5f, 1.5f, 249.5f, 250.5f, 400f, -3f, Float.NaN,
+            Float.POSITIVE_INFINITY
+    };
+
+    private static final float[] UNUSUAL_DEGREES = {
+            0f, 22.4f, 22.5f, 67.5f, 337.4f, 337.5f, 359.9f, 360f, 720f, -10f, Float.NaN
+    };
+
+    @Test
+    public void metricTemperaturesMatchStringFormat() {
+        checkTemperatures(createFormatter(true), true);
+    }
+
+    @Test
+    public void imperialTemperaturesMatchStringFormat() {
+        checkTemperatures(createFormatter(false), false);
+    }
+
+    @Test
+    public void highLowsMatchStringFormat() {
+        WeatherFormatter formatter = createFormatter(true);
+        double[][] highLows = {{21.4, 9.6}, {-0.4, -0.6}, {0.5, -0.5}, {200.2, -200.2}};
+        for (double[] highLow : highLows) {
+            String expected = formatTemperature(true, Math.round(highLow[0])) + " / "
+                    + formatTemperature(true, Math.round(highLow[1]));
+
+            assertEquals(expected, formatter.appendHighLow(new StringBuilder(),
+                    highLow[0], highLow[1]).toString());
+        }
+    }
+
+    @Test
+    public void metricWindMatchesStringFormat() {
+        checkWinds(createFormatter(true), true);
+    }
+
+    @Test
+    public void imperialWindMatchesStringFormat() {
+        checkWinds(createFormatter(false), false);
+    }
+
+    /* The second lookup of a value comes from the table, so it has to match as well */
+    @Test
+    public void tabledValuesMatchOnEveryLookup() {
+        WeatherFormatter formatter = createFormatter(true);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(formatTemperature(true, 21.4), formatter.formatTemperature(21.4));
+            assertEquals(formatTemperature(true, -0.2), formatter.formatTemperature(-0.2));
+            assertEquals(formatWind(true, 12.6f, 200f), formatter.formatWind(12.6f, 200f));
+        }
+    }
+
+    private static void checkTemperatures(WeatherFormatter formatter, boolean metric) {
+        for (double temperature = -120; temperature <= 120; temperature += 0.05) {
+            assertEquals(formatTemperature(metric, temperature),
+                    formatter.formatTemperature(temperature));
+        }
+        for (double temperature : UNUSUAL_TEMPERATURES) {
+            assertEquals(formatTemperature(metric, temperature),
+                    formatter.formatTemperature(temperature));
+        }
+    }
+
+    private static void checkWinds(WeatherFormatter formatter, boolean metric) {
+        for (float windSpeed = 0; windSpeed <= 300; windSpeed += 0.1f) {
+            for (float degrees = 0; degrees < 360; degrees += 7.5f) {
+                assertEquals(formatWind(metric, windSpeed, degrees),
+                        formatter.formatWind(windSpeed, degrees));
+            }
+        }
+        for (float windSpeed : UNUSUAL_WIND_SPEEDS) {
+            for (float degrees : UNUSUAL_DEGREES) {
+                assertEquals(formatWind(metric, windSpeed, degrees),
+                        formatter.formatWind(windSpeed, degrees));
+            }
+        }
+    }
+
+    private static WeatherFormatter createFormatter(boolean metric) {
+        return new WeatherFormatter(metric, Locale.getDefault(),
+                metric ? CELSIUS_FORMAT : FAHRENHEIT_FORMAT,
+                metric ? KMH_FORMAT : MPH_FORMAT);
+    }
+
+    /* What SunshineWeatherUtils.formatTemperature did before WeatherFormatter */
+    private static String formatTemperature(boolean metric, double temperature) {
+        if (!metric) {
+            temperature = (temperature * 1.8) + 32;
+        }
+        return String.format(metric ? CELSIUS_FORMAT : FAHRENHEIT_FORMAT, temperature);
+    }
+
+    /* What SunshineWeatherUtils.getFormattedWind did before WeatherFormatter */
+    private static String formatWind(boolean metric, float windSpeed, float degrees) {
+        if (!metric) {
+            windSpeed = .621371192237334f * windSpeed;
+        }
+
+        String direction = "Unknown";
+        if (degrees >= 337.5 || degrees < 22.5) {
+            direction = "N";
+        } else if (degrees >= 22.5 && degrees < 67.5) {
+            direction = "NE";
+        } else if (degrees >= 67.5 && degrees < 112.5) {
+            direction = "E";
+        } else if (degrees >= 112.5 && degrees < 157.5) {
+            direction = "SE";
+        } else if (degrees >= 157.5 && degrees < 202.5) {
+            direction = "S";
+        } else if (degrees >= 202.5 && degrees < 247.5) {
+            direction = "SW";
+        } else if (degrees >= 247.5 && degrees < 292.5) {
+            direction = "W";
+        } else if (degrees >= 292.5 && degrees < 337.5) {
+            direction = "NW";
+        }
+        return String.format(metric ? KMH_FORMAT : MPH_FORMAT, windSpeed, direction);
+    }
+}